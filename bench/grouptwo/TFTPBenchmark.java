@@ -0,0 +1,400 @@
+package grouptwo;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * TFTPBenchmark measures the per-packet code paths of the project: packet encode/decode in TFTPCommon,
+ * request parsing (TFTPRequest, as used by ClientConnectionThread and the selector server) and block
+ * reads/writes in FileOperation against the files in testfiles/ and optionally a generated large file.
+ * Each benchmark is warmed up, then timed over several iterations with System.nanoTime. Results are
+ * printed as a table and can be written as JSON for regression tracking.
+ *
+ * Build and run from the project root (after building the project into build/):
+ *     javac -cp build/ -d build/ bench/grouptwo/TFTPBenchmark.java
+ *     java -cp build/ grouptwo.TFTPBenchmark [-json results.json] [-testfiles dir] [-genmb MB] [-filter text] [-time ms]
+ *
+ * @author        Cyrus Sadeghi
+ */
+public class TFTPBenchmark
+{
+	/**
+	 * One benchmarked operation, run returns a value that is consumed so the JIT can't remove the work
+	 */
+	private static interface Operation
+	{
+		public long run() throws Exception;
+	}
+
+	/**
+	 * Result of one benchmark
+	 */
+	private static class Result
+	{
+		private String name;
+		private long opsPerIteration;
+		private double nsPerOp, nsPerOpError, bytesPerOp;
+
+		private double mbPerSecond()
+		{
+			return bytesPerOp == 0 ? 0 : bytesPerOp / nsPerOp * 1e9 / (1024 * 1024);
+		}
+	}
+
+	private static final int warmupIterations = 3;
+	private static final int measureIterations = 5;
+	//Consumes benchmark results (see Operation)
+	private static volatile long blackhole;
+
+	private long iterationTime;
+	private String filter;
+	private List<Result> results;
+
+	/**
+	 *   Constructor for TFTPBenchmark
+	 *
+	 *   @param  long target time of each iteration in ms
+	 *   @param  String only run benchmarks whose names contain this (null for all)
+	 *   @return TFTPBenchmark
+	 */
+	public TFTPBenchmark(long iterationTime, String filter)
+	{
+		this.iterationTime = iterationTime;
+		this.filter = filter;
+		results = new ArrayList<Result>();
+	}
+
+	/**
+	 *   Run a benchmark. The number of operations per iteration is calibrated during warm up so that
+	 *   an iteration takes about iterationTime, the reported time is the mean of the measured iterations
+	 *
+	 *   @param  String benchmark name
+	 *   @param  long bytes processed by one operation (0 if not meaningful)
+	 *   @param  Operation operation to benchmark
+	 *   @return none
+	 */
+	private void bench(String name, long bytesPerOp, Operation op) throws Exception
+	{
+		long ops = 1;
+		long start, elapsed;
+		double[] samples = new double[measureIterations];
+		double mean = 0, variance = 0;
+		Result result = new Result();
+
+		if (filter != null && !name.contains(filter))
+		{
+			return;
+		}
+
+		//Calibrate: double the operation count until one iteration takes long enough
+		while (true)
+		{
+			elapsed = timeOps(op, ops);
+
+			if (elapsed >= iterationTime * 1000000L / 4 || ops >= (1L << 40))
+			{
+				ops = Math.max(1, ops * iterationTime * 1000000L / Math.max(1, elapsed));
+				break;
+			}
+
+			ops *= 2;
+		}
+
+		for (int i = 0; i < warmupIterations; i++)
+		{
+			timeOps(op, ops);
+		}
+
+		for (int i = 0; i < measureIterations; i++)
+		{
+			start = System.nanoTime();
+			timeOps(op, ops);
+			samples[i] = (double) (System.nanoTime() - start) / ops;
+			mean += samples[i] / measureIterations;
+		}
+
+		for (double sample : samples)
+		{
+			variance += (sample - mean) * (sample - mean) / (measureIterations - 1);
+		}
+
+		result.name = name;
+		result.opsPerIteration = ops;
+		result.nsPerOp = mean;
+		result.nsPerOpError = Math.sqrt(variance);
+		result.bytesPerOp = bytesPerOp;
+		results.add(result);
+
+		System.out.println(String.format("%-45s %14.1f ns/op  +- %8.1f  %10.1f MB/s", name, result.nsPerOp, result.nsPerOpError, result.mbPerSecond()));
+	}
+
+	private static long timeOps(Operation op, long ops) throws Exception
+	{
+		long start = System.nanoTime();
+		long consumed = 0;
+
+		for (long i = 0; i < ops; i++)
+		{
+			consumed += op.run();
+		}
+
+		blackhole = consumed;
+		return System.nanoTime() - start;
+	}
+
+	/**
+	 *   Packet encode/decode benchmarks (no I/O)
+	 *
+	 *   @param  none
+	 *   @return none
+	 */
+	private void codecBenchmarks() throws Exception
+	{
+		final byte[] ack = new byte[4];
+		final byte[] request = new byte[TFTPCommon.maxPacketSize];
+		final byte[] error = new byte[TFTPCommon.maxPacketSize];
+		final Map<String, String> options = new LinkedHashMap<String, String>();
+		final int requestLen;
+		final DatagramPacket dataPacket;
+		final byte[] data = new byte[TFTPCommon.defaultBlockSize + 4];
+		//Changing inputs, so results can't be computed once and reused
+		final int[] sequence = {0};
+
+		options.put(TransferOptions.BLKSIZE, "1428");
+		options.put(TransferOptions.WINDOWSIZE, "16");
+		requestLen = TFTPCommon.constructReqPacket(request, 1, "firmware/image-2.4.1.bin", "octet", options);
+
+		data[1] = 3;
+		data[3] = 7;
+		dataPacket = new DatagramPacket(data, data.length, InetAddress.getLoopbackAddress(), 69);
+
+		bench("codec.constructAckPacket", 4, () -> {
+			TFTPCommon.constructAckPacket(ack, sequence[0]++ & 0xFFFF);
+			return ack[3];
+		});
+
+		bench("codec.blockNumToPacket", 0, () -> {
+			data[2] = (byte) sequence[0]++;
+			return TFTPCommon.blockNumToPacket(data);
+		});
+
+		bench("codec.getPacketType", 0, () -> TFTPCommon.getPacketType(data).ordinal());
+
+		bench("codec.validDATAPacket", 0, () -> TFTPCommon.validDATAPacket(dataPacket, 7, TFTPCommon.defaultBlockSize) ? 1 : 0);
+
+		bench("codec.constructReqPacket(options)", requestLen, () -> TFTPCommon.constructReqPacket(request, 1, "firmware/image-2.4.1.bin", "octet", options));
+
+		bench("codec.constructErrorPacket", 0, () -> TFTPCommon.constructErrorPacket(error, TFTPCommon.ErrorCode.FILENOTFOUND, "File: \"image.bin\" does not exist!"));
+
+		bench("request.parse(RRQ+options)", requestLen, () -> TFTPRequest.parse(request, requestLen).getOptions().size());
+
+		bench("options.negotiate", 0, () -> TransferOptions.negotiate(TFTPRequest.parse(request, requestLen).getOptions()).getBlockSize());
+	}
+
+	/**
+	 *   Read every block of a file, repeatedly (constructDataPacket, which reads through FileOperation)
+	 *
+	 *   @param  File file to read
+	 *   @param  int block size
+	 *   @return none
+	 */
+	private void readBenchmark(File file, int blockSize) throws Exception
+	{
+		final FileOperation fileOp = new FileOperation(file.getPath(), true, blockSize, false);
+		final byte[] msg = new byte[blockSize + 4];
+		final int blocks = fileOp.getNumTFTPBlocks();
+		final int[] next = {1};
+
+		bench("file.read[" + file.getName() + ", " + blockSize + "]", Math.max(1, file.length() / blocks), () -> {
+			int len = TFTPCommon.constructDataPacket(msg, next[0], fileOp);
+			next[0] = (next[0] % blocks) + 1;
+			return len;
+		});
+
+		fileOp.closeFileRead();
+	}
+
+	/**
+	 *   Write blocks to a new file (writeNextDataPacket), starting a new file every 64MB
+	 *
+	 *   @param  File directory to write in
+	 *   @param  int block size
+	 *   @return none
+	 */
+	private void writeBenchmark(File directory, final int blockSize) throws Exception
+	{
+		final File target = new File(directory, "bench_write.dat");
+		final byte[] msg = new byte[blockSize + 4];
+		final FileOperation[] fileOp = new FileOperation[1];
+		final long[] written = {0};
+
+		new Random(1).nextBytes(msg);
+		fileOp[0] = new FileOperation(target.getPath(), false, blockSize, true);
+
+		bench("file.write[" + blockSize + "]", blockSize, () -> {
+			if (written[0] >= 64L * 1024 * 1024)
+			{
+				fileOp[0].finalizeFileWrite();
+				fileOp[0] = new FileOperation(target.getPath(), false, blockSize, true);
+				written[0] = 0;
+			}
+
+			fileOp[0].writeNextDataPacket(msg, 4, blockSize);
+			written[0] += blockSize;
+			return written[0];
+		});
+
+		fileOp[0].finalizeFileWrite();
+		target.delete();
+	}
+
+	/**
+	 *   Generate a file of random data to benchmark large reads with
+	 *
+	 *   @param  File file to create
+	 *   @param  long size in MB
+	 *   @return none
+	 */
+	private static void generateFile(File file, long megabytes) throws IOException
+	{
+		byte[] chunk = new byte[1024 * 1024];
+		Random random = new Random(1);
+
+		try (FileOutputStream out = new FileOutputStream(file))
+		{
+			for (long i = 0; i < megabytes; i++)
+			{
+				random.nextBytes(chunk);
+				out.write(chunk);
+			}
+		}
+	}
+
+	/**
+	 *   Write results as JSON
+	 *
+	 *   @param  File file to write to
+	 *   @return none
+	 */
+	private void writeJSON(File file) throws IOException
+	{
+		try (PrintWriter out = new PrintWriter(file, "UTF-8"))
+		{
+			out.println("{");
+			out.println("  \"timestamp\": \"" + Instant.now() + "\",");
+			out.println("  \"java\": \"" + System.getProperty("java.version") + "\",");
+			out.println("  \"os\": \"" + System.getProperty("os.name") + " " + System.getProperty("os.arch") + "\",");
+			out.println("  \"warmupIterations\": " + warmupIterations + ",");
+			out.println("  \"measureIterations\": " + measureIterations + ",");
+			out.println("  \"iterationTimeMs\": " + iterationTime + ",");
+			out.println("  \"results\": [");
+
+			for (int i = 0; i < results.size(); i++)
+			{
+				Result r = results.get(i);
+
+				out.print(String.format("    {\"name\": \"%s\", \"nsPerOp\": %.2f, \"nsPerOpError\": %.2f, \"opsPerIteration\": %d, \"mbPerSecond\": %.2f}",
+					r.name, r.nsPerOp, r.nsPerOpError, r.opsPerIteration, r.mbPerSecond()));
+				out.println(i < results.size() - 1 ? "," : "");
+			}
+
+			out.println("  ]");
+			out.println("}");
+		}
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		File json = null;
+		File testFiles = new File("testfiles");
+		File workDir = new File(System.getProperty("java.io.tmpdir"));
+		File generated = null;
+		long generateMB = 0;
+		long iterationTime = 500;
+		String filter = null;
+		TFTPBenchmark benchmark;
+
+		for (int i = 0; i + 1 < args.length; i += 2)
+		{
+			if (args[i].equalsIgnoreCase("-json"))
+			{
+				json = new File(args[i + 1]);
+			}
+			else if (args[i].equalsIgnoreCase("-testfiles"))
+			{
+				testFiles = new File(args[i + 1]);
+			}
+			else if (args[i].equalsIgnoreCase("-genmb"))
+			{
+				generateMB = Long.parseLong(args[i + 1]);
+			}
+			else if (args[i].equalsIgnoreCase("-filter"))
+			{
+				filter = args[i + 1];
+			}
+			else if (args[i].equalsIgnoreCase("-time"))
+			{
+				iterationTime = Long.parseLong(args[i + 1]);
+			}
+			else
+			{
+				System.out.println("Unknown argument " + args[i]);
+				return;
+			}
+		}
+
+		//Benchmarks measure the code paths, not console output
+		TFTPLogger.setSink(new TFTPLogger.AsyncSink(new TFTPLogger.ConsoleSink(), 1024));
+		benchmark = new TFTPBenchmark(iterationTime, filter);
+		benchmark.codecBenchmarks();
+
+		for (String name : new String[] { "512.dat", "1000.dat", "1024.dat", "50000.dat" })
+		{
+			File file = new File(testFiles, name);
+
+			if (file.isFile())
+			{
+				benchmark.readBenchmark(file, TFTPCommon.defaultBlockSize);
+			}
+			else
+			{
+				System.out.println("Skipping missing test file " + file);
+			}
+		}
+
+		if (new File(testFiles, "50000.dat").isFile())
+		{
+			benchmark.readBenchmark(new File(testFiles, "50000.dat"), 8192);
+		}
+
+		if (generateMB > 0)
+		{
+			generated = new File(workDir, "bench_" + generateMB + "MB.dat");
+			System.out.println("Generating " + generated + "...");
+			generateFile(generated, generateMB);
+			benchmark.readBenchmark(generated, TFTPCommon.defaultBlockSize);
+			benchmark.readBenchmark(generated, 8192);
+			benchmark.readBenchmark(generated, TFTPCommon.maxBlockSize);
+			generated.delete();
+		}
+
+		benchmark.writeBenchmark(workDir, TFTPCommon.defaultBlockSize);
+		benchmark.writeBenchmark(workDir, 8192);
+
+		if (json != null)
+		{
+			benchmark.writeJSON(json);
+			System.out.println("Results written to " + json);
+		}
+	}
+}
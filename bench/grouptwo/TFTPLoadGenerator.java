@@ -0,0 +1,494 @@
+package grouptwo;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * TFTPLoadGenerator runs many TFTPClientTransfers at once against a running TFTPServer (directly, or
+ * through TFTPIntHost), to reproduce production load on a single machine. A number of client threads
+ * each run transfers back to back until the requested number of transfers have run, then aggregate
+ * throughput, transfers per second, per-transfer latency percentiles and retransmit counts are printed.
+ *
+ * Files to read are first uploaded to the server (one per file size), written files get unique names.
+ * Both are named <run id>_..., the server keeps them after the run. Packet loss is simulated on the
+ * client sockets, sent and received packets are dropped at random with the given probability.
+ *
+ * Build and run from the project root (after building the project into build/), with a server running:
+ *     javac -cp build/ -d build/ bench/grouptwo/TFTPLoadGenerator.java
+ *     java -cp build/ grouptwo.TFTPLoadGenerator [-clients n] [-transfers n] [-request read|write|mixed]
+ *         [-sizes KB[,KB...]] [-blksize bytes] [-windowsize blocks] [-timeout ms] [-loss percent]
+ *         [-route server|errorsim] [-server address] [-dir work directory] [-log none|sync|async[:lines]]
+ *
+ * @author        Cyrus Sadeghi
+ */
+public class TFTPLoadGenerator
+{
+	/**
+	 * Sink that throws log lines away, transfer output is off unless -log is given
+	 */
+	private static class DiscardSink implements TFTPLogger.Sink
+	{
+		public void write(String lines)
+		{
+		}
+
+		public void flush()
+		{
+		}
+	}
+
+	/**
+	 * Socket that drops sent and received packets at random. A dropped received packet doesn't end
+	 * the receive early, the socket waits (up to its full timeout again) for the next packet
+	 */
+	private static class LossySocket extends DatagramSocket
+	{
+		private final double loss;
+
+		private LossySocket(double loss) throws SocketException
+		{
+			super();
+			this.loss = loss;
+		}
+
+		public void send(DatagramPacket packet) throws IOException
+		{
+			if (ThreadLocalRandom.current().nextDouble() >= loss)
+			{
+				super.send(packet);
+			}
+		}
+
+		public void receive(DatagramPacket packet) throws IOException
+		{
+			do {
+				super.receive(packet);
+			} while (ThreadLocalRandom.current().nextDouble() < loss);
+		}
+	}
+
+	/**
+	 * Result of one transfer
+	 */
+	private static class Result
+	{
+		private TFTPCommon.Request request;
+		private long latency;
+		private TransferStats stats;
+		private Boolean verified;
+	}
+
+	private InetAddress serverAddress;
+	private TFTPCommon.Mode route;
+	private int blockSize, windowSize, timeout;
+	private double loss;
+	private File workDir;
+	private String runId;
+
+	/**
+	 *   Constructor for TFTPLoadGenerator
+	 *
+	 *   @param  InetAddress address of server (or error simulator)
+	 *   @param  TFTPCommon.Mode NORMAL to send to the server, TEST to send through the error simulator
+	 *   @param  int block size to request
+	 *   @param  int window size to request
+	 *   @param  int retransmit timeout in ms
+	 *   @param  double probability of dropping each packet (0-1)
+	 *   @param  File directory for local files
+	 *   @return TFTPLoadGenerator
+	 */
+	public TFTPLoadGenerator(InetAddress serverAddress, TFTPCommon.Mode route, int blockSize, int windowSize, int timeout, double loss, File workDir)
+	{
+		this.serverAddress = serverAddress;
+		this.route = route;
+		this.blockSize = blockSize;
+		this.windowSize = windowSize;
+		this.timeout = timeout;
+		this.loss = loss;
+		runId = "load" + Long.toString(System.currentTimeMillis(), 36);
+		this.workDir = new File(workDir, runId);
+	}
+
+	/**
+	 *   Run one transfer on the calling thread
+	 *
+	 *   @param  TFTPCommon.Request read or write
+	 *   @param  String file name on server
+	 *   @param  File local file
+	 *   @param  Boolean true to drop packets (false for setting up the run)
+	 *   @return Result transfer result
+	 */
+	private Result transfer(TFTPCommon.Request request, String remoteName, File localFile, Boolean lossy) throws SocketException
+	{
+		DatagramSocket socket = (lossy && loss > 0) ? new LossySocket(loss) : new DatagramSocket();
+		TFTPClientTransfer transfer = new TFTPClientTransfer("loadTransfer", serverAddress, remoteName, localFile.getPath(), null, request, route, TFTPCommon.Verbosity.NONE, timeout, blockSize, windowSize, false, socket);
+		Result result = new Result();
+		long start = System.nanoTime();
+
+		//The client threads are the load, so the transfer runs on the calling thread instead of starting its own
+		transfer.run();
+		result.latency = System.nanoTime() - start;
+		result.request = request;
+		result.stats = transfer.getStats();
+		result.verified = result.stats.isComplete();
+		return result;
+	}
+
+	/**
+	 *   Create the local files, and upload the files that will be read
+	 *
+	 *   @param  int[] file sizes in KB
+	 *   @param  Boolean true if reads will run
+	 *   @return Boolean true if setup succeeded
+	 */
+	private Boolean setup(int[] sizes, Boolean reads) throws IOException
+	{
+		Random random = new Random(sizes.length);
+		byte[] block = new byte[1024];
+
+		if (!workDir.mkdirs())
+		{
+			System.out.println("Couldn't create " + workDir);
+			return false;
+		}
+
+		for (int size : sizes)
+		{
+			File source = sourceFile(size);
+
+			if (source.exists())
+			{
+				continue;
+			}
+
+			try (FileOutputStream out = new FileOutputStream(source))
+			{
+				for (int i = 0; i < size; i++)
+				{
+					random.nextBytes(block);
+					out.write(block);
+				}
+			}
+
+			if (reads && !transfer(TFTPCommon.Request.WRITE, readName(size), source, false).verified)
+			{
+				System.out.println("Couldn't upload " + readName(size) + " to the server, is it running?");
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private File sourceFile(int size)
+	{
+		return new File(workDir, "source_" + size + "k.dat");
+	}
+
+	private String readName(int size)
+	{
+		return runId + "_" + size + "k.dat";
+	}
+
+	/**
+	 *   Run the transfers and print the results
+	 *
+	 *   @param  int number of client threads
+	 *   @param  int total number of transfers
+	 *   @param  TFTPCommon.Request READ or WRITE for only that request, ERROR for alternating reads and writes
+	 *   @param  int[] file sizes in KB, used in turn
+	 *   @return none
+	 */
+	public void run(int clients, int transfers, TFTPCommon.Request request, int[] sizes) throws IOException, InterruptedException
+	{
+		Result[] results = new Result[transfers];
+		AtomicInteger next = new AtomicInteger();
+		List<Thread> threads = new ArrayList<Thread>();
+		long start;
+
+		if (!setup(sizes, request != TFTPCommon.Request.WRITE))
+		{
+			return;
+		}
+
+		System.out.println("Running " + transfers + " transfers on " + clients + " clients...");
+		start = System.nanoTime();
+
+		for (int c = 0; c < clients; c++)
+		{
+			Thread client = new Thread(() -> {
+				int i;
+
+				while ((i = next.getAndIncrement()) < transfers)
+				{
+					results[i] = runTransfer(i, request, sizes);
+				}
+			}, "loadClient" + c);
+
+			threads.add(client);
+			client.start();
+		}
+
+		for (Thread client : threads)
+		{
+			client.join();
+		}
+
+		report(results, System.nanoTime() - start, clients, sizes);
+
+		for (File file : workDir.listFiles())
+		{
+			file.delete();
+		}
+
+		workDir.delete();
+	}
+
+	/**
+	 *   Run transfer number i. Reads go to a new local file that is checked for the expected
+	 *   size and deleted, writes send the source file to a new file on the server
+	 *
+	 *   @param  int transfer number
+	 *   @param  TFTPCommon.Request request type (ERROR for alternating)
+	 *   @param  int[] file sizes in KB
+	 *   @return Result transfer result, null if the transfer couldn't be started
+	 */
+	private Result runTransfer(int i, TFTPCommon.Request request, int[] sizes)
+	{
+		Boolean mixed = request == TFTPCommon.Request.ERROR;
+		int size = sizes[(mixed ? i / 2 : i) % sizes.length];
+		File local;
+		Result result;
+
+		if (mixed)
+		{
+			request = (i % 2 == 0) ? TFTPCommon.Request.READ : TFTPCommon.Request.WRITE;
+		}
+
+		try {
+			if (request == TFTPCommon.Request.READ)
+			{
+				local = new File(workDir, "read_" + i + ".dat");
+				result = transfer(request, readName(size), local, true);
+				result.verified = result.verified && local.length() == size * 1024L;
+				local.delete();
+			}
+			else
+			{
+				result = transfer(request, runId + "_w" + i + ".dat", sourceFile(size), true);
+			}
+		} catch (SocketException e) {
+			System.out.println("Couldn't open socket for transfer " + i + ": " + e.getMessage());
+			return null;
+		}
+
+		return result;
+	}
+
+	/**
+	 *   Latency percentile (nearest rank) of sorted latencies
+	 *
+	 *   @param  long[] sorted latencies in ns
+	 *   @param  double percentile
+	 *   @return double latency in ms
+	 */
+	private static double percentile(long[] sorted, double percentile)
+	{
+		int rank = (int) Math.ceil(percentile / 100 * sorted.length);
+
+		return sorted[Math.max(0, rank - 1)] / 1e6;
+	}
+
+	/**
+	 *   Print aggregate results
+	 *
+	 *   @param  Result[] transfer results
+	 *   @param  long wall time of the run in ns
+	 *   @param  int number of client threads
+	 *   @param  int[] file sizes in KB
+	 *   @return none
+	 */
+	private void report(Result[] results, long wallTime, int clients, int[] sizes)
+	{
+		long[] latencies;
+		long bytes = 0;
+		int reads = 0, writes = 0, failed = 0, completed = 0;
+		int retransmits = 0, duplicates = 0;
+		double seconds = wallTime / 1e9;
+
+		for (Result result : results)
+		{
+			if (result == null || !result.verified)
+			{
+				failed++;
+				continue;
+			}
+
+			if (result.request == TFTPCommon.Request.READ)
+			{
+				reads++;
+			}
+			else
+			{
+				writes++;
+			}
+
+			bytes += result.stats.getBytes();
+			retransmits += result.stats.getRetransmits();
+			duplicates += result.stats.getDuplicates();
+			completed++;
+		}
+
+		latencies = new long[completed];
+		completed = 0;
+
+		for (Result result : results)
+		{
+			if (result != null && result.verified)
+			{
+				latencies[completed++] = result.latency;
+			}
+		}
+
+		Arrays.sort(latencies);
+
+		System.out.println("");
+		System.out.println("Clients:       " + clients + " (" + (route == TFTPCommon.Mode.NORMAL ? "direct to server" : "through error simulator") + ", "
+			+ "block size " + blockSize + ", window size " + windowSize + ", " + (loss * 100) + "% loss)");
+		System.out.println("File sizes:    " + Arrays.toString(sizes) + " KB");
+		System.out.println("Transfers:     " + completed + " completed (" + reads + " read, " + writes + " write), " + failed + " failed");
+		System.out.println(String.format("Throughput:    %.2f MB/s, %.1f transfers/s (%d bytes in %.2f s)", bytes / seconds / (1024 * 1024), completed / seconds, bytes, seconds));
+
+		if (completed > 0)
+		{
+			System.out.println(String.format("Latency (ms):  min %.1f, p50 %.1f, p90 %.1f, p99 %.1f, max %.1f",
+				latencies[0] / 1e6, percentile(latencies, 50), percentile(latencies, 90), percentile(latencies, 99), latencies[completed - 1] / 1e6));
+		}
+
+		System.out.println("Retransmits:   " + retransmits + " packets resent by clients, " + duplicates + " duplicate or out of order DATA received");
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		InetAddress serverAddress = InetAddress.getLoopbackAddress();
+		TFTPCommon.Mode route = TFTPCommon.Mode.NORMAL;
+		TFTPCommon.Request request = TFTPCommon.Request.ERROR;
+		TFTPLogger.Sink sink = new DiscardSink();
+		File workDir = new File(System.getProperty("java.io.tmpdir"));
+		int clients = 4;
+		int transfers = -1;
+		int blockSize = TFTPCommon.defaultBlockSize;
+		int windowSize = TFTPCommon.defaultWindowSize;
+		int timeout = 1000;
+		double loss = 0;
+		int[] sizes = { 64, 1024 };
+		String[] sizeList;
+
+		for (int i = 0; i + 1 < args.length; i += 2)
+		{
+			if (args[i].equalsIgnoreCase("-clients"))
+			{
+				clients = Math.max(1, Integer.parseInt(args[i + 1]));
+			}
+			else if (args[i].equalsIgnoreCase("-transfers"))
+			{
+				transfers = Math.max(1, Integer.parseInt(args[i + 1]));
+			}
+			else if (args[i].equalsIgnoreCase("-request"))
+			{
+				if (args[i + 1].equalsIgnoreCase("read"))
+				{
+					request = TFTPCommon.Request.READ;
+				}
+				else if (args[i + 1].equalsIgnoreCase("write"))
+				{
+					request = TFTPCommon.Request.WRITE;
+				}
+				else if (!args[i + 1].equalsIgnoreCase("mixed"))
+				{
+					System.out.println("Request must be read, write or mixed");
+					return;
+				}
+			}
+			else if (args[i].equalsIgnoreCase("-sizes"))
+			{
+				sizeList = args[i + 1].split(",");
+				sizes = new int[sizeList.length];
+
+				for (int s = 0; s < sizeList.length; s++)
+				{
+					sizes[s] = Math.max(0, Integer.parseInt(sizeList[s].trim()));
+				}
+			}
+			else if (args[i].equalsIgnoreCase("-blksize"))
+			{
+				blockSize = Integer.parseInt(args[i + 1]);
+			}
+			else if (args[i].equalsIgnoreCase("-windowsize"))
+			{
+				windowSize = Integer.parseInt(args[i + 1]);
+			}
+			else if (args[i].equalsIgnoreCase("-timeout"))
+			{
+				timeout = Integer.parseInt(args[i + 1]);
+			}
+			else if (args[i].equalsIgnoreCase("-loss"))
+			{
+				loss = Math.min(100, Math.max(0, Double.parseDouble(args[i + 1]))) / 100;
+			}
+			else if (args[i].equalsIgnoreCase("-route"))
+			{
+				route = args[i + 1].equalsIgnoreCase("errorsim") ? TFTPCommon.Mode.TEST : TFTPCommon.Mode.NORMAL;
+			}
+			else if (args[i].equalsIgnoreCase("-server"))
+			{
+				serverAddress = InetAddress.getByName(args[i + 1]);
+			}
+			else if (args[i].equalsIgnoreCase("-dir"))
+			{
+				workDir = new File(args[i + 1]);
+			}
+			else if (args[i].equalsIgnoreCase("-log"))
+			{
+				sink = args[i + 1].equalsIgnoreCase("none") ? new DiscardSink() : TFTPLogger.sinkFromString(args[i + 1]);
+
+				if (sink == null)
+				{
+					System.out.println("Log must be none, sync or async[:lines]");
+					return;
+				}
+			}
+			else
+			{
+				System.out.println("Unknown argument " + args[i]);
+				return;
+			}
+		}
+
+		if (blockSize < TFTPCommon.minBlockSize || blockSize > TFTPCommon.maxBlockSize || windowSize < 1 || windowSize > TFTPCommon.maxWindowSize)
+		{
+			System.out.println("Block size must be " + TFTPCommon.minBlockSize + "-" + TFTPCommon.maxBlockSize + " and window size 1-" + TFTPCommon.maxWindowSize);
+			return;
+		}
+
+		if (transfers < 0)
+		{
+			transfers = clients * 4;
+		}
+
+		TFTPLogger.setSink(sink);
+		new TFTPLoadGenerator(serverAddress, route, blockSize, windowSize, timeout, loss, workDir).run(clients, transfers, request, sizes);
+		TFTPLogger.flush();
+	}
+}
@@ -0,0 +1,273 @@
+package grouptwo;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * TFTPLossTest checks that transfers with negotiated options recover from the loss of the packets
+ * around the option exchange. It starts a TFTPServer and a TFTPIntHost (as separate processes, each
+ * driven through its CLI like an operator would) and runs TFTPClientTransfers through the error
+ * simulator:
+ *   WRQ, blksize 1024, DATA 1 lost   the server resends its OACK, the client resends DATA 1
+ *   RRQ, blksize 1024, ACK 0 lost    the server resends its OACK, the client resends ACK 0
+ * Each transfer must complete, the file must arrive unchanged and the client must have answered a
+ * repeated OACK. The packet is lost several times (the client's own retransmits too) and the server's
+ * timeout is lowered, so the server's OACK always comes back while the client is still retrying.
+ * Ports 69 and 23 must be free, the server and error simulator are stopped when the test ends.
+ *
+ * Build and run from the project root (after building the project into build/):
+ *     javac -cp build/ -d build/ bench/grouptwo/TFTPLossTest.java
+ *     java -cp build/ grouptwo.TFTPLossTest [-dir work directory]
+ * Exits with status 1 if a transfer fails.
+ *
+ * @author        Cyrus Sadeghi
+ */
+public class TFTPLossTest
+{
+	private static final int clientTimeout = 1000, serverTimeout = 100;
+	private static final int blockSize = 1024;
+	//Times each case's packet is lost, the client's RTO (at least 10 ms) doubles each time so its
+	//retransmits span more than the server's timeout
+	private static final int losses = 4;
+
+	/**
+	 * Sink that keeps the client's log, to check which way a transfer recovered
+	 */
+	private static class CaptureSink implements TFTPLogger.Sink
+	{
+		private final StringBuilder lines = new StringBuilder();
+
+		public synchronized void write(String text)
+		{
+			lines.append(text).append(System.lineSeparator());
+		}
+
+		public void flush()
+		{
+		}
+
+		private synchronized String take()
+		{
+			String text = lines.toString();
+
+			lines.setLength(0);
+			return text;
+		}
+	}
+
+	private final File workDir, serverDir, clientDir, serverLog, errorSimLog;
+	private final CaptureSink clientLog;
+	private Process server, errorSim;
+	private int failures;
+
+	/**
+	 *   Constructor for TFTPLossTest
+	 *
+	 *   @param  File directory to create the test's files in
+	 *   @return TFTPLossTest
+	 */
+	public TFTPLossTest(File workDir)
+	{
+		this.workDir = workDir;
+		serverDir = new File(workDir, "server");
+		clientDir = new File(workDir, "client");
+		serverLog = new File(workDir, "server.log");
+		errorSimLog = new File(workDir, "errorsim.log");
+		clientLog = new CaptureSink();
+		failures = 0;
+	}
+
+	/**
+	 *   Start the server and error simulator, run every case, then stop them
+	 *
+	 *   @param  none
+	 *   @return Boolean true if every case passed
+	 */
+	public Boolean run() throws IOException, InterruptedException
+	{
+		File source = new File(clientDir, "source.dat");
+
+		serverDir.mkdirs();
+		clientDir.mkdirs();
+		writeRandomFile(source, 50 * 1024 + 100);
+		TFTPLogger.setSink(clientLog);
+
+		try {
+			server = start("grouptwo.TFTPServer", serverDir, serverLog, "request listener");
+			errorSim = start("grouptwo.TFTPIntHost", workDir, errorSimLog, "Waiting for clients");
+			command(server, serverLog, "t\n" + serverTimeout + "\n", "Enter timeout");
+
+			check("WRQ, blksize " + blockSize + ", DATA 1 lost", "data\n1\n", "Packet: DATA 1", "resending DATA 1", TFTPCommon.Request.WRITE, "lost_data.dat", source, new File(serverDir, "lost_data.dat"));
+			check("RRQ, blksize " + blockSize + ", ACK 0 lost", "ack\n0\n", "Packet: ACK 0", "resending ACK 0", TFTPCommon.Request.READ, "lost_data.dat", new File(clientDir, "lost_ack.dat"), source);
+		} finally {
+			stop(errorSim);
+			stop(server);
+		}
+
+		System.out.println(failures == 0 ? "All cases passed" : failures + " case(s) failed, see the logs in " + workDir);
+		return failures == 0;
+	}
+
+	/**
+	 *   Program the error simulator, run one transfer through it and compare the file that arrived
+	 *
+	 *   @param  String description of the case
+	 *   @param  String packet to lose, as entered on the error simulator CLI (type and number)
+	 *   @param  String how the error simulator prints the modification
+	 *   @param  String what the client must log after the repeated OACK
+	 *   @param  TFTPCommon.Request read or write
+	 *   @param  String file name on the server
+	 *   @param  File local file (written from for WRQ, read to for RRQ)
+	 *   @param  File file the received file must match
+	 *   @return none
+	 */
+	private void check(String name, String packet, String modification, String recovery, TFTPCommon.Request request, String remoteName, File localFile, File expected) throws IOException, InterruptedException
+	{
+		TFTPClientTransfer transfer;
+		File received = request == TFTPCommon.Request.WRITE ? new File(serverDir, remoteName) : localFile;
+		String log;
+		Boolean passed;
+
+		//The modifications must be in place before the request arrives
+		command(errorSim, errorSimLog, ("lose\n" + packet).repeat(losses) + "p\n", modification);
+
+		transfer = new TFTPClientTransfer("lossTest", InetAddress.getLoopbackAddress(), remoteName, localFile.getPath(), null, request, TFTPCommon.Mode.TEST, TFTPCommon.Verbosity.NONE, clientTimeout, blockSize, 1, false);
+		transfer.run();
+		TFTPLogger.flush();
+		log = clientLog.take();
+
+		passed = transfer.getStats().isComplete() && received.exists() && Arrays.equals(Files.readAllBytes(received.toPath()), Files.readAllBytes(expected.toPath()))
+			&& log.contains("Duplicate OACK received, " + recovery);
+		System.out.println((passed ? "PASS " : "FAIL ") + name + " (" + transfer.getStats() + ")");
+
+		if (!passed)
+		{
+			System.out.print(log);
+			failures++;
+		}
+	}
+
+	/**
+	 *   Enter commands on the CLI of the server or error simulator, and wait until they have been read
+	 *
+	 *   @param  Process server or error simulator
+	 *   @param  File log of its output
+	 *   @param  String CLI input, one command or answer per line
+	 *   @param  String output that shows the commands were read
+	 *   @return none
+	 */
+	private static void command(Process process, File log, String input, String done) throws IOException, InterruptedException
+	{
+		OutputStream in = process.getOutputStream();
+		long logged = log.length();
+
+		in.write(input.getBytes(StandardCharsets.US_ASCII));
+		in.flush();
+		waitForOutput(process, log, logged, done);
+	}
+
+	/**
+	 *   Start a server or error simulator and wait for it to be ready
+	 *
+	 *   @param  String main class
+	 *   @param  File working directory
+	 *   @param  File log of its output
+	 *   @param  String output that shows it is ready
+	 *   @return Process
+	 */
+	private static Process start(String mainClass, File directory, File log, String ready) throws IOException, InterruptedException
+	{
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		Process process = new ProcessBuilder(java, "-cp", new File(System.getProperty("java.class.path")).getAbsolutePath(), mainClass, "-log", "sync")
+			.directory(directory).redirectErrorStream(true).redirectOutput(log).start();
+
+		waitForOutput(process, log, 0, ready);
+		return process;
+	}
+
+	/**
+	 *   Wait (up to 10 s) for a server or error simulator to print something
+	 *
+	 *   @param  Process server or error simulator
+	 *   @param  File log of its output
+	 *   @param  long length of the log before the output expected
+	 *   @param  String output to wait for
+	 *   @return none
+	 *   @throws IOException if the process exits or the output doesn't appear
+	 */
+	private static void waitForOutput(Process process, File log, long offset, String text) throws IOException, InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + 10000;
+		byte[] output;
+
+		while (true)
+		{
+			output = log.exists() ? Files.readAllBytes(log.toPath()) : new byte[0];
+
+			if (output.length > offset && new String(output, (int) offset, output.length - (int) offset, StandardCharsets.US_ASCII).contains(text))
+			{
+				return;
+			}
+
+			if (!process.isAlive() || System.currentTimeMillis() > deadline)
+			{
+				process.destroy();
+				throw new IOException("\"" + text + "\" didn't appear in " + log);
+			}
+
+			Thread.sleep(20);
+		}
+	}
+
+	private static void stop(Process process) throws InterruptedException
+	{
+		if (process != null)
+		{
+			process.destroy();
+			process.waitFor();
+		}
+	}
+
+	private static void writeRandomFile(File file, int size) throws IOException
+	{
+		byte[] data = new byte[size];
+
+		new Random(size).nextBytes(data);
+
+		try (FileOutputStream out = new FileOutputStream(file))
+		{
+			out.write(data);
+		}
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException
+	{
+		File workDir = null;
+
+		for (int i = 0; i + 1 < args.length; i += 2)
+		{
+			if (args[i].equalsIgnoreCase("-dir"))
+			{
+				workDir = new File(args[i + 1], "losstest_" + System.currentTimeMillis());
+			}
+			else
+			{
+				System.out.println("Ignoring unknown argument \"" + args[i] + "\"");
+			}
+		}
+
+		if (workDir == null)
+		{
+			workDir = Files.createTempDirectory("losstest").toFile();
+		}
+
+		System.exit(new TFTPLossTest(workDir).run() ? 0 : 1);
+	}
+}
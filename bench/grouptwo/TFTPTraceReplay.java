@@ -0,0 +1,472 @@
+package grouptwo;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+
+/**
+ * TFTPTraceReplay plays one side of a packet trace recorded by TFTPIntHost (-record) against a running
+ * TFTPServer or TFTPClient, so an incident or a benchmark can be repeated with identical traffic:
+ *   -target server   the trace's client packets are sent to the server, each session from its own port,
+ *                    requests to the server's request port and the rest to the TID the server answers from
+ *   -target client   the trace's server packets are sent to clients, each request received (i.e. from
+ *                    TFTPClient sending to this machine) is matched to the next session of the trace and
+ *                    answered from a new port
+ * Packets are sent at their recorded times (relative to the start of the replay in server mode, to the
+ * session's request in client mode), divided by -speed (0 sends as fast as possible). The replay is
+ * open loop: packets are sent as recorded whatever the target answers, the target's packets are only
+ * counted, so a target that behaves differently (i.e. times out) will see packets it doesn't expect.
+ * Files written by replayed WRQs must not already exist on the server. The trace is read as it is
+ * replayed, one packet at a time.
+ *
+ * Build and run from the project root (after building the project into build/):
+ *     javac -cp build/ -d build/ bench/grouptwo/TFTPTraceReplay.java
+ *     java -cp build/ grouptwo.TFTPTraceReplay -trace file [-target server|client] [-server address] [-port n]
+ *         [-speed factor] [-wait ms]
+ *
+ * @author        Cyrus Sadeghi
+ */
+public class TFTPTraceReplay
+{
+	/**
+	 * A session of the trace being replayed
+	 */
+	private static class Session
+	{
+		private final int number;
+		private DatagramChannel channel;
+		//Target's address and TID, null until known
+		private SocketAddress peer;
+		//Replay time (System.nanoTime) the session's recorded time baseTime maps to
+		private long baseNanos, baseTime;
+		private Boolean skipped;
+
+		private Session(int number)
+		{
+			this.number = number;
+			skipped = false;
+		}
+	}
+
+	/**
+	 * A request received from a client (client mode), waiting to be matched to a session of the trace
+	 */
+	private static class Request
+	{
+		private final SocketAddress client;
+		private final long arrival;
+
+		private Request(SocketAddress client, long arrival)
+		{
+			this.client = client;
+			this.arrival = arrival;
+		}
+	}
+
+	private final Boolean toServer;
+	private final InetSocketAddress target;
+	private final double speed;
+	private final long waitNanos;
+	private final Selector selector;
+	private final Map<Integer, Session> sessions;
+	private final ArrayDeque<Request> requests;
+	private final ByteBuffer receiveBuffer;
+	private DatagramChannel listener;
+	private long startNanos;
+	private long sent, bytesSent, received, bytesReceived, expected, skippedPackets, skippedSessions, latenessTotal, latenessMax;
+
+	/**
+	 *   Constructor for TFTPTraceReplay
+	 *
+	 *   @param  Boolean true to replay the client side against a server, false to replay the server side against clients
+	 *   @param  InetSocketAddress server request address (server target), or address to receive requests on (client target)
+	 *   @param  double replay speed (2 for twice as fast, 0 for as fast as possible)
+	 *   @param  int how long to wait for the target's TID or a client's request (ms)
+	 *   @return TFTPTraceReplay
+	 */
+	public TFTPTraceReplay(Boolean toServer, InetSocketAddress target, double speed, int wait) throws IOException
+	{
+		this.toServer = toServer;
+		this.target = target;
+		this.speed = speed;
+		waitNanos = wait * 1000000L;
+		selector = Selector.open();
+		sessions = new HashMap<Integer, Session>();
+		requests = new ArrayDeque<Request>();
+		receiveBuffer = ByteBuffer.allocateDirect(TFTPCommon.maxPacketSize);
+
+		if (!toServer)
+		{
+			listener = DatagramChannel.open();
+			listener.bind(target);
+			listener.configureBlocking(false);
+			listener.register(selector, SelectionKey.OP_READ, null);
+		}
+	}
+
+	/**
+	 *   Replay the trace
+	 *
+	 *   @param  String trace file name
+	 *   @return none
+	 */
+	public void run(String fileName) throws IOException
+	{
+		PacketTrace.Record record;
+		Session session;
+		long traceEnd = 0;
+
+		try (PacketTrace.Reader trace = new PacketTrace.Reader(fileName)) {
+			startNanos = System.nanoTime();
+
+			while ((record = trace.next()) != null)
+			{
+				traceEnd = record.getTime();
+				session = sessions.get(record.getSession());
+
+				if (session == null)
+				{
+					session = startSession(record);
+				}
+
+				if (session.skipped)
+				{
+					skippedPackets += record.isToServer() == toServer ? 1 : 0;
+					continue;
+				}
+
+				//The target's side of the trace, only counted
+				if (record.isToServer() != toServer)
+				{
+					expected++;
+					continue;
+				}
+
+				send(session, record);
+			}
+		}
+
+		//Give the target time to answer the last packets
+		poll(System.nanoTime() + Math.min(waitNanos, 2000000000L));
+		report(traceEnd);
+
+		for (Session s : sessions.values())
+		{
+			if (s.channel != null)
+			{
+				s.channel.close();
+			}
+		}
+
+		if (listener != null)
+		{
+			listener.close();
+		}
+
+		selector.close();
+	}
+
+	/**
+	 *   Start replaying a session, at its first record. In client mode this waits for a client's request
+	 *
+	 *   @param  PacketTrace.Record first record of the session
+	 *   @return Session
+	 */
+	private Session startSession(PacketTrace.Record record) throws IOException
+	{
+		Session session = new Session(record.getSession());
+		Request request;
+
+		sessions.put(session.number, session);
+
+		if (toServer)
+		{
+			session.baseNanos = startNanos;
+			session.baseTime = 0;
+		}
+		else
+		{
+			//A session recorded without its request (the recording started mid-transfer) can't be matched to a client
+			if (!record.isToServer() || TFTPCommon.getPacketType(record.getData()) != TFTPCommon.PacketType.REQUEST)
+			{
+				skip(session, "doesn't start with a request");
+				return session;
+			}
+
+			poll(System.nanoTime() + waitNanos, () -> !requests.isEmpty());
+			request = requests.poll();
+
+			if (request == null)
+			{
+				skip(session, "no request received");
+				return session;
+			}
+
+			session.peer = request.client;
+			session.baseNanos = request.arrival;
+			session.baseTime = record.getTime();
+		}
+
+		session.channel = DatagramChannel.open();
+		session.channel.bind(new InetSocketAddress(toServer ? null : target.getAddress(), 0));
+		session.channel.configureBlocking(false);
+		session.channel.register(selector, SelectionKey.OP_READ, session);
+		return session;
+	}
+
+	private void skip(Session session, String reason)
+	{
+		session.skipped = true;
+		skippedSessions++;
+		System.out.println("Skipping session " + session.number + ": " + reason);
+	}
+
+	/**
+	 *   Send a packet of the trace once its time has come
+	 *
+	 *   @param  Session session of the packet
+	 *   @param  PacketTrace.Record packet
+	 *   @return none
+	 */
+	private void send(Session session, PacketTrace.Record record) throws IOException
+	{
+		long due = speed > 0 ? session.baseNanos + (long) ((record.getTime() - session.baseTime) * 1000 / speed) : System.nanoTime();
+		SocketAddress destination = session.peer;
+		long lateness;
+
+		poll(due);
+
+		//Requests go to the server's request port, everything else to the TID it answered from
+		if (destination == null && TFTPCommon.getPacketType(record.getData()) == TFTPCommon.PacketType.REQUEST)
+		{
+			destination = target;
+		}
+		else if (destination == null)
+		{
+			poll(System.nanoTime() + waitNanos, () -> session.peer != null);
+			destination = session.peer;
+
+			if (destination == null)
+			{
+				skippedPackets++;
+				return;
+			}
+		}
+
+		lateness = Math.max(0, System.nanoTime() - due);
+		latenessTotal += lateness;
+		latenessMax = Math.max(latenessMax, lateness);
+		session.channel.send(ByteBuffer.wrap(record.getData()), destination);
+		sent++;
+		bytesSent += record.getData().length;
+	}
+
+	/**
+	 *   Receive the target's packets until a time
+	 *
+	 *   @param  long System.nanoTime to return at
+	 *   @return none
+	 */
+	private void poll(long until) throws IOException
+	{
+		poll(until, () -> false);
+	}
+
+	/**
+	 *   Receive the target's packets until a time, or until a condition is met
+	 *
+	 *   @param  long System.nanoTime to return at
+	 *   @param  BooleanSupplier condition to return early on
+	 *   @return none
+	 */
+	private void poll(long until, BooleanSupplier done) throws IOException
+	{
+		long remaining;
+
+		while (true)
+		{
+			receive();
+			remaining = until - System.nanoTime();
+
+			if (done.getAsBoolean() || remaining <= 0)
+			{
+				return;
+			}
+
+			//Sleep in the selector for whole milliseconds, then spin out the rest so packets leave on time
+			if (remaining >= 2000000)
+			{
+				selector.select(remaining / 1000000 - 1);
+			}
+			else
+			{
+				Thread.onSpinWait();
+			}
+		}
+	}
+
+	/**
+	 *   Read every packet waiting on the listener and session channels
+	 *
+	 *   @param  none
+	 *   @return none
+	 */
+	private void receive() throws IOException
+	{
+		SocketAddress from;
+		Session session;
+
+		//Keys selected by poll's select are still in the selected set, selectNow only adds to it
+		selector.selectNow();
+
+		if (selector.selectedKeys().isEmpty())
+		{
+			return;
+		}
+
+		for (SelectionKey key : selector.selectedKeys())
+		{
+			session = (Session) key.attachment();
+
+			while (true)
+			{
+				receiveBuffer.clear();
+				from = ((DatagramChannel) key.channel()).receive(receiveBuffer);
+
+				if (from == null)
+				{
+					break;
+				}
+
+				if (session == null)
+				{
+					receiveBuffer.flip();
+
+					//Retransmitted requests from a client that already has a session are ignored
+					if (receiveBuffer.remaining() >= 2 && receiveBuffer.get(0) == 0 && (receiveBuffer.get(1) == 1 || receiveBuffer.get(1) == 2) && !hasClient(from))
+					{
+						requests.add(new Request(from, System.nanoTime()));
+					}
+
+					continue;
+				}
+
+				if (session.peer == null)
+				{
+					session.peer = from;
+				}
+
+				received++;
+				bytesReceived += receiveBuffer.position();
+			}
+		}
+
+		selector.selectedKeys().clear();
+	}
+
+	private Boolean hasClient(SocketAddress client)
+	{
+		for (Request request : requests)
+		{
+			if (request.client.equals(client))
+			{
+				return true;
+			}
+		}
+
+		for (Session session : sessions.values())
+		{
+			if (client.equals(session.peer))
+			{
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 *   Print what was replayed
+	 *
+	 *   @param  long recorded time of the last packet of the trace (microseconds)
+	 *   @return none
+	 */
+	private void report(long traceEnd)
+	{
+		double seconds = (System.nanoTime() - startNanos) / 1e9;
+
+		System.out.println("");
+		System.out.println("Target:        " + (toServer ? "server at " + target : "clients, requests received on " + target) + ", speed " + (speed > 0 ? speed + "x" : "as fast as possible"));
+		System.out.println("Sessions:      " + sessions.size() + " (" + skippedSessions + " skipped), " + skippedPackets + " packets skipped");
+		System.out.println(String.format("Sent:          %d packets, %d bytes, %.3f ms late on average, %.3f ms at most", sent, bytesSent,
+			sent == 0 ? 0.0 : latenessTotal / 1e6 / sent, latenessMax / 1e6));
+		System.out.println("Received:      " + received + " packets, " + bytesReceived + " bytes (" + expected + " in the trace)");
+		System.out.println(String.format("Time:          %.2f s (%.2f s recorded)", seconds, traceEnd / 1e6));
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		String fileName = null;
+		Boolean toServer = true;
+		InetAddress address = InetAddress.getLoopbackAddress();
+		int port = TFTPCommon.TFTPListenPort;
+		double speed = 1;
+		int wait = 5000;
+
+		for (int i = 0; i + 1 < args.length; i += 2)
+		{
+			if (args[i].equalsIgnoreCase("-trace"))
+			{
+				fileName = args[i + 1];
+			}
+			else if (args[i].equalsIgnoreCase("-target"))
+			{
+				if (!args[i + 1].equalsIgnoreCase("server") && !args[i + 1].equalsIgnoreCase("client"))
+				{
+					System.out.println("Target must be server or client");
+					return;
+				}
+
+				toServer = args[i + 1].equalsIgnoreCase("server");
+			}
+			else if (args[i].equalsIgnoreCase("-server"))
+			{
+				address = InetAddress.getByName(args[i + 1]);
+			}
+			else if (args[i].equalsIgnoreCase("-port"))
+			{
+				port = Integer.parseInt(args[i + 1]);
+			}
+			else if (args[i].equalsIgnoreCase("-speed"))
+			{
+				speed = Math.max(0, Double.parseDouble(args[i + 1]));
+			}
+			else if (args[i].equalsIgnoreCase("-wait"))
+			{
+				wait = Math.max(0, Integer.parseInt(args[i + 1]));
+			}
+			else
+			{
+				System.out.println("Unknown argument " + args[i]);
+				return;
+			}
+		}
+
+		if (fileName == null)
+		{
+			System.out.println("Usage: TFTPTraceReplay -trace file [-target server|client] [-server address] [-port n] [-speed factor] [-wait ms]");
+			return;
+		}
+
+		new TFTPTraceReplay(toServer, new InetSocketAddress(address, port), speed, wait).run(fileName);
+	}
+}
@@ -0,0 +1,302 @@
+package grouptwo;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * BlockCache is the server's shared in-memory cache of DATA blocks for files served by RRQ.
+ * FileOperation checks the cache before reading a block from disk, so when many clients read the
+ * same file (e.g. a boot image) each block is only read from disk once. Blocks are keyed by the
+ * file's canonical path and modification time (a changed file gets new keys), the block size and
+ * the block number. Once the cached data reaches the byte budget, blocks are evicted either least
+ * recently used (LRU) or least frequently used (LFU, ties broken by age).
+ * Lookups don't lock, they only stamp the block's last use or count its use. Eviction is done by
+ * put, under the cache's lock, with the CLOCK approximation of the policy: blocks are queued in
+ * the order they were added and the eldest is evicted, unless it has been used since it was queued
+ * (LRU) or used more than once (LFU, its count is halved), in which case it goes to the back.
+ *
+ * @author        Cyrus Sadeghi
+ */
+public class BlockCache
+{
+	public static enum Policy { LRU, LFU };
+
+	private final long byteBudget;
+	private final Policy policy;
+	private final ConcurrentHashMap<BlockKey, CachedBlock> blocks;
+	private final LongAdder hits, misses;
+	//Blocks in the order they were added (or spared), guarded by the cache's lock
+	private final ArrayDeque<CachedBlock> clock;
+	//Written under the cache's lock
+	private volatile long cachedBytes, evictions;
+
+	/**
+	 *   Constructor for BlockCache
+	 *
+	 *   @param  long maximum number of bytes of block data to keep
+	 *   @param  Policy eviction policy
+	 *   @return BlockCache
+	 */
+	public BlockCache(long byteBudget, Policy policy)
+	{
+		this.byteBudget = byteBudget;
+		this.policy = policy;
+		blocks = new ConcurrentHashMap<BlockKey, CachedBlock>(1024);
+		hits = new LongAdder();
+		misses = new LongAdder();
+		clock = new ArrayDeque<CachedBlock>(1024);
+		cachedBytes = 0;
+		evictions = 0;
+	}
+
+	/**
+	 *   Parse the startup option value: "<megabytes>" or "<megabytes>:lru|lfu" (default LRU)
+	 *
+	 *   @param  String option value
+	 *   @return BlockCache new cache, null if the option is invalid
+	 */
+	public static BlockCache fromString(String option)
+	{
+		String[] parts = option.split(":", 2);
+		Policy policy = Policy.LRU;
+		long megabytes;
+
+		try {
+			megabytes = Long.parseLong(parts[0]);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+
+		if (parts.length > 1 && parts[1].equalsIgnoreCase("lfu"))
+		{
+			policy = Policy.LFU;
+		}
+		else if (parts.length > 1 && !parts[1].equalsIgnoreCase("lru"))
+		{
+			return null;
+		}
+
+		if (megabytes <= 0)
+		{
+			return null;
+		}
+
+		return new BlockCache(megabytes * 1024 * 1024, policy);
+	}
+
+	/**
+	 *   Look up a block, counts a hit or miss
+	 *
+	 *   @param  BlockKey block to look up
+	 *   @return byte[] cached block data (must not be modified), null if not cached
+	 */
+	public byte[] get(BlockKey key)
+	{
+		CachedBlock block = blocks.get(key);
+
+		if (block == null)
+		{
+			misses.increment();
+			return null;
+		}
+
+		//Racing updates may lose a use or a newer stamp, which only makes eviction a little less exact
+		if (policy == Policy.LRU)
+		{
+			block.lastUse = System.nanoTime();
+		}
+		else if (block.uses < Integer.MAX_VALUE)
+		{
+			block.uses++;
+		}
+
+		hits.increment();
+		return block.data;
+	}
+
+	/**
+	 *   Add a block read from disk, evicting blocks until it fits in the byte budget.
+	 *   Blocks larger than the whole budget aren't cached
+	 *
+	 *   @param  BlockKey block being added
+	 *   @param  byte[] block data (not copied, must not be modified afterwards)
+	 *   @return none
+	 */
+	public synchronized void put(BlockKey key, byte[] data)
+	{
+		CachedBlock block;
+
+		if (data.length > byteBudget || blocks.containsKey(key))
+		{
+			return;
+		}
+
+		while (cachedBytes + data.length > byteBudget)
+		{
+			evict();
+		}
+
+		block = new CachedBlock(key, data);
+		clock.addLast(block);
+		blocks.put(key, block);
+		cachedBytes += data.length;
+	}
+
+	/**
+	 *   Remove the block chosen by the eviction policy. Every block is spared at most twice (LRU) or
+	 *   until its count is halved down to 1 (LFU), a block is evicted regardless once the clock has
+	 *   gone round twice
+	 *
+	 *   @param  none
+	 *   @return none
+	 */
+	private void evict()
+	{
+		CachedBlock block;
+		int limit = clock.size() * 2;
+
+		for (int scanned = 0; ; scanned++)
+		{
+			block = clock.pollFirst();
+
+			if (scanned >= limit || !spare(block))
+			{
+				break;
+			}
+
+			clock.addLast(block);
+		}
+
+		blocks.remove(block.key);
+		cachedBytes -= block.data.length;
+		evictions++;
+	}
+
+	/**
+	 *   Give the eldest block a second chance if it has been used since it was queued
+	 *
+	 *   @param  CachedBlock eldest block
+	 *   @return Boolean true if the block should be queued again instead of being evicted
+	 */
+	private Boolean spare(CachedBlock block)
+	{
+		long now;
+
+		if (policy == Policy.LRU)
+		{
+			now = System.nanoTime();
+
+			if (block.lastUse - block.queued > 0)
+			{
+				block.queued = now;
+				block.lastUse = now;
+				return true;
+			}
+
+			return false;
+		}
+
+		if (block.uses > 1)
+		{
+			block.uses /= 2;
+			return true;
+		}
+
+		return false;
+	}
+
+	public long getHits()
+	{
+		return hits.sum();
+	}
+
+	public long getMisses()
+	{
+		return misses.sum();
+	}
+
+	public long getEvictions()
+	{
+		return evictions;
+	}
+
+	public long getCachedBytes()
+	{
+		return cachedBytes;
+	}
+
+	public String toString()
+	{
+		long hitCount = hits.sum(), missCount = misses.sum(), lookups = hitCount + missCount;
+
+		return policy + " cache, " + (cachedBytes / 1024) + "/" + (byteBudget / 1024) + " KB used, "
+			+ hitCount + " hits, " + missCount + " misses (" + (lookups == 0 ? 0 : hitCount * 100 / lookups) + "% hit rate), "
+			+ evictions + " evictions";
+	}
+
+	/**
+	 * Block data and its last use (LRU) or use count (LFU)
+	 */
+	private static class CachedBlock
+	{
+		private final BlockKey key;
+		private final byte[] data;
+		//System.nanoTime the block was last used and last queued on the clock
+		private volatile long lastUse, queued;
+		private volatile int uses;
+
+		private CachedBlock(BlockKey key, byte[] data)
+		{
+			this.key = key;
+			this.data = data;
+			queued = System.nanoTime();
+			lastUse = queued;
+			uses = 1;
+		}
+	}
+
+	/**
+	 * BlockKey identifies one block of one version of a file in BlockCache
+	 */
+	public static final class BlockKey
+	{
+		private final String path;
+		private final long modified;
+		private final int blockSize, blockNumber;
+
+		/**
+		 *   Constructor for BlockKey
+		 *
+		 *   @param  String canonical path of file
+		 *   @param  long file modification time
+		 *   @param  int block size of the transfer
+		 *   @param  int block number (including rollovers)
+		 *   @return BlockKey
+		 */
+		public BlockKey(String path, long modified, int blockSize, int blockNumber)
+		{
+			this.path = path;
+			this.modified = modified;
+			this.blockSize = blockSize;
+			this.blockNumber = blockNumber;
+		}
+
+		public boolean equals(Object o)
+		{
+			if (!(o instanceof BlockKey))
+			{
+				return false;
+			}
+
+			BlockKey other = (BlockKey) o;
+
+			return blockNumber == other.blockNumber && blockSize == other.blockSize && modified == other.modified && path.equals(other.path);
+		}
+
+		public int hashCode()
+		{
+			return (path.hashCode() * 31 + Long.hashCode(modified)) * 31 + blockSize * 65537 + blockNumber;
+		}
+	}
+}
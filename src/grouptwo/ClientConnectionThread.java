@@ -5,13 +5,17 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 
 import grouptwo.FileOperation;
 import grouptwo.TFTPCommon;
+import grouptwo.TFTPRequest;
 import grouptwo.TFTPServer;
+import grouptwo.TransferOptions;
 
 /**
 * ClientConnectionThread is the TFTP transferring class for the server.
@@ -32,14 +36,18 @@ public class ClientConnectionThread implements Runnable {
 	private TFTPCommon.Verbosity verbose;
 	private TFTPServer parent;
 	private FileOperation fileOp;
+	private TransferOptions options;
+	private TransferStats stats;
+	private TransferMetrics.Transfer metrics;
 	private String localName, mode;
 	private int port;
 	private InetAddress clientAddress;
 	private int threadNumber;
 	//hardTimeout - timeout when waiting for DATA
 	private int hardTimeout;
-	//timeout - timeout when sending DATA
+	//timeout - timeout when sending DATA, until the round trip time has been measured
 	private int timeout;
+	private RetransmitTimer timer;
 	//maxTimeout - number of timeouts to wait before giving up
 	private int maxTimeout;
 	private Boolean overwrite;
@@ -70,102 +78,75 @@ public class ClientConnectionThread implements Runnable {
 		timeout = reTimeout;
 		this.overwrite = overwrite;
 		maxTimeout = 10;
+		stats = new TransferStats();
+		timer = new RetransmitTimer(timeout);
+	}
+
+	/**
+	 *   Client address and port, the client's TID for this transfer
+	 *
+	 *   @param  none
+	 *   @return SocketAddress client TID
+	 */
+	public SocketAddress getClientTID()
+	{
+		return new InetSocketAddress(clientAddress, port);
+	}
 
+	/**
+	 *   Open the transfer's socket (its TID), called by the server once the transfer has its place
+	 *   in the session table so refused requests never bind a port
+	 *
+	 *   @param  none
+	 *   @return Boolean true if the socket was opened, false if it couldn't be (i.e. no ports left)
+	 */
+	public Boolean open()
+	{
 		try {
 			sendReceiveSocket = new DatagramSocket();
 		} catch (SocketException e) {
-			e.printStackTrace();
-			System.exit(1);
+			TFTPLogger.log(consolePrefix + "Couldn't open socket: " + e.getMessage());
+			return false;
 		}
+
+		return true;
+	}
+
+	/**
+	 *   This transfer's entry in the server's TransferMetrics
+	 *
+	 *   @param  none
+	 *   @return TransferMetrics.Transfer metrics entry, null until the request has been parsed
+	 */
+	public TransferMetrics.Transfer getMetrics()
+	{
+		return metrics;
 	}
 
 	public void run() 
 	{
-		byte[] data, msg, response;
-		int len, j = 0, k = 0;
+		byte[] data;
+		int len;
 		Boolean sendReceiveStatus = false;
-		TFTPCommon.ContentSubmod requestError = TFTPCommon.ContentSubmod.INVALID;
+		TFTPRequest request;
 
 		if (verbose == TFTPCommon.Verbosity.ALL)
 		{
-			System.out.println(consolePrefix + "created");
+			TFTPLogger.log(consolePrefix + "created");
 		}
 		
 		data = receivePacket.getData();
 		len = receivePacket.getLength();
+		request = TFTPRequest.parse(data, len);
+		requestType = request.getRequestType();
+		localName = request.getFileName();
+		mode = request.getMode();
+		metrics = parent.getMetrics().transferStarted(requestType, localName, getClientTID(), stats, timer);
 
-		if (data[0] != 0)
-		{
-			requestType = TFTPCommon.Request.ERROR;
-			requestError = TFTPCommon.ContentSubmod.OPCODE;
-		}
-		else if (data[1] == 1) 
-		{
-			requestType = TFTPCommon.Request.READ; // could be read
-		}
-		else if (data[1] == 2) 
-		{
-			requestType = TFTPCommon.Request.WRITE; // could be write
-		}
-		else
-		{ 
-			requestType = TFTPCommon.Request.ERROR;
-			requestError = TFTPCommon.ContentSubmod.OPCODE;
-		}
-
-		if (requestType != TFTPCommon.Request.ERROR)  // check for filename
+		if (requestType != TFTPCommon.Request.ERROR)
 		{
-			for (j = 2; j < len; j++)
-			{
-				if (data[j] == 0)
-				{
-					break;
-				}
-			}
-			
-			if (j == len) 
-			{
-				requestType = TFTPCommon.Request.ERROR; // didn't find 0 byte
-			}
-			if (j == 2) 
-			{
-				requestType = TFTPCommon.Request.ERROR; // filename is 0 bytes long
-			}
-
-			localName = new String(data, 2, j - 2);
-		}
-
-		if (requestType != TFTPCommon.Request.ERROR) // check for mode
-		{
-			for (k = j + 1; k < len; k++)
-			{ 
-				if (data[k] == 0) 
-				{
-					break;
-				}
-			}
-			
-			if (k == len) 
-			{
-				requestType = TFTPCommon.Request.ERROR; // didn't find a 0 byte
-			}
-			if (k == j + 1) 
-			{
-				requestType = TFTPCommon.Request.ERROR; // mode is 0 bytes long
-			}
-
-			mode = new String(data, j + 1, k - j - 1);
-
-			if ( !mode.equalsIgnoreCase("octet") && !mode.equalsIgnoreCase("netascii") && requestType != TFTPCommon.Request.ERROR ) 
-			{
-				requestType = TFTPCommon.Request.ERROR; // mode was not passed correctly
-				requestError = TFTPCommon.ContentSubmod.FILEMODE;
-			}
-		}
-
-		if (k != len - 1)
-		{
-			requestType = TFTPCommon.Request.ERROR; // other stuff at end of packet
+			options = TransferOptions.negotiate(request.getOptions());
+			TFTPCommon.sizeReceiveBuffer(sendReceiveSocket, options);
 		}
 
 		if (requestType == TFTPCommon.Request.READ)
@@ -173,24 +154,39 @@ public class ClientConnectionThread implements Runnable {
 			TFTPCommon.printPacketDetails(receivePacket, consolePrefix, verbose, false, true);
 
 			try {
-				fileOp = new FileOperation(localName, true, 512, overwrite); 
+				fileOp = new FileOperation(localName, true, options.getBlockSize(), overwrite); 
 			} catch (FileNotFoundException e) {
 				String fileNotFoundMessage = new String("File: \"" + localName + "\" does not exist!");
 				TFTPCommon.sendErrorPacket(receivePacket, sendReceiveSocket, fileNotFoundMessage, TFTPCommon.ErrorCode.FILENOTFOUND, consolePrefix, verbose);
 				
 				sendReceiveSocket.close();
-				parent.threadDone(Thread.currentThread());
+				parent.threadDone(this);
 				
 				return;
 			} catch (FileOperation.FileOperationException e) {
 				TFTPCommon.sendErrorPacket(receivePacket, sendReceiveSocket, e.toString(), e.error, consolePrefix, verbose);
 
 				sendReceiveSocket.close();
-				parent.threadDone(Thread.currentThread());
+				parent.threadDone(this);
 				return;
 			}
 
-			sendReceiveStatus = TFTPCommon.sendDataWTimeout(sendPacket, receivePacket, sendReceiveSocket, clientAddress, timeout, maxTimeout, port, fileOp, verbose, consolePrefix);
+			options.answerTransferSize(fileOp.getFileLength());
+
+			//Options were accepted, client confirms the OACK with ACK 0 before we send DATA
+			if (options.hasOptions())
+			{
+				sendReceiveStatus = TFTPCommon.sendOACKWTimeout(options, receivePacket, sendReceiveSocket, timer, maxTimeout, verbose, consolePrefix);
+			}
+			else
+			{
+				sendReceiveStatus = true;
+			}
+
+			if (sendReceiveStatus)
+			{
+				sendReceiveStatus = TFTPCommon.sendDataWTimeout(sendPacket, receivePacket, sendReceiveSocket, clientAddress, timer, maxTimeout, port, options.getWindowSize(), fileOp, stats, verbose, consolePrefix);
+			}
 			
 			try {
 				fileOp.closeFileRead();
@@ -205,27 +201,52 @@ public class ClientConnectionThread implements Runnable {
 			TFTPCommon.printPacketDetails(receivePacket, consolePrefix, verbose, false, true);
 
 			try {
-				fileOp = new FileOperation(localName, false, 512, overwrite);
+				fileOp = new FileOperation(localName, false, options.getBlockSize(), overwrite);
 			} catch (FileNotFoundException e) {
-				System.out.println(consolePrefix + "Couldn't write to " + localName);
+				TFTPLogger.log(consolePrefix + "Couldn't write to " + localName);
 				TFTPCommon.sendErrorPacket(receivePacket, sendReceiveSocket, "Couldn't write to local file", TFTPCommon.ErrorCode.FILENOTFOUND, consolePrefix, verbose);
 
 				sendReceiveSocket.close();
-				parent.threadDone(Thread.currentThread());
+				parent.threadDone(this);
 				return;
 			} catch (FileOperation.FileOperationException e) {
 				TFTPCommon.sendErrorPacket(receivePacket, sendReceiveSocket, e.toString(), e.error, consolePrefix, verbose);
 
 				sendReceiveSocket.close();
-				parent.threadDone(Thread.currentThread());
+				parent.threadDone(this);
 				return;
 			}
 
-			TFTPCommon.sendACKPacket(0, 0, sendPacket, receivePacket, sendReceiveSocket, verbose, consolePrefix); //Respond to WRQ
+			//Client sent the file's size, fail now if it won't fit rather than part way through the transfer
+			if (options.getTransferSize() >= 0)
+			{
+				try {
+					fileOp.reserve(options.getTransferSize());
+				} catch (FileOperation.FileOperationException e) {
+					TFTPCommon.sendErrorPacket(receivePacket, sendReceiveSocket, e.toString(), e.error, consolePrefix, verbose);
 
-			System.out.println(consolePrefix + "Beginning file transfer");
+					sendReceiveSocket.close();
+					parent.threadDone(this);
+					return;
+				} catch (IOException e) {
+					e.printStackTrace();
+					System.exit(1);
+				}
+			}
+
+			//Respond to WRQ, OACK takes the place of ACK 0 when options were accepted
+			if (options.hasOptions())
+			{
+				TFTPCommon.sendOACKPacket(options, receivePacket, sendReceiveSocket, verbose, consolePrefix);
+			}
+			else
+			{
+				TFTPCommon.sendACKPacket(0, 0, sendPacket, receivePacket, sendReceiveSocket, verbose, consolePrefix);
+			}
+
+			TFTPLogger.log(consolePrefix + "Beginning file transfer");
 
-			sendReceiveStatus = TFTPCommon.receiveDataWTimeout(sendPacket, receivePacket, sendReceiveSocket, clientAddress, false, hardTimeout, fileOp, verbose, consolePrefix);
+			sendReceiveStatus = TFTPCommon.receiveDataWTimeout(sendPacket, receivePacket, sendReceiveSocket, clientAddress, false, options.hasOptions() ? options : null, hardTimeout, timer, options.getWindowSize(), fileOp, stats, verbose, consolePrefix);
 
 			if (sendReceiveStatus)
 			{
@@ -239,52 +260,34 @@ public class ClientConnectionThread implements Runnable {
 		} 
 		else 
 		{
-			String errorString = new String();
-			System.out.println(consolePrefix + "Received invalid request:");
+			TFTPLogger.log(consolePrefix + "Received invalid request:");
 			TFTPCommon.printPacketDetails(receivePacket, consolePrefix, TFTPCommon.Verbosity.ALL, false, true);
-			
-			if (requestError == TFTPCommon.ContentSubmod.OPCODE)
-			{
-				errorString = "Request packet has invalid opcode: " + data[0] + "" + data[1];
-			}
-			else if (requestError == TFTPCommon.ContentSubmod.FILEMODE)
-			{
-				errorString = "Request packet has invalid file mode: " + mode;
-			}
-			else if (requestError == TFTPCommon.ContentSubmod.INVALID && (k == (len - 1) ) )
-			{
-				errorString = "Request packet missing file name or file mode";
-			}
-			else
-			{
-				errorString = "Request packet format incorrect";
-			}
 
-			TFTPCommon.sendErrorPacket(receivePacket, sendReceiveSocket, errorString, TFTPCommon.ErrorCode.ILLEGAL, consolePrefix, verbose);
+			TFTPCommon.sendErrorPacket(receivePacket, sendReceiveSocket, request.getErrorString(), TFTPCommon.ErrorCode.ILLEGAL, consolePrefix, verbose);
 			
-			System.out.println(consolePrefix + "Shutting down");
+			TFTPLogger.log(consolePrefix + "Shutting down");
 			sendReceiveSocket.close();
-			parent.threadDone(Thread.currentThread());
+			parent.threadDone(this);
 			return;
 		}
 
 		if (sendReceiveStatus)
 		{
-			System.out.println(consolePrefix + "File transfer complete");
+			TFTPLogger.log(consolePrefix + "File transfer complete");
 		}
 		else
 		{
-			System.out.println(consolePrefix + "Error occurred, transfer incomplete");
+			TFTPLogger.log(consolePrefix + "Error occurred, transfer incomplete");
 
 			if ( requestType == TFTPCommon.Request.WRITE )
 			{	
 				if (fileOp.delete())
 				{
-					System.out.println(consolePrefix + "Incomplete file \"" + localName + "\" deleted");
+					TFTPLogger.log(consolePrefix + "Incomplete file \"" + localName + "\" deleted");
 				}
 				else
 				{
-					System.out.println(consolePrefix + "Failed to delete incomplete file \"" + localName + "\"");
+					TFTPLogger.log(consolePrefix + "Failed to delete incomplete file \"" + localName + "\"");
 				}
 			}
 			
@@ -292,6 +295,6 @@ public class ClientConnectionThread implements Runnable {
 
 		// We're finished with this socket, so close it.
 		sendReceiveSocket.close();
-		parent.threadDone(Thread.currentThread());
+		parent.threadDone(this);
 	}
 }
@@ -1,23 +1,48 @@
 package grouptwo;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.FileSystems;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 
 /**
 * FileOperation is the class that is used by both the TFTP server and client
 * to read and write files from/to disk. This class includes methods that
 * return the number of TFTP data packets required to completely transfer the file,
-* the splitting of a file into 512 (or fewer) byte blocks to construct a data packet from,
-* and recreates a file from the 512 (or fewer) byte blocks.
+* the splitting of a file into block size (512 unless negotiated, or fewer) byte blocks to construct
+* a data packet from, and recreates a file from the block size (or fewer) byte blocks.
+*
+* Files are read by block offset rather than as a stream, so any block can be read again
+* (e.g. for a retransmit). Files up to 2GB are memory-mapped and blocks are copied straight
+* from the mapping, larger files use positional FileChannel reads. When the server has a
+* BlockCache, blocks are looked up there before being read from the file.
+*
+* Files are written sequentially. Free space is checked when writing starts and again only
+* once the file grows past the space seen then, or past the space reserved when the size of
+* the file is known up front (tsize option, see reserve). When the server has a WriteBehind
+* stage, blocks are buffered and written by its background threads instead of before each ACK.
 *
 * @author        Cyrus Sadeghi
 */
 public class FileOperation
 {
     private File file;
-    private FileInputStream inStream;
+    private FileChannel inChannel;
+    private MappedByteBuffer inMap;
+    private long readLength;
+    private ByteBuffer readBuffer;
+    private static volatile BlockCache sharedCache;
+    private BlockCache cache;
+    private String cachePath;
+    private long cacheModified;
     private FileOutputStream outStream;
+    private static volatile WriteBehind sharedWriteBehind;
+    private WriteBehind.Writer writer;
+    private long writeLength, reservedLength, spaceChecked;
     private int numBytes;
     private Boolean createdFolders;
 
@@ -57,14 +82,14 @@ public class FileOperation
     */
     public int getNumTFTPBlocks() 
     {   
-        if (file.length() == 0)
+        if (readLength == 0)
         {
             return 1;
         }
         
-        double blocks = Math.ceil((double) file.length() / numBytes);
+        double blocks = Math.ceil((double) readLength / numBytes);
         
-        if (file.length() % 512 == 0)
+        if (readLength % numBytes == 0)
         {
             blocks += 1;
         }
@@ -73,34 +98,123 @@ public class FileOperation
     }
 
     /**
-    *   Reads next data packet from file, skipping over opcode and block number. 
-    *   This method continues reading from where it left off on its last invocation.
+    *   Returns the length of the file being read (i.e. for the tsize option)
+    *
+    *   @param none
+    *   @return long file length in bytes
+    */
+    public long getFileLength()
+    {
+        return readLength;
+    }
+
+    /**
+    *   Returns the number of bytes in each DATA block (the block size of the transfer)
     *
-    *   @param  byte[] array to read next data block to
+    *   @param none
+    *   @return int block size
+    */
+    public int getBlockSize()
+    {
+        return numBytes;
+    }
+
+    /**
+    *   Sets the number of bytes in each DATA block, used once the block size has been negotiated.
+    *   Must be called before the first block is read or written
+    *
+    *   @param int block size
+    *   @return none
+    */
+    public void setBlockSize(int blockSize)
+    {
+        numBytes = blockSize;
+    }
+
+    /**
+    *   Reads a data block from file, skipping over opcode and block number. Blocks can be
+    *   read in any order and read again, the block's position in the file is (blockNumber - 1) * block size
+    *
+    *   @param  int block number to read (first block is 1, including rollovers)
+    *   @param  byte[] array to read data block to
     *   @param  int number of bytes preceding data block (i.e. opcode and block number), read starts after this many bytes
-    *   @return int number of bytes read
+    *   @return int number of bytes read, plus dataOffset
+    */
+    public int readDataBlock(int blockNumber, byte[] data, int dataOffset) throws IOException
+    {
+        BlockCache.BlockKey key;
+        byte[] cached;
+        int len;
+
+        if (cache == null)
+        {
+            return readFileBlock(blockNumber, data, dataOffset);
+        }
+
+        key = new BlockCache.BlockKey(cachePath, cacheModified, numBytes, blockNumber);
+        cached = cache.get(key);
+
+        if (cached != null)
+        {
+            System.arraycopy(cached, 0, data, dataOffset, cached.length);
+            return cached.length + dataOffset;
+        }
+
+        len = readFileBlock(blockNumber, data, dataOffset);
+        cache.put(key, Arrays.copyOfRange(data, dataOffset, len));
+        return len;
+    }
+
+    /**
+    *   Reads a data block from the file (mapping or channel), see readDataBlock
+    *
+    *   @param  int block number to read
+    *   @param  byte[] array to read data block to
+    *   @param  int number of bytes preceding data block
+    *   @return int number of bytes read, plus dataOffset
     */
-    public int readNextDataPacket(byte[] data, int dataOffset) throws IOException
+    private int readFileBlock(int blockNumber, byte[] data, int dataOffset) throws IOException
     {
-        int readAmount = numBytes;
+        long position = (long) (blockNumber - 1) * numBytes;
+        int readAmount = (int) Math.max(0, Math.min(numBytes, readLength - position));
+        ByteBuffer buffer;
 
-        if (inStream.available() < readAmount)
+        if (readAmount == 0)
         {
-            readAmount = inStream.available();
+            return dataOffset;
         }
 
-        if (readAmount > 0)
+        if (inMap != null)
         {
-            //Returns readAmount, add 4 for opcode/bytenumber
-            return inStream.read(data, dataOffset, readAmount) + dataOffset;
+            inMap.get((int) position, data, dataOffset, readAmount);
+            return readAmount + dataOffset;
         }
 
-        return 4;
+        //Reuse the wrapper when reading into the same packet buffer as last time
+        if (readBuffer == null || readBuffer.array() != data)
+        {
+            readBuffer = ByteBuffer.wrap(data);
+        }
+
+        buffer = readBuffer;
+        buffer.limit(dataOffset + readAmount).position(dataOffset);
+
+        while (buffer.hasRemaining())
+        {
+            if (inChannel.read(buffer, position + buffer.position() - dataOffset) < 0)
+            {
+                break;
+            }
+        }
+
+        return buffer.position();
     }
 
     /**
     *   Writes next provided data block to file, skipping over opcode and block number.
-    *   This method continues writing to where it left off on its last invocation
+    *   This method continues writing to where it left off on its last invocation.
+    *   With write-behind, the block is buffered, and the final (short) block waits for the
+    *   whole file to be written and synced so the final ACK is only sent once the file is on disk
     *
     *   @param  byte[] array to write to file (next data block)
     *   @param  int number of bytes preceding data block (i.e. opcode and block number), write skips this many bytes
@@ -109,21 +223,94 @@ public class FileOperation
     */
     public void writeNextDataPacket(byte[] data, int dataOffset, int len) throws IOException, FileOperationException 
     {
-        if ( file.getUsableSpace() < len )
-        {   
+        long usableSpace;
+        TransferEvents.DiskWrite event;
+
+        //Only ask the file system for free space once the file grows past what was already checked
+        if ( writeLength + len > spaceChecked )
+        {
+            usableSpace = file.getUsableSpace();
+
+            if ( usableSpace < len )
+            {   
+                discardWrites();
+                finalizeFileWrite();
+                delete();
+                throw new FileOperationException(TFTPCommon.ErrorCode.DISKFULL, "Destination disk is full"); 
+            }
+
+            spaceChecked = writeLength + usableSpace;
+        }
+
+        event = TransferEvents.diskWriteStarted();
+
+        try {
+            if (writer == null)
+            {
+                outStream.write(data, dataOffset, len);
+            }
+            else
+            {
+                writer.write(data, dataOffset, len);
+
+                if (len < numBytes)
+                {
+                    writer.flush(true);
+                }
+            }
+        } catch (IOException e) {
+            //Space checked earlier may have been used by other writers since
+            usableSpace = file.getUsableSpace();
+            discardWrites();
             finalizeFileWrite();
             delete();
-            throw new FileOperationException(TFTPCommon.ErrorCode.DISKFULL, "Destination disk is full"); 
+
+            if ( usableSpace < len )
+            {
+                throw new FileOperationException(TFTPCommon.ErrorCode.DISKFULL, "Destination disk is full");
+            }
+
+            throw new FileOperationException(TFTPCommon.ErrorCode.ACCESSVIOLATE, "File: \"" + file.getName() + "\" is not writeable. Access violation");
         }
 
-        if ( !file.canWrite() )
+        TransferEvents.diskWriteEnded(event, file.getName(), len, writer != null, writer != null && len < numBytes);
+        writeLength += len;
+    }
+
+    /**
+    *   Reserves space for the file being written when its size is known before any DATA is
+    *   received (tsize option, RFC 2349). Free space is checked once for the whole file, and the
+    *   file is extended to its final length so blocks are written over space that is already
+    *   allocated (sparse on file systems that support it). Fails the transfer up front if the
+    *   disk can't hold the file, in which case the file is deleted
+    *
+    *   @param  long size of the file in bytes
+    *   @return none
+    */
+    public void reserve(long size) throws IOException, FileOperationException
+    {
+        if ( file.getUsableSpace() < size )
         {
+            discardWrites();
             finalizeFileWrite();
             delete();
-            throw new FileOperationException(TFTPCommon.ErrorCode.ACCESSVIOLATE, "File: \"" + file.getName() + "\" is not writeable. Access violation");
+            throw new FileOperationException(TFTPCommon.ErrorCode.DISKFULL, "Destination disk is full, \"" + file.getName() + "\" needs " + size + " bytes");
         }
 
-        outStream.write(data, dataOffset, len);
+        if (size > 0)
+        {
+            try {
+                outStream.getChannel().write(ByteBuffer.allocate(1), size - 1);
+            } catch (IOException e) {
+                discardWrites();
+                finalizeFileWrite();
+                delete();
+                throw new FileOperationException(TFTPCommon.ErrorCode.DISKFULL, "Unable to reserve " + size + " bytes for \"" + file.getName() + "\"");
+            }
+        }
+
+        reservedLength = size;
+        spaceChecked = size;
     }
 
     /**
@@ -134,6 +321,17 @@ public class FileOperation
     */
     public void finalizeFileWrite() throws IOException
     {
+        if (writer != null)
+        {
+            writer.flush(false);
+        }
+
+        //The sender's tsize was larger than the file it sent, drop the reserved space that wasn't written
+        if (reservedLength > writeLength && outStream.getChannel().isOpen())
+        {
+            outStream.getChannel().truncate(writeLength);
+        }
+
         outStream.close();
     }
 
@@ -145,7 +343,55 @@ public class FileOperation
     */
     public void closeFileRead() throws IOException
     {
-        inStream.close();
+        inMap = null;
+        inChannel.close();
+    }
+
+    /**
+     *   Sets the block cache used by FileOperations created afterwards for reading (server only)
+     *
+     *   @param  BlockCache cache to use, null to read every block from the file
+     *   @return none
+     */
+    public static void setBlockCache(BlockCache blockCache)
+    {
+        sharedCache = blockCache;
+    }
+
+    public static BlockCache getBlockCache()
+    {
+        return sharedCache;
+    }
+
+    /**
+     *   Sets the write-behind stage used by FileOperations created afterwards for writing (server only)
+     *
+     *   @param  WriteBehind write-behind stage to use, null to write each block before returning
+     *   @return none
+     */
+    public static void setWriteBehind(WriteBehind writeBehind)
+    {
+        sharedWriteBehind = writeBehind;
+    }
+
+    public static WriteBehind getWriteBehind()
+    {
+        return sharedWriteBehind;
+    }
+
+    /**
+     *   Drops buffered blocks that haven't been written, before an incomplete file is deleted
+     *
+     *   @param  none
+     *   @return none
+     */
+    private void discardWrites()
+    {
+        if (writer != null)
+        {
+            writer.discard();
+            writer = null;
+        }
     }
 
     /**
@@ -156,6 +402,8 @@ public class FileOperation
      */
     public boolean delete()
     {
+        discardWrites();
+
         if (!file.exists())
         {
             return true;
@@ -177,7 +425,7 @@ public class FileOperation
     *
     *   @param  String path to file on local machine
     *   @param  Boolean true when reading from local machine
-    *   @param  int number of bytes to read write (for TFTP, 512)
+    *   @param  int number of bytes to read write (block size, 512 unless negotiated)
     *   @return FileOperation
     */
     public FileOperation(String absolutePath, Boolean localRead, int bytesRW, Boolean overwrite) throws FileNotFoundException, FileOperationException
@@ -218,7 +466,15 @@ public class FileOperation
 
             try
             {
-                outStream = new FileOutputStream(absolutePath, true);
+                outStream = new FileOutputStream(absolutePath);
+                writeLength = 0;
+                reservedLength = 0;
+                spaceChecked = 0;
+
+                if (sharedWriteBehind != null)
+                {
+                    writer = sharedWriteBehind.open(outStream.getChannel());
+                }
             }
             catch (IOException e)
             {
@@ -237,7 +493,32 @@ public class FileOperation
                 throw new FileOperationException(TFTPCommon.ErrorCode.ACCESSVIOLATE, "Parent folder \"" + file.getParentFile() + "\" is not readable");
             }
 
-            inStream = new FileInputStream(file);
+            if (!file.isFile())
+            {
+                throw new FileNotFoundException(absolutePath);
+            }
+
+            try
+            {
+                inChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                readLength = inChannel.size();
+                cache = sharedCache;
+
+                if (cache != null)
+                {
+                    cachePath = file.getCanonicalPath();
+                    cacheModified = file.lastModified();
+                }
+
+                if (readLength > 0 && readLength <= Integer.MAX_VALUE)
+                {
+                    inMap = inChannel.map(FileChannel.MapMode.READ_ONLY, 0, readLength);
+                }
+            }
+            catch (IOException e)
+            {
+                throw new FileOperationException(TFTPCommon.ErrorCode.ACCESSVIOLATE, "Unable to read file: \"" + file.getName() + "\". Access violation");
+            }
         }
     }
 }
@@ -0,0 +1,391 @@
+package grouptwo;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ImpairmentModel describes a statistically impaired network for the error simulator. Unlike the
+ * one-shot modifications (lose packet #n, delay packet #n), it applies to every packet of every
+ * ErrorSimulator session, so retransmits and windowing can be measured under realistic conditions.
+ * It is parsed from a comma separated list of settings, i.e. "burst=1:25,delay=20,jitter=5":
+ *   loss=P            lose P% of packets, independently of each other (Bernoulli)
+ *   burst=P:R[:H[:K]] Gilbert-Elliott burst loss, P% chance per packet of moving from the good state
+ *                     to the bad state, R% of moving back, H% loss in the bad state (default 100) and
+ *                     K% in the good state (default 0). Replaces loss
+ *   delay=MS          fixed one way latency
+ *   jitter=MS[:dist]  latency varies by up to MS either way (uniform, default) or with a standard
+ *                     deviation of MS (normal). Packets can overtake each other when it is large
+ *   reorder=P[:MS]    hold back P% of packets for MS more (default 10 ms) so later packets pass them
+ *   dup=P             send P% of packets twice
+ *   seed=N            random seed, the same seed and packets give the same impairments
+ * Each session draws from its own random generator, seeded from the seed and the session number, so
+ * a session's impairments don't depend on the traffic of other sessions. Link capacity is emulated by
+ * LinkShaper, packets that aren't lost wait for their turn on the link before their latency starts.
+ *
+ * @author        Cyrus Sadeghi
+ */
+public class ImpairmentModel
+{
+	//Probabilities are fractions (0 to 1), times are ms
+	private double loss, goodToBad, badToGood, lossBad, lossGood, reorder, duplicate;
+	private double delay, jitter, reorderGap;
+	private Boolean burst, normalJitter;
+	private long seed;
+
+	private ImpairmentModel()
+	{
+		burst = false;
+		normalJitter = false;
+		lossBad = 1;
+		reorderGap = 10;
+		seed = System.nanoTime();
+	}
+
+	/**
+	 *   Model that leaves packets alone, for sessions that are only shaped by a LinkShaper
+	 *
+	 *   @param  none
+	 *   @return ImpairmentModel
+	 */
+	public static ImpairmentModel none()
+	{
+		return new ImpairmentModel();
+	}
+
+	/**
+	 *   Parse the startup option or CLI value, settings that aren't given are off
+	 *
+	 *   @param  String comma separated settings (see class comment)
+	 *   @return ImpairmentModel model, null if a setting is invalid
+	 */
+	public static ImpairmentModel fromString(String option)
+	{
+		ImpairmentModel model = new ImpairmentModel();
+		String[] setting, values;
+
+		try {
+			for (String item : option.split(","))
+			{
+				setting = item.trim().split("=", 2);
+
+				if (setting.length != 2)
+				{
+					return null;
+				}
+
+				values = setting[1].split(":");
+
+				if (setting[0].equalsIgnoreCase("loss") && values.length == 1)
+				{
+					model.loss = percent(values[0]);
+				}
+				else if (setting[0].equalsIgnoreCase("burst") && values.length >= 2 && values.length <= 4)
+				{
+					model.burst = true;
+					model.goodToBad = percent(values[0]);
+					model.badToGood = percent(values[1]);
+					model.lossBad = values.length > 2 ? percent(values[2]) : 1;
+					model.lossGood = values.length > 3 ? percent(values[3]) : 0;
+				}
+				else if (setting[0].equalsIgnoreCase("delay") && values.length == 1)
+				{
+					model.delay = nonNegative(values[0]);
+				}
+				else if (setting[0].equalsIgnoreCase("jitter") && values.length <= 2)
+				{
+					model.jitter = nonNegative(values[0]);
+
+					if (values.length > 1 && !values[1].equalsIgnoreCase("uniform") && !values[1].equalsIgnoreCase("normal"))
+					{
+						return null;
+					}
+
+					model.normalJitter = values.length > 1 && values[1].equalsIgnoreCase("normal");
+				}
+				else if (setting[0].equalsIgnoreCase("reorder") && values.length <= 2)
+				{
+					model.reorder = percent(values[0]);
+					model.reorderGap = values.length > 1 ? nonNegative(values[1]) : model.reorderGap;
+				}
+				else if (setting[0].equalsIgnoreCase("dup") && values.length == 1)
+				{
+					model.duplicate = percent(values[0]);
+				}
+				else if (setting[0].equalsIgnoreCase("seed") && values.length == 1)
+				{
+					model.seed = Long.parseLong(values[0]);
+				}
+				else
+				{
+					return null;
+				}
+			}
+		} catch (NumberFormatException e) {
+			return null;
+		}
+
+		return model;
+	}
+
+	/**
+	 *   Parse a percentage
+	 *
+	 *   @param  String percentage (0 to 100)
+	 *   @return double fraction (0 to 1)
+	 *   @throws NumberFormatException if the value isn't a percentage
+	 */
+	private static double percent(String value)
+	{
+		double parsed = Double.parseDouble(value);
+
+		if (!(parsed >= 0 && parsed <= 100))
+		{
+			throw new NumberFormatException(value);
+		}
+
+		return parsed / 100;
+	}
+
+	/**
+	 *   Parse a time
+	 *
+	 *   @param  String value (0 or more)
+	 *   @return double value
+	 *   @throws NumberFormatException if the value is negative or not a number
+	 */
+	private static double nonNegative(String value)
+	{
+		double parsed = Double.parseDouble(value);
+
+		if (!(parsed >= 0 && parsed < Double.POSITIVE_INFINITY))
+		{
+			throw new NumberFormatException(value);
+		}
+
+		return parsed;
+	}
+
+	/**
+	 *   Create the impairment state of a new ErrorSimulator session
+	 *
+	 *   @param  int session number (sessions are numbered in the order their requests arrive)
+	 *   @param  LinkShaper link the session's packets are sent over, null for unlimited
+	 *   @return Session
+	 */
+	public Session newSession(int sessionNumber, LinkShaper shaper)
+	{
+		return new Session(this, new SplittableRandom(seed + sessionNumber * 0x9E3779B97F4A7C15L), shaper);
+	}
+
+	/**
+	 *   Settings as they would be given on the command line, including the seed actually used
+	 *
+	 *   @param  none
+	 *   @return String settings
+	 */
+	public String toString()
+	{
+		StringBuilder settings = new StringBuilder();
+
+		if (burst)
+		{
+			settings.append("burst=" + format(goodToBad * 100) + ":" + format(badToGood * 100) + ":" + format(lossBad * 100) + ":" + format(lossGood * 100) + ",");
+		}
+		else if (loss > 0)
+		{
+			settings.append("loss=" + format(loss * 100) + ",");
+		}
+
+		if (delay > 0)
+		{
+			settings.append("delay=" + format(delay) + ",");
+		}
+
+		if (jitter > 0)
+		{
+			settings.append("jitter=" + format(jitter) + (normalJitter ? ":normal," : ":uniform,"));
+		}
+
+		if (reorder > 0)
+		{
+			settings.append("reorder=" + format(reorder * 100) + ":" + format(reorderGap) + ",");
+		}
+
+		if (duplicate > 0)
+		{
+			settings.append("dup=" + format(duplicate * 100) + ",");
+		}
+
+		return settings.append("seed=" + seed).toString();
+	}
+
+	private static String format(double value)
+	{
+		return BigDecimal.valueOf(value).setScale(3, RoundingMode.HALF_UP).stripTrailingZeros().toPlainString();
+	}
+
+	/**
+	 * Impairment state of one ErrorSimulator session: its random generator, the Gilbert-Elliott state
+	 * and the packets it has waiting to be sent. Packets are passed in by the session's thread in
+	 * the order they arrive, delayed packets are sent by the PacketScheduler.
+	 */
+	public static class Session
+	{
+		private final ImpairmentModel model;
+		private final SplittableRandom random;
+		private final LinkShaper shaper;
+		private Boolean bad;
+		//Packets waiting to be sent, per direction (0 to server, 1 to client)
+		private final AtomicInteger[] waiting;
+		private long packets, lost, linkDrops, delayed, reordered, duplicated;
+
+		private Session(ImpairmentModel model, SplittableRandom random, LinkShaper shaper)
+		{
+			this.model = model;
+			this.random = random;
+			this.shaper = shaper;
+			bad = false;
+			waiting = new AtomicInteger[] { new AtomicInteger(), new AtomicInteger() };
+		}
+
+		/**
+		 *   Send a packet across the impaired network: lose it, or send it (and its duplicate) once its
+		 *   turn on the shaped link and its latency have passed
+		 *
+		 *   @param  DatagramPacket packet to send, must not be reused by the caller
+		 *   @param  DatagramSocket socket to send it from
+		 *   @param  Boolean true if the packet goes to the client, false if it goes to the server
+		 *   @param  PacketScheduler scheduler that sends delayed packets
+		 *   @return String what was done to the packet, for the log
+		 */
+		public String send(DatagramPacket packet, DatagramSocket socket, Boolean toClient, PacketScheduler scheduler)
+		{
+			int direction = toClient ? 1 : 0;
+			long now = System.nanoTime(), sendAt = now, linkDelay;
+			double latency = model.delay;
+			int copies = 1, delayMs;
+			String result = "";
+
+			packets++;
+
+			if (isLost())
+			{
+				lost++;
+				return model.burst && bad ? "lost (burst)" : "lost";
+			}
+
+			if (model.duplicate > 0 && random.nextDouble() < model.duplicate)
+			{
+				copies = 2;
+				duplicated++;
+				result = "duplicated, ";
+			}
+
+			if (shaper != null)
+			{
+				//Each copy takes its turn on the link, both are sent once the last has left
+				for (int i = copies; i > 0; i--)
+				{
+					linkDelay = shaper.getLink(toClient).admit(packet.getLength(), now);
+
+					if (linkDelay < 0)
+					{
+						linkDrops++;
+						copies--;
+					}
+					else
+					{
+						sendAt = now + linkDelay;
+					}
+				}
+
+				if (copies == 0)
+				{
+					return result + "dropped by the link";
+				}
+			}
+
+			if (model.jitter > 0)
+			{
+				latency += model.normalJitter ? random.nextGaussian() * model.jitter : random.nextDouble(-model.jitter, model.jitter);
+			}
+
+			if (model.reorder > 0 && random.nextDouble() < model.reorder)
+			{
+				latency += model.reorderGap;
+				reordered++;
+				result += "held back " + Math.round(model.reorderGap) + " ms, ";
+			}
+
+			sendAt += (long) (Math.max(0, latency) * 1e6);
+			delayMs = (int) Math.max(0, (sendAt - now + 999999) / 1000000);
+
+			//Packets already waiting are sent first, so one that doesn't wait can't overtake them
+			if (delayMs == 0 && waiting[direction].get() == 0)
+			{
+				sendCopies(packet, socket, copies);
+				return result + "sent now";
+			}
+
+			delayed++;
+			waiting[direction].incrementAndGet();
+			final int sendCopies = copies;
+			scheduler.schedule(() -> {
+				waiting[direction].decrementAndGet();
+				sendCopies(packet, socket, sendCopies);
+			}, delayMs);
+
+			return result + "delayed " + delayMs + " ms";
+		}
+
+		/**
+		 *   Decide whether the next packet is lost, moving between the Gilbert-Elliott states first
+		 *
+		 *   @param  none
+		 *   @return Boolean true if the packet is lost
+		 */
+		private Boolean isLost()
+		{
+			if (!model.burst)
+			{
+				return model.loss > 0 && random.nextDouble() < model.loss;
+			}
+
+			if (random.nextDouble() < (bad ? model.badToGood : model.goodToBad))
+			{
+				bad = !bad;
+			}
+
+			return random.nextDouble() < (bad ? model.lossBad : model.lossGood);
+		}
+
+		private static void sendCopies(DatagramPacket packet, DatagramSocket socket, int copies)
+		{
+			try {
+				for (int i = 0; i < copies; i++)
+				{
+					socket.send(packet);
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		/**
+		 *   Counts of what was done to the session's packets
+		 *
+		 *   @param  none
+		 *   @return String summary
+		 */
+		public String toString()
+		{
+			return packets + " packets, " + lost + " lost, " + linkDrops + " dropped by the link, " + delayed + " delayed, "
+				+ reordered + " held back, " + duplicated + " duplicated";
+		}
+	}
+}
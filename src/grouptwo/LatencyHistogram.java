@@ -0,0 +1,189 @@
+package grouptwo;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * LatencyHistogram records latencies (in microseconds) from many threads at once and reports
+ * percentiles. Buckets are laid out like an HDR histogram: values below 128 get a bucket each,
+ * above that every power of two range is split into 64 buckets, so any recorded value is
+ * reported within about 1.6% no matter how large it is. Recording is a few atomic adds and
+ * never allocates.
+ *
+ * @author        Cyrus Sadeghi
+ */
+public class LatencyHistogram
+{
+	//Each power of two range above 128 is split into 2^subBucketBits buckets
+	private static final int subBucketBits = 6;
+	private static final int subBuckets = 1 << subBucketBits;
+	private static final int linearBuckets = 2 * subBuckets;
+
+	private final AtomicLongArray counts;
+	private final AtomicLong count, sum, max;
+
+	/**
+	 *   Constructor for LatencyHistogram
+	 *
+	 *   @param  none
+	 *   @return LatencyHistogram
+	 */
+	public LatencyHistogram()
+	{
+		counts = new AtomicLongArray(linearBuckets + (64 - subBucketBits - 1) * subBuckets);
+		count = new AtomicLong();
+		sum = new AtomicLong();
+		max = new AtomicLong();
+	}
+
+	/**
+	 *   Record a latency
+	 *
+	 *   @param  long latency in microseconds (negative values are recorded as 0)
+	 *   @return none
+	 */
+	public void record(long micros)
+	{
+		long value = Math.max(0, micros);
+		long seen;
+
+		counts.incrementAndGet(bucketIndex(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+
+		while (value > (seen = max.get()) && !max.compareAndSet(seen, value))
+		{
+			//Another thread raised the max, try again against its value
+		}
+	}
+
+	/**
+	 *   Bucket a value falls in
+	 *
+	 *   @param  long value (not negative)
+	 *   @return int bucket index
+	 */
+	private static int bucketIndex(long value)
+	{
+		int shift;
+
+		if (value < linearBuckets)
+		{
+			return (int) value;
+		}
+
+		//Shift that brings the value into [64, 128), each shift step is the next 64 buckets
+		shift = 63 - Long.numberOfLeadingZeros(value) - subBucketBits;
+		return linearBuckets + (shift - 1) * subBuckets + (int) ((value >> shift) - subBuckets);
+	}
+
+	/**
+	 *   Smallest value that falls in a bucket
+	 *
+	 *   @param  int bucket index
+	 *   @return long lowest value of the bucket
+	 */
+	private static long bucketValue(int index)
+	{
+		int shift;
+
+		if (index < linearBuckets)
+		{
+			return index;
+		}
+
+		shift = (index - linearBuckets) / subBuckets + 1;
+		return ((long) (subBuckets + (index - linearBuckets) % subBuckets)) << shift;
+	}
+
+	/**
+	 *   Value at a percentile of the recorded values
+	 *
+	 *   @param  double percentile (0-100)
+	 *   @return long value in microseconds, 0 if nothing has been recorded
+	 */
+	public long getPercentile(double percentile)
+	{
+		long total = count.get();
+		long rank = (long) Math.ceil(total * percentile / 100.0);
+		long seen = 0;
+
+		if (total == 0)
+		{
+			return 0;
+		}
+
+		for (int i = 0; i < counts.length(); i++)
+		{
+			seen += counts.get(i);
+
+			if (seen >= Math.max(1, rank))
+			{
+				return Math.min(bucketValue(i), max.get());
+			}
+		}
+
+		return max.get();
+	}
+
+	/**
+	 *   Number of recorded values at or below a value, for cumulative (Prometheus style) buckets.
+	 *   Values in the same bucket as the limit are included, so the count can be over by values
+	 *   up to 1.6% above the limit
+	 *
+	 *   @param  long limit in microseconds
+	 *   @return long number of values
+	 */
+	public long countAtOrBelow(long micros)
+	{
+		int last = bucketIndex(Math.max(0, micros));
+		long below = 0;
+
+		for (int i = 0; i <= last; i++)
+		{
+			below += counts.get(i);
+		}
+
+		return below;
+	}
+
+	public long getCount()
+	{
+		return count.get();
+	}
+
+	/**
+	 *   Sum of the recorded values
+	 *
+	 *   @param  none
+	 *   @return long sum in microseconds
+	 */
+	public long getSum()
+	{
+		return sum.get();
+	}
+
+	public long getMax()
+	{
+		return max.get();
+	}
+
+	/**
+	 *   Mean of the recorded values
+	 *
+	 *   @param  none
+	 *   @return double mean in microseconds, 0 if nothing has been recorded
+	 */
+	public double getMean()
+	{
+		long total = count.get();
+
+		return total == 0 ? 0 : (double) sum.get() / total;
+	}
+
+	public String toString()
+	{
+		return String.format("%d samples, mean %.2f ms, p50 %.2f ms, p90 %.2f ms, p99 %.2f ms, max %.2f ms", getCount(), getMean() / 1000,
+			getPercentile(50) / 1000.0, getPercentile(90) / 1000.0, getPercentile(99) / 1000.0, getMax() / 1000.0);
+	}
+}
@@ -0,0 +1,348 @@
+package grouptwo;
+
+import java.util.ArrayDeque;
+import java.util.SplittableRandom;
+
+/**
+ * LinkShaper emulates the capacity of the link between client and server, so block and window sizes
+ * can be compared on i.e. 1 Mbit, 10 Mbit and 1 Gbit links on a single machine. Each direction is a
+ * token bucket limiting bytes and packets per second, shared by every ErrorSimulator session as a
+ * real link would be. A packet that finds too few tokens waits in the link's queue until there are
+ * enough, packets arriving at a full queue are dropped (tail drop), or are dropped early with a
+ * probability that grows with the average queue length (RED). It is parsed from a comma separated
+ * list of settings, i.e. "rate=10m,queue=50,drop=red":
+ *   rate=N[k|m|g]         bits per second (0 for no limit)
+ *   pps=N                 packets per second (0 for no limit)
+ *   burst=BYTES[:PACKETS] bucket sizes, the most that can be sent at once after the link has been
+ *                         idle (default 1 ms of the rates, at least one 1500 byte packet)
+ *   queue=PACKETS         packets waiting for tokens before new ones are dropped (default 100)
+ *   drop=tail|red[:MIN:MAX[:P]]  RED drops with a probability rising from 0 at an average queue of MIN
+ *                         packets to P% at MAX (default 25%:75% of the queue, 10%), then to 100% at twice
+ *                         MAX ("gentle" RED, so the link isn't cut off while the slow average comes down)
+ *   seed=N                random seed of RED drops
+ * Packets are counted with their IP and UDP headers. Shaping decides when a packet leaves, the
+ * PacketScheduler sends it then (ImpairmentModel.Session.send), so sending times are only as
+ * precise as the scheduler's 1 ms ticks, rates are kept over longer times.
+ *
+ * @author        Cyrus Sadeghi
+ */
+public class LinkShaper
+{
+	//IP and UDP headers, counted against the rates
+	public static final int headerBytes = 28;
+	//Weight of each new sample in RED's average queue length
+	private static final double averageWeight = 0.002;
+
+	private long bitRate, packetRate, burstBytes, burstPackets;
+	private int queueLimit;
+	private Boolean red;
+	private double redMin, redMax, redProbability;
+	private long seed;
+	private Link toServer, toClient;
+
+	private LinkShaper()
+	{
+		burstBytes = -1;
+		burstPackets = -1;
+		queueLimit = 100;
+		red = false;
+		redMin = -1;
+		redMax = -1;
+		redProbability = 0.1;
+		seed = System.nanoTime();
+	}
+
+	/**
+	 *   Parse the startup option or CLI value, settings that aren't given are off (or their default)
+	 *
+	 *   @param  String comma separated settings (see class comment)
+	 *   @return LinkShaper shaper with an idle link in each direction, null if a setting is invalid
+	 */
+	public static LinkShaper fromString(String option)
+	{
+		LinkShaper shaper = new LinkShaper();
+		String[] setting, values;
+
+		try {
+			for (String item : option.split(","))
+			{
+				setting = item.trim().split("=", 2);
+
+				if (setting.length != 2)
+				{
+					return null;
+				}
+
+				values = setting[1].split(":");
+
+				if (setting[0].equalsIgnoreCase("rate") && values.length == 1)
+				{
+					shaper.bitRate = bits(values[0]);
+				}
+				else if (setting[0].equalsIgnoreCase("pps") && values.length == 1)
+				{
+					shaper.packetRate = Math.round(nonNegative(values[0]));
+				}
+				else if (setting[0].equalsIgnoreCase("burst") && values.length <= 2)
+				{
+					shaper.burstBytes = Math.max(1, Math.round(nonNegative(values[0])));
+					shaper.burstPackets = values.length > 1 ? Math.max(1, Math.round(nonNegative(values[1]))) : -1;
+				}
+				else if (setting[0].equalsIgnoreCase("queue") && values.length == 1)
+				{
+					shaper.queueLimit = (int) Math.min(Integer.MAX_VALUE, Math.max(1, nonNegative(values[0])));
+				}
+				else if (setting[0].equalsIgnoreCase("drop") && values[0].equalsIgnoreCase("tail") && values.length == 1)
+				{
+					shaper.red = false;
+				}
+				else if (setting[0].equalsIgnoreCase("drop") && values[0].equalsIgnoreCase("red") && values.length <= 4)
+				{
+					shaper.red = true;
+					shaper.redMin = values.length > 1 ? nonNegative(values[1]) : -1;
+					shaper.redMax = values.length > 2 ? nonNegative(values[2]) : -1;
+					shaper.redProbability = values.length > 3 ? Double.parseDouble(values[3]) / 100 : shaper.redProbability;
+
+					if (shaper.redMax >= 0 && shaper.redMax <= shaper.redMin || !(shaper.redProbability >= 0 && shaper.redProbability <= 1))
+					{
+						return null;
+					}
+				}
+				else if (setting[0].equalsIgnoreCase("seed") && values.length == 1)
+				{
+					shaper.seed = Long.parseLong(values[0]);
+				}
+				else
+				{
+					return null;
+				}
+			}
+		} catch (NumberFormatException e) {
+			return null;
+		}
+
+		//Defaults that depend on other settings
+		if (shaper.burstBytes < 0)
+		{
+			shaper.burstBytes = Math.max(1500, shaper.bitRate / 8 / 1000);
+		}
+
+		if (shaper.burstPackets < 0)
+		{
+			shaper.burstPackets = Math.max(1, shaper.packetRate / 1000);
+		}
+
+		if (shaper.redMin < 0)
+		{
+			shaper.redMin = shaper.queueLimit * 0.25;
+			shaper.redMax = shaper.queueLimit * 0.75;
+		}
+		else if (shaper.redMax < 0)
+		{
+			shaper.redMax = Math.max(shaper.redMin + 1, shaper.queueLimit * 0.75);
+		}
+
+		shaper.toServer = shaper.new Link(new SplittableRandom(shaper.seed));
+		shaper.toClient = shaper.new Link(new SplittableRandom(shaper.seed + 1));
+		return shaper;
+	}
+
+	/**
+	 *   Parse a number of bits, with an optional k, m or g (decimal) suffix
+	 *
+	 *   @param  String value
+	 *   @return long bits
+	 *   @throws NumberFormatException if the value is negative or not a number
+	 */
+	private static long bits(String value)
+	{
+		String lower = value.toLowerCase();
+		long multiplier = lower.endsWith("k") ? 1000 : lower.endsWith("m") ? 1000000 : lower.endsWith("g") ? 1000000000 : 1;
+
+		if (multiplier > 1)
+		{
+			lower = lower.substring(0, lower.length() - 1);
+		}
+
+		return Math.round(nonNegative(lower) * multiplier);
+	}
+
+	private static double nonNegative(String value)
+	{
+		double parsed = Double.parseDouble(value);
+
+		if (!(parsed >= 0 && parsed < Long.MAX_VALUE))
+		{
+			throw new NumberFormatException(value);
+		}
+
+		return parsed;
+	}
+
+	/**
+	 *   Link carrying packets in one direction
+	 *
+	 *   @param  Boolean true for packets to the client, false for packets to the server
+	 *   @return Link
+	 */
+	public Link getLink(Boolean toClient)
+	{
+		return toClient ? this.toClient : toServer;
+	}
+
+	/**
+	 *   Settings as they would be given on the command line, and each link's counts
+	 *
+	 *   @param  none
+	 *   @return String settings
+	 */
+	public String toString()
+	{
+		return "rate=" + bitRate + ",pps=" + packetRate + ",burst=" + burstBytes + ":" + burstPackets + ",queue=" + queueLimit
+			+ (red ? ",drop=red:" + Math.round(redMin) + ":" + Math.round(redMax) + ":" + Math.round(redProbability * 100) : ",drop=tail")
+			+ ",seed=" + seed + " (to server: " + toServer + ", to client: " + toClient + ")";
+	}
+
+	/**
+	 * One direction of the link: its token buckets, the times its queued packets leave and RED's average
+	 * queue length. Departure times are worked out as packets arrive, nothing runs while the link is idle.
+	 * Shared by all ErrorSimulator threads, so every method is synchronized.
+	 */
+	public class Link
+	{
+		private final SplittableRandom random;
+		//Tokens (bytes and packets) in the buckets at lastUpdate, may be a time in the future when packets are queued
+		private double byteTokens, packetTokens;
+		private long lastUpdate;
+		//Departure times of packets still in the queue, oldest first
+		private final ArrayDeque<Long> queue;
+		private double averageQueue;
+		private long idleSince;
+		private long packets, bytes, tailDrops, redDrops;
+		private int maxQueue;
+
+		private Link(SplittableRandom random)
+		{
+			this.random = random;
+			byteTokens = burstBytes;
+			packetTokens = burstPackets;
+			lastUpdate = System.nanoTime();
+			idleSince = lastUpdate;
+			queue = new ArrayDeque<Long>();
+		}
+
+		/**
+		 *   Queue a packet on the link
+		 *
+		 *   @param  int UDP payload length
+		 *   @param  long current System.nanoTime
+		 *   @return long time until the packet leaves the link (ns), -1 if it was dropped
+		 */
+		public synchronized long admit(int length, long now)
+		{
+			int size = length + headerBytes;
+			long start, departure;
+			double wait = 0;
+
+			while (!queue.isEmpty() && queue.peekFirst() - now <= 0)
+			{
+				idleSince = queue.pollFirst();
+			}
+
+			if (red && dropEarly(now))
+			{
+				redDrops++;
+				return -1;
+			}
+
+			if (queue.size() >= queueLimit)
+			{
+				tailDrops++;
+				return -1;
+			}
+
+			//Refill the buckets up to when the packet reaches the head of the queue
+			start = queue.isEmpty() ? now : Math.max(now, queue.peekLast());
+			refill(start);
+
+			//Wait for whichever bucket is short of tokens for longest, then take the packet's tokens
+			if (bitRate > 0 && byteTokens < size)
+			{
+				wait = (size - byteTokens) * 8e9 / bitRate;
+			}
+
+			if (packetRate > 0 && packetTokens < 1)
+			{
+				wait = Math.max(wait, (1 - packetTokens) * 1e9 / packetRate);
+			}
+
+			//Tokens earned while waiting, a packet larger than the bucket still gets all the tokens it waited for
+			departure = start + (long) Math.ceil(wait);
+			byteTokens = Math.min(Math.max(burstBytes, size), byteTokens + wait / 1e9 * bitRate / 8) - size;
+			packetTokens = Math.min(Math.max(burstPackets, 1), packetTokens + wait / 1e9 * packetRate) - 1;
+			lastUpdate = departure;
+			packets++;
+			bytes += size;
+
+			if (departure - now > 0)
+			{
+				queue.addLast(departure);
+				maxQueue = Math.max(maxQueue, queue.size());
+			}
+
+			return departure - now;
+		}
+
+		/**
+		 *   Add the tokens earned since the last update, up to the bucket sizes
+		 *
+		 *   @param  long time to refill up to (System.nanoTime)
+		 *   @return none
+		 */
+		private void refill(long time)
+		{
+			double elapsed = Math.max(0, time - lastUpdate) / 1e9;
+
+			byteTokens = Math.min(burstBytes, byteTokens + elapsed * bitRate / 8);
+			packetTokens = Math.min(burstPackets, packetTokens + elapsed * packetRate);
+			lastUpdate = Math.max(lastUpdate, time);
+		}
+
+		/**
+		 *   Update RED's average queue length and decide whether to drop the arriving packet. While the
+		 *   queue was empty the average decays as if a packet had been seen every millisecond
+		 *
+		 *   @param  long current System.nanoTime
+		 *   @return Boolean true if the packet should be dropped
+		 */
+		private Boolean dropEarly(long now)
+		{
+			if (queue.isEmpty())
+			{
+				averageQueue *= Math.pow(1 - averageWeight, Math.max(0, now - idleSince) / 1e6);
+				idleSince = now;
+			}
+			else
+			{
+				averageQueue += averageWeight * (queue.size() - averageQueue);
+			}
+
+			if (averageQueue < redMin)
+			{
+				return false;
+			}
+
+			if (averageQueue >= redMax)
+			{
+				return random.nextDouble() < redProbability + (1 - redProbability) * (averageQueue - redMax) / redMax;
+			}
+
+			return random.nextDouble() < redProbability * (averageQueue - redMin) / (redMax - redMin);
+		}
+
+		public synchronized String toString()
+		{
+			return packets + " packets, " + bytes + " bytes, " + tailDrops + " tail drops, " + redDrops + " RED drops, longest queue " + maxQueue;
+		}
+	}
+}
@@ -0,0 +1,218 @@
+package grouptwo;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * MetricsExporter serves the server's TransferMetrics over HTTP in the Prometheus text format,
+ * so a monitoring system can scrape the server instead of an operator reading the CLI. Counters
+ * only include transfers that have ended (so they never go down), transfers in progress are
+ * reported as a gauge. Transfer durations and round trip times are exported as histograms, their
+ * buckets are read from the LatencyHistograms the server already records into. The endpoint is
+ * bound to the loopback address unless another address is given.
+ *
+ * @author        Cyrus Sadeghi
+ */
+public class MetricsExporter implements HttpHandler
+{
+	//Histogram bucket upper bounds in seconds
+	private static final double[] durationBuckets = { 0.01, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 120, 300 };
+	private static final double[] roundTripBuckets = { 0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1 };
+
+	private final TransferMetrics metrics;
+	private HttpServer server;
+
+	/**
+	 *   Constructor for MetricsExporter
+	 *
+	 *   @param  TransferMetrics server metrics registry to export
+	 *   @return MetricsExporter
+	 */
+	public MetricsExporter(TransferMetrics metrics)
+	{
+		this.metrics = metrics;
+	}
+
+	/**
+	 *   Parse the startup option value: "[address:]port" (default address is loopback)
+	 *
+	 *   @param  String option value
+	 *   @return InetSocketAddress address to serve metrics on, null if the option is invalid
+	 */
+	public static InetSocketAddress addressFromString(String option)
+	{
+		int split = option.lastIndexOf(':');
+		int port;
+
+		try {
+			port = Integer.parseInt(option.substring(split + 1));
+
+			if (port <= 0 || port > 65535)
+			{
+				return null;
+			}
+
+			if (split < 0)
+			{
+				return new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+			}
+
+			return new InetSocketAddress(InetAddress.getByName(option.substring(0, split)), port);
+		} catch (NumberFormatException | UnknownHostException e) {
+			return null;
+		}
+	}
+
+	/**
+	 *   Start serving /metrics, requests are handled on a single background thread
+	 *
+	 *   @param  InetSocketAddress address and port to listen on
+	 *   @return none
+	 *   @throws IOException if the port can't be bound
+	 */
+	public void start(InetSocketAddress address) throws IOException
+	{
+		server = HttpServer.create(address, 0);
+		server.createContext("/metrics", this);
+		server.setExecutor(null);
+		server.start();
+	}
+
+	/**
+	 *   Stop serving, waits up to a second for scrapes in progress
+	 *
+	 *   @param  none
+	 *   @return none
+	 */
+	public void stop()
+	{
+		if (server != null)
+		{
+			server.stop(1);
+			server = null;
+		}
+	}
+
+	/**
+	 *   Answer a scrape of /metrics
+	 *
+	 *   @param  HttpExchange request and response
+	 *   @return none
+	 */
+	public void handle(HttpExchange exchange) throws IOException
+	{
+		byte[] body;
+
+		if (!exchange.getRequestMethod().equals("GET") && !exchange.getRequestMethod().equals("HEAD"))
+		{
+			exchange.sendResponseHeaders(405, -1);
+			exchange.close();
+			return;
+		}
+
+		body = scrape().getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+
+		if (exchange.getRequestMethod().equals("HEAD"))
+		{
+			exchange.sendResponseHeaders(200, -1);
+			exchange.close();
+			return;
+		}
+
+		exchange.sendResponseHeaders(200, body.length);
+
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+
+	/**
+	 *   Current metrics in the Prometheus text format
+	 *
+	 *   @param  none
+	 *   @return String metrics
+	 */
+	public String scrape()
+	{
+		StringBuilder out = new StringBuilder();
+
+		header(out, "tftp_transfers_active", "gauge", "Transfers in progress");
+		sample(out, "tftp_transfers_active", "", metrics.getActiveCount());
+		header(out, "tftp_transfers_started_total", "counter", "Requests received, including ones refused with an ERROR");
+		sample(out, "tftp_transfers_started_total", "", metrics.getStarted());
+		header(out, "tftp_transfers_ended_total", "counter", "Transfers ended, by result");
+		sample(out, "tftp_transfers_ended_total", "{result=\"completed\"}", metrics.getCompleted());
+		sample(out, "tftp_transfers_ended_total", "{result=\"failed\"}", metrics.getFailed());
+		header(out, "tftp_bytes_total", "counter", "File bytes moved by ended transfers");
+		sample(out, "tftp_bytes_total", "{direction=\"sent\"}", metrics.getBytesSent());
+		sample(out, "tftp_bytes_total", "{direction=\"received\"}", metrics.getBytesReceived());
+		header(out, "tftp_blocks_total", "counter", "DATA blocks moved by ended transfers");
+		sample(out, "tftp_blocks_total", "", metrics.getBlocks());
+		header(out, "tftp_retransmits_total", "counter", "Packets resent after a timeout by ended transfers");
+		sample(out, "tftp_retransmits_total", "", metrics.getRetransmits());
+		header(out, "tftp_duplicates_total", "counter", "Duplicate or out of order DATA received by ended transfers");
+		sample(out, "tftp_duplicates_total", "", metrics.getDuplicates());
+		header(out, "tftp_unknown_tid_packets_total", "counter", "Packets received from an unknown TID");
+		sample(out, "tftp_unknown_tid_packets_total", "", metrics.getUnknownTIDs());
+		header(out, "tftp_errors_sent_total", "counter", "ERROR packets sent, by error code");
+
+		for (TFTPCommon.ErrorCode code : TFTPCommon.ErrorCode.values())
+		{
+			sample(out, "tftp_errors_sent_total", "{code=\"" + code.ordinal() + "\",name=\"" + code.name().toLowerCase(Locale.ROOT) + "\"}", metrics.getErrorsSent(code));
+		}
+
+		histogram(out, "tftp_transfer_duration_seconds", "Time from request to end of completed transfers", metrics.getDurations(), durationBuckets);
+		histogram(out, "tftp_rtt_seconds", "Round trip time of DATA/ACK exchanges", metrics.getRoundTrips(), roundTripBuckets);
+		return out.toString();
+	}
+
+	/**
+	 *   Append a histogram: cumulative buckets, sum and count. Count is read first so no
+	 *   bucket is larger than it while values are being recorded
+	 *
+	 *   @param  StringBuilder output
+	 *   @param  String metric name
+	 *   @param  String help text
+	 *   @param  LatencyHistogram recorded values (microseconds)
+	 *   @param  double[] bucket upper bounds in seconds
+	 *   @return none
+	 */
+	private static void histogram(StringBuilder out, String name, String help, LatencyHistogram histogram, double[] buckets)
+	{
+		long count = histogram.getCount();
+		long sum = histogram.getSum();
+
+		header(out, name, "histogram", help);
+
+		for (double bound : buckets)
+		{
+			sample(out, name + "_bucket", "{le=\"" + BigDecimal.valueOf(bound).stripTrailingZeros().toPlainString() + "\"}", Math.min(count, histogram.countAtOrBelow((long) (bound * 1e6))));
+		}
+
+		sample(out, name + "_bucket", "{le=\"+Inf\"}", count);
+		out.append(name).append("_sum ").append(String.format(Locale.ROOT, "%.6f", sum / 1e6)).append('\n');
+		sample(out, name + "_count", "", count);
+	}
+
+	private static void header(StringBuilder out, String name, String type, String help)
+	{
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	private static void sample(StringBuilder out, String name, String labels, long value)
+	{
+		out.append(name).append(labels).append(' ').append(value).append('\n');
+	}
+}
@@ -0,0 +1,115 @@
+package grouptwo;
+
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+
+/**
+ * PacketBuffers holds the buffers and DatagramPackets used for the DATA, ACK and received packets
+ * of a single transfer. They are allocated once for the transfer's block size and reused for every
+ * block, so sending and receiving a file doesn't allocate per packet. A PacketBuffers must only be
+ * used by the thread running its transfer.
+ *
+ * @author        Cyrus Sadeghi
+ */
+public class PacketBuffers
+{
+	//Buffers of the last transfer run on each thread, see forThread
+	private static final ThreadLocal<PacketBuffers> threadBuffers = new ThreadLocal<PacketBuffers>();
+
+	private final int blockSize;
+	private byte[] dataMsg, ackMsg, receiveMsg;
+	private DatagramPacket dataPacket, ackPacket, receivePacket;
+
+	/**
+	 *   Constructor for PacketBuffers
+	 *
+	 *   @param  int block size of the transfer
+	 *   @return PacketBuffers
+	 */
+	public PacketBuffers(int blockSize)
+	{
+		this.blockSize = blockSize;
+		dataMsg = new byte[blockSize + 4];
+		ackMsg = new byte[4];
+		receiveMsg = new byte[TFTPCommon.packetBufferSize(blockSize)];
+		dataPacket = new DatagramPacket(dataMsg, dataMsg.length);
+		ackPacket = new DatagramPacket(ackMsg, ackMsg.length);
+		receivePacket = new DatagramPacket(receiveMsg, receiveMsg.length);
+	}
+
+	/**
+	 *   Buffers for a transfer run on the calling thread. A thread that runs transfers one after
+	 *   another (i.e. a batch worker or pooled server thread) gets the buffers of its last transfer
+	 *   back when the block size is the same, instead of allocating new ones
+	 *
+	 *   @param  int block size of the transfer
+	 *   @return PacketBuffers buffers for the transfer
+	 */
+	public static PacketBuffers forThread(int blockSize)
+	{
+		PacketBuffers buffers = threadBuffers.get();
+
+		if (buffers == null || buffers.blockSize != blockSize)
+		{
+			buffers = new PacketBuffers(blockSize);
+			threadBuffers.set(buffers);
+		}
+
+		return buffers;
+	}
+
+	/**
+	 *   Buffer to construct DATA packets in, see dataPacket
+	 *
+	 *   @param  none
+	 *   @return byte[] DATA buffer
+	 */
+	public byte[] getDataBuffer()
+	{
+		return dataMsg;
+	}
+
+	/**
+	 *   Packet for sending the DATA packet constructed in the DATA buffer
+	 *
+	 *   @param  int length of DATA packet
+	 *   @param  InetAddress destination address
+	 *   @param  int destination port
+	 *   @return DatagramPacket DATA packet
+	 */
+	public DatagramPacket dataPacket(int len, InetAddress address, int port)
+	{
+		dataPacket.setData(dataMsg, 0, len);
+		dataPacket.setAddress(address);
+		dataPacket.setPort(port);
+		return dataPacket;
+	}
+
+	/**
+	 *   Packet for sending an ACK
+	 *
+	 *   @param  int block number to acknowledge (including rollovers)
+	 *   @param  InetAddress destination address
+	 *   @param  int destination port
+	 *   @return DatagramPacket ACK packet
+	 */
+	public DatagramPacket ackPacket(int blockNum, InetAddress address, int port)
+	{
+		TFTPCommon.constructAckPacket(ackMsg, blockNum % 65536);
+		ackPacket.setAddress(address);
+		ackPacket.setPort(port);
+		return ackPacket;
+	}
+
+	/**
+	 *   Packet to receive the next packet with. Its previous contents are overwritten
+	 *
+	 *   @param  none
+	 *   @return DatagramPacket empty packet
+	 */
+	public DatagramPacket receivePacket()
+	{
+		receivePacket.setData(receiveMsg, 0, receiveMsg.length);
+		return receivePacket;
+	}
+}
@@ -0,0 +1,168 @@
+package grouptwo;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * PacketScheduler runs delayed actions (the error simulator's delayed and duplicated packets) on a
+ * single thread, instead of a sleeping thread per packet. Actions are kept in a hashed timer wheel
+ * with 1 ms ticks: each slot holds the actions due on ticks that hash to it, so scheduling and firing
+ * an action is constant time however many are waiting. Actions due more than one turn of the wheel
+ * ahead stay in their slot until their turn comes around. Any thread may schedule, new actions are
+ * queued and moved onto the wheel by the scheduler thread, which sleeps while the wheel is empty.
+ * Actions run on the scheduler thread, so they must not block (i.e. send a packet and return).
+ *
+ * @author        Cyrus Sadeghi
+ */
+public class PacketScheduler
+{
+	//Number of slots, a power of two so a tick maps to its slot with a mask
+	private static final int wheelSize = 1024;
+	private static final long tickNanos = 1000000;
+
+	/**
+	 * An action and the tick it is due on
+	 */
+	private static class Task
+	{
+		private final Runnable action;
+		private final long dueTick;
+
+		private Task(Runnable action, long dueTick)
+		{
+			this.action = action;
+			this.dueTick = dueTick;
+		}
+	}
+
+	private final ArrayDeque<Task>[] wheel;
+	private final Queue<Task> incoming;
+	private final Thread thread;
+	private final long startTime;
+	//Next tick to fire and number of actions on the wheel, only used by the scheduler thread
+	private long nextTick;
+	private int pending;
+
+	/**
+	 *   Constructor for PacketScheduler, starts the scheduler thread
+	 *
+	 *   @param  String name of the scheduler thread
+	 *   @return PacketScheduler
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public PacketScheduler(String name)
+	{
+		wheel = new ArrayDeque[wheelSize];
+
+		for (int i = 0; i < wheelSize; i++)
+		{
+			wheel[i] = new ArrayDeque<Task>();
+		}
+
+		incoming = new ConcurrentLinkedQueue<Task>();
+		startTime = System.nanoTime();
+		nextTick = 0;
+		pending = 0;
+		thread = new Thread(this::run, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 *   Run an action after a delay
+	 *
+	 *   @param  Runnable action to run on the scheduler thread
+	 *   @param  long delay in milliseconds (up to a tick longer)
+	 *   @return none
+	 */
+	public void schedule(Runnable action, long delay)
+	{
+		//The current tick is already partly over, one more tick makes sure the full delay passes
+		incoming.add(new Task(action, currentTick() + Math.max(0, delay) + 1));
+		LockSupport.unpark(thread);
+	}
+
+	/**
+	 *   Ticks since the scheduler started
+	 *
+	 *   @param  none
+	 *   @return long current tick
+	 */
+	private long currentTick()
+	{
+		return (System.nanoTime() - startTime) / tickNanos;
+	}
+
+	/**
+	 *   Scheduler thread: move new actions onto the wheel, fire every slot up to the current tick,
+	 *   then sleep until the next tick (or until an action is scheduled, if the wheel is empty)
+	 *
+	 *   @param  none
+	 *   @return none
+	 */
+	private void run()
+	{
+		Task task;
+		Iterator<Task> slot;
+		long now;
+
+		while (true)
+		{
+			now = currentTick();
+
+			//Nothing waiting, skip the empty ticks instead of walking through them
+			if (pending == 0)
+			{
+				nextTick = Math.max(nextTick, now);
+			}
+
+			while ((task = incoming.poll()) != null)
+			{
+				wheel[(int) (Math.max(task.dueTick, nextTick) & (wheelSize - 1))].add(task);
+				pending++;
+			}
+
+			while (nextTick <= now && pending > 0)
+			{
+				slot = wheel[(int) (nextTick & (wheelSize - 1))].iterator();
+
+				while (slot.hasNext())
+				{
+					task = slot.next();
+
+					//Due on a later turn of the wheel
+					if (task.dueTick > nextTick)
+					{
+						continue;
+					}
+
+					slot.remove();
+					pending--;
+
+					try {
+						task.action.run();
+					} catch (RuntimeException e) {
+						e.printStackTrace();
+					}
+				}
+
+				nextTick++;
+			}
+
+			if (pending == 0)
+			{
+				if (incoming.isEmpty())
+				{
+					LockSupport.park(this);
+				}
+			}
+			else
+			{
+				LockSupport.parkNanos(this, startTime + nextTick * tickNanos - System.nanoTime());
+			}
+		}
+	}
+}
@@ -0,0 +1,394 @@
+package grouptwo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PacketTrace is a compact binary file of the packets that passed through the error simulator, so
+ * real transfers can be replayed later (TFTPTraceReplay) against a server or client with identical
+ * traffic. The file starts with the magic "TFTPTRC1" and the wall clock time the trace started
+ * (8 bytes, ms since the epoch), followed by one record per packet:
+ *   time     varint, change in microseconds since the previous record (zigzag encoded, records from different
+ *            sessions may be written slightly out of order)
+ *   session  varint, ErrorSimulator session number
+ *   flags    1 byte, 1 if the packet was going to the server, 0 if it was going to the client
+ *   length   varint, followed by the packet as it was received (before any modification)
+ * Packets are recorded as they arrive and written to disk by a background thread, so a trace of any
+ * length only takes the memory of the records not yet written.
+ *
+ * @author        Cyrus Sadeghi
+ */
+public class PacketTrace
+{
+	private static final byte[] magic = "TFTPTRC1".getBytes(StandardCharsets.US_ASCII);
+	private static final int toServerFlag = 1;
+
+	/**
+	 * One recorded packet
+	 */
+	public static class Record
+	{
+		private final long time;
+		private final int session;
+		private final Boolean toServer;
+		private final byte[] data;
+
+		private Record(long time, int session, Boolean toServer, byte[] data)
+		{
+			this.time = time;
+			this.session = session;
+			this.toServer = toServer;
+			this.data = data;
+		}
+
+		//Microseconds since the start of the trace
+		public long getTime()
+		{
+			return time;
+		}
+
+		public int getSession()
+		{
+			return session;
+		}
+
+		public Boolean isToServer()
+		{
+			return toServer;
+		}
+
+		public byte[] getData()
+		{
+			return data;
+		}
+	}
+
+	/**
+	 * Writes a trace file. Any thread may record packets, they are queued and written by the
+	 * recorder's thread. A recording thread waits if the queue is full, rather than leave a gap in the trace
+	 */
+	public static class Recorder implements Runnable, Closeable
+	{
+		//Queued after the last record by close
+		private static final Record end = new Record(0, 0, false, new byte[0]);
+
+		private final OutputStream out;
+		private final BlockingQueue<Record> queue;
+		private final long startTime;
+		private final Thread writer;
+		private volatile Boolean closed;
+		private long lastTime, records, bytes;
+		private IOException failure;
+
+		/**
+		 *   Constructor for Recorder, creates the file and starts the writer thread
+		 *
+		 *   @param  String trace file name
+		 *   @return Recorder
+		 *   @throws IOException if the file can't be created
+		 */
+		public Recorder(String fileName) throws IOException
+		{
+			out = new BufferedOutputStream(new FileOutputStream(fileName), 65536);
+			queue = new ArrayBlockingQueue<Record>(4096);
+			startTime = System.nanoTime();
+			closed = false;
+			lastTime = 0;
+			out.write(magic);
+			writeLong(out, System.currentTimeMillis());
+
+			writer = new Thread(this, "traceWriter");
+			writer.setDaemon(true);
+			writer.start();
+		}
+
+		/**
+		 *   Record a packet
+		 *
+		 *   @param  int session number
+		 *   @param  Boolean true if the packet is going to the server
+		 *   @param  byte[] packet, copied so the caller may change it afterwards
+		 *   @param  int packet length
+		 *   @return none
+		 */
+		public void record(int session, Boolean toServer, byte[] data, int length)
+		{
+			Record record;
+
+			if (closed)
+			{
+				return;
+			}
+
+			record = new Record((System.nanoTime() - startTime) / 1000, session, toServer, Arrays.copyOf(data, length));
+
+			//Stop waiting if the writer fails while the queue is full
+			try {
+				while (!closed && !queue.offer(record, 100, TimeUnit.MILLISECONDS))
+				{
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		/**
+		 *   Writer thread: write records as they are queued, flushing the file whenever the queue runs dry
+		 *
+		 *   @param  none
+		 *   @return none
+		 */
+		public void run()
+		{
+			Record record;
+
+			try {
+				while (true)
+				{
+					record = queue.poll(100, TimeUnit.MILLISECONDS);
+
+					if (record == null)
+					{
+						out.flush();
+						continue;
+					}
+
+					if (record == end)
+					{
+						break;
+					}
+
+					writeVarLong(out, zigzag(record.time - lastTime));
+					writeVarLong(out, record.session);
+					out.write(record.toServer ? toServerFlag : 0);
+					writeVarLong(out, record.data.length);
+					out.write(record.data);
+					lastTime = record.time;
+					records++;
+					bytes += record.data.length;
+				}
+
+				out.close();
+			} catch (IOException e) {
+				failure = e;
+				closed = true;
+				queue.clear();
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+
+		/**
+		 *   Write the records still queued and close the file, packets recorded afterwards are ignored
+		 *
+		 *   @param  none
+		 *   @return none
+		 *   @throws IOException if the trace couldn't be written
+		 */
+		public void close() throws IOException
+		{
+			if (closed)
+			{
+				return;
+			}
+
+			closed = true;
+
+			try {
+				queue.put(end);
+				writer.join(5000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+
+			if (failure != null)
+			{
+				throw failure;
+			}
+		}
+
+		public String toString()
+		{
+			return records + " packets, " + bytes + " bytes" + (failure != null ? " (failed: " + failure.getMessage() + ")" : "");
+		}
+	}
+
+	/**
+	 * Reads a trace file, one record at a time
+	 */
+	public static class Reader implements Closeable
+	{
+		private final InputStream in;
+		private final long startTime;
+		private long lastTime;
+
+		/**
+		 *   Constructor for Reader, reads the file header
+		 *
+		 *   @param  String trace file name
+		 *   @return Reader
+		 *   @throws IOException if the file can't be read or isn't a trace
+		 */
+		public Reader(String fileName) throws IOException
+		{
+			byte[] header = new byte[magic.length];
+
+			in = new BufferedInputStream(new FileInputStream(fileName), 65536);
+			lastTime = 0;
+
+			if (in.readNBytes(header, 0, header.length) != header.length || !Arrays.equals(header, magic))
+			{
+				in.close();
+				throw new IOException(fileName + " is not a packet trace");
+			}
+
+			startTime = readLong(in);
+		}
+
+		/**
+		 *   Read the next record
+		 *
+		 *   @param  none
+		 *   @return Record next packet, null at the end of the trace
+		 *   @throws IOException if the file can't be read or ends in the middle of a record
+		 */
+		public Record next() throws IOException
+		{
+			long time;
+			int session, flags, length;
+			byte[] data;
+
+			in.mark(1);
+
+			if (in.read() < 0)
+			{
+				return null;
+			}
+
+			in.reset();
+			time = lastTime + unzigzag(readVarLong(in));
+			session = (int) readVarLong(in);
+			flags = in.read();
+			length = (int) readVarLong(in);
+
+			if (flags < 0 || length < 0 || length > TFTPCommon.maxPacketSize)
+			{
+				throw new IOException("Corrupt packet trace");
+			}
+
+			data = in.readNBytes(length);
+
+			if (data.length != length)
+			{
+				throw new EOFException("Packet trace ends in the middle of a packet");
+			}
+
+			lastTime = time;
+			return new Record(time, session, (flags & toServerFlag) != 0, data);
+		}
+
+		//Wall clock time the trace started (ms since the epoch)
+		public long getStartTime()
+		{
+			return startTime;
+		}
+
+		public void close() throws IOException
+		{
+			in.close();
+		}
+	}
+
+	private static long zigzag(long value)
+	{
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private static long unzigzag(long value)
+	{
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	/**
+	 *   Write a number 7 bits per byte, low bits first, the high bit set on every byte but the last
+	 *
+	 *   @param  OutputStream stream to write to
+	 *   @param  long value (treated as unsigned)
+	 *   @return none
+	 */
+	private static void writeVarLong(OutputStream out, long value) throws IOException
+	{
+		while ((value & ~0x7FL) != 0)
+		{
+			out.write((int) (value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+
+		out.write((int) value);
+	}
+
+	private static long readVarLong(InputStream in) throws IOException
+	{
+		long value = 0;
+		int shift = 0, b;
+
+		do {
+			b = in.read();
+
+			if (b < 0)
+			{
+				throw new EOFException("Packet trace ends in the middle of a packet");
+			}
+
+			if (shift > 63)
+			{
+				throw new IOException("Corrupt packet trace");
+			}
+
+			value |= (long) (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+
+		return value;
+	}
+
+	private static void writeLong(OutputStream out, long value) throws IOException
+	{
+		for (int shift = 56; shift >= 0; shift -= 8)
+		{
+			out.write((int) (value >>> shift));
+		}
+	}
+
+	private static long readLong(InputStream in) throws IOException
+	{
+		long value = 0;
+		int b;
+
+		for (int i = 0; i < 8; i++)
+		{
+			b = in.read();
+
+			if (b < 0)
+			{
+				throw new EOFException("Packet trace header is incomplete");
+			}
+
+			value = (value << 8) | b;
+		}
+
+		return value;
+	}
+}
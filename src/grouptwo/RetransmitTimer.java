@@ -0,0 +1,179 @@
+package grouptwo;
+
+/**
+ * RetransmitTimer is the retransmission timeout (RTO) of a single transfer. Instead of waiting the
+ * operator's fixed timeout for every lost packet, the round trip time is measured as the transfer
+ * runs and the timeout follows it (Jacobson/Karels estimation as in RFC 6298):
+ *   SRTT   = 7/8 SRTT + 1/8 sample
+ *   RTTVAR = 3/4 RTTVAR + 1/4 |SRTT - sample|
+ *   RTO    = SRTT + 4 RTTVAR
+ * The configured timeout is used until the first sample. One packet is timed at a time, and a timed
+ * packet that is sent again gives no sample (Karn's rule, its response can't be matched to a send).
+ * Each timeout doubles the RTO until the next sample, up to 8 times the configured timeout.
+ * A RetransmitTimer must only be used by the thread running its transfer.
+ *
+ * @author        Cyrus Sadeghi
+ */
+public class RetransmitTimer
+{
+	//Lower bound of the RTO in ms, keeps loopback/LAN samples from giving a timeout shorter than scheduling delays
+	public static final int minTimeout = 10;
+	//Upper bound of the RTO in ms, also the longest a receiver waits for a sender that has gone away
+	public static final int maxTimeout = 60000;
+
+	private final int initialTimeout, backoffLimit;
+	private double srtt, rttvar;
+	private int rto, samples, backoffs;
+	private int timedBlock;
+	private long timedAt;
+	private LatencyHistogram sampleHistogram;
+
+	/**
+	 *   Constructor for RetransmitTimer
+	 *
+	 *   @param  int configured timeout in ms, used until the round trip time has been measured
+	 *   @return RetransmitTimer
+	 */
+	public RetransmitTimer(int initialTimeout)
+	{
+		this.initialTimeout = Math.max(minTimeout, Math.min(maxTimeout, initialTimeout));
+		backoffLimit = (int) Math.min(maxTimeout, 8L * this.initialTimeout);
+		rto = this.initialTimeout;
+		srtt = 0;
+		rttvar = 0;
+		samples = 0;
+		backoffs = 0;
+		timedBlock = -1;
+	}
+
+	/**
+	 *   Also record every round trip time sample in a histogram (i.e. the server's TransferMetrics)
+	 *
+	 *   @param  LatencyHistogram histogram to record samples in, null to stop recording
+	 *   @return none
+	 */
+	public void setSampleHistogram(LatencyHistogram histogram)
+	{
+		sampleHistogram = histogram;
+	}
+
+	/**
+	 *   Current retransmission timeout
+	 *
+	 *   @param  none
+	 *   @return int timeout in ms
+	 */
+	public int getTimeout()
+	{
+		return rto;
+	}
+
+	/**
+	 *   Start timing the response to a packet, unless a packet is already being timed
+	 *
+	 *   @param  int block number of the packet (the response for this block or a later one ends the sample)
+	 *   @param  long System.nanoTime when the packet was sent
+	 *   @return none
+	 */
+	public void start(int block, long sentAt)
+	{
+		if (timedBlock < 0)
+		{
+			timedBlock = block;
+			timedAt = sentAt;
+		}
+	}
+
+	/**
+	 *   A response for a block was received, takes a sample if it answers the timed packet
+	 *
+	 *   @param  int block number of the response
+	 *   @param  long System.nanoTime when the response was received
+	 *   @return none
+	 */
+	public void stop(int block, long receivedAt)
+	{
+		if (timedBlock >= 0 && block >= timedBlock)
+		{
+			sample((receivedAt - timedAt) / 1e6);
+			timedBlock = -1;
+		}
+	}
+
+	/**
+	 *   A packet was sent again, so the timed packet's response would be ambiguous (Karn's rule)
+	 *
+	 *   @param  none
+	 *   @return none
+	 */
+	public void cancel()
+	{
+		timedBlock = -1;
+	}
+
+	/**
+	 *   The timeout expired: drop the sample in progress and double the timeout
+	 *
+	 *   @param  none
+	 *   @return none
+	 */
+	public void backoff()
+	{
+		cancel();
+		rto = Math.min(backoffLimit, Math.max(rto, rto * 2));
+		backoffs++;
+	}
+
+	/**
+	 *   Update the estimate with a round trip time sample and recompute the timeout
+	 *
+	 *   @param  double round trip time in ms
+	 *   @return none
+	 */
+	private void sample(double rtt)
+	{
+		if (samples == 0)
+		{
+			srtt = rtt;
+			rttvar = rtt / 2;
+		}
+		else
+		{
+			rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - rtt);
+			srtt = 0.875 * srtt + 0.125 * rtt;
+		}
+
+		if (sampleHistogram != null)
+		{
+			sampleHistogram.record((long) (rtt * 1000));
+		}
+
+		samples++;
+		rto = (int) Math.max(minTimeout, Math.min(backoffLimit, Math.ceil(srtt + 4 * rttvar)));
+	}
+
+	public double getSmoothedRTT()
+	{
+		return srtt;
+	}
+
+	public double getRTTVariation()
+	{
+		return rttvar;
+	}
+
+	public int getSamples()
+	{
+		return samples;
+	}
+
+	public int getBackoffs()
+	{
+		return backoffs;
+	}
+
+	public String toString()
+	{
+		return String.format("RTO %d ms (SRTT %.2f ms, RTTVAR %.2f ms, %d samples, %d backoffs)", rto, srtt, rttvar, samples, backoffs);
+	}
+}
@@ -0,0 +1,110 @@
+package grouptwo;
+
+import java.net.SocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * SessionTable holds the server's transfers in progress by client address and port (the client's
+ * TID), shared by every request listener and by the transfers removing themselves when they end.
+ * A request from a client that already has an entry is a duplicate (the client resent its request).
+ * The table has a maximum size, requests arriving while it is full are refused instead of starting
+ * more transfers than the server can serve, and since entries are removed as transfers end it
+ * never grows past that size however long the server runs.
+ *
+ * @author        Cyrus Sadeghi
+ */
+public class SessionTable<T>
+{
+	//Result of adding a session
+	public static enum Result { ADDED, DUPLICATE, FULL };
+
+	//Default maximum number of transfers in progress
+	public static final int defaultMaxSessions = 65536;
+
+	private final Map<SocketAddress, T> sessions;
+	//Entries added plus adds in progress, kept separately so the limit holds under concurrent adds
+	private final AtomicInteger reserved;
+	private final int maxSessions;
+
+	/**
+	 *   Constructor for SessionTable
+	 *
+	 *   @param  int maximum number of sessions
+	 *   @return SessionTable
+	 */
+	public SessionTable(int maxSessions)
+	{
+		this.maxSessions = Math.max(1, maxSessions);
+		sessions = new ConcurrentHashMap<SocketAddress, T>();
+		reserved = new AtomicInteger();
+	}
+
+	/**
+	 *   Add a session for a client, unless it already has one or the table is full
+	 *
+	 *   @param  SocketAddress client address and port
+	 *   @param  T session
+	 *   @return Result ADDED, DUPLICATE if the client already has a session, FULL if the table is full
+	 */
+	public Result add(SocketAddress client, T session)
+	{
+		if (sessions.containsKey(client))
+		{
+			return Result.DUPLICATE;
+		}
+
+		if (reserved.incrementAndGet() > maxSessions)
+		{
+			reserved.decrementAndGet();
+			return Result.FULL;
+		}
+
+		if (sessions.putIfAbsent(client, session) != null)
+		{
+			reserved.decrementAndGet();
+			return Result.DUPLICATE;
+		}
+
+		return Result.ADDED;
+	}
+
+	/**
+	 *   Remove a client's session once its transfer has ended
+	 *
+	 *   @param  SocketAddress client address and port
+	 *   @param  T session, only removed if it is still the client's session
+	 *   @return Boolean true if the session was removed
+	 */
+	public Boolean remove(SocketAddress client, T session)
+	{
+		if (sessions.remove(client, session))
+		{
+			reserved.decrementAndGet();
+			return true;
+		}
+
+		return false;
+	}
+
+	public Boolean contains(SocketAddress client)
+	{
+		return sessions.containsKey(client);
+	}
+
+	public int size()
+	{
+		return sessions.size();
+	}
+
+	public Boolean isEmpty()
+	{
+		return sessions.isEmpty();
+	}
+
+	public int getMaxSessions()
+	{
+		return maxSessions;
+	}
+}
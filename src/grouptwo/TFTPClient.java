@@ -2,12 +2,18 @@ package grouptwo;
 
 import java.io.*;
 import java.net.*;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import grouptwo.FileOperation;
 
 /**
  * TFTPClient is the user interface class for the TFTP client, it sets up
- * all the variables for the TFTP transfer and then spawns a TFTPClientTransfer thread.
+ * all the variables for the TFTP transfer and then spawns a TFTPClientTransfer thread
+ * (or a TFTPClientBatch thread to run many transfers).
  * This class provides a test method that presets values in order to save time.
  *
  * @author        Cyrus Sadeghi
@@ -21,7 +27,7 @@ public class TFTPClient
 	private TFTPCommon.Request requestType;
 	private TFTPCommon.Verbosity verbosity;
 	private TFTPCommon.Mode mode;
-	private int timeout;
+	private int timeout, blockSize, windowSize, parallelism;
 	private InetAddress serverAddress;
 
 	/**
@@ -37,6 +43,9 @@ public class TFTPClient
 		clientTransferring = false;
 		overwrite = false;
 		timeout = 1000;
+		blockSize = TFTPCommon.defaultBlockSize;
+		windowSize = TFTPCommon.defaultWindowSize;
+		parallelism = 4;
 		verbosity = TFTPCommon.Verbosity.NONE;
 		mode = TFTPCommon.Mode.TEST;
 		requestType = TFTPCommon.Request.ERROR;
@@ -60,12 +69,12 @@ public class TFTPClient
 	}
 
 	/**
-     *   Check if current server address is one of this computer's addresses
+     *   Check if a server address is one of this computer's addresses
      *
-     *   @param  none
+     *   @param  InetAddress server address
      *   @return Boolean true if address is on this computer
      */
-	private Boolean isMyAddress()
+	static Boolean isMyAddress(InetAddress serverAddress)
 	{
 		if (serverAddress.isAnyLocalAddress() || serverAddress.isLoopbackAddress())
 		{
@@ -94,6 +103,7 @@ public class TFTPClient
 	{
 		Scanner sc = new Scanner(System.in);
 		String scIn = new String();
+		String[] batchSource;
 		Boolean printMenu = true;
 
 		while ( cliRunning ) 
@@ -110,6 +120,8 @@ public class TFTPClient
 				System.out.println("-----------");
 				System.out.println("Enter transfer as string, with file names in quotes");
 				System.out.println("(i.e. read \"readFile.txt\" to \"dest.txt\", write \"writeFile.txt\" to \"dest2.txt\"");
+				System.out.println("or run many transfers at once from a manifest of transfers, one per line, or a glob of files to write");
+				System.out.println("(i.e. batch \"manifest.txt\", batch \"configs/*.cfg\")");
 				System.out.println("");
 				System.out.println("--Options--");
 				
@@ -122,20 +134,32 @@ public class TFTPClient
 					System.out.println("i: Set IP address of error sim (current: " + serverAddress + ")");
 				}
 				
+				System.out.println("b: Set block size (current: " + blockSize + ")");
 				System.out.println("m: Set mode (current: " + TFTPCommon.modeToString(mode) + ")");
 				System.out.println("o: Overwrite existing files (current: " + overwrite + ")");
+				System.out.println("p: Set batch parallelism (current: " + parallelism + ")");
 				System.out.println("t: Set retransmission timeout (current: " + timeout + ")");
 				System.out.println("v: Set verbosity (current: " + TFTPCommon.verbosityToString(verbosity) + ")");
+				System.out.println("w: Set window size (current: " + windowSize + ")");
 				System.out.println("q: Quit (blocked if transfer in progress)");
 			}
 
 			printMenu = true;
 
 			scIn = sc.nextLine();
+			batchSource = scIn.split("\"");
 			scIn = scIn.toLowerCase();
 			scInArr = scIn.split("\"");
 			
-			if ( scInArr.length == 4 && !clientTransferring)
+			if ( scInArr.length == 2 && scInArr[0].trim().equals("batch") && !clientTransferring )
+			{
+				//File names keep their case, unlike single transfers
+				tftpTransfer = new TFTPClientBatch(batchSource[1], serverAddress, this, mode, verbosity, timeout, blockSize, windowSize, overwrite, parallelism);
+				tftpTransfer.start();
+				printMenu = false;
+			}
+
+			else if ( scInArr.length == 4 && !clientTransferring)
 			{
 				if (scInArr[0].trim().equals("read"))
 				{
@@ -165,7 +189,7 @@ public class TFTPClient
 					}
 				}
 
-				if (localFile.equalsIgnoreCase(remoteFile) && isMyAddress())
+				if (localFile.equalsIgnoreCase(remoteFile) && isMyAddress(serverAddress))
 				{
 					System.out.println("Can't use same file for read and write on same computer");
 					requestType = TFTPCommon.Request.ERROR;
@@ -173,7 +197,7 @@ public class TFTPClient
 
 				if (remoteFile.length() > 0 && localFile.length() > 0 && requestType != TFTPCommon.Request.ERROR)
 				{
-					tftpTransfer = new TFTPClientTransfer("clientTransfer", serverAddress, remoteFile, localFile, this, requestType, mode, verbosity, timeout, overwrite);
+					tftpTransfer = new TFTPClientTransfer("clientTransfer", serverAddress, remoteFile, localFile, this, requestType, mode, verbosity, timeout, blockSize, windowSize, overwrite);
 					tftpTransfer.start();
 					printMenu = false;
 				}
@@ -194,6 +218,27 @@ public class TFTPClient
 				}
 			}
 
+			else if ( scIn.equalsIgnoreCase("b") )
+			{
+				System.out.print("Enter block size (" + TFTPCommon.minBlockSize + "-" + TFTPCommon.maxBlockSize + ", " + TFTPCommon.defaultBlockSize + " disables option negotiation): ");
+				scIn = sc.nextLine();
+
+				try {
+					int newBlockSize = Integer.parseInt(scIn);
+
+					if (newBlockSize < TFTPCommon.minBlockSize || newBlockSize > TFTPCommon.maxBlockSize)
+					{
+						System.out.println("Block size out of range, not changing block size");
+					}
+					else
+					{
+						blockSize = newBlockSize;
+					}
+				} catch (NumberFormatException e) {
+					System.out.println("Input was not a number, not changing block size");
+				}
+			}
+
 			else if ( scIn.equalsIgnoreCase("m") ) 
 			{
 				System.out.print("Enter mode (test, normal): ");
@@ -232,6 +277,27 @@ public class TFTPClient
 				}
 			}
 
+			else if ( scIn.equalsIgnoreCase("p") )
+			{
+				System.out.print("Enter number of transfers to run at once in a batch (integer): ");
+				scIn = sc.nextLine();
+
+				try {
+					int newParallelism = Integer.parseInt(scIn);
+
+					if (newParallelism < 1)
+					{
+						System.out.println("Parallelism must be at least 1, not changing parallelism");
+					}
+					else
+					{
+						parallelism = newParallelism;
+					}
+				} catch (NumberFormatException e) {
+					System.out.println("Input was not a number, not changing parallelism");
+				}
+			}
+
 			else if ( scIn.equalsIgnoreCase("t") )
 			{
 				System.out.print("Enter timeout (integer): ");
@@ -267,6 +333,27 @@ public class TFTPClient
 				}
 			}
 
+			else if ( scIn.equalsIgnoreCase("w") )
+			{
+				System.out.print("Enter window size (1-" + TFTPCommon.maxWindowSize + ", " + TFTPCommon.defaultWindowSize + " disables option negotiation): ");
+				scIn = sc.nextLine();
+
+				try {
+					int newWindowSize = Integer.parseInt(scIn);
+
+					if (newWindowSize < 1 || newWindowSize > TFTPCommon.maxWindowSize)
+					{
+						System.out.println("Window size out of range, not changing window size");
+					}
+					else
+					{
+						windowSize = newWindowSize;
+					}
+				} catch (NumberFormatException e) {
+					System.out.println("Input was not a number, not changing window size");
+				}
+			}
+
 			else if ( scIn.equalsIgnoreCase("q") ) 
 			{   
 				if (!clientTransferring)
@@ -284,314 +371,683 @@ public class TFTPClient
 		}
 	}
 
+	/**
+	 *   Starts the client. With no arguments the interactive menu is shown, otherwise one command
+	 *   is run and the client exits (see TFTPClientCommand for usage and exit codes)
+	 *
+	 *   @param  String[] command line arguments
+	 *   @return none
+	 */
 	public static void main(String args[]) 
 	{
+		if (args.length > 0)
+		{
+			System.exit(TFTPClientCommand.run(args));
+		}
+
 		TFTPClient c = new TFTPClient();
 		c.commandLine();
 	}
 }
 
 /**
- * TFTPClientTransfer is the file transfer class. It extends Thread and is spawned by the CLI thread
- * Only one TFTPClientTransfer instance exists at any given time and it handles reading and writing from/to
- * the server. The class contains methods that constructs ACK, RRQ/WRQ, and DATA packets, and a method to 
- * communicate with the server (both reads and writes are handled there). Once the current transfer is complete
- * the thread exits and returns control to the CLI thread (to optionally start another transfer).
+ * TFTPClientCommand is the non-interactive client, for scripts and scheduled jobs. It runs a
+ * single get, put or batch given on the command line and exits with a status code:
+ *   TFTPClient [options] get <remote file> [local file]
+ *   TFTPClient [options] put <local file> [remote file]
+ *   TFTPClient [options] batch <manifest or glob>
+ * A file name left out defaults to the other one's name. With a server on this computer the two
+ * names must differ, or the transfer would overwrite the file it reads from.
+ * Options:
+ *   -server address        TFTP server (default: localhost)
+ *   -errorsim              send through the error simulator (test mode) instead of directly to the server
+ *   -blksize bytes         block size to request (default: 512)
+ *   -windowsize blocks     window size to request (default: 1)
+ *   -timeout ms            initial retransmission timeout (default: 1000)
+ *   -parallel n            transfers to run at once in a batch (default: 4)
+ *   -verbose none|some|all transfer output (default: none)
+ *   -overwrite             overwrite existing files
+ *   -format text|json      result format (default: text). With json, the result is the only
+ *                          output on stdout and transfer output goes to stderr
+ * Exit codes: 0 every transfer completed, 1 a transfer failed, 2 invalid arguments
  *
  * @author        Cyrus Sadeghi
  */
-class TFTPClientTransfer extends Thread 
+class TFTPClientCommand
 {
-	private DatagramPacket sendPacket, receivePacket;
-	private DatagramSocket sendReceiveSocket;
-	private FileOperation  fileOp;
-	private TFTPCommon.Mode run;
-	private TFTPCommon.Request requestType;
-	private TFTPCommon.Verbosity verbose;
-	private String remoteName, localName, fileMode;
-	private TFTPClient parent;
-	private int sendPort;
-	//hardTimeout - timeout when waiting for DATA
-	private int hardTimeout;
-	//timeout - timeout when sending DATA
-	private int timeout;
-	//maxTimeout - number of timeouts to wait before giving up
-	private int maxTimeout;
-	private Boolean overwrite;
+	public static final int EXIT_OK = 0;
+	public static final int EXIT_FAILED = 1;
+	public static final int EXIT_USAGE = 2;
+
+	private static final String usage = "Usage: TFTPClient [-server address] [-errorsim] [-blksize bytes] [-windowsize blocks] [-timeout ms] [-parallel n]"
+		+ " [-verbose none|some|all] [-overwrite] [-format text|json] get <remote> [local] | put <local> [remote] | batch <manifest or glob>";
+
 	private InetAddress serverAddress;
-	private final String consolePrefix = ("Client: ");
+	private TFTPCommon.Mode mode;
+	private TFTPCommon.Verbosity verbosity;
+	private int timeout, blockSize, windowSize, parallelism;
+	private Boolean overwrite, json;
 
 	/**
-	 *   Constructor for TFTPClientTransfer, initializes data used in class and creates DatagramSocket
-	 *   that will be used for sending and receiving packets.
+	 *   Constructor for TFTPClientCommand, starts out with the interactive client's defaults
+	 *   (except the mode, commands go directly to the server unless -errorsim is given)
 	 *
-	 *   @param  String thread name that is sent to superclass (Thread)
-	 *   @param  InetAddress of TFTP server
-	 *   @param  String name of file on server
-	 *   @param  String name of file on local machine
-	 *   @param  TFTPClient parent caller
-	 *   @param  TFTPCommon.Request request type (read or write)
-	 *   @param  TFTPCommon.Mode run mode (normal (direct to server) or test (through error sim))
-	 *   @param  TFTPCommon.Verbosity verbosity of info (ranging from none to full packet details)
-	 *   @param  int timeout before resending packet
-	 *   @param  Boolean allow overwriting
-	 *   @return TFTPClientTransfer
+	 *   @param  none
+	 *   @return TFTPClientCommand
 	 */
-	public TFTPClientTransfer(String threadName, InetAddress serverAddress, String remoteFile, String localFile, TFTPClient cliThread, TFTPCommon.Request transferType, TFTPCommon.Mode runMode, TFTPCommon.Verbosity verMode, int reTimeout, Boolean overwrite)
+	private TFTPClientCommand()
 	{
-		super(threadName);
-
-		fileMode = "octet";
-		this.serverAddress = serverAddress;
-		remoteName = new String(remoteFile);
-		localName = new String(localFile);
-		requestType = transferType;
-		run = runMode;
-		verbose = verMode;
-		parent = cliThread;
-		timeout = reTimeout;
-		this.overwrite = overwrite;
-		maxTimeout = 10;
-		hardTimeout = 60000;
-
-		try {
-			sendReceiveSocket = new DatagramSocket();
-		} catch (SocketException e) {
-			e.printStackTrace();
-			System.exit(1);
-		}
+		serverAddress = InetAddress.getLoopbackAddress();
+		mode = TFTPCommon.Mode.NORMAL;
+		verbosity = TFTPCommon.Verbosity.NONE;
+		timeout = 1000;
+		blockSize = TFTPCommon.defaultBlockSize;
+		windowSize = TFTPCommon.defaultWindowSize;
+		parallelism = 4;
+		overwrite = false;
+		json = false;
 	}
 
 	/**
-	 *   Constructs the request packet, which consists of the opcode (01 for read, 02 for write), 0 byte,
-	 *   filename and another 0 byte.
+	 *   Parse the arguments and run the command
 	 *
-	 *   @param  byte[] filename as byte array
-	 *   @return int length of request packet
+	 *   @param  String[] command line arguments
+	 *   @return int exit code
 	 */
-	private Boolean sendRequestPacket (byte[] msg) throws SocketTimeoutException
+	public static int run(String[] args)
 	{
-		byte[] data;
-		int    len;
+		TFTPClientCommand command = new TFTPClientCommand();
+		List<String> operands = new ArrayList<String>();
+		String error = null;
 
-		if ( requestType == TFTPCommon.Request.READ ) 
+		for (int i = 0; i < args.length && error == null; i++)
 		{
-			len = TFTPCommon.constructReqPacket(msg, 1, remoteName, fileMode, false, false);
+			if (!args[i].startsWith("-") || args[i].length() == 1)
+			{
+				operands.add(args[i]);
+			}
+			else if (args[i].equalsIgnoreCase("-errorsim"))
+			{
+				command.mode = TFTPCommon.Mode.TEST;
+			}
+			else if (args[i].equalsIgnoreCase("-overwrite"))
+			{
+				command.overwrite = true;
+			}
+			else if (i + 1 >= args.length)
+			{
+				error = "Missing value for " + args[i];
+			}
+			else
+			{
+				error = command.setOption(args[i], args[++i]);
+			}
 		}
-		else 
+
+		if (error == null && (operands.size() < 2 || operands.size() > 3 || (operands.get(0).equalsIgnoreCase("batch") && operands.size() != 2)))
 		{
-			len = TFTPCommon.constructReqPacket(msg, 2, remoteName, fileMode, false, false);
+			error = "Expected get, put or batch and file names";
 		}
 
-		data = new byte[TFTPCommon.maxPacketSize];
+		if (error != null)
+		{
+			System.err.println(error);
+			System.err.println(usage);
+			return EXIT_USAGE;
+		}
 
-		receivePacket = new DatagramPacket(data, data.length);
+		if (command.json)
+		{
+			TFTPLogger.setSink(new TFTPLogger.ConsoleSink(System.err));
+		}
 
-		for (int i = 0; i < maxTimeout; i++)
+		if (operands.get(0).equalsIgnoreCase("get"))
 		{
-			if (verbose != TFTPCommon.Verbosity.NONE)
-			{
-				System.out.println("Client: sending request packet");
-			}
+			return command.transfer(TFTPCommon.Request.READ, operands.get(1), operands.size() > 2 ? operands.get(2) : Paths.get(operands.get(1)).getFileName().toString());
+		}
+		else if (operands.get(0).equalsIgnoreCase("put"))
+		{
+			return command.transfer(TFTPCommon.Request.WRITE, operands.size() > 2 ? operands.get(2) : Paths.get(operands.get(1)).getFileName().toString(), operands.get(1));
+		}
+		else if (operands.get(0).equalsIgnoreCase("batch"))
+		{
+			return command.batch(operands.get(1));
+		}
 
-			sendPacket = new DatagramPacket(msg, len, serverAddress, sendPort);
-			TFTPCommon.printPacketDetails(sendPacket, consolePrefix, verbose, true, true);
+		System.err.println("Unknown command \"" + operands.get(0) + "\"");
+		System.err.println(usage);
+		return EXIT_USAGE;
+	}
 
-			// Send the datagram packet to the server via the send/receive socket.
+	/**
+	 *   Set an option that takes a value
+	 *
+	 *   @param  String option name
+	 *   @param  String option value
+	 *   @return String error message, null if the option was set
+	 */
+	private String setOption(String option, String value)
+	{
+		int number;
+
+		if (option.equalsIgnoreCase("-server"))
+		{
 			try {
-				sendReceiveSocket.send(sendPacket);
-			} catch (IOException e) {
-				e.printStackTrace();
-				return false;
+				serverAddress = InetAddress.getByName(value);
+				return null;
+			} catch (UnknownHostException e) {
+				return "Invalid server address \"" + value + "\"";
 			}
-
-			try 
+		}
+		else if (option.equalsIgnoreCase("-verbose"))
+		{
+			for (TFTPCommon.Verbosity level : TFTPCommon.Verbosity.values())
 			{
-				TFTPCommon.receivePacketWTimeout(receivePacket, sendReceiveSocket, timeout);
-				sendPort = receivePacket.getPort();
-
-				if ( ( requestType == TFTPCommon.Request.WRITE && TFTPCommon.validACKPacket(receivePacket, 0) ) || ( requestType == TFTPCommon.Request.READ && TFTPCommon.validDATAPacket(receivePacket, 1) ) )
-				{
-					return true;
-				}
-				else if (TFTPCommon.validERRORPacket(receivePacket))
+				if (level.name().equalsIgnoreCase(value))
 				{
-					System.out.println(consolePrefix + "Received error packet:");
-					TFTPCommon.printPacketDetails(receivePacket, consolePrefix, TFTPCommon.Verbosity.ALL, false, false);
-					TFTPCommon.parseErrorPacket(receivePacket, consolePrefix);
-					return false;
+					verbosity = level;
+					return null;
 				}
-				else
-				{
-					System.out.println(consolePrefix + "Received invalid packet:");
-					TFTPCommon.printPacketDetails(receivePacket, consolePrefix, TFTPCommon.Verbosity.ALL, false, false);
-					TFTPCommon.sendErrorPacket(receivePacket, sendReceiveSocket, "Invalid request response received from server", TFTPCommon.ErrorCode.ILLEGAL, consolePrefix, verbose);
-					return false;
-				}
-			} 
-			catch (SocketTimeoutException e) 
+			}
+
+			return "Invalid verbosity \"" + value + "\"";
+		}
+		else if (option.equalsIgnoreCase("-format"))
+		{
+			if (!value.equalsIgnoreCase("text") && !value.equalsIgnoreCase("json"))
 			{
-				System.out.println("Client: Server did not respond to request within " + timeout + " ms, trying again: attempt " + (i + 1) + " of " + maxTimeout);
+				return "Invalid format \"" + value + "\"";
 			}
+
+			json = value.equalsIgnoreCase("json");
+			return null;
+		}
+
+		try {
+			number = Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			return "Value for " + option + " is not a number: \"" + value + "\"";
+		}
+
+		if (option.equalsIgnoreCase("-blksize") && number >= TFTPCommon.minBlockSize && number <= TFTPCommon.maxBlockSize)
+		{
+			blockSize = number;
+		}
+		else if (option.equalsIgnoreCase("-windowsize") && number >= 1 && number <= TFTPCommon.maxWindowSize)
+		{
+			windowSize = number;
+		}
+		else if (option.equalsIgnoreCase("-timeout") && number >= 1)
+		{
+			timeout = number;
+		}
+		else if (option.equalsIgnoreCase("-parallel") && number >= 1)
+		{
+			parallelism = number;
+		}
+		else if (option.equalsIgnoreCase("-blksize") || option.equalsIgnoreCase("-windowsize") || option.equalsIgnoreCase("-timeout") || option.equalsIgnoreCase("-parallel"))
+		{
+			return "Value for " + option + " is out of range: " + number;
+		}
+		else
+		{
+			return "Unknown option " + option;
 		}
 
-		System.out.println("Client: Maximum requests reached, cancelling transfer");
-		return false;
+		return null;
 	}
 
 	/**
-	 *   Creates RRQ/WRQ, DATA, and ACK packets (using above methods) and sends them to server/receives from server
-	 *   This method deals with creating/receiving DatagramPackets
+	 *   Run a single transfer and print its result
 	 *
-	 *   @param  none
-	 *   @return none
+	 *   @param  TFTPCommon.Request read (get) or write (put)
+	 *   @param  String name of file on server
+	 *   @param  String name of file on local machine
+	 *   @return int exit code
 	 */
-	private void sendAndReceive() 
+	private int transfer(TFTPCommon.Request request, String remoteFile, String localFile)
 	{
-		byte[] msg = new byte[TFTPCommon.maxPacketSize];
-		int blockNum, len, timeoutCount;
-		Boolean sendReceiveStatus = false;
+		TFTPClientTransfer transfer;
+		TransferStats stats;
+		long start;
+		double seconds;
 
-		if (run == TFTPCommon.Mode.NORMAL) 
+		//A local name defaults to the remote one, on this computer that would be the file being served
+		if (localFile.equalsIgnoreCase(remoteFile) && TFTPClient.isMyAddress(serverAddress))
 		{
-			sendPort = TFTPCommon.TFTPListenPort;
+			System.err.println("Can't use same file for read and write on same computer, give a different local file name");
+			return EXIT_USAGE;
 		}
 
-		else
+		transfer = new TFTPClientTransfer("clientTransfer", serverAddress, remoteFile, localFile, null, request, mode, verbosity, timeout, blockSize, windowSize, overwrite);
+		start = System.nanoTime();
+		transfer.run();
+		seconds = (System.nanoTime() - start) / 1e9;
+		stats = transfer.getStats();
+		TFTPLogger.flush();
+
+		if (json)
 		{
-			sendPort = TFTPCommon.TFTPErrorSimPort;
+			System.out.println(String.format("{\"request\": \"%s\", \"remote\": %s, \"local\": %s, \"complete\": %s, \"bytes\": %d, \"blocks\": %d, \"elapsedMs\": %.1f, \"mbPerSecond\": %.2f, \"retransmits\": %d, \"duplicates\": %d, \"rtoMs\": %d}",
+				request == TFTPCommon.Request.READ ? "get" : "put", jsonString(remoteFile), jsonString(localFile), stats.isComplete(), stats.getBytes(), stats.getBlocks(),
+				seconds * 1000, stats.getBytes() / 1048576.0 / seconds, stats.getRetransmits(), stats.getDuplicates(),
+				stats.getRetransmitTimer() == null ? timeout : stats.getRetransmitTimer().getTimeout()));
 		}
-
-		if (requestType == TFTPCommon.Request.WRITE)
+		else if (stats.isComplete())
 		{
-			try {
-				fileOp = new FileOperation(localName, true, 512, overwrite);
-			} catch (FileNotFoundException e) {
-				System.out.println(consolePrefix + "Local file \"" + localName + "\" does not exist!");
-				sendReceiveSocket.close();
-				return;
-			} catch (FileOperation.FileOperationException e) {
-				System.out.println(consolePrefix + e);
-				sendReceiveSocket.close();
-				return;
-			}
+			System.out.println(String.format("%s \"%s\": %d bytes in %.2f s (%.2f MB/s), %d packets resent",
+				request == TFTPCommon.Request.READ ? "Got" : "Put", remoteFile, stats.getBytes(), seconds, stats.getBytes() / 1048576.0 / seconds, stats.getRetransmits()));
 		}
 		else
 		{
-			try {
-				fileOp = new FileOperation(localName, false, 512, overwrite);
-			} catch (FileNotFoundException e) {
-				System.out.println("Couldn't write to " + localName);
-				sendReceiveSocket.close();
-				return;
-			} catch (FileOperation.FileOperationException e) {
-				System.out.println(consolePrefix + e);
-				sendReceiveSocket.close();
-				return;
-			}
+			System.out.println((request == TFTPCommon.Request.READ ? "Get" : "Put") + " \"" + remoteFile + "\" failed");
 		}
 
-		try 
+		return stats.isComplete() ? EXIT_OK : EXIT_FAILED;
+	}
+
+	/**
+	 *   Run a batch of transfers and print the totals (TFTPClientBatch prints the text report)
+	 *
+	 *   @param  String manifest file, or glob of local files to write
+	 *   @return int exit code
+	 */
+	private int batch(String source)
+	{
+		TFTPClientBatch batch = new TFTPClientBatch(source, serverAddress, null, mode, verbosity, timeout, blockSize, windowSize, overwrite, parallelism);
+		StringBuilder failures = new StringBuilder();
+		double seconds;
+
+		batch.run();
+		seconds = Math.max(1e-9, batch.getElapsed() / 1e9);
+		TFTPLogger.flush();
+
+		if (json)
 		{
-			if (!sendRequestPacket(msg))
+			for (String failure : batch.getFailures())
 			{
-				System.out.println(consolePrefix + "Cancelling transfer");
-			 	sendReceiveSocket.close();
+				failures.append(failures.length() == 0 ? "" : ", ").append(jsonString(failure));
+			}
 
-				if ( requestType == TFTPCommon.Request.READ )
-				{
-					if (fileOp.delete())
-					{
-						System.out.println(consolePrefix + "Incomplete file \"" + localName + "\" deleted");
-					}
-					else
-					{
-						System.out.println(consolePrefix + "Failed to delete incomplete file \"" + localName + "\"");
-					}
-				}
-				return;
-			} 
+			System.out.println(String.format("{\"request\": \"batch\", \"source\": %s, \"transfers\": %d, \"completed\": %d, \"failed\": %d, \"bytes\": %d, \"elapsedMs\": %.1f, \"mbPerSecond\": %.2f, \"transfersPerSecond\": %.1f, \"retransmits\": %d, \"failures\": [%s]}",
+				jsonString(source), batch.getTransferCount(), batch.getCompleted(), batch.getTransferCount() - batch.getCompleted(), batch.getBytes(),
+				seconds * 1000, batch.getBytes() / 1048576.0 / seconds, batch.getCompleted() / seconds, batch.getRetransmits(), failures));
 		}
-		catch (SocketTimeoutException e)
+
+		return (batch.getTransferCount() > 0 && batch.getCompleted() == batch.getTransferCount()) ? EXIT_OK : EXIT_FAILED;
+	}
+
+	/**
+	 *   Quote a string for JSON output
+	 *
+	 *   @param  String string to quote
+	 *   @return String quoted and escaped string
+	 */
+	private static String jsonString(String value)
+	{
+		StringBuilder quoted = new StringBuilder("\"");
+
+		for (char c : value.toCharArray())
 		{
-			sendReceiveSocket.close();
-			return;
+			if (c == '"' || c == '\\')
+			{
+				quoted.append('\\').append(c);
+			}
+			else if (c < 0x20)
+			{
+				quoted.append(String.format("\\u%04x", (int) c));
+			}
+			else
+			{
+				quoted.append(c);
+			}
 		}
 
-		len = receivePacket.getLength();
+		return quoted.append('"').toString();
+	}
+}
 
-		TFTPCommon.printPacketDetails(receivePacket, consolePrefix, verbose, false, false);
+/**
+ * TFTPClientBatch runs many transfers for the CLI, from either a manifest file (one transfer per
+ * line, written like a CLI transfer, blank lines and lines starting with # are skipped) or a glob
+ * of local files to write to the server under their own names. Transfers run on a fixed number of
+ * worker threads. Each transfer gets a new socket (a new TID, RFC 1350), so a transfer never waits for
+ * the server to finish with the previous one, each worker keeps its packet buffers for all of its transfers.
+ * Once every transfer has finished, failed transfers and the batch's aggregate throughput are printed.
+ *
+ * @author        Cyrus Sadeghi
+ */
+class TFTPClientBatch extends Thread
+{
+	/**
+	 * A transfer in the batch, and its result once it has run
+	 */
+	private static class BatchJob
+	{
+		private TFTPCommon.Request request;
+		private String localFile, remoteFile;
+		private TransferStats stats;
+		private long elapsed;
+	}
 
-		System.out.println("Client: Beginning file transfer");
-		parent.clientTransferring(true);
+	private String source;
+	private InetAddress serverAddress;
+	private TFTPClient parent;
+	private TFTPCommon.Mode run;
+	private TFTPCommon.Verbosity verbose;
+	private int timeout, blockSize, windowSize, parallelism;
+	private Boolean overwrite;
+	private List<BatchJob> jobs;
+	private AtomicInteger nextJob;
+	//Totals, set once the batch has finished
+	private List<String> failures;
+	private long bytes, elapsed;
+	private int completed, retransmits;
+	private final String consolePrefix = ("Batch: ");
 
-		if ( requestType == TFTPCommon.Request.WRITE ) 
-		{		
-			sendReceiveStatus = TFTPCommon.sendDataWTimeout(sendPacket, receivePacket, sendReceiveSocket, serverAddress, timeout, maxTimeout, sendPort, fileOp, verbose, consolePrefix);
+	/**
+	 *   Constructor for TFTPClientBatch
+	 *
+	 *   @param  String manifest file, or glob of local files to write
+	 *   @param  InetAddress of TFTP server
+	 *   @param  TFTPClient parent caller, null if there is no CLI to notify
+	 *   @param  TFTPCommon.Mode run mode (normal (direct to server) or test (through error sim))
+	 *   @param  TFTPCommon.Verbosity verbosity of the transfers
+	 *   @param  int timeout before resending packet
+	 *   @param  int block size to request
+	 *   @param  int window size to request
+	 *   @param  Boolean allow overwriting
+	 *   @param  int number of transfers to run at once
+	 *   @return TFTPClientBatch
+	 */
+	public TFTPClientBatch(String source, InetAddress serverAddress, TFTPClient cliThread, TFTPCommon.Mode runMode, TFTPCommon.Verbosity verMode, int reTimeout, int blockSize, int windowSize, Boolean overwrite, int parallelism)
+	{
+		super("clientBatch");
 
-			try {
-				fileOp.closeFileRead();
-			} catch (IOException e) {
-				e.printStackTrace();
-				System.exit(1);
-			}
-	    }
+		this.source = source;
+		this.serverAddress = serverAddress;
+		parent = cliThread;
+		run = runMode;
+		verbose = verMode;
+		timeout = reTimeout;
+		this.blockSize = blockSize;
+		this.windowSize = windowSize;
+		this.overwrite = overwrite;
+		this.parallelism = parallelism;
+		nextJob = new AtomicInteger();
+		failures = new ArrayList<String>();
+		jobs = new ArrayList<BatchJob>();
+	}
+
+	/**
+	 *   Parse a manifest line: read "remote" to "local" or write "local" to "remote"
+	 *
+	 *   @param  String manifest line
+	 *   @return BatchJob transfer, null if the line isn't a valid transfer
+	 */
+	private static BatchJob parseJob(String line)
+	{
+		String[] parts = line.split("\"");
+		BatchJob job = new BatchJob();
 
-	    else if ( requestType == TFTPCommon.Request.READ ) 
+		if (parts.length != 4 || !parts[2].trim().equalsIgnoreCase("to") || parts[1].isEmpty() || parts[3].isEmpty())
 		{
-			sendReceiveStatus = TFTPCommon.receiveDataWTimeout(sendPacket, receivePacket, sendReceiveSocket, serverAddress, true, hardTimeout, fileOp, verbose, consolePrefix);
+			return null;
+		}
 
-			if (sendReceiveStatus)
-			{
-				try {
-					fileOp.finalizeFileWrite();
-				} catch (IOException e) {
-					e.printStackTrace();
-					System.exit(1);
-				}
-			}
+		if (parts[0].trim().equalsIgnoreCase("read"))
+		{
+			job.request = TFTPCommon.Request.READ;
+			job.remoteFile = parts[1];
+			job.localFile = parts[3];
 		}
-		
-		if (sendReceiveStatus)
+		else if (parts[0].trim().equalsIgnoreCase("write"))
 		{
-			System.out.println(consolePrefix + "File transfer complete");
+			job.request = TFTPCommon.Request.WRITE;
+			job.localFile = parts[1];
+			job.remoteFile = parts[3];
 		}
 		else
 		{
-			System.out.println(consolePrefix + "Error occurred, transfer incomplete");
-			
-			if ( requestType == TFTPCommon.Request.READ )
+			return null;
+		}
+
+		return job;
+	}
+
+	/**
+	 *   Build the batch's transfers from the manifest or glob
+	 *
+	 *   @param  none
+	 *   @return List<BatchJob> transfers, null if the manifest couldn't be read
+	 */
+	private List<BatchJob> loadJobs()
+	{
+		List<BatchJob> loaded = new ArrayList<BatchJob>();
+		Path pattern = Paths.get(source);
+		Path folder = pattern.getParent() == null ? Paths.get(".") : pattern.getParent();
+		BatchJob job;
+		int lineNum = 0;
+
+		//A glob writes every matching local file to the server under its own name
+		if (source.contains("*") || source.contains("?") || source.contains("["))
+		{
+			try (DirectoryStream<Path> files = Files.newDirectoryStream(folder, pattern.getFileName().toString())) {
+				for (Path file : files)
+				{
+					if (Files.isRegularFile(file))
+					{
+						job = new BatchJob();
+						job.request = TFTPCommon.Request.WRITE;
+						job.localFile = file.toString();
+						job.remoteFile = file.getFileName().toString();
+						loaded.add(job);
+					}
+				}
+			} catch (IOException e) {
+				TFTPLogger.log(consolePrefix + "Couldn't list files matching \"" + source + "\": " + e.getMessage());
+				return null;
+			}
+
+			return loaded;
+		}
+
+		try {
+			for (String line : Files.readAllLines(pattern))
 			{
-				if (fileOp.delete())
+				lineNum++;
+				line = line.trim();
+
+				if (line.isEmpty() || line.startsWith("#"))
+				{
+					continue;
+				}
+
+				job = parseJob(line);
+
+				if (job == null)
 				{
-					System.out.println(consolePrefix + "Incomplete file \"" + localName + "\" deleted");
+					TFTPLogger.log(consolePrefix + "Skipping invalid transfer on line " + lineNum + ": " + line);
 				}
 				else
 				{
-					System.out.println(consolePrefix + "Failed to delete incomplete file \"" + localName + "\"");
+					loaded.add(job);
 				}
 			}
-			else
+		} catch (IOException e) {
+			TFTPLogger.log(consolePrefix + "Couldn't read manifest \"" + source + "\": " + e.getMessage());
+			return null;
+		}
+
+		return loaded;
+	}
+
+	/**
+	 *   Worker loop: runs the batch's next transfer until there are none left. Transfers run on the
+	 *   worker's thread, so they reuse its packet buffers (see PacketBuffers.forThread)
+	 *
+	 *   @param  none
+	 *   @return none
+	 */
+	private void runWorker()
+	{
+		DatagramSocket socket;
+		TFTPClientTransfer transfer;
+		BatchJob job;
+		int index;
+		long start;
+
+		while ((index = nextJob.getAndIncrement()) < jobs.size())
+		{
+			job = jobs.get(index);
+
+			//A job whose socket can't be opened has no stats, it is reported as failed
+			try {
+				socket = new DatagramSocket();
+			} catch (SocketException e) {
+				TFTPLogger.log(consolePrefix + "Couldn't create socket: " + e.getMessage());
+				continue;
+			}
+
+			transfer = new TFTPClientTransfer("batchTransfer", serverAddress, job.remoteFile, job.localFile, null, job.request, run, verbose, timeout, blockSize, windowSize, overwrite, socket);
+
+			start = System.nanoTime();
+			transfer.run();
+			job.elapsed = System.nanoTime() - start;
+			job.stats = transfer.getStats();
+		}
+	}
+
+	/**
+	 *   Total the batch's results, print failed transfers and the totals
+	 *
+	 *   @param  long time the batch took (ns)
+	 *   @return none
+	 */
+	private void report(long elapsed)
+	{
+		long slowest = 0;
+		double seconds = elapsed / 1e9;
+		String failure;
+
+		this.elapsed = elapsed;
+
+		for (BatchJob job : jobs)
+		{
+			if (job.stats == null || !job.stats.isComplete())
 			{
-				try
+				if (job.request == TFTPCommon.Request.READ)
 				{
-					fileOp.closeFileRead();
+					failure = "read \"" + job.remoteFile + "\" to \"" + job.localFile + "\"";
 				}
-				catch (IOException e)
+				else
 				{
-					System.out.println(consolePrefix + "Couldn't close read file.");
+					failure = "write \"" + job.localFile + "\" to \"" + job.remoteFile + "\"";
 				}
+
+				failures.add(failure);
+				TFTPLogger.log(consolePrefix + "Failed: " + failure);
+				continue;
 			}
-			return;
+
+			completed++;
+			bytes += job.stats.getBytes();
+			retransmits += job.stats.getRetransmits();
+			slowest = Math.max(slowest, job.elapsed);
 		}
-		
-		// We're finished, so close the socket.
-		sendReceiveSocket.close();
-		parent.clientTransferring(false);
+
+		TFTPLogger.log(consolePrefix + completed + " of " + jobs.size() + " transfers completed, " + (jobs.size() - completed) + " failed, " + parallelism + " at a time");
+		TFTPLogger.log(consolePrefix + String.format("%d bytes in %.2f s: %.2f MB/s, %.1f transfers/s, slowest transfer %.0f ms, %d packets resent",
+			bytes, seconds, bytes / 1048576.0 / seconds, completed / seconds, slowest / 1e6, retransmits));
+	}
+
+	public int getTransferCount()
+	{
+		return jobs.size();
+	}
+
+	public int getCompleted()
+	{
+		return completed;
+	}
+
+	public long getBytes()
+	{
+		return bytes;
+	}
+
+	public int getRetransmits()
+	{
+		return retransmits;
+	}
+
+	/**
+	 *   Time the batch took to run
+	 *
+	 *   @param  none
+	 *   @return long elapsed time (ns)
+	 */
+	public long getElapsed()
+	{
+		return elapsed;
+	}
+
+	/**
+	 *   Transfers that didn't complete, written as manifest lines
+	 *
+	 *   @param  none
+	 *   @return List<String> failed transfers
+	 */
+	public List<String> getFailures()
+	{
+		return failures;
 	}
 
 	public void run()
 	{
-		this.sendAndReceive();
+		List<Thread> workers = new ArrayList<Thread>();
+		List<BatchJob> loaded;
+		long start;
+
+		loaded = loadJobs();
+
+		if (loaded == null || loaded.isEmpty())
+		{
+			TFTPLogger.log(consolePrefix + "No transfers to run");
+			return;
+		}
+
+		jobs = loaded;
+
+		if (parent != null)
+		{
+			parent.clientTransferring(true);
+		}
+
+		TFTPLogger.log(consolePrefix + "Running " + jobs.size() + " transfers, " + parallelism + " at a time");
+		start = System.nanoTime();
+
+		for (int i = 0; i < Math.min(parallelism, jobs.size()); i++)
+		{
+			Thread worker = new Thread(this::runWorker, "batchWorker" + i);
+			workers.add(worker);
+			worker.start();
+		}
+
+		for (Thread worker : workers)
+		{
+			try {
+				worker.join();
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+
+		report(System.nanoTime() - start);
+
+		if (parent != null)
+		{
+			parent.clientTransferring(false);
+		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,448 @@
+package grouptwo;
+
+import java.io.*;
+import java.net.*;
+
+/**
+ * TFTPClientTransfer is the file transfer class. It extends Thread and is spawned by the CLI thread
+ * Only one TFTPClientTransfer instance exists at any given time and it handles reading and writing from/to
+ * the server. The class contains methods that constructs ACK, RRQ/WRQ, and DATA packets, and a method to 
+ * communicate with the server (both reads and writes are handled there). Once the current transfer is complete
+ * the thread exits and returns control to the CLI thread (to optionally start another transfer).
+ * Without a parent CLI (i.e. when run by the load generator) many transfers can run at once, each
+ * transfer's results are available from getStats once it has finished.
+ *
+ * @author        Cyrus Sadeghi
+ */
+public class TFTPClientTransfer extends Thread 
+{
+	private DatagramPacket sendPacket, receivePacket;
+	private DatagramSocket sendReceiveSocket;
+	private FileOperation  fileOp;
+	private TransferOptions options;
+	private TransferStats stats;
+	private TFTPCommon.Mode run;
+	private TFTPCommon.Request requestType;
+	private TFTPCommon.Verbosity verbose;
+	private String remoteName, localName, fileMode;
+	private TFTPClient parent;
+	private int sendPort;
+	//hardTimeout - timeout when waiting for DATA
+	private int hardTimeout;
+	//timeout - timeout when sending DATA, until the round trip time has been measured
+	private int timeout;
+	private RetransmitTimer timer;
+	//maxTimeout - number of timeouts to wait before giving up
+	private int maxTimeout;
+	private Boolean overwrite, oackReceived;
+	private InetAddress serverAddress;
+	private final String consolePrefix = ("Client: ");
+
+	/**
+	 *   Constructor for TFTPClientTransfer, initializes data used in class and creates DatagramSocket
+	 *   that will be used for sending and receiving packets.
+	 *
+	 *   @param  String thread name that is sent to superclass (Thread)
+	 *   @param  InetAddress of TFTP server
+	 *   @param  String name of file on server
+	 *   @param  String name of file on local machine
+	 *   @param  TFTPClient parent caller
+	 *   @param  TFTPCommon.Request request type (read or write)
+	 *   @param  TFTPCommon.Mode run mode (normal (direct to server) or test (through error sim))
+	 *   @param  TFTPCommon.Verbosity verbosity of info (ranging from none to full packet details)
+	 *   @param  int timeout before resending packet
+	 *   @param  int block size to request (RFC 2348), default block size sends no option
+	 *   @param  int window size to request (RFC 7440), default window size sends no option
+	 *   @param  Boolean allow overwriting
+	 *   @return TFTPClientTransfer
+	 */
+	public TFTPClientTransfer(String threadName, InetAddress serverAddress, String remoteFile, String localFile, TFTPClient cliThread, TFTPCommon.Request transferType, TFTPCommon.Mode runMode, TFTPCommon.Verbosity verMode, int reTimeout, int blockSize, int windowSize, Boolean overwrite)
+	{
+		this(threadName, serverAddress, remoteFile, localFile, cliThread, transferType, runMode, verMode, reTimeout, blockSize, windowSize, overwrite, openSocket());
+	}
+
+	/**
+	 *   Constructor for TFTPClientTransfer with a caller supplied socket (i.e. one that simulates packet loss)
+	 *
+	 *   @param  String thread name that is sent to superclass (Thread)
+	 *   @param  InetAddress of TFTP server
+	 *   @param  String name of file on server
+	 *   @param  String name of file on local machine
+	 *   @param  TFTPClient parent caller, null if there is no CLI to notify
+	 *   @param  TFTPCommon.Request request type (read or write)
+	 *   @param  TFTPCommon.Mode run mode (normal (direct to server) or test (through error sim))
+	 *   @param  TFTPCommon.Verbosity verbosity of info (ranging from none to full packet details)
+	 *   @param  int timeout before resending packet
+	 *   @param  int block size to request (RFC 2348), default block size sends no option
+	 *   @param  int window size to request (RFC 7440), default window size sends no option
+	 *   @param  Boolean allow overwriting
+	 *   @param  DatagramSocket socket to transfer with, closed when the transfer ends
+	 *   @return TFTPClientTransfer
+	 */
+	public TFTPClientTransfer(String threadName, InetAddress serverAddress, String remoteFile, String localFile, TFTPClient cliThread, TFTPCommon.Request transferType, TFTPCommon.Mode runMode, TFTPCommon.Verbosity verMode, int reTimeout, int blockSize, int windowSize, Boolean overwrite, DatagramSocket socket)
+	{
+		super(threadName);
+
+		fileMode = "octet";
+		this.serverAddress = serverAddress;
+		remoteName = new String(remoteFile);
+		localName = new String(localFile);
+		requestType = transferType;
+		run = runMode;
+		verbose = verMode;
+		parent = cliThread;
+		timeout = reTimeout;
+		this.overwrite = overwrite;
+		maxTimeout = 10;
+		hardTimeout = 60000;
+		oackReceived = false;
+		options = new TransferOptions();
+		options.requestBlockSize(blockSize);
+		options.requestWindowSize(windowSize);
+		stats = new TransferStats();
+		timer = new RetransmitTimer(timeout);
+		sendReceiveSocket = socket;
+	}
+
+	/**
+	 *   Creates the socket for a transfer
+	 *
+	 *   @param  none
+	 *   @return DatagramSocket new socket
+	 */
+	private static DatagramSocket openSocket()
+	{
+		try {
+			return new DatagramSocket();
+		} catch (SocketException e) {
+			e.printStackTrace();
+			System.exit(1);
+			return null;
+		}
+	}
+
+	/**
+	 *   Counters for this transfer, complete once run has returned
+	 *
+	 *   @param  none
+	 *   @return TransferStats transfer counters
+	 */
+	public TransferStats getStats()
+	{
+		return stats;
+	}
+
+	/**
+	 *   Constructs the request packet, which consists of the opcode (01 for read, 02 for write), 0 byte,
+	 *   filename and another 0 byte, followed by any options. Sends it and waits for the server's response,
+	 *   which is an OACK if the server accepted our options, otherwise DATA 1 (read) or ACK 0 (write)
+	 *
+	 *   @param  byte[] buffer for request packet
+	 *   @return Boolean true if the server accepted the request
+	 */
+	private Boolean sendRequestPacket (byte[] msg) throws SocketTimeoutException
+	{
+		byte[] data;
+		int    len, waitTime;
+
+		if ( requestType == TFTPCommon.Request.READ ) 
+		{
+			len = TFTPCommon.constructReqPacket(msg, 1, remoteName, fileMode, options.getOptions());
+		}
+		else 
+		{
+			len = TFTPCommon.constructReqPacket(msg, 2, remoteName, fileMode, options.getOptions());
+		}
+
+		data = new byte[TFTPCommon.maxPacketSize];
+
+		receivePacket = new DatagramPacket(data, data.length);
+
+		for (int i = 0; i < maxTimeout; i++)
+		{
+			if (verbose != TFTPCommon.Verbosity.NONE)
+			{
+				TFTPLogger.log(consolePrefix + "sending request packet");
+			}
+
+			sendPacket = new DatagramPacket(msg, len, serverAddress, sendPort);
+			TFTPCommon.printPacketDetails(sendPacket, consolePrefix, verbose, true, true);
+
+			// Send the datagram packet to the server via the send/receive socket.
+			try {
+				sendReceiveSocket.send(sendPacket);
+			} catch (IOException e) {
+				e.printStackTrace();
+				return false;
+			}
+
+			//The response to the first request is the transfer's first round trip time sample
+			if (i == 0)
+			{
+				timer.start(0, System.nanoTime());
+			}
+			else
+			{
+				stats.countRetransmit();
+			}
+
+			waitTime = timer.getTimeout();
+
+			try 
+			{
+				TFTPCommon.receivePacketWTimeout(receivePacket, sendReceiveSocket, waitTime);
+
+				timer.stop(0, System.nanoTime());
+				sendPort = receivePacket.getPort();
+
+				if ( ( requestType == TFTPCommon.Request.WRITE && TFTPCommon.validACKPacket(receivePacket, 0) ) || ( requestType == TFTPCommon.Request.READ && TFTPCommon.validDATAPacket(receivePacket, 1, TFTPCommon.defaultBlockSize) ) )
+				{
+					//Server doesn't support options (or didn't accept any), use defaults
+					if (options.hasOptions())
+					{
+						TFTPLogger.log(consolePrefix + "Server ignored options, using block size " + TFTPCommon.defaultBlockSize + " and window size " + TFTPCommon.defaultWindowSize);
+						options.rejectAll();
+						fileOp.setBlockSize(options.getBlockSize());
+					}
+
+					return true;
+				}
+				else if (options.hasOptions() && TFTPCommon.validOACKPacket(receivePacket))
+				{
+					TFTPCommon.printPacketDetails(receivePacket, consolePrefix, verbose, false, false);
+
+					if (options.acceptOACK(TFTPCommon.parseOptions(receivePacket.getData(), 2, receivePacket.getLength())))
+					{
+						TFTPLogger.log(consolePrefix + "Received OACK " + options);
+						fileOp.setBlockSize(options.getBlockSize());
+						TFTPCommon.sizeReceiveBuffer(sendReceiveSocket, options);
+						oackReceived = true;
+
+						//Server told us the size of the file we're reading, make sure it fits before acknowledging
+						if (requestType == TFTPCommon.Request.READ && options.getTransferSize() >= 0)
+						{
+							try {
+								fileOp.reserve(options.getTransferSize());
+							} catch (FileOperation.FileOperationException e) {
+								TFTPLogger.log(consolePrefix + e);
+								TFTPCommon.sendErrorPacket(receivePacket, sendReceiveSocket, e.toString(), e.error, consolePrefix, verbose);
+								return false;
+							} catch (IOException e) {
+								e.printStackTrace();
+								return false;
+							}
+						}
+
+						return true;
+					}
+
+					TFTPLogger.log(consolePrefix + "Received unacceptable OACK:");
+					TFTPCommon.printPacketDetails(receivePacket, consolePrefix, TFTPCommon.Verbosity.ALL, false, false);
+					TFTPCommon.sendErrorPacket(receivePacket, sendReceiveSocket, "OACK contains options that were not requested or invalid values", TFTPCommon.ErrorCode.OPTIONDENIED, consolePrefix, verbose);
+					return false;
+				}
+				else if (TFTPCommon.validERRORPacket(receivePacket))
+				{
+					TFTPLogger.log(consolePrefix + "Received error packet:");
+					TFTPCommon.printPacketDetails(receivePacket, consolePrefix, TFTPCommon.Verbosity.ALL, false, false);
+					TFTPCommon.parseErrorPacket(receivePacket, consolePrefix);
+					return false;
+				}
+				else
+				{
+					TFTPLogger.log(consolePrefix + "Received invalid packet:");
+					TFTPCommon.printPacketDetails(receivePacket, consolePrefix, TFTPCommon.Verbosity.ALL, false, false);
+					TFTPCommon.sendErrorPacket(receivePacket, sendReceiveSocket, "Invalid request response received from server", TFTPCommon.ErrorCode.ILLEGAL, consolePrefix, verbose);
+					return false;
+				}
+			} 
+			catch (SocketTimeoutException e) 
+			{
+				TFTPLogger.log(consolePrefix + "Server did not respond to request within " + waitTime + " ms, trying again: attempt " + (i + 1) + " of " + maxTimeout);
+				timer.backoff();
+			}
+		}
+
+		TFTPLogger.log(consolePrefix + "Maximum requests reached, cancelling transfer");
+		return false;
+	}
+
+	/**
+	 *   Creates RRQ/WRQ, DATA, and ACK packets (using above methods) and sends them to server/receives from server
+	 *   This method deals with creating/receiving DatagramPackets
+	 *
+	 *   @param  none
+	 *   @return none
+	 */
+	private void sendAndReceive() 
+	{
+		byte[] msg = new byte[TFTPCommon.maxPacketSize];
+		int blockNum, len, timeoutCount;
+		Boolean sendReceiveStatus = false;
+
+		if (run == TFTPCommon.Mode.NORMAL) 
+		{
+			sendPort = TFTPCommon.TFTPListenPort;
+		}
+
+		else
+		{
+			sendPort = TFTPCommon.TFTPErrorSimPort;
+		}
+
+		if (requestType == TFTPCommon.Request.WRITE)
+		{
+			try {
+				fileOp = new FileOperation(localName, true, options.getBlockSize(), overwrite);
+			} catch (FileNotFoundException e) {
+				TFTPLogger.log(consolePrefix + "Local file \"" + localName + "\" does not exist!");
+				sendReceiveSocket.close();
+				return;
+			} catch (FileOperation.FileOperationException e) {
+				TFTPLogger.log(consolePrefix + e);
+				sendReceiveSocket.close();
+				return;
+			}
+
+			//Tell the server how much space the file needs (RFC 2349), if options are negotiated anyway
+			options.requestTransferSize(fileOp.getFileLength());
+		}
+		else
+		{
+			try {
+				fileOp = new FileOperation(localName, false, options.getBlockSize(), overwrite);
+			} catch (FileNotFoundException e) {
+				TFTPLogger.log(consolePrefix + "Couldn't write to " + localName);
+				sendReceiveSocket.close();
+				return;
+			} catch (FileOperation.FileOperationException e) {
+				TFTPLogger.log(consolePrefix + e);
+				sendReceiveSocket.close();
+				return;
+			}
+
+			//Ask the server for the file's size so space can be reserved before DATA arrives, if options are negotiated anyway
+			options.requestTransferSize(0);
+		}
+
+		try 
+		{
+			if (!sendRequestPacket(msg))
+			{
+				TFTPLogger.log(consolePrefix + "Cancelling transfer");
+			 	sendReceiveSocket.close();
+
+				if ( requestType == TFTPCommon.Request.READ )
+				{
+					if (fileOp.delete())
+					{
+						TFTPLogger.log(consolePrefix + "Incomplete file \"" + localName + "\" deleted");
+					}
+					else
+					{
+						TFTPLogger.log(consolePrefix + "Failed to delete incomplete file \"" + localName + "\"");
+					}
+				}
+				return;
+			} 
+		}
+		catch (SocketTimeoutException e)
+		{
+			sendReceiveSocket.close();
+			return;
+		}
+
+		len = receivePacket.getLength();
+
+		TFTPCommon.printPacketDetails(receivePacket, consolePrefix, verbose, false, false);
+
+		TFTPLogger.log(consolePrefix + "Beginning file transfer");
+
+		if (parent != null)
+		{
+			parent.clientTransferring(true);
+		}
+
+		if ( requestType == TFTPCommon.Request.WRITE ) 
+		{		
+			sendReceiveStatus = TFTPCommon.sendDataWTimeout(sendPacket, receivePacket, sendReceiveSocket, serverAddress, timer, maxTimeout, sendPort, options.getWindowSize(), fileOp, stats, verbose, consolePrefix);
+
+			try {
+				fileOp.closeFileRead();
+			} catch (IOException e) {
+				e.printStackTrace();
+				System.exit(1);
+			}
+	    }
+
+	    else if ( requestType == TFTPCommon.Request.READ ) 
+		{
+			//Confirm the OACK with ACK 0, the server then starts sending DATA (we don't have DATA 1 yet)
+			if (oackReceived)
+			{
+				TFTPCommon.sendACKPacket(0, 0, sendPacket, receivePacket, sendReceiveSocket, verbose, consolePrefix);
+			}
+
+			sendReceiveStatus = TFTPCommon.receiveDataWTimeout(sendPacket, receivePacket, sendReceiveSocket, serverAddress, !oackReceived, null, hardTimeout, timer, options.getWindowSize(), fileOp, stats, verbose, consolePrefix);
+
+			if (sendReceiveStatus)
+			{
+				try {
+					fileOp.finalizeFileWrite();
+				} catch (IOException e) {
+					e.printStackTrace();
+					System.exit(1);
+				}
+			}
+		}
+		
+		if (sendReceiveStatus)
+		{
+			TFTPLogger.log(consolePrefix + "File transfer complete");
+		}
+		else
+		{
+			TFTPLogger.log(consolePrefix + "Error occurred, transfer incomplete");
+			
+			if ( requestType == TFTPCommon.Request.READ )
+			{
+				if (fileOp.delete())
+				{
+					TFTPLogger.log(consolePrefix + "Incomplete file \"" + localName + "\" deleted");
+				}
+				else
+				{
+					TFTPLogger.log(consolePrefix + "Failed to delete incomplete file \"" + localName + "\"");
+				}
+			}
+			else
+			{
+				try
+				{
+					fileOp.closeFileRead();
+				}
+				catch (IOException e)
+				{
+					TFTPLogger.log(consolePrefix + "Couldn't close read file.");
+				}
+			}
+		}
+		
+		// We're finished, so close the socket.
+		sendReceiveSocket.close();
+
+		if (parent != null)
+		{
+			parent.clientTransferring(false);
+		}
+	}
+
+	public void run()
+	{
+		InetSocketAddress server = new InetSocketAddress(serverAddress, run == TFTPCommon.Mode.NORMAL ? TFTPCommon.TFTPListenPort : TFTPCommon.TFTPErrorSimPort);
+		TransferEvents.TransferCompleted event = TransferEvents.transferStarted("client", requestType, remoteName, server);
+
+		this.sendAndReceive();
+		TransferEvents.transferEnded(event, stats);
+	}
+}
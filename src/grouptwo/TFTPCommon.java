@@ -2,6 +2,8 @@ package grouptwo;
 
 import java.io.*;
 import java.net.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * TFTPCommon contains methods and enums that are used in all the components of this project.
@@ -29,13 +31,13 @@ public class TFTPCommon {
 	public static enum Verbosity { NONE, SOME, ALL };
 
 	//TFTP packet types
-	public static enum PacketType { INVALID, ACK, DATA, REQUEST, ERROR };
+	public static enum PacketType { INVALID, ACK, DATA, REQUEST, ERROR, OACK };
 
 	//Error Simulator modes
 	public static enum ModificationType { NONE, LOSE, DUPLICATE, DELAY, CONTENTS, INVALIDTID };
 
 	//TFTP Error Codes
-	public static enum ErrorCode { INVALID, FILENOTFOUND, ACCESSVIOLATE, DISKFULL, ILLEGAL, UNKNOWNTID, FILEEXISTS };
+	public static enum ErrorCode { INVALID, FILENOTFOUND, ACCESSVIOLATE, DISKFULL, ILLEGAL, UNKNOWNTID, FILEEXISTS, OPTIONDENIED };
 	
 	//CONTENTS ModificationType subtypes
 	public static enum ContentSubmod { INVALID, MANUAL, OPCODE, BLOCKNUM, LENGTH, FILENAME, FILEMODE };
@@ -46,8 +48,60 @@ public class TFTPCommon {
 	//Error Sim Listen Port
 	public static int TFTPErrorSimPort = 23;
 
-	//Max packet size (516 for most, 1000 is for error sim)
-	public static int maxPacketSize = 1000;
+	//DATA block sizes, RFC 1350 default and RFC 2348 limits for the blksize option
+	public static final int defaultBlockSize = 512;
+	public static final int minBlockSize = 8;
+	public static final int maxBlockSize = 65464;
+
+	//DATA packets sent before waiting for an ACK, RFC 1350 default and largest windowsize option we accept
+	//RFC 7440 allows up to 65535, but the sender holds a window of blocks for resends and block numbers
+	//must stay well within half of the 16 bit space for duplicates to be recognized
+	public static final int defaultWindowSize = 1;
+	public static final int maxWindowSize = 1024;
+
+	//Max packet size (largest DATA packet, used for requests and by the error sim)
+	//Transfers size their buffers from the negotiated block size instead, see packetBufferSize
+	public static int maxPacketSize = maxBlockSize + 4;
+
+	//Server metrics registry ERROR packets are counted in, null on the client and error sim
+	private static volatile TransferMetrics errorMetrics = null;
+
+	/**
+	 *   Size of the receive buffer for a transfer with the given block size.
+	 *   Leaves room for the opcode/block number and one extra byte so an oversized
+	 *   packet shows up as too long instead of being silently truncated. Never smaller than
+	 *   what a default transfer would use, so ERROR packets still fit with small block sizes
+	 *
+	 *   @param  int negotiated block size
+	 *   @return int buffer size in bytes
+	 */
+	public static int packetBufferSize(int blockSize)
+	{
+		return Math.max(blockSize, defaultBlockSize) + 5;
+	}
+
+	/**
+	 *   Grow a transfer socket's receive buffer so a whole window of DATA packets fits in it.
+	 *   Otherwise large windows overflow the default buffer and every window ends in a timeout
+	 *   (the OS may still cap the size, e.g. net.core.rmem_max on Linux)
+	 *
+	 *   @param  DatagramSocket transfer socket
+	 *   @param  TransferOptions negotiated options
+	 *   @return none
+	 */
+	public static void sizeReceiveBuffer(DatagramSocket socket, TransferOptions options)
+	{
+		int needed = 2 * options.getWindowSize() * packetBufferSize(options.getBlockSize());
+
+		try {
+			if (socket.getReceiveBufferSize() < needed)
+			{
+				socket.setReceiveBufferSize(needed);
+			}
+		} catch (SocketException e) {
+			e.printStackTrace();
+		}
+	}
 
 	/**
 	 *   Send a DatagramPacket through a DatagramSocket.
@@ -79,7 +133,7 @@ public class TFTPCommon {
 		try {
 			socket.receive(packet);
 		} catch (SocketException e) {
-			System.out.println("Socket closed, no longer accepting new packets.");
+			TFTPLogger.log("Socket closed, no longer accepting new packets.");
 		} catch (IOException e) {
 			e.printStackTrace();
 			return;
@@ -104,7 +158,7 @@ public class TFTPCommon {
 		} catch (SocketTimeoutException e) {
 			throw e;
 		} catch (SocketException e) {
-			System.out.println("Local socket closed, no longer accepting new packets.");
+			TFTPLogger.log("Local socket closed, no longer accepting new packets.");
 		} catch (IOException e) {
 			e.printStackTrace();
 			return;
@@ -129,11 +183,148 @@ public class TFTPCommon {
 		byte[] msg = new byte[4];
 		constructAckPacket(msg, blockNum);
 		send = new DatagramPacket(msg, msg.length, receive.getAddress(), receive.getPort());
-		System.out.println(consolePrefix + "Sending ACK " + (blockNum + (rollOver * 65536)));
+
+		if (TFTPLogger.enabled(verbose, Verbosity.SOME))
+		{
+			TFTPLogger.log(consolePrefix + "Sending ACK " + (blockNum + (rollOver * 65536)));
+		}
+
+		printPacketDetails(send, consolePrefix, verbose, true, false);
+		sendPacket(send, socket);
+	}
+
+	/**
+	 *   Send an ACK packet with the specified block number, using a transfer's reusable ACK packet
+	 *
+	 *   @param  int block number to send ACK for (including rollovers)
+	 *   @param  PacketBuffers buffers of the transfer
+	 *   @param  DatagramPacket to get destination details
+	 *   @param  DatagramSocket to send ACK with
+	 *   @param  Verbosity verbosity of caller
+	 *   @param  String console prefix of caller
+	 *   @return none
+	 * 
+	 */
+	public static void sendACKPacket(int blockNum, PacketBuffers buffers, DatagramPacket receive, DatagramSocket socket, Verbosity verbose, String consolePrefix)
+	{
+		DatagramPacket send = buffers.ackPacket(blockNum, receive.getAddress(), receive.getPort());
+
+		if (TFTPLogger.enabled(verbose, Verbosity.SOME))
+		{
+			TFTPLogger.log(consolePrefix + "Sending ACK " + blockNum);
+		}
+
+		printPacketDetails(send, consolePrefix, verbose, true, false);
+		sendPacket(send, socket);
+	}
+
+	/**
+	 *   Send an OACK packet acknowledging the given options
+	 *
+	 *   @param  TransferOptions accepted options
+	 *   @param  DatagramPacket to get destination details
+	 *   @param  DatagramSocket to send OACK with
+	 *   @param  Verbosity verbosity of caller
+	 *   @param  String console prefix of caller
+	 *   @return none
+	 * 
+	 */
+	public static void sendOACKPacket(TransferOptions options, DatagramPacket receive, DatagramSocket socket, Verbosity verbose, String consolePrefix)
+	{
+		byte[] msg = new byte[maxPacketSize];
+		int len = constructOACKPacket(msg, options.getOptions());
+		DatagramPacket send = new DatagramPacket(msg, len, receive.getAddress(), receive.getPort());
+		TFTPLogger.log(consolePrefix + "Sending OACK " + options);
 		printPacketDetails(send, consolePrefix, verbose, true, false);
 		sendPacket(send, socket);
 	}
 
+	/**
+	 *   Send an OACK packet and wait for the ACK 0 that confirms it (RRQ only, for a WRQ
+	 *   the OACK takes the place of ACK 0). The OACK is resent on each timeout, the ACK 0 for the
+	 *   first OACK sent gives the transfer's first round trip time sample
+	 *
+	 *   @param  TransferOptions accepted options
+	 *   @param  DatagramPacket to get destination details
+	 *   @param  DatagramSocket to send and receive packets with
+	 *   @param  RetransmitTimer retransmission timeout of the transfer
+	 *   @param  int number of timeouts to wait before giving up
+	 *   @param  Verbosity verbosity of caller
+	 *   @param  String console prefix of caller
+	 *   @return Boolean true if ACK 0 was received
+	 * 
+	 */
+	public static Boolean sendOACKWTimeout(TransferOptions options, DatagramPacket request, DatagramSocket socket, RetransmitTimer timer, int maxTimeout, Verbosity verbose, String consolePrefix)
+	{
+		byte[] ackMsg;
+		DatagramPacket receive;
+		int timeout;
+
+		for (int timeoutCount = 0; timeoutCount < maxTimeout; timeoutCount++)
+		{
+			sendOACKPacket(options, request, socket, verbose, consolePrefix);
+
+			if (timeoutCount == 0)
+			{
+				timer.start(0, System.nanoTime());
+			}
+
+			ackMsg = new byte[packetBufferSize(options.getBlockSize())];
+			receive = new DatagramPacket(ackMsg, ackMsg.length);
+
+			timeout = timer.getTimeout();
+
+			try {
+				receivePacketWTimeout(receive, socket, timeout);
+			} catch (SocketTimeoutException e) {
+				timer.backoff();
+				TFTPLogger.log(consolePrefix + "Receive timed out after " + timeout + " ms");
+				TFTPLogger.log(consolePrefix + "Resending OACK: Attempt " + (timeoutCount + 1));
+				continue;
+			}
+
+			if (receive.getPort() != request.getPort())
+			{
+				String errString = "Received packet from invalid TID: " + receive.getPort() + " was expecting TID " + request.getPort();
+				sendErrorPacket(receive, socket, errString, ErrorCode.UNKNOWNTID, consolePrefix, Verbosity.NONE);
+				timeoutCount--;
+			}
+			else if (validACKPacket(receive, 0))
+			{
+				timer.stop(0, System.nanoTime());
+				TFTPLogger.log(consolePrefix + "Received valid ACK 0, options accepted");
+				printPacketDetails(receive, consolePrefix, verbose, false, false);
+				return true;
+			}
+			else if (validERRORPacket(receive))
+			{
+				parseErrorPacket(receive, consolePrefix);
+				return false;
+			}
+			else
+			{
+				TFTPLogger.log(consolePrefix + "Received invalid packet:");
+				printPacketDetails(receive, consolePrefix, Verbosity.ALL, false, false);
+				sendErrorPacket(receive, socket, "Expecting ACK 0 in response to OACK", ErrorCode.ILLEGAL, consolePrefix, Verbosity.NONE);
+				return false;
+			}
+		}
+
+		TFTPLogger.log(consolePrefix + "Maximum timeouts reached for OACK. Thread returning.");
+		return false;
+	}
+
+	/**
+	 *   Sets the metrics registry that ERROR packets sent by sendErrorPacket are counted in (server only)
+	 *
+	 *   @param  TransferMetrics metrics registry, null to stop counting
+	 *   @return none
+	 */
+	public static void setErrorMetrics(TransferMetrics metrics)
+	{
+		errorMetrics = metrics;
+	}
+
 	/**
 	 *   Send an Error Packet packet with the specified Error Code
 	 *
@@ -151,122 +342,191 @@ public class TFTPCommon {
 		byte[] errMsg = new byte[maxPacketSize];
 		int errlen = constructErrorPacket(errMsg, errCode, errString);
 		DatagramPacket sendErr = new DatagramPacket(errMsg, errlen, receive.getAddress(), receive.getPort());	
-		System.out.println(consolePrefix + "Sending ERROR Packet: " + errString);
-		System.out.println(consolePrefix + "ERROR packet details:");
-		System.out.println(consolePrefix + "Error: " + errMsg[3]);
+		TransferMetrics metrics = errorMetrics;
+
+		if (metrics != null)
+		{
+			metrics.countErrorSent(errCode);
+		}
+
+		TFTPLogger.log(consolePrefix + "Sending ERROR Packet: " + errString);
+		TFTPLogger.log(consolePrefix + "ERROR packet details:");
+		TFTPLogger.log(consolePrefix + "Error: " + errMsg[3]);
 		printPacketDetails(sendErr, consolePrefix, Verbosity.ALL, true, false);
 		sendPacket(sendErr, socket);
 	}
 	
 	/**
-	 *   Send a file with timeouts and retransmits
+	 *   Send a file with timeouts and retransmits. Up to windowSize DATA packets are sent before waiting
+	 *   for an ACK (RFC 7440), the receiver acknowledges the last block it received in order. Sending always
+	 *   continues from the block after the last acknowledged one, so a timeout or an ACK for part of a window
+	 *   rewinds to the first unacknowledged block. A window size of 1 is the lock-step RFC 1350 transfer.
+	 *   The wait for an ACK is the transfer's RetransmitTimer timeout, the last block of a window
+	 *   is timed to its ACK unless a block had to be sent again. A WRQ's OACK received again before
+	 *   DATA 1 is acknowledged means the server is still waiting for DATA 1, the window is sent again
 	 *
 	 *   @param  DatagramPacket to send with
 	 *   @param  DatagramPacket to receive with
 	 *   @param  DatagramSocket to send and receive packets with
 	 *   @param  InetAddress of packet destination
-	 *   @param  int timeout per packet sent, before sending packet again
+	 *   @param  RetransmitTimer retransmission timeout of the transfer
 	 *   @param  int number of timeouts to wait before giving up
 	 *   @param  int port to send packet to
+	 *   @param  int window size, number of DATA packets to send before waiting for an ACK
 	 *   @param  FileOperation file to read from
+	 *   @param  TransferStats counters to update as the file is sent
 	 *   @param  Verbosity verbosity of caller
 	 *   @param  String console prefix of caller
 	 *   @return Boolean true if file was sent successfully
 	 * 
 	 */
-	public static Boolean sendDataWTimeout (DatagramPacket send, DatagramPacket receive, DatagramSocket sendReceiveSocket, InetAddress address, int timeout, int maxTimeout, int port, FileOperation fileOp, Verbosity verbose, String consolePrefix)
+	public static Boolean sendDataWTimeout (DatagramPacket send, DatagramPacket receive, DatagramSocket sendReceiveSocket, InetAddress address, RetransmitTimer timer, int maxTimeout, int port, int windowSize, FileOperation fileOp, TransferStats stats, Verbosity verbose, String consolePrefix)
 	{
 		int timeoutCount = 0;
-		int blockNum = 1;
-		int len = 0;
-		int rollOver = 0;
+		int firstBlock = 1;		//First unacknowledged block (including rollovers)
+		int lastSent = 0;		//Highest block sent so far, anything at or below it is a retransmit
+		long startTime = System.currentTimeMillis();
+		int windowEnd, ackOffset, dataLen, timeout;
 		int tftpBlocks = fileOp.getNumTFTPBlocks();
+		int blockSize = fileOp.getBlockSize();
 		Boolean sendData = true;
-		byte[] dataMsg = new byte[maxPacketSize];
-		byte[] ackMsg = new byte[maxPacketSize];
+		Boolean received, newBlock;
+		//Blocks are read by offset each time they are sent, so one buffer serves the whole window
+		PacketBuffers buffers = PacketBuffers.forThread(blockSize);
+		byte[] dataMsg = buffers.getDataBuffer();
+		byte[] ackMsg;
+
+		stats.setRetransmitTimer(timer);
+		stats.setTransferOptions(blockSize, windowSize);
 
-		while ((blockNum + (rollOver * 65536)) - 1 < tftpBlocks)
+		while (firstBlock - 1 < tftpBlocks)
 		{
+			windowEnd = Math.min(firstBlock + windowSize - 1, tftpBlocks);
+
 			if (sendData)
 			{
-				if (timeoutCount == 0)
+				for (int block = firstBlock; block <= windowEnd; block++)
 				{
-					dataMsg = new byte[maxPacketSize];
 					try {
-						len = constructDataPacket(dataMsg, blockNum, fileOp);
+						dataLen = constructDataPacket(dataMsg, block, fileOp);
 					} catch (FileOperation.FileOperationException e) {
 						sendErrorPacket(receive, sendReceiveSocket, e.toString(), e.error, consolePrefix, verbose);
 						return false;
 					}
-				}
 
-				System.out.println(consolePrefix + "Sending DATA " + (blockNum + (rollOver * 65536)) + "/" + tftpBlocks);
+					newBlock = block > lastSent;
+
+					if (newBlock)
+					{
+						lastSent = block;
+						stats.countBlock(dataLen - 4);
+					}
+					else
+					{
+						stats.countRetransmit();
+						timer.cancel();
+						TransferEvents.blockRetransmitted("DATA", block, timer.getTimeout());
+					}
+
+					if (TFTPLogger.enabled(verbose, Verbosity.SOME))
+					{
+						TFTPLogger.log(consolePrefix + "Sending DATA " + block + "/" + tftpBlocks);
+					}
+
+					send = buffers.dataPacket(dataLen, address, port);
 
-				send = new DatagramPacket(dataMsg, len, address, port);
+					printPacketDetails(send, consolePrefix, verbose, true, false);
+					sendPacket(send, sendReceiveSocket);
 
-				printPacketDetails(send, consolePrefix, verbose, true, false);
-				sendPacket(send, sendReceiveSocket);
+					if (newBlock && block == windowEnd)
+					{
+						timer.start(block, System.nanoTime());
+					}
+				}
 			}
 
-			// Receive the client response for the data packet we just sent
-			ackMsg = new byte[maxPacketSize];
-			receive = new DatagramPacket(ackMsg, ackMsg.length);
+			// Receive the client response for the data packets we just sent
+			receive = buffers.receivePacket();
+			ackMsg = receive.getData();
+			received = true;
 			
 			if (timeoutCount < maxTimeout)
 			{	
 				if (verbose != Verbosity.NONE)
 				{
-					System.out.println(consolePrefix + "Waiting for data read acknowledgement");
+					TFTPLogger.log(consolePrefix + "Waiting for data read acknowledgement");
 				}
 				
+				timeout = timer.getTimeout();
+
 				try {
 					receivePacketWTimeout(receive, sendReceiveSocket, timeout);
 				} catch (SocketTimeoutException e) {
+					//Can't rely on the port of an empty DatagramPacket (-1 on older JREs, 0 on newer)
+					received = false;
 					timeoutCount++;
-					System.out.println(consolePrefix + "Receive timed out after " + timeout + " ms");
-					System.out.println(consolePrefix + "Resending DATA " + (blockNum + (rollOver * 65536))  + ": Attempt " + timeoutCount);
+					timer.backoff();
+					TransferEvents.timeoutExpired("ACK", firstBlock, timeout, timeoutCount);
+					TFTPLogger.log(consolePrefix + "Receive timed out after " + timeout + " ms");
+					TFTPLogger.log(consolePrefix + "Resending DATA " + firstBlock + ": Attempt " + timeoutCount);
 					sendData = true;
 				}
 			}
 			else
 			{
-				System.out.println(consolePrefix + "Maximum timeouts reached for DATA " + (blockNum + (rollOver * 65536)) + ". Thread returning.");
+				TFTPLogger.log(consolePrefix + "Maximum timeouts reached for DATA " + firstBlock + ". Thread returning.");
 				return false;
 			}
 
-			if (receive.getPort() != -1)
+			if (received)
 			{ 
+				ackOffset = blockDistance(firstBlock, blockNumToPacket(ackMsg));
+
 				if (receive.getPort() != port) 
 				{
 					String errString = "Received packet from invalid TID: " + receive.getPort() + " was expecting TID " + port;
 					sendErrorPacket(receive, sendReceiveSocket, errString, ErrorCode.UNKNOWNTID, consolePrefix, Verbosity.NONE);
+					stats.countUnknownTID();
 					sendData = false;
 				}
-				else if (validACKPacket(receive, blockNum)) 
+				else if (getPacketType(ackMsg) == PacketType.ACK && receive.getLength() == 4 && ackOffset <= windowEnd - firstBlock) 
 				{
-					System.out.println(consolePrefix + "Received valid ACK " + (blockNum + (rollOver * 65536)));
-					printPacketDetails(receive, consolePrefix, verbose, false, false);
-
-					timeoutCount = 0; //Reset timeout count once a successful ACK is received
-					blockNum++;
-					sendData = true;
+					if (TFTPLogger.enabled(verbose, Verbosity.SOME))
+					{
+						TFTPLogger.log(consolePrefix + "Received valid ACK " + (firstBlock + ackOffset));
+						printPacketDetails(receive, consolePrefix, verbose, false, false);
+					}
 
-					if (blockNum == 65536)
+					if (ackOffset < windowEnd - firstBlock && TFTPLogger.enabled(verbose, Verbosity.SOME))
 					{
-						blockNum = 0;
-						rollOver++;
+						TFTPLogger.log(consolePrefix + "Window partially acknowledged, resending from DATA " + (firstBlock + ackOffset + 1));
 					}
+
+					timeoutCount = 0; //Reset timeout count once a successful ACK is received
+					timer.stop(firstBlock + ackOffset, System.nanoTime());
+					firstBlock += ackOffset + 1;
+					sendData = true;
 				}
-				else if (getPacketType(ackMsg) == PacketType.ACK && receive.getLength() == 4 && blockNumToPacket(ackMsg) < blockNum) 
+				else if (getPacketType(ackMsg) == PacketType.ACK && receive.getLength() == 4 && ackOffset >= 32768) 
 				{
-					System.out.println(consolePrefix + "Duplicate ACK " + (blockNumToPacket(ackMsg) + (rollOver * 65536)) + " received, ignoring");
+					if (TFTPLogger.enabled(verbose, Verbosity.SOME))
+					{
+						TFTPLogger.log(consolePrefix + "Duplicate ACK " + (firstBlock + ackOffset - 65536) + " received, ignoring");
+					}
+
 					sendData = false;
 				} 
+				//Server retransmitted its OACK, so DATA 1 (or the start of the window) was lost (client WRQ only)
+				else if (validOACKPacket(receive) && firstBlock == 1)
+				{
+					TFTPLogger.log(consolePrefix + "Duplicate OACK received, resending DATA 1");
+					sendData = true;
+				}
 				else 
 				{
 					String errString = "";
 
-					System.out.println(consolePrefix + "Received invalid packet:");
+					TFTPLogger.log(consolePrefix + "Received invalid packet:");
 					printPacketDetails(receive, consolePrefix, Verbosity.ALL, false, false);
 
 					if (validERRORPacket(receive))
@@ -282,9 +542,9 @@ public class TFTPCommon {
 					{
 						errString = "Expecting ACK, received invalid opcode: " + ackMsg[0] + "" + ackMsg[1];
 					}
-					else if (blockNumToPacket(ackMsg) != blockNum)
+					else if (ackOffset != 0)
 					{
-						errString = "Expecting block number " + (blockNum + (rollOver * 65536)) + " instead received " + (blockNumToPacket(ackMsg) + (rollOver * 65536));
+						errString = "Expecting block number " + firstBlock + " instead received " + (firstBlock + ackOffset);
 					}
 					else
 					{
@@ -297,53 +557,109 @@ public class TFTPCommon {
 			}			
 		}
 
+		stats.setComplete();
+		TFTPLogger.log(consolePrefix + "Sent " + tftpBlocks + " DATA blocks (" + stats.getBytes() + " bytes) in " + (System.currentTimeMillis() - startTime) + " ms, " + stats.getRetransmits() + " retransmitted, " + timer);
 		return true;
 	}
 
 	/**
-	 *   Receive a file with timeouts and retransmits
+	 *   Receive a file with timeouts and retransmits. An ACK is sent once windowSize DATA packets have
+	 *   been received in order (RFC 7440) and for the final DATA packet. Duplicates of acknowledged DATA
+	 *   packets and DATA packets arriving ahead of a lost block are answered with an ACK for the last block
+	 *   received in order, which makes the sender rewind to the missing block. Only the first such
+	 *   packet of each (re)sent window is answered, the rest of the window would only repeat the ACK.
+	 *   The next DATA is waited for for the transfer's RetransmitTimer timeout, then our last ACK (or the
+	 *   OACK/ACK 0 that answered the request, before DATA 1) is sent again as it, or the end of the window,
+	 *   was lost. The ACK for a window is timed to the first DATA of the next window
 	 *
 	 *   @param  DatagramPacket to send with
-	 *   @param  DatagramPacket to receive with
+	 *   @param  DatagramPacket to receive with, holds the last packet received from the side sending DATA
 	 *   @param  DatagramSocket to send and receive packets with
-	 *   @param  Boolean true if client is calling, allows us to resend request packets
+	 *   @param  InetAddress of the side sending DATA
+	 *   @param  Boolean true if client is calling and receive already holds DATA 1 (no OACK was received)
+	 *   @param  TransferOptions options of the OACK sent in place of ACK 0 (server WRQ), null if ACK 0 was sent
 	 *   @param  int timeout to stop waiting (i.e. side sending DATA packets is gone)
-	 *   @param  FileOperation file to read from
+	 *   @param  RetransmitTimer retransmission timeout of the transfer
+	 *   @param  int window size, number of DATA packets received before sending an ACK
+	 *   @param  FileOperation file to write to
+	 *   @param  TransferStats counters to update as the file is received
 	 *   @param  Verbosity verbosity of caller
 	 *   @param  String console prefix of caller
 	 *   @return Boolean true if file was received successfully
 	 * 
 	 */
-	public static Boolean receiveDataWTimeout (DatagramPacket send, DatagramPacket receive, DatagramSocket sendReceiveSocket, InetAddress address, Boolean client, int hardTimeout, FileOperation fileOp, Verbosity verbose, String consolePrefix)
+	public static Boolean receiveDataWTimeout (DatagramPacket send, DatagramPacket receive, DatagramSocket sendReceiveSocket, InetAddress address, Boolean client, TransferOptions oack, int hardTimeout, RetransmitTimer timer, int windowSize, FileOperation fileOp, TransferStats stats, Verbosity verbose, String consolePrefix)
 	{
 		Boolean writingFile = true;
 		Boolean willExit = false;
 		Boolean receiveSet = client;
+		Boolean rewindAcked = false;
 		byte[] dataMsg;
-		int blockNum = 1;
-		int rollOver = 0;
+		int blockNum = 1;		//Next expected block (including rollovers)
+		int windowCount = 0;	//Blocks received in order since our last ACK
+		int lastRewind = 0;		//Last duplicate or out of order block received
+		int lastAcked = 0;		//Last block acknowledged
+		int blockOffset;
 		int len = 0;
-		int port = -1;
-	
+		int port = receive.getPort();
+		int blockSize = fileOp.getBlockSize();
+		int waitTime;
+		long startTime = System.currentTimeMillis();
+		long lastPacketTime = startTime;
+		PacketBuffers buffers = PacketBuffers.forThread(blockSize);
+		DatagramPacket request = receive;
+
+		stats.setRetransmitTimer(timer);
+		stats.setTransferOptions(blockSize, windowSize);
+
+		//The caller just answered the request (or OACK), time it to DATA 1
+		if (!receiveSet)
+		{
+			timer.start(blockNum, System.nanoTime());
+		}
 		
 		while (writingFile)
 		{
-			dataMsg = new byte[maxPacketSize];
-			
 			if (!receiveSet)
 			{
-				receive = new DatagramPacket(dataMsg, dataMsg.length);
+				receive = buffers.receivePacket();
+				dataMsg = receive.getData();
 
 				if (verbose != Verbosity.NONE)
 				{
-					System.out.println(consolePrefix + "Waiting for next data packet");
+					TFTPLogger.log(consolePrefix + "Waiting for next data packet");
 				}
 
+				waitTime = (int) Math.max(1, Math.min(timer.getTimeout(), hardTimeout - (System.currentTimeMillis() - lastPacketTime)));
+
 				try {
-					receivePacketWTimeout(receive, sendReceiveSocket, hardTimeout);
+					receivePacketWTimeout(receive, sendReceiveSocket, waitTime);
 				} catch (SocketTimeoutException e) {
-					System.out.println(consolePrefix + "Haven't received packet in " + hardTimeout + "ms, giving up");
-					return false;
+					if (System.currentTimeMillis() - lastPacketTime >= hardTimeout)
+					{
+						TFTPLogger.log(consolePrefix + "Haven't received packet in " + hardTimeout + "ms, giving up");
+						return false;
+					}
+
+					TransferEvents.timeoutExpired("DATA", blockNum, waitTime, 0);
+
+					if (blockNum == 1 && oack != null)
+					{
+						TFTPLogger.log(consolePrefix + "Receive timed out after " + waitTime + " ms, resending OACK");
+						sendOACKPacket(oack, request, sendReceiveSocket, verbose, consolePrefix);
+						TransferEvents.blockRetransmitted("OACK", 0, timer.getTimeout());
+					}
+					else
+					{
+						TFTPLogger.log(consolePrefix + "Receive timed out after " + waitTime + " ms, resending ACK " + (blockNum - 1));
+						sendPacket(buffers.ackPacket(blockNum - 1, address, port), sendReceiveSocket);
+						TransferEvents.blockRetransmitted("ACK", blockNum - 1, timer.getTimeout());
+						lastAcked = blockNum - 1;
+					}
+
+					stats.countRetransmit();
+					timer.backoff();
+					continue;
 				}
 			}
 			else
@@ -353,24 +669,32 @@ public class TFTPCommon {
 			}
 
 			len = receive.getLength();
+			blockOffset = blockDistance(blockNum, blockNumToPacket(dataMsg));
 			
-			printPacketDetails(receive, consolePrefix, verbose, false, false);
-
-			if (port == -1)
+			if (verbose != Verbosity.NONE)
 			{
-				port = receive.getPort();
+				printPacketDetails(receive, consolePrefix, verbose, false, false);
 			}
-			
+
 		    if (receive.getPort() != port) 
 		    {
 				String errString = "Received packet from invalid TID: " + receive.getPort() + " was expecting TID " + port;
 				sendErrorPacket(receive, sendReceiveSocket, errString, ErrorCode.UNKNOWNTID, consolePrefix, Verbosity.NONE);
+				stats.countUnknownTID();
+				continue;
 			}
 
+			lastPacketTime = System.currentTimeMillis();
+
 			//We received the DATA packet we were expecting, look for next DATA
-			else if (validDATAPacket(receive, blockNum)) 
+			if (validDATAPacket(receive, blockNum % 65536, blockSize)) 
 			{				
-				System.out.println(consolePrefix + "Received DATA " + (blockNum + (rollOver * 65536)));
+				timer.stop(blockNum, System.nanoTime());
+
+				if (TFTPLogger.enabled(verbose, Verbosity.SOME))
+				{
+					TFTPLogger.log(consolePrefix + "Received DATA " + blockNum);
+				}
 				
 				try {
 					willExit = writeDataPacket(dataMsg, len, fileOp, verbose);
@@ -379,28 +703,71 @@ public class TFTPCommon {
 					return false;
 				}
 
-				sendACKPacket(blockNum, rollOver, send, receive, sendReceiveSocket, verbose, consolePrefix);					
-				blockNum++;
+				windowCount++;
+				rewindAcked = false;
+				stats.countBlock(len - 4);
 
-				if (blockNum == 65536)
+				//Acknowledge the end of each window, and always the final DATA packet
+				if (windowCount == windowSize || willExit)
 				{
-					blockNum = 0;
-					rollOver++;
+					sendACKPacket(blockNum, buffers, receive, sendReceiveSocket, verbose, consolePrefix);
+					timer.start(blockNum + 1, System.nanoTime());
+					windowCount = 0;
+					lastAcked = blockNum;
 				}
+
+				blockNum++;
 			}
 			
-			//Duplicate DATA received (i.e. block number has already been acknowledged)
-			else if (getPacketType(dataMsg) == PacketType.DATA && receive.getLength() > 3 && receive.getLength() < 517 && blockNumToPacket(dataMsg) < blockNum)
+			//Duplicate DATA received (i.e. block number has already been received), or DATA from later
+			//in the window received (a block was lost). Acknowledge the last block received in order so the sender rewinds
+			else if (getPacketType(dataMsg) == PacketType.DATA && receive.getLength() > 3 && receive.getLength() <= blockSize + 4 && (blockOffset >= 32768 || blockOffset < windowSize))
+			{
+				stats.countDuplicate();
+
+				if (blockOffset >= 32768)
+				{
+					blockOffset -= 65536;
+
+					if (TFTPLogger.enabled(verbose, Verbosity.SOME))
+					{
+						TFTPLogger.log(consolePrefix + "Duplicate or delayed DATA " + (blockNum + blockOffset) + " received, not writing to file");
+					}
+				}
+				else if (TFTPLogger.enabled(verbose, Verbosity.SOME))
+				{
+					TFTPLogger.log(consolePrefix + "Out of order DATA " + (blockNum + blockOffset) + " received, expecting DATA " + blockNum);
+				}
+
+				TransferEvents.duplicateReceived(blockNum + blockOffset, blockNum);
+
+				//A duplicate of a block received since our last ACK is from a window the sender resent before
+				//it heard from us (early timeout or rewind), answering it would rewind the sender in the middle
+				//of its window again. A block at or before the last one means the sender started resending a window, answer it again
+				if ((blockOffset > 0 || blockNum + blockOffset <= lastAcked) && (!rewindAcked || blockNum + blockOffset <= lastRewind))
+				{
+					sendACKPacket(blockNum - 1, buffers, receive, sendReceiveSocket, verbose, consolePrefix);
+					timer.cancel();
+					windowCount = 0;
+					lastAcked = blockNum - 1;
+					rewindAcked = true;
+				}
+
+				lastRewind = blockNum + blockOffset;
+			}
+
+			//Server retransmitted its OACK, so our ACK 0 was lost (client RRQ only)
+			else if (validOACKPacket(receive) && blockNum == 1)
 			{
-				System.out.println(consolePrefix + "Duplicate or delayed DATA " + (blockNumToPacket(dataMsg) + (rollOver * 65536)) + " received, not writing to file");
-				sendACKPacket(blockNumToPacket(dataMsg), rollOver, send, receive, sendReceiveSocket, verbose, consolePrefix);
+				TFTPLogger.log(consolePrefix + "Duplicate OACK received, resending ACK 0");
+				sendACKPacket(0, buffers, receive, sendReceiveSocket, verbose, consolePrefix);
 			}
 
 			else
 			{
 				String errString = "";
 
-				System.out.println(consolePrefix + "Received invalid packet:");
+				TFTPLogger.log(consolePrefix + "Received invalid packet:");
 				printPacketDetails(receive, consolePrefix, Verbosity.ALL, false, false);
 
 				if (validERRORPacket(receive))
@@ -408,17 +775,17 @@ public class TFTPCommon {
 					parseErrorPacket(receive, consolePrefix);
 					return false;
 				}
-				else if (receive.getLength() < 4 || receive.getLength() > 516)
+				else if (receive.getLength() < 4 || receive.getLength() > blockSize + 4)
 				{
-					errString = "Expecting DATA packet of length 4-516 instead received packet with length " + receive.getLength();
+					errString = "Expecting DATA packet of length 4-" + (blockSize + 4) + " instead received packet with length " + receive.getLength();
 				}
 				else if (getPacketType(dataMsg) != PacketType.DATA)
 				{
 					errString = "Expecting DATA, received invalid opcode: " + dataMsg[0] + "" + dataMsg[1];
 				}
-				else if (blockNumToPacket(dataMsg) != blockNum)
+				else if (blockOffset != 0)
 				{
-					errString = "Expecting block number " + (blockNum + (rollOver * 65536)) + " instead received " + (blockNumToPacket(dataMsg) + (rollOver * 65536));
+					errString = "Expecting block number " + blockNum + " instead received " + (blockNum + blockOffset);
 				}
 				else
 				{
@@ -437,9 +804,25 @@ public class TFTPCommon {
 			}
 		}
 
+		stats.setComplete();
+		TFTPLogger.log(consolePrefix + "Received " + (blockNum - 1) + " DATA blocks (" + stats.getBytes() + " bytes) in " + (System.currentTimeMillis() - startTime) + " ms, " + stats.getDuplicates() + " duplicate or out of order, " + timer);
 		return true;
 	}
 
+	/**
+	 *   Number of blocks a received 16 bit block number is ahead of an expected block,
+	 *   taking rollover into account. Block numbers behind the expected block give a
+	 *   distance of 32768 or more (i.e. the block before the expected block gives 65535)
+	 *
+	 *   @param  int expected block number (including rollovers)
+	 *   @param  int 16 bit block number from packet
+	 *   @return int distance from expected block, 0-65535
+	 */
+	public static int blockDistance(int expectedBlock, int packetBlock)
+	{
+		return (packetBlock - (expectedBlock % 65536) + 65536) % 65536;
+	}
+
 	/**
 	 *   Prints basic packet details based on the verbosity of the caller
 	 *
@@ -454,6 +837,12 @@ public class TFTPCommon {
 	{
 		int j;
 		String prefix;
+		StringBuilder details;
+
+		if ( verbosity == TFTPCommon.Verbosity.NONE )
+		{
+			return;
+		}
 
 		if ( sending )
 		{
@@ -464,31 +853,32 @@ public class TFTPCommon {
 			prefix = "From ";
 		}
 
-		if ( verbosity != TFTPCommon.Verbosity.NONE ) 
+		//Built as one entry so the lines of a packet stay together
+		details = new StringBuilder();
+		details.append(consolePrefix).append(prefix).append("Host: ").append(packet.getAddress()).append(System.lineSeparator());
+		details.append(consolePrefix).append(prefix).append("Host port: ").append(packet.getPort()).append(System.lineSeparator());
+		details.append(consolePrefix).append("Length: ").append(packet.getLength()).append(System.lineSeparator());
+		details.append(consolePrefix).append("Packet type: ").append(opcodeToString(packet.getData()));
+
+		if ( verbosity == TFTPCommon.Verbosity.ALL )
 		{
-			System.out.println(consolePrefix + prefix + "Host: " + packet.getAddress());
-			System.out.println(consolePrefix + prefix + "Host port: " + packet.getPort());
-			System.out.println(consolePrefix + "Length: " + packet.getLength());
-			System.out.println(consolePrefix + "Packet type: " + opcodeToString(packet.getData()));
+			details.append(System.lineSeparator()).append(consolePrefix).append("Containing: ").append(System.lineSeparator());
 
-			if ( verbosity == TFTPCommon.Verbosity.ALL )
+			for (j = 0; j < packet.getLength(); j++) 
 			{
-				System.out.println(consolePrefix + "Containing: ");
-				for (j = 0; j < packet.getLength(); j++) 
-				{
-					System.out.print((packet.getData()[j] & 0xFF) + " ");
-				}
-				System.out.println();
+				details.append(packet.getData()[packet.getOffset() + j] & 0xFF).append(' ');
 			}
 		}
 
+		TFTPLogger.log(details.toString());
+
 		if (printAsString)
 		{
 			String packetString = new String(packet.getData(), 0, packet.getLength());
 
 			if (verbosity == TFTPCommon.Verbosity.ALL)
 			{ 
-				System.out.println(consolePrefix + "request packet contains " + packetString);
+				TFTPLogger.log(consolePrefix + "request packet contains " + packetString);
 			}
 		}		
 	}
@@ -502,7 +892,7 @@ public class TFTPCommon {
 	 */
 	public static String packetTypeAndNumber (byte[] data)
 	{
-		if ( getPacketType(data) == PacketType.REQUEST || getPacketType(data) == PacketType.ERROR )
+		if ( getPacketType(data) == PacketType.REQUEST || getPacketType(data) == PacketType.ERROR || getPacketType(data) == PacketType.OACK )
 		{
 			return (opcodeToString(data) + " packet");
 		}
@@ -539,6 +929,10 @@ public class TFTPCommon {
         {
         	return PacketType.ERROR;
         }
+        else if (data[1] == 6)
+        {
+        	return PacketType.OACK;
+        }
 
         return PacketType.INVALID;
     }
@@ -637,6 +1031,10 @@ public class TFTPCommon {
 		{
 			return "ERROR";
 		}
+		else if (data[1] == 6)
+		{
+			return "OACK";
+		}
 
 		return "invalid";
 	}
@@ -666,6 +1064,10 @@ public class TFTPCommon {
 		{
 			return "ERROR";
 		}
+		else if (type == PacketType.OACK)
+		{
+			return "OACK";
+		}
 
 		return "invalid";
 	}
@@ -712,6 +1114,10 @@ public class TFTPCommon {
 		{
 			return "file already exists";
 		}
+		else if (data[3] == 8)
+		{
+			return "option negotiation refused";
+		}
 		return "invalid";
 	}
 
@@ -786,6 +1192,101 @@ public class TFTPCommon {
     	return len;
     }
 
+    /**
+	 *   Constructs WRQ or RRQ packet with RFC 2347 options appended after the file mode
+	 *
+	 *   @param  byte[] array to store packet data in
+	 *   @param  int opcode of packet
+	 *   @param  String filename for read or write
+	 *   @param  String filemode for read or write
+	 *   @param  Map<String, String> options to append (name, value)
+	 *   @return int length of packet
+	 */
+    public static int constructReqPacket(byte[] msg, int opcode, String fileName, String fileMode, Map<String, String> options)
+    {
+    	int len = constructReqPacket(msg, opcode, fileName, fileMode, false, false);
+
+    	return appendOptions(msg, len, options);
+    }
+
+    /**
+	 *   Constructs OACK packet, acknowledging the given options
+	 *
+	 *   @param  byte[] array to store packet data in
+	 *   @param  Map<String, String> accepted options (name, value)
+	 *   @return int length of packet
+	 */
+    public static int constructOACKPacket(byte[] msg, Map<String, String> options)
+    {
+    	msg[0] = 0;
+    	msg[1] = 6;
+
+    	return appendOptions(msg, 2, options);
+    }
+
+    /**
+	 *   Appends options to a packet as 0 terminated name and value strings
+	 *
+	 *   @param  byte[] array to store packet data in
+	 *   @param  int offset to start writing options at
+	 *   @param  Map<String, String> options (name, value)
+	 *   @return int new length of packet
+	 */
+    private static int appendOptions(byte[] msg, int len, Map<String, String> options)
+    {
+    	byte[] opt;
+
+    	for (Map.Entry<String, String> option : options.entrySet())
+    	{
+    		opt = option.getKey().getBytes();
+    		System.arraycopy(opt, 0, msg, len, opt.length);
+    		msg[len + opt.length] = 0;
+    		len += (opt.length + 1);
+
+    		opt = option.getValue().getBytes();
+    		System.arraycopy(opt, 0, msg, len, opt.length);
+    		msg[len + opt.length] = 0;
+    		len += (opt.length + 1);
+    	}
+
+    	return len;
+    }
+
+    /**
+	 *   Parses RFC 2347 options (0 terminated name and value pairs) from a request or OACK packet.
+	 *   Option names are case insensitive, so they are returned in lower case
+	 *
+	 *   @param  byte[] packet data
+	 *   @param  int offset of first option name
+	 *   @param  int length of packet
+	 *   @return Map<String, String> options in packet order, null if options are malformed
+	 */
+    public static Map<String, String> parseOptions(byte[] data, int offset, int len)
+    {
+    	Map<String, String> options = new LinkedHashMap<String, String>();
+    	String name;
+    	int j, k;
+
+    	while (offset < len)
+    	{
+    		for (j = offset; j < len && data[j] != 0; j++);
+
+    		for (k = j + 1; k < len && data[k] != 0; k++);
+
+    		//Option name or value missing terminating 0, or empty option name
+    		if (k >= len || j == offset)
+    		{
+    			return null;
+    		}
+
+    		name = new String(data, offset, j - offset).toLowerCase();
+    		options.put(name, new String(data, j + 1, k - j - 1));
+    		offset = k + 1;
+    	}
+
+    	return options;
+    }
+
 	/**
 	 *   Constructs ACK packet, converts int blockNumber to byte representation
 	 *
@@ -802,10 +1303,11 @@ public class TFTPCommon {
 	}
 
 	/**
-	 *   Constructs a DATA packet
+	 *   Constructs a DATA packet, reading the block's data from the file by offset
+	 *   (so a resent block doesn't need to be kept around by the caller)
 	 *
-	 *   @param  byte[] next data block to send
-	 *   @param  int current block number
+	 *   @param  byte[] array to store DATA packet in
+	 *   @param  int block number (including rollovers)
 	 *   @param  FileOperation current file we are reading data from
 	 *   @return int length of DATA packet
 	 */
@@ -813,11 +1315,11 @@ public class TFTPCommon {
 	{
 		msg[0] = 0;
 		msg[1] = 3;
-		msg[2] = (byte) (blockNumber / 256);
+		msg[2] = (byte) ((blockNumber % 65536) / 256);
 		msg[3] = (byte) (blockNumber % 256);   
 
 		try {
-			return file.readNextDataPacket(msg, 4);
+			return file.readDataBlock(blockNumber, msg, 4);
 		} catch (FileNotFoundException e) {			//This exception should never happen, we check the file before creating packets
 			e.printStackTrace();					//It still needs to be caught though
 			System.exit(1);
@@ -877,6 +1379,11 @@ public class TFTPCommon {
 			msg[2] = 0;
 			msg[3] = 6;
 		}
+		else if (errCode == ErrorCode.OPTIONDENIED) 
+		{
+			msg[2] = 0;
+			msg[3] = 8;
+		}
 		else
 		{
 			msg[2] = 0;
@@ -907,7 +1414,7 @@ public class TFTPCommon {
 		}
 
 		String errorMessage = new String(data, 4, i - 2);
-		System.out.println(consolePrefix + "Received error " + errorOpcodeToString(data) + " opcode (" + data[2] + "" + data[3] + ") with message \"" + errorMessage.trim() + "\"");
+		TFTPLogger.log(consolePrefix + "Received error " + errorOpcodeToString(data) + " opcode (" + data[2] + "" + data[3] + ") with message \"" + errorMessage.trim() + "\"");
 	}
 	
 	/**
@@ -943,6 +1450,10 @@ public class TFTPCommon {
         {
         	return ErrorCode.FILEEXISTS;
         }
+        else if (data[3] == 8)
+        {
+        	return ErrorCode.OPTIONDENIED;
+        }
 
         return ErrorCode.INVALID;
     }
@@ -955,10 +1466,7 @@ public class TFTPCommon {
 	 */
 	public static int blockNumToPacket(byte[] data)
     {
-	 	Byte a = data[2];
-	 	Byte b = data[3];
-	 	
-        return Byte.toUnsignedInt(a) * 256 + Byte.toUnsignedInt(b);
+        return ((data[2] & 0xFF) << 8) | (data[3] & 0xFF);
     }
     
 	/**
@@ -979,11 +1487,11 @@ public class TFTPCommon {
 			System.exit(1);
 		}
 
-		if (len < 516)
+		if (len < file.getBlockSize() + 4)
 		{
 			if (verbose != Verbosity.NONE)
 			{
-				System.out.println("Received final data packet");
+				TFTPLogger.log("Received final data packet");
 				try {
 					file.finalizeFileWrite();
 				} catch (IOException e) {
@@ -1003,10 +1511,22 @@ public class TFTPCommon {
 	 *
 	 *   @param  DatagramPacket received packet
 	 *   @param  int expected block number
+	 *   @param  int negotiated block size
 	 */
-	public static Boolean validDATAPacket(DatagramPacket packet, int blockNum)
+	public static Boolean validDATAPacket(DatagramPacket packet, int blockNum, int blockSize)
 	{
-		return ( getPacketType(packet.getData()) == PacketType.DATA && blockNumToPacket(packet.getData()) == blockNum && packet.getLength() > 3 && packet.getLength() < 517 );
+		return ( getPacketType(packet.getData()) == PacketType.DATA && blockNumToPacket(packet.getData()) == blockNum && packet.getLength() > 3 && packet.getLength() <= blockSize + 4 );
+	}
+
+	/**
+	 *   Check validity of received OACK packet (opcode followed by 0 terminated strings)
+	 *
+	 *   @param  DatagramPacket received packet
+	 *   @return Boolean if packet is valid OACK packet
+	 */
+	public static Boolean validOACKPacket(DatagramPacket packet)
+	{
+		return ( packet.getLength() > 2 && getPacketType(packet.getData()) == PacketType.OACK && packet.getData()[packet.getLength() - 1] == 0 && parseOptions(packet.getData(), 2, packet.getLength()) != null );
 	}
 	
 	/**
@@ -1028,6 +1548,8 @@ public class TFTPCommon {
      */
 	public static Boolean validERRORPacket(DatagramPacket packet)
 	{
-		return ( packet.getLength() > 4 && getPacketType(packet.getData()) == PacketType.ERROR && packet.getData()[packet.getLength() - 1] == 0 && blockNumToPacket(packet.getData()) < 7 && blockNumToPacket(packet.getData()) > 0);
+		int errorNum = blockNumToPacket(packet.getData());
+
+		return ( packet.getLength() > 4 && getPacketType(packet.getData()) == PacketType.ERROR && packet.getData()[packet.getLength() - 1] == 0 && ( (errorNum < 7 && errorNum > 0) || errorNum == 8 ) );
 	}
 }
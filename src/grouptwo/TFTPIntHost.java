@@ -3,6 +3,7 @@ package grouptwo;
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * TFTPIntHost spawns the CLI thread and a new ErrorSimulator thread for each
@@ -19,19 +20,30 @@ public class TFTPIntHost
     private TFTPCommon.Verbosity verbosity;
     private TFTPIntHostCommandLine cliThread;
     private byte [] data;
-    private Integer runningErrorSimCount;
-    private List<SimulatePacketInfo> toModify;
-    private List<Thread> runningThreads;
+    private ModificationTable toModify;
+    //ErrorSimulators in progress, shared with the ErrorSimulator threads
+    private Set<Thread> runningThreads;
+    private TransferExecutor executor;
+    //Sends delayed and duplicated packets for all ErrorSimulators
+    private PacketScheduler scheduler;
+    //Statistical impairment applied to every packet of new ErrorSimulators, null for none
+    private volatile ImpairmentModel impairment;
+    //Capacity of the emulated link, shared by new ErrorSimulators, null for unlimited
+    private volatile LinkShaper shaper;
+    //Trace file every forwarded packet is recorded to, null if not recording
+    private PacketTrace.Recorder recorder;
+    //ErrorSimulators started, numbers each session's impairment random generator and trace records
+    private int sessionCount;
     private InetAddress serverAddress;
 
     /**
      *   Constructor for TFTPIntHost - creates receiveSocket for receiving new clients and initializes data
      *   needed for new clients
      *
-     *   @param  none
+     *   @param  TransferExecutor executor that runs ErrorSimulators
      *   @return TFTPIntHost
      */
-    public TFTPIntHost()
+    public TFTPIntHost(TransferExecutor executor)
     {
         try {
             receiveSocket = new DatagramSocket(TFTPCommon.TFTPErrorSimPort);
@@ -42,12 +54,87 @@ public class TFTPIntHost
 
         verbosity = TFTPCommon.Verbosity.NONE;
         serverAddress = InetAddress.getLoopbackAddress();
-        runningErrorSimCount = 0;
-        toModify = new ArrayList<SimulatePacketInfo>();
-        runningThreads = new ArrayList<Thread>();
+        toModify = new ModificationTable();
+        runningThreads = ConcurrentHashMap.newKeySet();
+        this.executor = executor;
+        scheduler = new PacketScheduler("packetScheduler");
+        impairment = null;
+        shaper = null;
+        recorder = null;
+        sessionCount = 0;
         cliThread = new TFTPIntHostCommandLine(this);
     }
 
+    public PacketScheduler getScheduler()
+    {
+        return scheduler;
+    }
+
+    public TransferExecutor getExecutor()
+    {
+        return executor;
+    }
+
+    /**
+    *   Set the network impairment for new ErrorSimulators
+    *   Note: This doesn't change the impairment of ongoing transfers
+    *
+    *   @param  ImpairmentModel impairment to apply, null for none
+    *   @return none
+    */
+    public void setImpairment(ImpairmentModel impairment)
+    {
+        this.impairment = impairment;
+    }
+
+    public ImpairmentModel getImpairment()
+    {
+        return impairment;
+    }
+
+    /**
+    *   Set the emulated link for new ErrorSimulators
+    *   Note: Ongoing transfers keep using the link they started on
+    *
+    *   @param  LinkShaper link to shape packets with, null for unlimited
+    *   @return none
+    */
+    public void setShaper(LinkShaper shaper)
+    {
+        this.shaper = shaper;
+    }
+
+    public LinkShaper getShaper()
+    {
+        return shaper;
+    }
+
+    /**
+    *   Record the packets of every transfer to a trace file, until the error simulator exits
+    *
+    *   @param  PacketTrace.Recorder recorder writing the trace file
+    *   @return none
+    */
+    public void setRecorder(PacketTrace.Recorder recorder)
+    {
+        this.recorder = recorder;
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                recorder.close();
+            } catch (IOException e) {
+                System.out.println("Failed to write packet trace: " + e.getMessage());
+            }
+
+            System.out.println("Packet trace: " + recorder);
+        }));
+    }
+
+    public PacketTrace.Recorder getRecorder()
+    {
+        return recorder;
+    }
+
     /**
      *   Called by returning ErrorSimulator, indicates to TFTPIntHost that the transfer is complete
      *
@@ -57,7 +144,6 @@ public class TFTPIntHost
     public void threadDone(Thread t)
     {
         runningThreads.remove(t);
-        runningErrorSimCount = runningThreads.size();
     }
 
     /**
@@ -83,6 +169,17 @@ public class TFTPIntHost
         return toModify.add(modification);
     }
 
+    /**
+     *   Move modifications to the end of the list of pending modifications
+     *
+     *   @param  ModificationTable mods to add, emptied
+     *   @return none
+     */
+    public void appendMods(ModificationTable modifications)
+    {
+        toModify.addAll(modifications);
+    }
+
     /**
      *   Remove a pending modification form the list of pending modifications
      *
@@ -113,14 +210,7 @@ public class TFTPIntHost
      */
     public String simulateListToString()
     {
-        String returnString = new String();
-
-        for (SimulatePacketInfo s : toModify)
-        {
-            returnString = returnString + s + System.lineSeparator();
-        }
-
-        return returnString;
+        return toModify.toString();
     }
 
     /**
@@ -128,12 +218,12 @@ public class TFTPIntHost
      *   Used for removing pending mods in CLI
      *
      *   @param  void
-     *   @return List<SimulatePacketInfo>
+     *   @return List<SimulatePacketInfo> copy of the pending mods, in order
      */
 
     public List<SimulatePacketInfo> getSimulateList()
     {
-        return toModify;
+        return toModify.list();
     }
 
     /**
@@ -159,6 +249,7 @@ public class TFTPIntHost
     {
         cliThread.start();
 
+        System.out.println("Error Simulator: Running ErrorSimulators on " + executor + " threads");
         System.out.println("Error Simulator: Waiting for clients.");
 
         while (true)
@@ -173,17 +264,113 @@ public class TFTPIntHost
                 System.exit(1);
             }
 
-            runningErrorSimCount++;
-            Thread client = new Thread(new ErrorSimulator(receivePacket, serverAddress, verbosity, toModify, runningThreads.size() + 1, this));
+            ImpairmentModel model = impairment;
+            LinkShaper link = shaper;
+            sessionCount++;
+
+            if (model == null && link != null)
+            {
+                model = ImpairmentModel.none();
+            }
+
+            ErrorSimulator client = new ErrorSimulator(receivePacket, serverAddress, verbosity, toModify.takeAll(), runningThreads.size() + 1, sessionCount, model == null ? null : model.newSession(sessionCount, link), this);
             runningThreads.add(client);
-            client.start();
-            toModify = new ArrayList<SimulatePacketInfo>();
+            executor.execute(client);
         }
     }
 
+    /**
+     *   Starts the error simulator. Usage: TFTPIntHost [-executor platform|pool[:n]|virtual] [-log sync|async[:lines]] [-impair settings] [-shape settings] [-record file]
+     *   -executor selects the threads ErrorSimulators run on (default: platform)
+     *   -log selects how simulator output is written (default: async, see TFTPLogger)
+     *   -impair applies a statistical network impairment to every packet, i.e. "loss=1,delay=20" (see ImpairmentModel)
+     *   -shape limits the bandwidth of the emulated link, i.e. "rate=10m,queue=50" (see LinkShaper)
+     *   -record writes every forwarded packet to a trace file, to be replayed by TFTPTraceReplay (see PacketTrace)
+     *
+     *   @param  String[] command line arguments
+     *   @return none
+     */
     public static void main( String args[] )
     {
-        TFTPIntHost s = new TFTPIntHost();
+        TransferExecutor executor = new TransferExecutor(TransferExecutor.Kind.PLATFORM, 0);
+        TFTPLogger.Sink sink = null;
+        ImpairmentModel impairment = null;
+        LinkShaper shaper = null;
+        PacketTrace.Recorder recorder = null;
+
+        for (int i = 0; i + 1 < args.length; i += 2)
+        {
+            if (args[i].equalsIgnoreCase("-executor"))
+            {
+                executor = TransferExecutor.fromString(args[i + 1]);
+            }
+            else if (args[i].equalsIgnoreCase("-log"))
+            {
+                //Each async sink starts its own writer thread, so the setting is only parsed once
+                sink = TFTPLogger.sinkFromString(args[i + 1]);
+
+                if (sink == null)
+                {
+                    System.out.println("Invalid log setting \"" + args[i + 1] + "\", using async");
+                }
+            }
+            else if (args[i].equalsIgnoreCase("-impair"))
+            {
+                impairment = ImpairmentModel.fromString(args[i + 1]);
+
+                if (impairment == null)
+                {
+                    System.out.println("Invalid impairment setting \"" + args[i + 1] + "\", packets aren't impaired");
+                }
+                else
+                {
+                    System.out.println("Impairing every packet with " + impairment);
+                }
+            }
+            else if (args[i].equalsIgnoreCase("-shape"))
+            {
+                shaper = LinkShaper.fromString(args[i + 1]);
+
+                if (shaper == null)
+                {
+                    System.out.println("Invalid shaping setting \"" + args[i + 1] + "\", packets aren't shaped");
+                }
+                else
+                {
+                    System.out.println("Shaping packets with " + shaper);
+                }
+            }
+            else if (args[i].equalsIgnoreCase("-record"))
+            {
+                try {
+                    recorder = new PacketTrace.Recorder(args[i + 1]);
+                    System.out.println("Recording packets to " + args[i + 1]);
+                } catch (IOException e) {
+                    System.out.println("Can't record packets to " + args[i + 1] + ": " + e.getMessage());
+                }
+            }
+            else
+            {
+                System.out.println("Ignoring invalid argument \"" + args[i] + " " + args[i + 1] + "\"");
+            }
+        }
+
+        if (sink == null)
+        {
+            sink = TFTPLogger.sinkFromString("async");
+        }
+
+        TFTPLogger.setSink(sink);
+
+        TFTPIntHost s = new TFTPIntHost(executor);
+        s.setImpairment(impairment);
+        s.setShaper(shaper);
+
+        if (recorder != null)
+        {
+            s.setRecorder(recorder);
+        }
+
         s.processClients();
     }
 }
@@ -205,9 +392,14 @@ class ErrorSimulator extends Thread
     private int clientPort, serverPort, len, hardTimeout;
     private byte [] data;
     private SimulatePacketInfo simCompare;
-    private List<SimulatePacketInfo> simulateList;
+    private ModificationTable simulateList;
     private String consolePrefix;
     private TFTPIntHost parent;
+    //Impairment applied to packets that have no modification, null for none
+    private ImpairmentModel.Session impairment;
+    //Trace packets are recorded to (null if not recording), and this transfer's session number in it
+    private PacketTrace.Recorder recorder;
+    private int sessionNumber;
 
     /**
      *   Constructor for ErrorSimulator - every new client connection gets an error simulator thread, with required
@@ -216,12 +408,14 @@ class ErrorSimulator extends Thread
      *   @param  DatagramPacket first packet received from client
      *   @param  InetAddress server's address (can be localhost or separate computer)
      *   @param  TFTPCommon.Verbosity verbosity of this thread
-     *   @param  List<SimulatePacketInfo> list of pending modifications to apply to transfer
+     *   @param  ModificationTable pending modifications to apply to transfer
      *   @param  Integer thread number
+     *   @param  int session number (unique, in the order requests arrived)
+     *   @param  ImpairmentModel.Session network impairment of this transfer (null for none)
      *   @param  TFTPIntHost thread creator
      *   @return ErrorSimulator
      */
-    public ErrorSimulator(DatagramPacket firstPacket, InetAddress serverAddress, TFTPCommon.Verbosity verbose, List<SimulatePacketInfo> simulateList, Integer errorSimNum, TFTPIntHost intHost)
+    public ErrorSimulator(DatagramPacket firstPacket, InetAddress serverAddress, TFTPCommon.Verbosity verbose, ModificationTable simulateList, Integer errorSimNum, int sessionNumber, ImpairmentModel.Session impairment, TFTPIntHost intHost)
     {
         clientAddress = firstPacket.getAddress();
         clientPort = firstPacket.getPort();
@@ -233,7 +427,10 @@ class ErrorSimulator extends Thread
         receivePacket = firstPacket;
         verbosity = verbose;
         this.simulateList = simulateList;
+        this.impairment = impairment;
+        this.sessionNumber = sessionNumber;
         parent = intHost;
+        recorder = intHost.getRecorder();
         consolePrefix = new String("Error Simulator Thread " + errorSimNum + ": ");
         
         try {
@@ -248,64 +445,71 @@ class ErrorSimulator extends Thread
     /**
      *   Checks each packet that is received by the error sim against the list of modifications to perform.
      *   If the received packet is in the list, it is modified according to the list. Otherwise, the packet is
-     *   passed on with no changes
+     *   passed on with no changes, or through the network impairment if there is one
      *
      *   @param  none
      *   @return none
      */
 	private void errorSimulateSend() 
     {   
-        for (SimulatePacketInfo check : simulateList)
-        {   
-            //Check the packet type and packet number (if applicable, not for request) against every modification in the list
-            if ( TFTPCommon.getPacketType(receivePacket.getData()) == check.getPacketType() && ( (check.getPacketType() == TFTPCommon.PacketType.REQUEST) || (check.getPacketNum() == TFTPCommon.blockNumToPacket(receivePacket.getData()) ) ) )
+        //Look the packet up once, instead of comparing it against every modification
+        SimulatePacketInfo check = simulateList.take(TFTPCommon.getPacketType(receivePacket.getData()), TFTPCommon.blockNumToPacket(receivePacket.getData()));
+
+        if (check != null)
+        {
+            if (check.getModType() == TFTPCommon.ModificationType.LOSE) 
             {
-    			if (check.getModType() == TFTPCommon.ModificationType.LOSE) 
-                {
-    				losePacket(check);
-                    simulateList.remove(check);
-                    
-                    //If we lose a request, the client will send another request which will spawn a new error sim thread
-                    //The new thread won't have the list of modifications, so pass those now
-                    if (check.getPacketType() == TFTPCommon.PacketType.REQUEST)
-                    {
-                        for (SimulatePacketInfo prop : simulateList)
-                        {
-                            parent.appendMod(prop);
-                        }
-                    }
-    			} 
-                else if (check.getModType() == TFTPCommon.ModificationType.DUPLICATE || check.getModType() == TFTPCommon.ModificationType.DELAY) 
-                {
-                    Thread delayDuplicateThread = new Thread(new DelayDuplicatePacket(sendPacket, sendReceiveSocket, check.getModType(), check.getDelayDuplicateGap()));
-    				delayDuplicateThread.start();
-                    simulateList.remove(check);
-    			}
+                losePacket(check);
 
-                else if (check.getModType() == TFTPCommon.ModificationType.CONTENTS)
+                //If we lose a request, the client will send another request which will spawn a new error sim thread
+                //The new thread won't have the list of modifications, so pass those now
+                if (check.getPacketType() == TFTPCommon.PacketType.REQUEST)
                 {
-                    modifyContents(check);
-                    simulateList.remove(check);
+                    parent.appendMods(simulateList);
                 }
+            } 
+            else if (check.getModType() == TFTPCommon.ModificationType.DUPLICATE || check.getModType() == TFTPCommon.ModificationType.DELAY) 
+            {
+                new DelayDuplicatePacket(sendPacket, sendReceiveSocket, check.getModType(), check.getDelayDuplicateGap()).schedule(parent.getScheduler());
+            }
 
-                else if (check.getModType() == TFTPCommon.ModificationType.INVALIDTID)
-                {
-                    Thread delayDuplicateThread = new Thread(new DelayDuplicatePacket(sendPacket, invalidTIDSocket, check.getModType(), 0));
-                    delayDuplicateThread.start();
-                    simulateList.remove(check);
-                }
+            else if (check.getModType() == TFTPCommon.ModificationType.CONTENTS)
+            {
+                modifyContents(check);
+            }
 
-                else 
-                {
-    				System.out.println(consolePrefix + "Error on " + check.getPacketNum());
-    			}
+            else if (check.getModType() == TFTPCommon.ModificationType.INVALIDTID)
+            {
+                //Waits for the server's ERROR, not a timer, so it runs on the executor instead of the scheduler
+                parent.getExecutor().execute(new DelayDuplicatePacket(sendPacket, invalidTIDSocket, check.getModType(), 0));
+            }
 
-    			return;
+            else 
+            {
+                TFTPLogger.log(consolePrefix + "Error on " + check.getPacketNum());
             }
+
+            return;
         }
 
-		System.out.println(consolePrefix + "Sending " + TFTPCommon.packetTypeAndNumber(sendPacket.getData()) + " with no error simulation.");
-        TFTPCommon.printPacketDetails(sendPacket, consolePrefix, verbosity, true, false);
+        if (impairment != null)
+        {
+            String result = impairment.send(sendPacket, sendReceiveSocket, sendPacket.getPort() == clientPort && sendPacket.getAddress().equals(clientAddress), parent.getScheduler());
+
+            if (TFTPLogger.enabled(verbosity, TFTPCommon.Verbosity.SOME))
+            {
+                TFTPLogger.log(consolePrefix + "Impaired " + TFTPCommon.packetTypeAndNumber(sendPacket.getData()) + ": " + result);
+                TFTPCommon.printPacketDetails(sendPacket, consolePrefix, verbosity, true, false);
+            }
+
+            return;
+        }
+
+        if (TFTPLogger.enabled(verbosity, TFTPCommon.Verbosity.SOME))
+        {
+            TFTPLogger.log(consolePrefix + "Sending " + TFTPCommon.packetTypeAndNumber(sendPacket.getData()) + " with no error simulation.");
+            TFTPCommon.printPacketDetails(sendPacket, consolePrefix, verbosity, true, false);
+        }
 
 		try {
 	        sendReceiveSocket.send(sendPacket);
@@ -323,7 +527,7 @@ class ErrorSimulator extends Thread
      */
     private void losePacket (SimulatePacketInfo check)
     {
-        System.out.println(consolePrefix + "Lose " + TFTPCommon.packetTypeAndNumber(sendPacket.getData()));
+        TFTPLogger.log(consolePrefix + "Lose " + TFTPCommon.packetTypeAndNumber(sendPacket.getData()));
         TFTPCommon.printPacketDetails(sendPacket, consolePrefix, verbosity, true, false);
     }
 
@@ -372,18 +576,28 @@ class ErrorSimulator extends Thread
 
             if ( modFileName && !check.getRmName() )
             {
-                System.out.println(consolePrefix + "Changing file name in request from \"" + fileName + "\" to \"" + check.getFileName() + "\"");
+                TFTPLogger.log(consolePrefix + "Changing file name in request from \"" + fileName + "\" to \"" + check.getFileName() + "\"");
                 fileName = check.getFileName();
             }
 
             if ( modFileMode && !check.getRmMode() )
             {
-                System.out.println(consolePrefix + "Changing file mode in request from \"" + fileMode + "\" to \"" + check.getFileMode() + "\"");
+                TFTPLogger.log(consolePrefix + "Changing file mode in request from \"" + fileMode + "\" to \"" + check.getFileMode() + "\"");
                 fileMode = check.getFileMode();
             }
 
-            data = new byte[TFTPCommon.maxPacketSize];
-            len = TFTPCommon.constructReqPacket(data, opcode, fileName, fileMode, check.getRmName(), check.getRmMode());
+            byte[] reqData = new byte[TFTPCommon.maxPacketSize];
+            int reqLen = TFTPCommon.constructReqPacket(reqData, opcode, fileName, fileMode, check.getRmName(), check.getRmMode());
+
+            //Keep any options (RFC 2347) that followed the file mode
+            if (k + 1 < len)
+            {
+                System.arraycopy(data, k + 1, reqData, reqLen, len - k - 1);
+                reqLen += len - k - 1;
+            }
+
+            data = reqData;
+            len = reqLen;
             
             sendPacket.setData(data);
             sendPacket.setLength(len);
@@ -393,7 +607,7 @@ class ErrorSimulator extends Thread
         {
             data = sendPacket.getData();
 
-            System.out.println(consolePrefix + "Changing " + TFTPCommon.packetTypeAndNumber(sendPacket.getData()) + " length from " + sendPacket.getLength() + " to " + check.getLength());
+            TFTPLogger.log(consolePrefix + "Changing " + TFTPCommon.packetTypeAndNumber(sendPacket.getData()) + " length from " + sendPacket.getLength() + " to " + check.getLength());
 
             //Packet's length is greater than new length, truncate packet
             if (sendPacket.getLength() > check.getLength())
@@ -418,12 +632,12 @@ class ErrorSimulator extends Thread
         {
             if (mod.getPosition() < data.length)
             {
-                System.out.println(consolePrefix + "Changing byte " + mod.getPosition() + " of " + packetType + " from " + data[mod.getPosition()] + " to " + mod.getValue());
+                TFTPLogger.log(consolePrefix + "Changing byte " + mod.getPosition() + " of " + packetType + " from " + data[mod.getPosition()] + " to " + mod.getValue());
                 data[mod.getPosition()] = mod.getValue();
             }
             else
             {
-                System.out.println(consolePrefix + "Ignoring content modification: byte # " + mod.getPosition() + " value " + mod.getValue() + " as modification is out of bounds for this packet");
+                TFTPLogger.log(consolePrefix + "Ignoring content modification: byte # " + mod.getPosition() + " value " + mod.getValue() + " as modification is out of bounds for this packet");
             }
         }
 
@@ -457,6 +671,12 @@ class ErrorSimulator extends Thread
             len = sendPacket.getLength();
             TFTPCommon.printPacketDetails(receivePacket, consolePrefix, verbosity, false, false);
 
+            //Recorded as received, modifications may change the packet
+            if (recorder != null)
+            {
+                recorder.record(sessionNumber, port != clientPort || !address.equals(clientAddress), data, len);
+            }
+
             errorSimulateSend();
 
             data = new byte[TFTPCommon.maxPacketSize];
@@ -467,8 +687,14 @@ class ErrorSimulator extends Thread
                 sendReceiveSocket.setSoTimeout(hardTimeout);
                 sendReceiveSocket.receive(receivePacket);
             } catch (SocketTimeoutException e) {
-                System.out.println(consolePrefix + "Haven't received any packets in past " + hardTimeout + " ms. Thread returning");
-                parent.threadDone(Thread.currentThread());
+                TFTPLogger.log(consolePrefix + "Haven't received any packets in past " + hardTimeout + " ms. Thread returning");
+
+                if (impairment != null)
+                {
+                    TFTPLogger.log(consolePrefix + "Impairment: " + impairment);
+                }
+
+                parent.threadDone(this);
                 return;
             } catch (IOException e) {
                 e.printStackTrace();
@@ -494,7 +720,7 @@ class ErrorSimulator extends Thread
             }
             else
             {
-                System.out.println(consolePrefix + "Received packet from unknown port! This can happen with a delayed or duplicated request");
+                TFTPLogger.log(consolePrefix + "Received packet from unknown port! This can happen with a delayed or duplicated request");
             }
 
             data = receivePacket.getData();
@@ -509,13 +735,14 @@ class ErrorSimulator extends Thread
 }
 
 /**
- * DelayDuplicatePacket threads are spawned everytime a delay or duplicate needs to occur.
- * A new thread is required as delaying or duplicating packets causes the thread to go to sleep,
- * which would block any incoming packets from arriving.
+ * DelayDuplicatePacket is created everytime a delay, duplicate or invalid TID needs to occur.
+ * Delayed and duplicated packets are sent later by TFTPIntHost's PacketScheduler, so the
+ * ErrorSimulator keeps passing on packets without a thread sleeping for each of them. Invalid TID
+ * packets are run on the error simulator's executor, as they wait for the server's ERROR response.
  *
  * @author        Cyrus Sadeghi
  */
-class DelayDuplicatePacket extends Thread
+class DelayDuplicatePacket implements Runnable
 {
     private TFTPCommon.Verbosity verbosity;
     private DatagramPacket send, receive;
@@ -543,14 +770,33 @@ class DelayDuplicatePacket extends Thread
     }
 
     /**
-     *   Send packet normally, wait for specified time, then send the packet again
+     *   Send a delayed or duplicated packet: a duplicate is sent now and again after the gap,
+     *   a delayed packet is only sent after the delay
      *
-     *   @param  none
+     *   @param  PacketScheduler scheduler that sends the packet later
      *   @return none
      */
-    public void duplicatePacket ()
+    public void schedule (PacketScheduler scheduler)
     {
-        System.out.println(consolePrefix + "Duplicate " + TFTPCommon.packetTypeAndNumber(send.getData()) + ", sending first instance");
+        if (modType == TFTPCommon.ModificationType.DUPLICATE)
+        {
+            duplicatePacket(scheduler);
+        }
+        else if (modType == TFTPCommon.ModificationType.DELAY)
+        {
+            delayPacket(scheduler);
+        }
+    }
+
+    /**
+     *   Send packet normally, then schedule the packet to be sent again after the specified time
+     *
+     *   @param  PacketScheduler scheduler that sends the second instance
+     *   @return none
+     */
+    private void duplicatePacket (PacketScheduler scheduler)
+    {
+        TFTPLogger.log(consolePrefix + "Duplicate " + TFTPCommon.packetTypeAndNumber(send.getData()) + ", sending first instance");
         
         TFTPCommon.printPacketDetails(send, consolePrefix, verbosity, true, false);
         
@@ -561,56 +807,48 @@ class DelayDuplicatePacket extends Thread
             return;
         }
 
-        System.out.println(consolePrefix + "Waiting " + delayAmount + " ms");
+        TFTPLogger.log(consolePrefix + "Waiting " + delayAmount + " ms");
         
-        try {
-            Thread.sleep(delayAmount);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
-
-        System.out.println(consolePrefix + "Duplicate " + TFTPCommon.packetTypeAndNumber(send.getData()) + ", sending second instance");
-        
-        TFTPCommon.printPacketDetails(send, consolePrefix, verbosity, true, false);
-
-        try {
-            socket.send(send);
-        } catch (IOException e) {
-            e.printStackTrace();
-            return;
-        }   
+        scheduler.schedule(() -> {
+            TFTPLogger.log(consolePrefix + "Duplicate " + TFTPCommon.packetTypeAndNumber(send.getData()) + ", sending second instance");
+            sendNow();
+        }, delayAmount);
     }
     
     /**
-     *   Sleep for specified time, then send the packet again
+     *   Schedule the packet to be sent after the specified time
      *
-     *   @param  none
+     *   @param  PacketScheduler scheduler that sends the packet
      *   @return none
      */
-    public void delayPacket ()
+    private void delayPacket (PacketScheduler scheduler)
     {
-        System.out.println(consolePrefix + "Delay " + TFTPCommon.packetTypeAndNumber(send.getData()) + " by " + delayAmount + "ms");
+        TFTPLogger.log(consolePrefix + "Delay " + TFTPCommon.packetTypeAndNumber(send.getData()) + " by " + delayAmount + "ms");
         
         TFTPCommon.printPacketDetails(send, consolePrefix, verbosity, true, false);
 
-        System.out.println(consolePrefix + "Waiting " + delayAmount + " ms");
+        TFTPLogger.log(consolePrefix + "Waiting " + delayAmount + " ms");
 
-        try {
-            Thread.sleep(delayAmount);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-            return;
-        }
+        scheduler.schedule(() -> {
+            TFTPLogger.log(consolePrefix + "Delayed " + TFTPCommon.packetTypeAndNumber(send.getData()) + ", sending now");
+            sendNow();
+        }, delayAmount);
+    }
 
-        System.out.println(consolePrefix + "Delayed " + TFTPCommon.packetTypeAndNumber(send.getData()) + ", sending now");
-        
+    /**
+     *   Send the packet, called on the scheduler thread once its time has come
+     *
+     *   @param  none
+     *   @return none
+     */
+    private void sendNow ()
+    {
         TFTPCommon.printPacketDetails(send, consolePrefix, verbosity, true, false);
 
         try {
             socket.send(send);
         } catch (IOException e) {
             e.printStackTrace();
-            return;
         } 
     }
 
@@ -622,7 +860,7 @@ class DelayDuplicatePacket extends Thread
      */
     public void sendReceiveInvalidTID ()
     {
-        System.out.println(consolePrefix + "Sending " + TFTPCommon.packetTypeAndNumber(send.getData()) + " with invalid TID");
+        TFTPLogger.log(consolePrefix + "Sending " + TFTPCommon.packetTypeAndNumber(send.getData()) + " with invalid TID");
 
         TFTPCommon.printPacketDetails(send, consolePrefix, verbosity, true, false);
 
@@ -633,7 +871,7 @@ class DelayDuplicatePacket extends Thread
             return;
         }
 
-        System.out.println(consolePrefix + "Waiting for error packet from server");
+        TFTPLogger.log(consolePrefix + "Waiting for error packet from server");
 
         try {
             socket.receive(receive);
@@ -642,7 +880,7 @@ class DelayDuplicatePacket extends Thread
             return;
         }
 
-        System.out.println(consolePrefix + "Received " + TFTPCommon.packetTypeAndNumber(receive.getData()));
+        TFTPLogger.log(consolePrefix + "Received " + TFTPCommon.packetTypeAndNumber(receive.getData()));
 
         if (TFTPCommon.getPacketType(receive.getData()) == TFTPCommon.PacketType.ERROR)
         {
@@ -654,15 +892,7 @@ class DelayDuplicatePacket extends Thread
 
     public void run()
     {
-        if (modType == TFTPCommon.ModificationType.DUPLICATE)
-        {
-            duplicatePacket();
-        }
-        else if (modType == TFTPCommon.ModificationType.DELAY)
-        {
-            delayPacket();
-        }
-        else if (modType == TFTPCommon.ModificationType.INVALIDTID)
+        if (modType == TFTPCommon.ModificationType.INVALIDTID)
         {
             sendReceiveInvalidTID();
         }
@@ -761,6 +991,69 @@ class TFTPIntHostCommandLine extends Thread
         }
     }
 
+    /**
+     *   Set the network impairment of new transfers with given scanner
+     *
+     *   @param  Scanner scanner being used by CLI thread
+     *   @return void
+     */
+    private void setImpairment (Scanner sc)
+    {
+        ImpairmentModel impairment;
+
+        System.out.println("Settings: loss=%, burst=%good->bad:%bad->good[:%loss bad[:%loss good]], delay=ms, jitter=ms[:uniform|normal],");
+        System.out.println("          reorder=%[:ms], dup=%, rate=kbit/s[:queue ms], seed=n");
+        System.out.print("Enter comma separated settings (enter nothing for none): ");
+        scIn = sc.nextLine();
+
+        if (scIn.isEmpty())
+        {
+            parentSimulator.setImpairment(null);
+            return;
+        }
+
+        impairment = ImpairmentModel.fromString(scIn);
+
+        if (impairment == null)
+        {
+            System.out.println("Invalid impairment");
+            return;
+        }
+
+        parentSimulator.setImpairment(impairment);
+    }
+
+    /**
+     *   Set the emulated link of new transfers with given scanner
+     *
+     *   @param  Scanner scanner being used by CLI thread
+     *   @return void
+     */
+    private void setShaper (Scanner sc)
+    {
+        LinkShaper shaper;
+
+        System.out.println("Settings: rate=bits/s[k|m|g], pps=packets/s, burst=bytes[:packets], queue=packets, drop=tail|red[:min:max[:%]], seed=n");
+        System.out.print("Enter comma separated settings (enter nothing for unlimited): ");
+        scIn = sc.nextLine();
+
+        if (scIn.isEmpty())
+        {
+            parentSimulator.setShaper(null);
+            return;
+        }
+
+        shaper = LinkShaper.fromString(scIn);
+
+        if (shaper == null)
+        {
+            System.out.println("Invalid link shaping");
+            return;
+        }
+
+        parentSimulator.setShaper(shaper);
+    }
+
     /**
      *   Cancel a pending modification (if any exist)
      *
@@ -982,14 +1275,14 @@ class TFTPIntHostCommandLine extends Thread
             if ( scIn.equalsIgnoreCase("length") )
             {
                 System.out.println("Note: If the new length is greater than the old length, the packet gets padded with 0s. If the new length is smaller than the old length, the packet gets truncated");
-                newLen = getIntMenu(sc, 0, TFTPCommon.maxPacketSize, -1, "Enter new length (as integer, 0-1000): ");
+                newLen = getIntMenu(sc, 0, TFTPCommon.maxPacketSize, -1, "Enter new length (as integer, 0-" + TFTPCommon.maxPacketSize + "): ");
                 dataModPacket.setLength(newLen);
                 dataModPacket.addContentModType(TFTPCommon.ContentSubmod.LENGTH);
             }
 
             else if ( scIn.equalsIgnoreCase("manual") )
             {
-                Integer position = getIntMenu(sc, 0, TFTPCommon.maxPacketSize, -1, "Enter byte position to modify (as integer, 0-1000): ");
+                Integer position = getIntMenu(sc, 0, TFTPCommon.maxPacketSize, -1, "Enter byte position to modify (as integer, 0-" + TFTPCommon.maxPacketSize + "): ");
                 Integer value = getIntMenu(sc, 0, 255, -1, "Enter new value for byte: ");
 
                 ModifyByte modByte = new ModifyByte(position, value.byteValue());
@@ -1142,6 +1435,8 @@ class TFTPIntHostCommandLine extends Thread
             System.out.println("tid: Send packet with invalid TID");
             System.out.println("c: Cancel pending modification");
             System.out.println("i: Set IP address of TFTP Server (current: " + serverAddress + ")");
+            System.out.println("n: Set network impairment (current: " + (parentSimulator.getImpairment() == null ? "none" : parentSimulator.getImpairment()) + ")");
+            System.out.println("s: Set link shaping (current: " + (parentSimulator.getShaper() == null ? "none" : parentSimulator.getShaper()) + ")");
             System.out.println("p: Print modifications");
             System.out.println("v: Set verbosity (current: " + TFTPCommon.verbosityToString(verbosity) + ")");
             System.out.println("q: Quit");
@@ -1176,6 +1471,14 @@ class TFTPIntHostCommandLine extends Thread
             {
                 setServerAddress(sc);
             }
+            else if ( scIn.equalsIgnoreCase("n") )
+            {
+                setImpairment(sc);
+            }
+            else if ( scIn.equalsIgnoreCase("s") )
+            {
+                setShaper(sc);
+            }
             else if ( scIn.equalsIgnoreCase("p") )
             {
                 System.out.println(parentSimulator.simulateListToString());
@@ -1205,6 +1508,7 @@ class TFTPIntHostCommandLine extends Thread
             else if ( scIn.equalsIgnoreCase("q") ) 
             {
                 sc.close();
+                TFTPLogger.flush();
                 System.exit(1);
             }
             else if ( scIn.equalsIgnoreCase("") == false ) 
@@ -1443,6 +1747,219 @@ class SimulatePacketInfo
 }
 
 
+/**
+ * ModificationTable holds the packet modifications of an ErrorSimulator (or the ones pending for the
+ * next client), indexed by packet type and packet number so finding the modification for a forwarded
+ * packet takes the same time however many modifications there are. Modifications of the same packet
+ * are applied in the order they were added (i.e. the first and second time DATA 5 is sent), requests
+ * match whatever their packet number. The CLI thread adds and cancels modifications while
+ * ErrorSimulators and the listener take them, so every method is synchronized.
+ *
+ * @author        Cyrus Sadeghi
+ */
+class ModificationTable
+{
+    /**
+     * A modification and its position in the order modifications were added
+     */
+    private static class Entry
+    {
+        private final long sequence;
+        private final SimulatePacketInfo modification;
+
+        private Entry(long sequence, SimulatePacketInfo modification)
+        {
+            this.sequence = sequence;
+            this.modification = modification;
+        }
+    }
+
+    //Modifications by packet (see key), and all of them in the order they were added
+    private Map<Long, ArrayDeque<Entry>> index;
+    private TreeMap<Long, Entry> ordered;
+    private long nextSequence;
+
+    /**
+     *   Constructor for ModificationTable
+     *
+     *   @param  none
+     *   @return ModificationTable
+     */
+    public ModificationTable()
+    {
+        index = new HashMap<Long, ArrayDeque<Entry>>();
+        ordered = new TreeMap<Long, Entry>();
+        nextSequence = 0;
+    }
+
+    /**
+     *   Index key of a packet
+     *
+     *   @param  TFTPCommon.PacketType packet type
+     *   @param  int packet number (ignored for requests)
+     *   @return long key
+     */
+    private static long key(TFTPCommon.PacketType pType, int pNum)
+    {
+        return ((long) pType.ordinal() << 32) | (pType == TFTPCommon.PacketType.REQUEST ? 0 : (pNum & 0xFFFFFFFFL));
+    }
+
+    /**
+     *   Add a modification after the ones already in the table
+     *
+     *   @param  SimulatePacketInfo modification to add
+     *   @return Boolean true if successfully added
+     */
+    public synchronized Boolean add(SimulatePacketInfo modification)
+    {
+        Entry entry = new Entry(nextSequence++, modification);
+
+        index.computeIfAbsent(key(modification.getPacketType(), modification.getPacketNum()), k -> new ArrayDeque<Entry>()).add(entry);
+        ordered.put(entry.sequence, entry);
+        return true;
+    }
+
+    /**
+     *   Move every modification of another table to the end of this one, in their order
+     *
+     *   @param  ModificationTable table to empty into this one
+     *   @return none
+     */
+    public void addAll(ModificationTable other)
+    {
+        for (SimulatePacketInfo modification : other.takeAll().list())
+        {
+            add(modification);
+        }
+    }
+
+    /**
+     *   Remove and return the first modification of a packet
+     *
+     *   @param  TFTPCommon.PacketType type of the packet
+     *   @param  int packet number (block number, or error code for ERROR packets)
+     *   @return SimulatePacketInfo modification to apply, null if the packet isn't modified
+     */
+    public synchronized SimulatePacketInfo take(TFTPCommon.PacketType pType, int pNum)
+    {
+        Long packetKey;
+        ArrayDeque<Entry> entries;
+        Entry entry;
+
+        if (ordered.isEmpty())
+        {
+            return null;
+        }
+
+        packetKey = key(pType, pNum);
+        entries = index.get(packetKey);
+
+        if (entries == null)
+        {
+            return null;
+        }
+
+        entry = entries.poll();
+
+        if (entries.isEmpty())
+        {
+            index.remove(packetKey);
+        }
+
+        ordered.remove(entry.sequence);
+        return entry.modification;
+    }
+
+    /**
+     *   Remove and return every modification, leaving this table empty
+     *
+     *   @param  none
+     *   @return ModificationTable table holding the modifications, in the same order
+     */
+    public synchronized ModificationTable takeAll()
+    {
+        ModificationTable taken = new ModificationTable();
+
+        taken.index = index;
+        taken.ordered = ordered;
+        taken.nextSequence = nextSequence;
+        index = new HashMap<Long, ArrayDeque<Entry>>();
+        ordered = new TreeMap<Long, Entry>();
+        return taken;
+    }
+
+    /**
+     *   Cancel a modification
+     *
+     *   @param  int position of the modification, in the order they were added (from 0)
+     *   @return none
+     *   @throws IndexOutOfBoundsException if there is no modification at that position
+     */
+    public synchronized void remove(int position) throws IndexOutOfBoundsException
+    {
+        Iterator<Entry> it = ordered.values().iterator();
+        Entry entry;
+        ArrayDeque<Entry> entries;
+        long packetKey;
+
+        if (position < 0 || position >= ordered.size())
+        {
+            throw new IndexOutOfBoundsException("Modification " + position + " of " + ordered.size());
+        }
+
+        for (int i = 0; i < position; i++)
+        {
+            it.next();
+        }
+
+        entry = it.next();
+        it.remove();
+        packetKey = key(entry.modification.getPacketType(), entry.modification.getPacketNum());
+        entries = index.get(packetKey);
+        entries.remove(entry);
+
+        if (entries.isEmpty())
+        {
+            index.remove(packetKey);
+        }
+    }
+
+    public synchronized int size()
+    {
+        return ordered.size();
+    }
+
+    /**
+     *   Modifications in the order they were added
+     *
+     *   @param  none
+     *   @return List<SimulatePacketInfo> copy of the modifications
+     */
+    public synchronized List<SimulatePacketInfo> list()
+    {
+        List<SimulatePacketInfo> modifications = new ArrayList<SimulatePacketInfo>(ordered.size());
+
+        for (Entry entry : ordered.values())
+        {
+            modifications.add(entry.modification);
+        }
+
+        return modifications;
+    }
+
+    public synchronized String toString()
+    {
+        StringBuilder returnString = new StringBuilder();
+
+        for (Entry entry : ordered.values())
+        {
+            returnString.append(entry.modification).append(System.lineSeparator());
+        }
+
+        return returnString.toString();
+    }
+}
+
 /**
  * ModifyByte contains information for a byte modification in a packet. It contains
  * the byte to modify and the new value for the byte
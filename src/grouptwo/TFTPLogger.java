@@ -0,0 +1,295 @@
+package grouptwo;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * TFTPLogger is where transfer output goes (instead of straight to System.out). Output is passed to
+ * a pluggable Sink: by default lines are printed to the console as they are logged, the server and
+ * error simulator instead use an AsyncSink so transfer threads never wait on console I/O.
+ * Per-block and per-packet lines are only built when the caller's verbosity asks for them (see enabled),
+ * at Verbosity.NONE a transfer logs a summary line when it ends.
+ *
+ * @author        Cyrus Sadeghi
+ */
+public class TFTPLogger
+{
+	/**
+	 * Destination for log lines
+	 */
+	public static interface Sink
+	{
+		/**
+		 *   Write one or more lines (separated by line separators, no trailing separator)
+		 *
+		 *   @param  String lines to write
+		 *   @return none
+		 */
+		public void write(String lines);
+
+		/**
+		 *   Wait until every line written so far has reached its destination
+		 *
+		 *   @param  none
+		 *   @return none
+		 */
+		public void flush();
+	}
+
+	/**
+	 * Sink that prints to the console on the calling thread
+	 */
+	public static class ConsoleSink implements Sink
+	{
+		private final PrintStream out;
+
+		public ConsoleSink()
+		{
+			this(System.out);
+		}
+
+		/**
+		 *   Constructor for ConsoleSink printing to another stream (i.e. System.err, leaving System.out for results)
+		 *
+		 *   @param  PrintStream stream to print to
+		 *   @return ConsoleSink
+		 */
+		public ConsoleSink(PrintStream out)
+		{
+			this.out = out;
+		}
+
+		public void write(String lines)
+		{
+			out.println(lines);
+		}
+
+		public void flush()
+		{
+			out.flush();
+		}
+	}
+
+	/**
+	 * Sink that queues lines in a bounded ring buffer and writes them to another sink from a
+	 * background thread, in batches. Lines logged while the buffer is full are dropped (and counted)
+	 * rather than blocking the transfer thread
+	 */
+	public static class AsyncSink implements Sink, Runnable
+	{
+		private final BlockingQueue<String> ring;
+		private final Sink target;
+		private final AtomicLong dropped, queued;
+		private volatile long written;
+		private long droppedReported;
+
+		/**
+		 *   Constructor for AsyncSink, starts its writer thread
+		 *
+		 *   @param  Sink sink to write to
+		 *   @param  int number of lines the ring buffer holds
+		 *   @return AsyncSink
+		 */
+		public AsyncSink(Sink target, int capacity)
+		{
+			this.target = target;
+			ring = new ArrayBlockingQueue<String>(capacity);
+			dropped = new AtomicLong();
+			queued = new AtomicLong();
+			written = 0;
+			droppedReported = 0;
+
+			Thread writer = new Thread(this, "logWriter");
+			writer.setDaemon(true);
+			writer.start();
+		}
+
+		public void write(String lines)
+		{
+			if (ring.offer(lines))
+			{
+				queued.incrementAndGet();
+			}
+			else
+			{
+				dropped.incrementAndGet();
+			}
+		}
+
+		/**
+		 *   Waits (up to a second) for the writer thread to catch up
+		 *
+		 *   @param  none
+		 *   @return none
+		 */
+		public void flush()
+		{
+			long deadline = System.currentTimeMillis() + 1000;
+
+			while (written < queued.get() && System.currentTimeMillis() < deadline)
+			{
+				try {
+					Thread.sleep(1);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+
+			target.flush();
+		}
+
+		public long getDropped()
+		{
+			return dropped.get();
+		}
+
+		public void run()
+		{
+			List<String> batch = new ArrayList<String>();
+			StringBuilder lines = new StringBuilder();
+			String first;
+			long droppedNow;
+
+			while (true)
+			{
+				try {
+					first = ring.poll(100, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					return;
+				}
+
+				droppedNow = dropped.get();
+
+				if (first == null && droppedNow == droppedReported)
+				{
+					continue;
+				}
+
+				lines.setLength(0);
+				batch.clear();
+
+				if (first != null)
+				{
+					batch.add(first);
+					ring.drainTo(batch, 1023);
+				}
+
+				for (String line : batch)
+				{
+					if (lines.length() > 0)
+					{
+						lines.append(System.lineSeparator());
+					}
+
+					lines.append(line);
+				}
+
+				if (droppedNow != droppedReported)
+				{
+					if (lines.length() > 0)
+					{
+						lines.append(System.lineSeparator());
+					}
+
+					lines.append("(log buffer full, " + (droppedNow - droppedReported) + " lines dropped)");
+					droppedReported = droppedNow;
+				}
+
+				target.write(lines.toString());
+				written += batch.size();
+			}
+		}
+	}
+
+	private static volatile Sink sink = new ConsoleSink();
+
+	/**
+	 *   Set where log lines go
+	 *
+	 *   @param  Sink new sink
+	 *   @return none
+	 */
+	public static void setSink(Sink newSink)
+	{
+		sink.flush();
+		sink = newSink;
+	}
+
+	public static Sink getSink()
+	{
+		return sink;
+	}
+
+	/**
+	 *   Parse the startup option value: "sync" (print on the logging thread) or "async[:lines]"
+	 *   (ring buffer of the given number of lines, default 65536)
+	 *
+	 *   @param  String option value
+	 *   @return Sink new sink, null if the option is invalid
+	 */
+	public static Sink sinkFromString(String option)
+	{
+		String[] parts = option.split(":", 2);
+		int capacity = 65536;
+
+		if (parts[0].equalsIgnoreCase("sync"))
+		{
+			return new ConsoleSink();
+		}
+		else if (!parts[0].equalsIgnoreCase("async"))
+		{
+			return null;
+		}
+
+		if (parts.length > 1)
+		{
+			try {
+				capacity = Math.max(1, Integer.parseInt(parts[1]));
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+
+		return new AsyncSink(new ConsoleSink(), capacity);
+	}
+
+	/**
+	 *   Log a line
+	 *
+	 *   @param  String line to log
+	 *   @return none
+	 */
+	public static void log(String line)
+	{
+		sink.write(line);
+	}
+
+	/**
+	 *   Returns true if output at the given level should be logged for a caller with the given verbosity.
+	 *   Callers check this before building per-block or per-packet lines
+	 *
+	 *   @param  Verbosity verbosity of caller
+	 *   @param  Verbosity level of the output (SOME: per-block lines, ALL: packet contents)
+	 *   @return Boolean true if output should be logged
+	 */
+	public static Boolean enabled(TFTPCommon.Verbosity verbose, TFTPCommon.Verbosity level)
+	{
+		return verbose.ordinal() >= level.ordinal();
+	}
+
+	/**
+	 *   Wait for logged lines to be written, called before exiting
+	 *
+	 *   @param  none
+	 *   @return none
+	 */
+	public static void flush()
+	{
+		sink.flush();
+	}
+}
@@ -0,0 +1,187 @@
+package grouptwo;
+
+import java.util.Map;
+
+/**
+ * TFTPRequest parses a RRQ/WRQ packet received by the server. It checks the opcode,
+ * file name, file mode and any RFC 2347 options and, for malformed requests, builds the
+ * message that is sent back to the client in the ERROR packet. Used by ClientConnectionThread
+ * and by the selector server's transfers so both modes accept exactly the same requests.
+ *
+ * @author        Kenan El-Gaouny
+ * @author        Cyrus Sadeghi
+ */
+public class TFTPRequest
+{
+	private TFTPCommon.Request requestType;
+	private TFTPCommon.ContentSubmod requestError;
+	private String fileName, mode, errorString;
+	private Map<String, String> options;
+
+	/**
+	 *   Constructor for TFTPRequest, only used by parse
+	 *
+	 *   @param  none
+	 *   @return TFTPRequest
+	 */
+	private TFTPRequest()
+	{
+		requestType = TFTPCommon.Request.ERROR;
+		requestError = TFTPCommon.ContentSubmod.INVALID;
+		fileName = new String();
+		mode = new String();
+		errorString = new String();
+	}
+
+	/**
+	 *   Parse a request packet. The returned request has type ERROR if the packet is malformed,
+	 *   getErrorString then describes the problem
+	 *
+	 *   @param  byte[] request packet data
+	 *   @param  int length of request packet
+	 *   @return TFTPRequest parsed request
+	 */
+	public static TFTPRequest parse(byte[] data, int len)
+	{
+		TFTPRequest request = new TFTPRequest();
+		int j = 0, k = 0;
+
+		if (data[0] != 0)
+		{
+			request.requestType = TFTPCommon.Request.ERROR;
+			request.requestError = TFTPCommon.ContentSubmod.OPCODE;
+		}
+		else if (data[1] == 1)
+		{
+			request.requestType = TFTPCommon.Request.READ; // could be read
+		}
+		else if (data[1] == 2)
+		{
+			request.requestType = TFTPCommon.Request.WRITE; // could be write
+		}
+		else
+		{
+			request.requestType = TFTPCommon.Request.ERROR;
+			request.requestError = TFTPCommon.ContentSubmod.OPCODE;
+		}
+
+		if (request.requestType != TFTPCommon.Request.ERROR)  // check for filename
+		{
+			for (j = 2; j < len; j++)
+			{
+				if (data[j] == 0)
+				{
+					break;
+				}
+			}
+
+			if (j == len)
+			{
+				request.requestType = TFTPCommon.Request.ERROR; // didn't find 0 byte
+			}
+			if (j == 2)
+			{
+				request.requestType = TFTPCommon.Request.ERROR; // filename is 0 bytes long
+			}
+
+			request.fileName = new String(data, 2, j - 2);
+		}
+
+		if (request.requestType != TFTPCommon.Request.ERROR) // check for mode
+		{
+			for (k = j + 1; k < len; k++)
+			{
+				if (data[k] == 0)
+				{
+					break;
+				}
+			}
+
+			if (k == len)
+			{
+				request.requestType = TFTPCommon.Request.ERROR; // didn't find a 0 byte
+			}
+			if (k == j + 1)
+			{
+				request.requestType = TFTPCommon.Request.ERROR; // mode is 0 bytes long
+			}
+
+			request.mode = new String(data, j + 1, k - j - 1);
+
+			if ( !request.mode.equalsIgnoreCase("octet") && !request.mode.equalsIgnoreCase("netascii") && request.requestType != TFTPCommon.Request.ERROR )
+			{
+				request.requestType = TFTPCommon.Request.ERROR; // mode was not passed correctly
+				request.requestError = TFTPCommon.ContentSubmod.FILEMODE;
+			}
+		}
+
+		if (request.requestType != TFTPCommon.Request.ERROR) // check for options (RFC 2347)
+		{
+			request.options = TFTPCommon.parseOptions(data, k + 1, len);
+
+			if (request.options == null)
+			{
+				request.requestType = TFTPCommon.Request.ERROR; // other stuff at end of packet
+			}
+		}
+
+		if (request.requestType == TFTPCommon.Request.ERROR)
+		{
+			if (request.requestError == TFTPCommon.ContentSubmod.OPCODE)
+			{
+				request.errorString = "Request packet has invalid opcode: " + data[0] + "" + data[1];
+			}
+			else if (request.requestError == TFTPCommon.ContentSubmod.FILEMODE)
+			{
+				request.errorString = "Request packet has invalid file mode: " + request.mode;
+			}
+			else if (request.requestError == TFTPCommon.ContentSubmod.INVALID && (k == (len - 1) ) )
+			{
+				request.errorString = "Request packet missing file name or file mode";
+			}
+			else
+			{
+				request.errorString = "Request packet format incorrect";
+			}
+		}
+
+		return request;
+	}
+
+	public TFTPCommon.Request getRequestType()
+	{
+		return requestType;
+	}
+
+	public String getFileName()
+	{
+		return fileName;
+	}
+
+	public String getMode()
+	{
+		return mode;
+	}
+
+	/**
+	 *   Options requested by the client (name, value), only set for valid requests
+	 *
+	 *   @param  none
+	 *   @return Map<String, String> requested options
+	 */
+	public Map<String, String> getOptions()
+	{
+		return options;
+	}
+
+	/**
+	 *   Message to send back in the ERROR packet for a malformed request
+	 *
+	 *   @param  none
+	 *   @return String error message
+	 */
+	public String getErrorString()
+	{
+		return errorString;
+	}
+}
@@ -0,0 +1,1239 @@
+package grouptwo;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * TFTPSelectorServer is the event loop mode of TFTPServer. Instead of a ClientConnectionThread
+ * (blocked in receive, with its own socket) for every client, a small number of SelectorLoop threads
+ * each own a single non-blocking DatagramChannel and serve all of the transfers assigned to them.
+ * A loop's channel port is the TID of all of its transfers, transfers are told apart by the client's
+ * address and port. The first request listener runs on the thread that calls run(), extra listeners
+ * (SO_REUSEPORT channels, see TFTPServer) run on their own threads and share the session table.
+ * File work (opening, reading and writing blocks, closing) is done on the loop thread, so this mode
+ * assumes fast local disks: a slow disk stalls every transfer on the loop, not just its own. For the
+ * same reason it can't be combined with WriteBehind, whose backpressure wait and sync before the
+ * final ACK would block the loop.
+ *
+ * @author        Cyrus Sadeghi
+ */
+public class TFTPSelectorServer
+{
+	private TFTPServer parent;
+	private DatagramChannel[] listenChannels;
+	private SelectorLoop[] loops;
+	private SessionTable<SelectorTransfer> sessions;
+	private volatile Boolean acceptConnections;
+	private final AtomicInteger nextLoop, transferCount;
+
+	/**
+	 *   Constructor for TFTPSelectorServer, opens the loop channels
+	 *
+	 *   @param  TFTPServer server owning the CLI and transfer settings
+	 *   @param  int number of SelectorLoop threads
+	 *   @param  DatagramChannel[] channels bound to the listen port, one per request listener
+	 *   @param  int maximum number of transfers in progress, further requests are refused
+	 *   @return TFTPSelectorServer
+	 */
+	public TFTPSelectorServer(TFTPServer parent, int loopCount, DatagramChannel[] listenChannels, int maxSessions) throws IOException
+	{
+		this.parent = parent;
+		this.listenChannels = listenChannels;
+		sessions = new SessionTable<SelectorTransfer>(maxSessions);
+		acceptConnections = true;
+		nextLoop = new AtomicInteger();
+		transferCount = new AtomicInteger();
+		loops = new SelectorLoop[loopCount];
+
+		for (int i = 0; i < loopCount; i++)
+		{
+			loops[i] = new SelectorLoop(this, i + 1);
+		}
+	}
+
+	/**
+	 *   Called by TFTPServer when the operator quits, stops accepting requests. Loops exit once
+	 *   their transfers in progress end
+	 *
+	 *   @param  none
+	 *   @return none
+	 */
+	public void initiateExit()
+	{
+		acceptConnections = false;
+
+		for (DatagramChannel listenChannel : listenChannels)
+		{
+			try {
+				listenChannel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 *   Called by a SelectorLoop once a transfer has finished, so a new request from the same
+	 *   client address and port is no longer treated as a duplicate
+	 *
+	 *   @param  SelectorTransfer finished transfer
+	 *   @return none
+	 */
+	public void transferDone(SelectorTransfer transfer)
+	{
+		sessions.remove(transfer.getClientAddress(), transfer);
+		parent.getMetrics().transferEnded(transfer.getMetrics());
+	}
+
+	public TransferMetrics getMetrics()
+	{
+		return parent.getMetrics();
+	}
+
+	/**
+	 *   Starts the loops and receives requests on port 69. Each new request is given to the next loop
+	 *   (round robin). Returns once the operator has quit and every transfer in progress has ended
+	 *
+	 *   @param  none
+	 *   @return none
+	 */
+	public void run()
+	{
+		List<Thread> listeners = new ArrayList<Thread>();
+
+		for (SelectorLoop loop : loops)
+		{
+			loop.start();
+		}
+
+		TFTPLogger.log("Server: Serving transfers on " + loops.length + " selector loop(s), " + listenChannels.length + " request listener(s)");
+
+		for (int i = 1; i < listenChannels.length; i++)
+		{
+			final DatagramChannel listenChannel = listenChannels[i];
+			Thread listener = new Thread(() -> listen(listenChannel), "requestListener" + (i + 1));
+
+			listener.start();
+			listeners.add(listener);
+		}
+
+		listen(listenChannels[0]);
+
+		for (Thread listener : listeners)
+		{
+			try {
+				listener.join();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+
+		for (SelectorLoop loop : loops)
+		{
+			loop.shutdown();
+		}
+
+		for (SelectorLoop loop : loops)
+		{
+			try {
+				loop.join();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 *   Receive requests on one listen channel until the operator quits. The session table is shared
+	 *   by all listeners, so a duplicate request starts no second transfer whichever listener gets it.
+	 *   Requests arriving while the table is full are refused with an ERROR
+	 *
+	 *   @param  DatagramChannel channel bound to the listen port
+	 *   @return none
+	 */
+	private void listen(DatagramChannel listenChannel)
+	{
+		ByteBuffer requestBuffer = ByteBuffer.allocate(TFTPCommon.maxPacketSize);
+		SocketAddress client;
+		SelectorTransfer transfer;
+		SessionTable.Result added;
+		byte[] errMsg;
+		int errLen;
+
+		while (acceptConnections)
+		{
+			requestBuffer.clear();
+
+			try {
+				client = listenChannel.receive(requestBuffer);
+			} catch (AsynchronousCloseException e) {
+				TFTPLogger.log("Socket closed, no longer accepting new packets.");
+				break;
+			} catch (IOException e) {
+				e.printStackTrace();
+				break;
+			}
+
+			requestBuffer.flip();
+
+			if (parent.getVerbosity() != TFTPCommon.Verbosity.NONE)
+			{
+				TFTPLogger.log("Server: Packet received.");
+			}
+
+			if (sessions.contains(client))
+			{
+				TFTPLogger.log("Server: Duplicate request received from " + client + ". Ignoring");
+				continue;
+			}
+
+			transfer = new SelectorTransfer(client, TFTPRequest.parse(requestBuffer.array(), requestBuffer.limit()), transferCount.incrementAndGet(), parent.getVerbosity(), parent.getTimeout(), parent.getOverwrite());
+
+			added = sessions.add(client, transfer);
+
+			if (added == SessionTable.Result.DUPLICATE)
+			{
+				TFTPLogger.log("Server: Duplicate request received from " + client + ". Ignoring");
+				continue;
+			}
+			else if (added == SessionTable.Result.FULL)
+			{
+				TFTPLogger.log("Server: " + sessions.getMaxSessions() + " transfers in progress, refusing request from " + client);
+				errMsg = new byte[TFTPCommon.defaultBlockSize];
+				errLen = TFTPCommon.constructErrorPacket(errMsg, TFTPCommon.ErrorCode.INVALID, "Server busy, too many transfers in progress");
+				parent.getMetrics().countErrorSent(TFTPCommon.ErrorCode.INVALID);
+
+				try {
+					listenChannel.send(ByteBuffer.wrap(errMsg, 0, errLen), client);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+
+				continue;
+			}
+
+			transfer.setMetrics(parent.getMetrics().transferStarted(transfer.getRequestType(), transfer.getFileName(), client, transfer.getStats(), transfer.getTimer()));
+			loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)].addTransfer(transfer);
+		}
+	}
+}
+
+/**
+ * SelectorLoop is one event loop thread of TFTPSelectorServer. It owns a non-blocking DatagramChannel,
+ * dispatches every packet received on it to the SelectorTransfer for the sender's address and fires
+ * transfer timeouts. Transfers are only ever touched by their loop thread.
+ *
+ * @author        Cyrus Sadeghi
+ */
+class SelectorLoop extends Thread
+{
+	/**
+	 * A transfer's place in the timer queue, under the deadline it had when queued
+	 */
+	private static class TimerEntry
+	{
+		private final long deadline;
+		private final SelectorTransfer transfer;
+
+		private TimerEntry(long deadline, SelectorTransfer transfer)
+		{
+			this.deadline = deadline;
+			this.transfer = transfer;
+		}
+	}
+
+	private TFTPSelectorServer parent;
+	private Selector selector;
+	private DatagramChannel channel;
+	private ByteBuffer receiveBuffer;
+	private byte[] sendBuffer;
+	private ByteBuffer sendDirect;
+	private Map<SocketAddress, SelectorTransfer> transfers;
+	private Queue<SelectorTransfer> pending;
+	private PriorityQueue<TimerEntry> timers;
+	private volatile Boolean running;
+	private final String consolePrefix;
+
+	/**
+	 *   Constructor for SelectorLoop, opens and registers this loop's channel
+	 *
+	 *   @param  TFTPSelectorServer server that hands out transfers
+	 *   @param  int loop number
+	 *   @return SelectorLoop
+	 */
+	public SelectorLoop(TFTPSelectorServer parent, int loopNumber) throws IOException
+	{
+		super("selectorLoop" + loopNumber);
+
+		this.parent = parent;
+		consolePrefix = "Server Loop " + loopNumber + ": ";
+		selector = Selector.open();
+		channel = DatagramChannel.open();
+		channel.bind(new InetSocketAddress(0));
+		channel.configureBlocking(false);
+		//Shared by all of the loop's transfers, so ask for room for several large windows
+		channel.setOption(StandardSocketOptions.SO_RCVBUF, 4 * 1024 * 1024);
+		channel.register(selector, SelectionKey.OP_READ);
+		receiveBuffer = ByteBuffer.allocate(TFTPCommon.maxPacketSize);
+		sendBuffer = new byte[TFTPCommon.maxPacketSize];
+		sendDirect = ByteBuffer.allocateDirect(TFTPCommon.maxPacketSize);
+		transfers = new HashMap<SocketAddress, SelectorTransfer>();
+		pending = new ConcurrentLinkedQueue<SelectorTransfer>();
+		timers = new PriorityQueue<TimerEntry>((a, b) -> Long.compare(a.deadline, b.deadline));
+		running = true;
+	}
+
+	/**
+	 *   Called by the request listener, queues a new transfer for this loop
+	 *
+	 *   @param  SelectorTransfer new transfer
+	 *   @return none
+	 */
+	public void addTransfer(SelectorTransfer transfer)
+	{
+		pending.add(transfer);
+		selector.wakeup();
+	}
+
+	/**
+	 *   Called once requests are no longer accepted, the loop exits when its transfers have ended
+	 *
+	 *   @param  none
+	 *   @return none
+	 */
+	public void shutdown()
+	{
+		running = false;
+		selector.wakeup();
+	}
+
+	/**
+	 *   Buffer for building DATA packets, shared by this loop's transfers (only used on the loop thread,
+	 *   and send copies the packet out before returning)
+	 *
+	 *   @param  none
+	 *   @return byte[] send buffer
+	 */
+	public byte[] getSendBuffer()
+	{
+		return sendBuffer;
+	}
+
+	/**
+	 *   Send a packet to a client from this loop's channel. The channel is non-blocking, if the socket
+	 *   buffer is full the packet is dropped and the transfer's timeout takes care of resending it.
+	 *   Packets are copied to a direct buffer owned by the loop, which the channel sends from without
+	 *   another copy
+	 *
+	 *   @param  byte[] packet data
+	 *   @param  int packet length
+	 *   @param  SocketAddress destination
+	 *   @return none
+	 */
+	public void send(byte[] data, int len, SocketAddress address)
+	{
+		try {
+			sendDirect.clear();
+			sendDirect.put(data, 0, len);
+			sendDirect.flip();
+			channel.send(sendDirect, address);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public TransferMetrics getMetrics()
+	{
+		return parent.getMetrics();
+	}
+
+	/**
+	 *   Start transfers handed to this loop by the request listener
+	 *
+	 *   @param  long current time (ms)
+	 *   @return none
+	 */
+	private void startPending(long now)
+	{
+		SelectorTransfer transfer;
+
+		while ((transfer = pending.poll()) != null)
+		{
+			transfer.start(this, now);
+			finishOrSchedule(transfer);
+		}
+	}
+
+	/**
+	 *   Receive every packet waiting on the channel and hand it to its transfer. Packets from an
+	 *   address without a transfer on this loop get an unknown TID error
+	 *
+	 *   @param  long current time (ms)
+	 *   @return none
+	 */
+	private void receivePackets(long now) throws IOException
+	{
+		SocketAddress address;
+		SelectorTransfer transfer;
+		byte[] errMsg;
+		int errLen;
+
+		while (true)
+		{
+			receiveBuffer.clear();
+			address = channel.receive(receiveBuffer);
+
+			if (address == null)
+			{
+				return;
+			}
+
+			//Too short to hold an opcode and block number, the receive buffer still holds the previous packet past its length
+			if (receiveBuffer.position() < 4)
+			{
+				TFTPLogger.log(consolePrefix + "Ignoring packet of length " + receiveBuffer.position() + " from " + address);
+				continue;
+			}
+
+			transfer = transfers.get(address);
+
+			if (transfer == null)
+			{
+				TFTPLogger.log(consolePrefix + "Received packet from unknown TID " + address);
+				parent.getMetrics().countUnknownTID();
+				parent.getMetrics().countErrorSent(TFTPCommon.ErrorCode.UNKNOWNTID);
+				errMsg = new byte[TFTPCommon.defaultBlockSize];
+				errLen = TFTPCommon.constructErrorPacket(errMsg, TFTPCommon.ErrorCode.UNKNOWNTID, "Received packet from invalid TID: " + address);
+				send(errMsg, errLen, address);
+				continue;
+			}
+
+			transfer.handlePacket(receiveBuffer.array(), receiveBuffer.position(), now);
+			finishOrSchedule(transfer);
+		}
+	}
+
+	/**
+	 *   Fire the timeout of every transfer whose deadline has passed. A transfer's current entry in the
+	 *   timer queue is the one under its queued deadline. A transfer that has moved its deadline later
+	 *   since is queued again under the new deadline instead of timing out, one that moved it earlier
+	 *   was given a new entry (see finishOrSchedule) and its old entry is skipped
+	 *
+	 *   @param  long current time (ms)
+	 *   @return none
+	 */
+	private void expireTimers(long now)
+	{
+		TimerEntry entry;
+		SelectorTransfer transfer;
+
+		while (!timers.isEmpty() && timers.peek().deadline <= now)
+		{
+			entry = timers.poll();
+			transfer = entry.transfer;
+
+			if (transfer.isDone() || entry.deadline != transfer.getQueuedDeadline())
+			{
+				continue;
+			}
+
+			if (transfer.getDeadline() <= now)
+			{
+				transfer.handleTimeout(now);
+			}
+
+			if (!transfer.isDone())
+			{
+				schedule(transfer);
+			}
+			else
+			{
+				finishOrSchedule(transfer);
+			}
+		}
+	}
+
+	/**
+	 *   Add a timer queue entry for the transfer's current deadline
+	 *
+	 *   @param  SelectorTransfer transfer to schedule
+	 *   @return none
+	 */
+	private void schedule(SelectorTransfer transfer)
+	{
+		transfer.setQueuedDeadline(transfer.getDeadline());
+		timers.add(new TimerEntry(transfer.getDeadline(), transfer));
+	}
+
+	/**
+	 *   Track a transfer after it has handled an event: remove it once done, otherwise make
+	 *   sure it is known to this loop and queued no later than its deadline
+	 *
+	 *   @param  SelectorTransfer transfer that handled an event
+	 *   @return none
+	 */
+	private void finishOrSchedule(SelectorTransfer transfer)
+	{
+		if (transfer.isDone())
+		{
+			transfers.remove(transfer.getClientAddress());
+			parent.transferDone(transfer);
+		}
+		else if (!transfers.containsKey(transfer.getClientAddress()))
+		{
+			transfers.put(transfer.getClientAddress(), transfer);
+			schedule(transfer);
+		}
+		else if (transfer.getDeadline() < transfer.getQueuedDeadline())
+		{
+			schedule(transfer);
+		}
+	}
+
+	public void run()
+	{
+		long now, wait;
+
+		while (running || !transfers.isEmpty() || !pending.isEmpty())
+		{
+			now = System.currentTimeMillis();
+			startPending(now);
+
+			wait = 0;
+
+			if (!timers.isEmpty())
+			{
+				wait = Math.max(1, timers.peek().deadline - now);
+			}
+
+			try {
+				selector.select(wait);
+				selector.selectedKeys().clear();
+
+				now = System.currentTimeMillis();
+				receivePackets(now);
+			} catch (ClosedChannelException e) {
+				break;
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+
+			expireTimers(now);
+		}
+
+		try {
+			channel.close();
+			selector.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
+
+/**
+ * SelectorTransfer is a single server transfer in the selector server, written as a state machine.
+ * It follows the same protocol as ClientConnectionThread with TFTPCommon.sendDataWTimeout and
+ * TFTPCommon.receiveDataWTimeout (including blksize/windowsize options and the adaptive retransmission
+ * timeout), but instead of blocking in receive it is given one packet or one timeout at a time by its SelectorLoop.
+ *
+ * @author        Cyrus Sadeghi
+ */
+class SelectorTransfer
+{
+	private static enum State { OACK, SENDING, RECEIVING, DONE };
+
+	private SelectorLoop loop;
+	private SocketAddress clientAddress;
+	private TFTPRequest request;
+	private TransferOptions options;
+	private FileOperation fileOp;
+	private TransferStats stats;
+	private TransferMetrics.Transfer metrics;
+	private RetransmitTimer timer;
+	private TFTPCommon.Verbosity verbose;
+	private State state;
+	private Boolean status, rewindAcked;
+	private long deadline, queuedDeadline, lastPacketTime;
+	private int maxTimeout, hardTimeout, timeoutCount;
+	private int blockSize, windowSize, tftpBlocks;
+	//Sending: first unacknowledged block, receiving: next expected block
+	private int firstBlock, blockNum;
+	//Sending: highest block sent so far, anything at or below it is a retransmit
+	private int lastSent;
+	//Receiving: last block acknowledged
+	private int windowCount, lastRewind, lastAcked;
+	private byte[] ackMsg;
+	private Boolean overwrite;
+	private final String consolePrefix;
+
+	/**
+	 *   Constructor for SelectorTransfer, called by the request listener for each new request
+	 *
+	 *   @param  SocketAddress client address and port (client TID)
+	 *   @param  TFTPRequest parsed request
+	 *   @param  int transfer number
+	 *   @param  TFTPCommon.Verbosity transfer verbosity
+	 *   @param  int timeout value before resending packet
+	 *   @param  Boolean allow overwriting
+	 *   @return SelectorTransfer
+	 */
+	public SelectorTransfer(SocketAddress clientAddress, TFTPRequest request, int transferNumber, TFTPCommon.Verbosity verbosity, int reTimeout, Boolean overwrite)
+	{
+		this.clientAddress = clientAddress;
+		this.request = request;
+		this.overwrite = overwrite;
+		consolePrefix = "Server Transfer " + transferNumber + ": ";
+		verbose = verbosity;
+		maxTimeout = 10;
+		hardTimeout = 60000;
+		timeoutCount = 0;
+		status = false;
+		rewindAcked = false;
+		ackMsg = new byte[4];
+		stats = new TransferStats();
+		timer = new RetransmitTimer(reTimeout);
+		stats.setRetransmitTimer(timer);
+	}
+
+	public SocketAddress getClientAddress()
+	{
+		return clientAddress;
+	}
+
+	public Boolean isDone()
+	{
+		return state == State.DONE;
+	}
+
+	/**
+	 *   Counters for this transfer, complete once it is done
+	 *
+	 *   @param  none
+	 *   @return TransferStats transfer counters
+	 */
+	public TransferStats getStats()
+	{
+		return stats;
+	}
+
+	public RetransmitTimer getTimer()
+	{
+		return timer;
+	}
+
+	public TFTPCommon.Request getRequestType()
+	{
+		return request.getRequestType();
+	}
+
+	public String getFileName()
+	{
+		return request.getFileName();
+	}
+
+	/**
+	 *   This transfer's entry in the server's TransferMetrics
+	 *
+	 *   @param  none
+	 *   @return TransferMetrics.Transfer metrics entry
+	 */
+	public TransferMetrics.Transfer getMetrics()
+	{
+		return metrics;
+	}
+
+	public void setMetrics(TransferMetrics.Transfer metrics)
+	{
+		this.metrics = metrics;
+	}
+
+	public long getDeadline()
+	{
+		return deadline;
+	}
+
+	public long getQueuedDeadline()
+	{
+		return queuedDeadline;
+	}
+
+	public void setQueuedDeadline(long queuedDeadline)
+	{
+		this.queuedDeadline = queuedDeadline;
+	}
+
+	/**
+	 *   Handle the request: open the file and send the first response (OACK, DATA 1 or ACK 0),
+	 *   or an ERROR packet if the request can't be served
+	 *
+	 *   @param  SelectorLoop loop that owns this transfer
+	 *   @param  long current time (ms)
+	 *   @return none
+	 */
+	public void start(SelectorLoop loop, long now)
+	{
+		Boolean localRead = (request.getRequestType() == TFTPCommon.Request.READ);
+
+		this.loop = loop;
+
+		if (request.getRequestType() == TFTPCommon.Request.ERROR)
+		{
+			TFTPLogger.log(consolePrefix + "Received invalid request from " + clientAddress);
+			sendError(request.getErrorString(), TFTPCommon.ErrorCode.ILLEGAL);
+			finish(false);
+			return;
+		}
+
+		options = TransferOptions.negotiate(request.getOptions());
+		blockSize = options.getBlockSize();
+		windowSize = options.getWindowSize();
+		stats.setTransferOptions(blockSize, windowSize);
+
+		try {
+			fileOp = new FileOperation(request.getFileName(), localRead, blockSize, overwrite);
+		} catch (FileNotFoundException e) {
+			if (localRead)
+			{
+				sendError("File: \"" + request.getFileName() + "\" does not exist!", TFTPCommon.ErrorCode.FILENOTFOUND);
+			}
+			else
+			{
+				TFTPLogger.log(consolePrefix + "Couldn't write to " + request.getFileName());
+				sendError("Couldn't write to local file", TFTPCommon.ErrorCode.FILENOTFOUND);
+			}
+
+			finish(false);
+			return;
+		} catch (FileOperation.FileOperationException e) {
+			sendError(e.toString(), e.error);
+			finish(false);
+			return;
+		}
+
+		//Answer an RRQ's tsize with the file's size, check a WRQ's file will fit before any DATA is received
+		if (localRead)
+		{
+			options.answerTransferSize(fileOp.getFileLength());
+		}
+		else if (options.getTransferSize() >= 0)
+		{
+			try {
+				fileOp.reserve(options.getTransferSize());
+			} catch (FileOperation.FileOperationException e) {
+				sendError(e.toString(), e.error);
+				finish(false);
+				return;
+			} catch (IOException e) {
+				e.printStackTrace();
+				System.exit(1);
+			}
+		}
+
+		TFTPLogger.log(consolePrefix + TFTPCommon.requestToString(request.getRequestType()) + " \"" + request.getFileName() + "\" from " + clientAddress + ", options " + options);
+
+		if (localRead)
+		{
+			tftpBlocks = fileOp.getNumTFTPBlocks();
+			firstBlock = 1;
+			lastSent = 0;
+
+			//Options were accepted, client confirms the OACK with ACK 0 before we send DATA
+			if (options.hasOptions())
+			{
+				state = State.OACK;
+				sendOACK();
+				timer.start(0, System.nanoTime());
+				deadline = now + timer.getTimeout();
+			}
+			else
+			{
+				state = State.SENDING;
+				sendWindow(now);
+			}
+		}
+		else
+		{
+			blockNum = 1;
+			windowCount = 0;
+			lastRewind = 0;
+			lastAcked = 0;
+			lastPacketTime = now;
+			state = State.RECEIVING;
+
+			//Respond to WRQ, OACK takes the place of ACK 0 when options were accepted
+			if (options.hasOptions())
+			{
+				sendOACK();
+			}
+			else
+			{
+				sendACK(0);
+			}
+
+			timer.start(1, System.nanoTime());
+			deadline = receiveDeadline(now);
+		}
+	}
+
+	/**
+	 *   Handle a packet received from the client
+	 *
+	 *   @param  byte[] packet data
+	 *   @param  int packet length
+	 *   @param  long current time (ms)
+	 *   @return none
+	 */
+	public void handlePacket(byte[] data, int len, long now)
+	{
+		printPacket(data, len, false);
+
+		if (TFTPCommon.getPacketType(data) == TFTPCommon.PacketType.ERROR && len > 4 && data[len - 1] == 0)
+		{
+			TFTPCommon.parseErrorPacket(new DatagramPacket(data, len, clientAddress), consolePrefix);
+			finish(false);
+		}
+		else if (state == State.OACK)
+		{
+			if (TFTPCommon.getPacketType(data) == TFTPCommon.PacketType.ACK && len == 4 && TFTPCommon.blockNumToPacket(data) == 0)
+			{
+				timer.stop(0, System.nanoTime());
+				state = State.SENDING;
+				timeoutCount = 0;
+				sendWindow(now);
+			}
+			else
+			{
+				illegal("Expecting ACK 0 in response to OACK");
+			}
+		}
+		else if (state == State.SENDING)
+		{
+			handleACK(data, len, now);
+		}
+		else if (state == State.RECEIVING)
+		{
+			handleDATA(data, len, now);
+			deadline = receiveDeadline(now);
+		}
+	}
+
+	/**
+	 *   Handle the transfer's deadline passing: resend OACK/window when sending. When receiving, resend
+	 *   the last ACK (OACK before DATA 1), or give up once nothing has been received for the hard timeout
+	 *
+	 *   @param  long current time (ms)
+	 *   @return none
+	 */
+	public void handleTimeout(long now)
+	{
+		int timeout = timer.getTimeout();
+
+		if (state == State.RECEIVING)
+		{
+			if (now - lastPacketTime >= hardTimeout)
+			{
+				TFTPLogger.log(consolePrefix + "Haven't received packet in " + hardTimeout + "ms, giving up");
+				finish(false);
+			}
+			else
+			{
+				if (verbose != TFTPCommon.Verbosity.NONE)
+				{
+					TFTPLogger.log(consolePrefix + "Receive timed out after " + timeout + " ms, resending " + (blockNum == 1 && options.hasOptions() ? "OACK" : "ACK " + (blockNum - 1)));
+				}
+
+				TransferEvents.timeoutExpired("DATA", blockNum, timeout, 0);
+
+				if (blockNum == 1 && options.hasOptions())
+				{
+					sendOACK();
+					TransferEvents.blockRetransmitted("OACK", 0, timeout);
+				}
+				else
+				{
+					sendACK(blockNum - 1);
+					TransferEvents.blockRetransmitted("ACK", blockNum - 1, timeout);
+				}
+
+				stats.countRetransmit();
+				timer.backoff();
+				deadline = receiveDeadline(now);
+			}
+
+			return;
+		}
+
+		timer.backoff();
+		timeoutCount++;
+		TransferEvents.timeoutExpired(state == State.OACK ? "ACK 0" : "ACK", state == State.OACK ? 0 : firstBlock, timeout, timeoutCount);
+
+		if (timeoutCount >= maxTimeout)
+		{
+			TFTPLogger.log(consolePrefix + "Maximum timeouts reached for " + (state == State.OACK ? "OACK" : "DATA " + firstBlock) + ". Transfer ending.");
+			finish(false);
+			return;
+		}
+
+		if (verbose != TFTPCommon.Verbosity.NONE)
+		{
+			TFTPLogger.log(consolePrefix + "Receive timed out after " + timeout + " ms, attempt " + timeoutCount);
+		}
+
+		if (state == State.OACK)
+		{
+			sendOACK();
+			deadline = now + timer.getTimeout();
+		}
+		else
+		{
+			sendWindow(now);
+		}
+	}
+
+	/**
+	 *   Deadline while receiving: the retransmission timeout, never later than the hard timeout
+	 *   after the last packet received
+	 *
+	 *   @param  long current time (ms)
+	 *   @return long deadline (ms)
+	 */
+	private long receiveDeadline(long now)
+	{
+		return Math.min(lastPacketTime + hardTimeout, now + timer.getTimeout());
+	}
+
+	/**
+	 *   Send every block of the current window and restart the retransmit timer. Blocks are read
+	 *   from the file by offset into the loop's send buffer each time they are sent
+	 *
+	 *   @param  long current time (ms)
+	 *   @return none
+	 */
+	private void sendWindow(long now)
+	{
+		int windowEnd = Math.min(firstBlock + windowSize - 1, tftpBlocks);
+		byte[] dataMsg = loop.getSendBuffer();
+		int dataLen;
+		Boolean newBlock;
+
+		for (int block = firstBlock; block <= windowEnd; block++)
+		{
+			try {
+				dataLen = TFTPCommon.constructDataPacket(dataMsg, block, fileOp);
+			} catch (FileOperation.FileOperationException e) {
+				sendError(e.toString(), e.error);
+				finish(false);
+				return;
+			}
+
+			newBlock = block > lastSent;
+
+			if (newBlock)
+			{
+				lastSent = block;
+				stats.countBlock(dataLen - 4);
+			}
+			else
+			{
+				stats.countRetransmit();
+				timer.cancel();
+				TransferEvents.blockRetransmitted("DATA", block, timer.getTimeout());
+			}
+
+			if (verbose != TFTPCommon.Verbosity.NONE)
+			{
+				TFTPLogger.log(consolePrefix + "Sending DATA " + block + "/" + tftpBlocks);
+			}
+
+			printPacket(dataMsg, dataLen, true);
+			loop.send(dataMsg, dataLen, clientAddress);
+
+			if (newBlock && block == windowEnd)
+			{
+				timer.start(block, System.nanoTime());
+			}
+		}
+
+		deadline = now + timer.getTimeout();
+	}
+
+	/**
+	 *   Handle a packet while sending DATA, same checks as TFTPCommon.sendDataWTimeout
+	 *
+	 *   @param  byte[] packet data
+	 *   @param  int packet length
+	 *   @param  long current time (ms)
+	 *   @return none
+	 */
+	private void handleACK(byte[] data, int len, long now)
+	{
+		int windowEnd = Math.min(firstBlock + windowSize - 1, tftpBlocks);
+		int ackOffset = TFTPCommon.blockDistance(firstBlock, TFTPCommon.blockNumToPacket(data));
+
+		if (TFTPCommon.getPacketType(data) == TFTPCommon.PacketType.ACK && len == 4 && ackOffset <= windowEnd - firstBlock)
+		{
+			if (verbose != TFTPCommon.Verbosity.NONE)
+			{
+				TFTPLogger.log(consolePrefix + "Received valid ACK " + (firstBlock + ackOffset));
+			}
+
+			timeoutCount = 0;
+			timer.stop(firstBlock + ackOffset, System.nanoTime());
+			firstBlock += ackOffset + 1;
+
+			if (firstBlock - 1 >= tftpBlocks)
+			{
+				finish(true);
+			}
+			else
+			{
+				sendWindow(now);
+			}
+		}
+		else if (TFTPCommon.getPacketType(data) == TFTPCommon.PacketType.ACK && len == 4 && ackOffset >= 32768)
+		{
+			if (verbose != TFTPCommon.Verbosity.NONE)
+			{
+				TFTPLogger.log(consolePrefix + "Duplicate ACK " + (firstBlock + ackOffset - 65536) + " received, ignoring");
+			}
+		}
+		else if (len != 4)
+		{
+			illegal("Expecting ACK packet of length 4 instead received packet with length " + len);
+		}
+		else if (TFTPCommon.getPacketType(data) != TFTPCommon.PacketType.ACK)
+		{
+			illegal("Expecting ACK, received invalid opcode: " + data[0] + "" + data[1]);
+		}
+		else
+		{
+			illegal("Expecting block number " + firstBlock + " instead received " + (firstBlock + ackOffset));
+		}
+	}
+
+	/**
+	 *   Handle a packet while receiving DATA, same checks as TFTPCommon.receiveDataWTimeout
+	 *
+	 *   @param  byte[] packet data
+	 *   @param  int packet length
+	 *   @param  long current time (ms)
+	 *   @return none
+	 */
+	private void handleDATA(byte[] data, int len, long now)
+	{
+		int blockOffset = TFTPCommon.blockDistance(blockNum, TFTPCommon.blockNumToPacket(data));
+		Boolean validLength = (len > 3 && len <= blockSize + 4);
+		Boolean lastBlock;
+
+		lastPacketTime = now;
+
+		if (TFTPCommon.getPacketType(data) == TFTPCommon.PacketType.DATA && validLength && blockOffset == 0)
+		{
+			timer.stop(blockNum, System.nanoTime());
+
+			if (verbose != TFTPCommon.Verbosity.NONE)
+			{
+				TFTPLogger.log(consolePrefix + "Received DATA " + blockNum);
+			}
+
+			try {
+				lastBlock = TFTPCommon.writeDataPacket(data, len, fileOp, verbose);
+			} catch (FileOperation.FileOperationException e) {
+				sendError(e.toString(), e.error);
+				finish(false);
+				return;
+			}
+
+			windowCount++;
+			rewindAcked = false;
+			stats.countBlock(len - 4);
+
+			//Acknowledge the end of each window, and always the final DATA packet
+			if (windowCount == windowSize || lastBlock)
+			{
+				sendACK(blockNum);
+				timer.start(blockNum + 1, System.nanoTime());
+				windowCount = 0;
+			}
+
+			blockNum++;
+
+			if (lastBlock)
+			{
+				finish(true);
+			}
+		}
+		else if (TFTPCommon.getPacketType(data) == TFTPCommon.PacketType.DATA && validLength && (blockOffset >= 32768 || blockOffset < windowSize))
+		{
+			stats.countDuplicate();
+
+			if (blockOffset >= 32768)
+			{
+				blockOffset -= 65536;
+			}
+
+			TransferEvents.duplicateReceived(blockNum + blockOffset, blockNum);
+
+			if (verbose != TFTPCommon.Verbosity.NONE)
+			{
+				TFTPLogger.log(consolePrefix + "Duplicate or out of order DATA " + (blockNum + blockOffset) + " received, expecting DATA " + blockNum);
+			}
+
+			//A duplicate of a block received since our last ACK is from a window the client resent before it
+			//heard from us, answering it would rewind the client in the middle of its window again.
+			//A block at or before the last one means the client started resending a window, answer it again
+			if ((blockOffset > 0 || blockNum + blockOffset <= lastAcked) && (!rewindAcked || blockNum + blockOffset <= lastRewind))
+			{
+				sendACK(blockNum - 1);
+				timer.cancel();
+				windowCount = 0;
+				rewindAcked = true;
+			}
+
+			lastRewind = blockNum + blockOffset;
+		}
+		else if (len < 4 || len > blockSize + 4)
+		{
+			illegal("Expecting DATA packet of length 4-" + (blockSize + 4) + " instead received packet with length " + len);
+		}
+		else if (TFTPCommon.getPacketType(data) != TFTPCommon.PacketType.DATA)
+		{
+			illegal("Expecting DATA, received invalid opcode: " + data[0] + "" + data[1]);
+		}
+		else
+		{
+			illegal("Expecting block number " + blockNum + " instead received " + (blockNum + blockOffset));
+		}
+	}
+
+	/**
+	 *   Send ACK for a block (including rollovers)
+	 *
+	 *   @param  int block number
+	 *   @return none
+	 */
+	private void sendACK(int block)
+	{
+		TFTPCommon.constructAckPacket(ackMsg, block % 65536);
+		lastAcked = block;
+
+		if (verbose != TFTPCommon.Verbosity.NONE)
+		{
+			TFTPLogger.log(consolePrefix + "Sending ACK " + block);
+		}
+
+		printPacket(ackMsg, 4, true);
+		loop.send(ackMsg, 4, clientAddress);
+	}
+
+	private void sendOACK()
+	{
+		byte[] msg = new byte[TFTPCommon.defaultBlockSize];
+		int len = TFTPCommon.constructOACKPacket(msg, options.getOptions());
+
+		TFTPLogger.log(consolePrefix + "Sending OACK " + options);
+		printPacket(msg, len, true);
+		loop.send(msg, len, clientAddress);
+	}
+
+	private void sendError(String errString, TFTPCommon.ErrorCode errCode)
+	{
+		byte[] errMsg = new byte[TFTPCommon.maxPacketSize];
+		int len = TFTPCommon.constructErrorPacket(errMsg, errCode, errString);
+
+		TFTPLogger.log(consolePrefix + "Sending ERROR Packet: " + errString);
+		printPacket(errMsg, len, true);
+		loop.getMetrics().countErrorSent(errCode);
+		loop.send(errMsg, len, clientAddress);
+	}
+
+	/**
+	 *   Received packet is invalid for the current state, send ILLEGAL error and end the transfer
+	 *
+	 *   @param  String error message
+	 *   @return none
+	 */
+	private void illegal(String errString)
+	{
+		TFTPLogger.log(consolePrefix + "Received invalid packet");
+		sendError(errString, TFTPCommon.ErrorCode.ILLEGAL);
+		finish(false);
+	}
+
+	private void printPacket(byte[] data, int len, Boolean sending)
+	{
+		if (verbose != TFTPCommon.Verbosity.NONE)
+		{
+			TFTPCommon.printPacketDetails(new DatagramPacket(data, len, clientAddress), consolePrefix, verbose, sending, false);
+		}
+	}
+
+	/**
+	 *   End the transfer: close the file (deleting an incomplete written file) and print the result
+	 *
+	 *   @param  Boolean true if the file was transferred successfully
+	 *   @return none
+	 */
+	private void finish(Boolean success)
+	{
+		status = success;
+		state = State.DONE;
+
+		if (fileOp != null)
+		{
+			try {
+				if (request.getRequestType() == TFTPCommon.Request.READ)
+				{
+					fileOp.closeFileRead();
+				}
+				else if (success)
+				{
+					fileOp.finalizeFileWrite();
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		if (success)
+		{
+			stats.setComplete();
+			TFTPLogger.log(consolePrefix + (request.getRequestType() == TFTPCommon.Request.READ ? "Sent " : "Received ") + stats);
+			TFTPLogger.log(consolePrefix + "File transfer complete");
+		}
+		else if (fileOp != null)
+		{
+			TFTPLogger.log(consolePrefix + "Error occurred, transfer incomplete");
+
+			if (request.getRequestType() == TFTPCommon.Request.WRITE)
+			{
+				if (fileOp.delete())
+				{
+					TFTPLogger.log(consolePrefix + "Incomplete file \"" + request.getFileName() + "\" deleted");
+				}
+				else
+				{
+					TFTPLogger.log(consolePrefix + "Failed to delete incomplete file \"" + request.getFileName() + "\"");
+				}
+			}
+		}
+	}
+}
@@ -1,47 +1,74 @@
 package grouptwo;
 
+import java.io.IOException;
 import java.net.*;
+import java.nio.channels.DatagramChannel;
 import java.util.*;
 
 /**
  * TFTPServer is the main class for the server, it creates an instance of the CLI class
  * and handles creating multiple ClientConnectionThreads. TFTPServer delays graceful exits
  * until each ClientConnectionThread has returned and blocks new ClientConnectionThreads
- * once the operator has indicated that the server should shut down
+ * once the operator has indicated that the server should shut down. Started with
+ * "-selector [loops]" the server instead runs transfers on TFTPSelectorServer's event loops.
+ * Requests can be received by several listener threads, each with its own socket bound to the
+ * listen port with SO_REUSEPORT, so the kernel spreads requests across them by client address
+ * and port. The listeners share the table of transfers in progress used to spot duplicate requests
  *
  * @author        Cyrus Sadeghi
  */
 public class TFTPServer 
 {
-	private DatagramSocket receiveSocket;
-	private DatagramPacket receivePacket;
-	private List<Thread> clients;
-	private List<Integer> clientPorts;
+	private DatagramSocket[] receiveSockets;
+	private TFTPSelectorServer selectorServer;
+	private TransferExecutor executor;
+	private TransferMetrics metrics;
+	//Transfers in progress by client address and port (client TID), shared with the transfer threads
+	private SessionTable<ClientConnectionThread> clients;
 	private TFTPServerCommandLine cliThread;
-	private Integer runningClientCount;
 	private TFTPCommon.Verbosity verbosity;
-	private Boolean acceptConnections, overwrite;
-	private byte [] data;
+	private volatile Boolean acceptConnections;
+	private Boolean overwrite;
 	private int timeout;
 
 	/**
 	 *   Constructor for TFTPServer, initializes data that will be used to manage client transfer threads
 	 *
-	 *   @param  none
+	 *   @param  int number of selector loops, 0 for a ClientConnectionThread per client
+	 *   @param  int number of request listener threads
+	 *   @param  int maximum number of transfers in progress, further requests are refused
+	 *   @param  TransferExecutor executor that runs ClientConnectionThreads
 	 *   @return TFTPServer
 	 */
-	public TFTPServer()
+	public TFTPServer(int selectorLoops, int listeners, int maxSessions, TransferExecutor executor)
 	{
+		DatagramChannel[] listenChannels;
+
 		try {
-			receiveSocket = new DatagramSocket(TFTPCommon.TFTPListenPort);
-		} catch (SocketException e) {
+			listenChannels = openListenChannels(listeners);
+
+			if (selectorLoops > 0)
+			{
+				selectorServer = new TFTPSelectorServer(this, selectorLoops, listenChannels, maxSessions);
+			}
+			else
+			{
+				receiveSockets = new DatagramSocket[listenChannels.length];
+
+				for (int i = 0; i < listenChannels.length; i++)
+				{
+					receiveSockets[i] = listenChannels[i].socket();
+				}
+			}
+		} catch (IOException e) {
 			e.printStackTrace();
 			System.exit(1);
 		}
 
-		clients = new ArrayList<Thread>();
-		clientPorts = new ArrayList<Integer>();
-		runningClientCount = 0;
+		this.executor = executor;
+		metrics = new TransferMetrics();
+		TFTPCommon.setErrorMetrics(metrics);
+		clients = new SessionTable<ClientConnectionThread>(maxSessions);
 		timeout = 1000;
 		acceptConnections = true;
 		verbosity = TFTPCommon.Verbosity.NONE;
@@ -49,16 +76,71 @@ public class TFTPServer
 		cliThread = new TFTPServerCommandLine(this);
 	}
 
+	/**
+	 *   Bind the channels requests are received on. More than one channel needs SO_REUSEPORT,
+	 *   without it a single channel is used
+	 *
+	 *   @param  int number of channels (one per listener thread)
+	 *   @return DatagramChannel[] channels bound to the listen port
+	 *   @throws IOException if the port can't be bound
+	 */
+	private static DatagramChannel[] openListenChannels(int count) throws IOException
+	{
+		DatagramChannel[] channels;
+		DatagramChannel channel = DatagramChannel.open();
+
+		if (count > 1 && !channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT))
+		{
+			TFTPLogger.log("Server: SO_REUSEPORT is not supported, using a single request listener");
+			count = 1;
+		}
+
+		channels = new DatagramChannel[Math.max(1, count)];
+
+		for (int i = 0; i < channels.length; i++)
+		{
+			if (i > 0)
+			{
+				channel = DatagramChannel.open();
+			}
+
+			if (channels.length > 1)
+			{
+				channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+			}
+
+			channel.bind(new InetSocketAddress(TFTPCommon.TFTPListenPort));
+			channels[i] = channel;
+		}
+
+		return channels;
+	}
+
 	/**
 	 *   Called by returning ClientConnectionThread, indicates to TFTPServer that the transfer is complete
 	 *
-	 *   @param  Thread ClientConnectionThread that finished
+	 *   @param  ClientConnectionThread transfer that finished
 	 *   @return none
 	 */
-	public void threadDone(Thread t)
+	public void threadDone(ClientConnectionThread t)
+	{
+		clients.remove(t.getClientTID(), t);
+
+		if (t.getMetrics() != null)
+		{
+			metrics.transferEnded(t.getMetrics());
+		}
+	}
+
+	/**
+	 *   Metrics registry of all transfers, thread or selector
+	 *
+	 *   @param  none
+	 *   @return TransferMetrics server metrics
+	 */
+	public TransferMetrics getMetrics()
 	{
-		clients.remove(t);
-		runningClientCount = clients.size();
+		return metrics;
 	}
 
 	/**
@@ -71,46 +153,139 @@ public class TFTPServer
 	public void initiateExit()
 	{
 		acceptConnections = false;
-		receiveSocket.close();
+
+		if (selectorServer != null)
+		{
+			selectorServer.initiateExit();
+		}
+		else
+		{
+			for (DatagramSocket socket : receiveSockets)
+			{
+				socket.close();
+			}
+		}
 	}
 
 	/**
 	 *   Spawns CLI thread, and begins receiving DatagramPackets on port 69 from new clients
 	 *   Each new client spawns a ClientConnectionThread that communicates over a new port
-	 *   in order to allow the server to respond to new clients
+	 *   in order to allow the server to respond to new clients. Extra request listeners run on
+	 *   their own threads, the first one runs on the calling thread
 	 *
 	 *   @param  none
 	 *   @return none
 	 */
 	private void receiveClients()
 	{ 
+		List<Thread> listeners = new ArrayList<Thread>();
+
 		cliThread.start();
 
-		while (runningClientCount > 0 || acceptConnections)
-		{				
-			if (acceptConnections)
+		if (selectorServer != null)
+		{
+			selectorServer.run();
+			return;
+		}
+
+		TFTPLogger.log("Server: Running transfers on " + executor + " threads, " + receiveSockets.length + " request listener(s)");
+
+		for (int i = 1; i < receiveSockets.length; i++)
+		{
+			final DatagramSocket socket = receiveSockets[i];
+			Thread listener = new Thread(() -> listen(socket), "requestListener" + (i + 1));
+
+			listener.start();
+			listeners.add(listener);
+		}
+
+		listen(receiveSockets[0]);
+
+		for (Thread listener : listeners)
+		{
+			try {
+				listener.join();
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+
+		//Waiting for transfers in progress to end
+		while (!clients.isEmpty())
+		{
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+
+		executor.shutdown();
+	}
+
+	/**
+	 *   Receive requests on one listen socket until the operator quits. A request from a client address
+	 *   and port that already has a transfer in progress is a duplicate (the client resent it), the
+	 *   table of transfers is shared by all listeners so only one of them starts the transfer. Requests
+	 *   arriving while the table is full, or when no socket can be opened for the transfer, are refused
+	 *   with an ERROR
+	 *
+	 *   @param  DatagramSocket socket bound to the listen port
+	 *   @return none
+	 */
+	private void listen(DatagramSocket socket)
+	{
+		byte[] data;
+		DatagramPacket receivePacket;
+		ClientConnectionThread client;
+
+		while (acceptConnections)
+		{
+			data = new byte[TFTPCommon.maxPacketSize];
+			receivePacket = new DatagramPacket(data, data.length);
+
+			TFTPCommon.receivePacket(receivePacket, socket);
+
+			if (socket.isClosed())
 			{
-				data = new byte[TFTPCommon.maxPacketSize];
-				receivePacket = new DatagramPacket(data, data.length);
+				break;
+			}
 
-				TFTPCommon.receivePacket(receivePacket, receiveSocket);
+			if (verbosity != TFTPCommon.Verbosity.NONE)
+			{
+				TFTPLogger.log("Server: Packet received.");
+			}
 
-				if (!receiveSocket.isClosed())
-				{
-					System.out.println("Server: Packet received.");
+			if (clients.contains(receivePacket.getSocketAddress()))
+			{
+				TFTPLogger.log("Server: Duplicate request received from " + receivePacket.getSocketAddress() + ". Ignoring");
+				continue;
+			}
 
-					if (!clientPorts.contains(receivePacket.getPort()))
+			//The transfer only opens its socket once it has its place in the table
+			client = new ClientConnectionThread(receivePacket, this, verbosity, clients.size() + 1, timeout, overwrite);
+
+			switch (clients.add(client.getClientTID(), client))
+			{
+				case ADDED:
+					if (client.open())
 					{
-						Thread client = new Thread(new ClientConnectionThread(receivePacket, this, verbosity, clients.size() + 1, timeout, overwrite));
-						clients.add(client);
-						clientPorts.add(receivePacket.getPort());
-						client.start();
+						executor.execute(client);
 					}
 					else
 					{
-						System.out.println("Server: Duplicate request received from port " + receivePacket.getPort() + ". Ignoring");
+						clients.remove(client.getClientTID(), client);
+						TFTPLogger.log("Server: No socket available for a transfer, refusing request from " + receivePacket.getSocketAddress());
+						TFTPCommon.sendErrorPacket(receivePacket, socket, "Server busy, no ports available", TFTPCommon.ErrorCode.INVALID, "Server: ", verbosity);
 					}
-				}
+					break;
+				case DUPLICATE:
+					TFTPLogger.log("Server: Duplicate request received from " + receivePacket.getSocketAddress() + ". Ignoring");
+					break;
+				case FULL:
+					TFTPLogger.log("Server: " + clients.getMaxSessions() + " transfers in progress, refusing request from " + receivePacket.getSocketAddress());
+					TFTPCommon.sendErrorPacket(receivePacket, socket, "Server busy, too many transfers in progress", TFTPCommon.ErrorCode.INVALID, "Server: ", verbosity);
+					break;
 			}
 		}
 	}
@@ -151,10 +326,178 @@ public class TFTPServer
 		this.overwrite = overwrite;
 	}
 
+	public TFTPCommon.Verbosity getVerbosity()
+	{
+		return verbosity;
+	}
+
+	public int getTimeout()
+	{
+		return timeout;
+	}
+
+	public Boolean getOverwrite()
+	{
+		return overwrite;
+	}
+
+	/**
+	 *   Starts the server. Usage: TFTPServer [-selector [loops]] [-executor platform|pool[:n]|virtual] [-cache MB[:lru|lfu]] [-writebehind KB[:buffers[:threads]]] [-log sync|async[:lines]] [-metrics [address:]port] [-listeners n] [-maxsessions n]
+	 *   -selector serves transfers on non-blocking event loops (default: one loop per processor)
+	 *   instead of a thread and socket per client. File work is done on the loops, so it assumes fast
+	 *   local disks and can't be combined with -writebehind
+	 *   -executor selects the threads ClientConnectionThreads run on (default: platform)
+	 *   -cache keeps up to MB megabytes of blocks read by RRQs in memory (default: no cache)
+	 *   -writebehind buffers WRQ blocks in KB kilobyte buffers written by background threads (default: off)
+	 *   -log selects how transfer output is written (default: async, see TFTPLogger)
+	 *   -listeners receives requests on n threads, each with its own SO_REUSEPORT socket (default: 1)
+	 *   -maxsessions refuses requests while n transfers are in progress (default: SessionTable.defaultMaxSessions)
+	 *   -metrics serves metrics for Prometheus on http://address:port/metrics (default address: loopback, default: off)
+	 *
+	 *   @param  String[] command line arguments
+	 *   @return none
+	 */
 	public static void main(String[] args) 
 	{
-		TFTPServer s = new TFTPServer();
+		int selectorLoops = 0;
+		int listeners = 1;
+		int maxSessions = SessionTable.defaultMaxSessions;
+		TransferExecutor executor = null;
+		TFTPLogger.Sink sink = null;
+		InetSocketAddress metricsAddress = null;
+		MetricsExporter exporter = null;
+
+		for (int i = 0; i < args.length; i++)
+		{
+			if (args[i].equalsIgnoreCase("-selector"))
+			{
+				selectorLoops = Runtime.getRuntime().availableProcessors();
+
+				if (i + 1 < args.length && !args[i + 1].startsWith("-"))
+				{
+					i++;
+
+					try {
+						selectorLoops = Math.max(1, Integer.parseInt(args[i]));
+					} catch (NumberFormatException e) {
+						System.out.println("Invalid selector loop count \"" + args[i] + "\", using " + selectorLoops);
+					}
+				}
+			}
+			else if (args[i].equalsIgnoreCase("-listeners") && i + 1 < args.length)
+			{
+				i++;
+
+				try {
+					listeners = Math.max(1, Integer.parseInt(args[i]));
+				} catch (NumberFormatException e) {
+					System.out.println("Invalid listener count \"" + args[i] + "\", using " + listeners);
+				}
+			}
+			else if (args[i].equalsIgnoreCase("-maxsessions") && i + 1 < args.length)
+			{
+				i++;
+
+				try {
+					maxSessions = Math.max(1, Integer.parseInt(args[i]));
+				} catch (NumberFormatException e) {
+					System.out.println("Invalid session limit \"" + args[i] + "\", using " + maxSessions);
+				}
+			}
+			else if (args[i].equalsIgnoreCase("-executor") && i + 1 < args.length)
+			{
+				i++;
+				executor = TransferExecutor.fromString(args[i]);
+			}
+			else if (args[i].equalsIgnoreCase("-cache") && i + 1 < args.length)
+			{
+				i++;
+				FileOperation.setBlockCache(BlockCache.fromString(args[i]));
+
+				if (FileOperation.getBlockCache() == null)
+				{
+					System.out.println("Invalid cache setting \"" + args[i] + "\", block cache disabled");
+				}
+			}
+			else if (args[i].equalsIgnoreCase("-writebehind") && i + 1 < args.length)
+			{
+				i++;
+				FileOperation.setWriteBehind(WriteBehind.fromString(args[i]));
+
+				if (FileOperation.getWriteBehind() == null)
+				{
+					System.out.println("Invalid write-behind setting \"" + args[i] + "\", write-behind disabled");
+				}
+			}
+			else if (args[i].equalsIgnoreCase("-log") && i + 1 < args.length)
+			{
+				i++;
+				sink = TFTPLogger.sinkFromString(args[i]);
+
+				if (sink == null)
+				{
+					System.out.println("Invalid log setting \"" + args[i] + "\", using async");
+				}
+			}
+			else if (args[i].equalsIgnoreCase("-metrics") && i + 1 < args.length)
+			{
+				i++;
+				metricsAddress = MetricsExporter.addressFromString(args[i]);
+
+				if (metricsAddress == null)
+				{
+					System.out.println("Invalid metrics address \"" + args[i] + "\", metrics endpoint disabled");
+				}
+			}
+			else
+			{
+				System.out.println("Ignoring unknown argument \"" + args[i] + "\"");
+			}
+		}
+
+		if (sink == null)
+		{
+			sink = TFTPLogger.sinkFromString("async");
+		}
+
+		//Write-behind blocks the calling thread (backpressure, sync before the final ACK), in selector
+		//mode that is the loop serving every other transfer on it
+		if (selectorLoops > 0 && FileOperation.getWriteBehind() != null)
+		{
+			System.out.println("-writebehind can't be combined with -selector, selector loops write files themselves and assume fast local disks");
+			System.exit(1);
+		}
+
+		TFTPLogger.setSink(sink);
+
+		if (executor == null)
+		{
+			executor = new TransferExecutor(TransferExecutor.Kind.PLATFORM, 0);
+		}
+
+		TFTPServer s = new TFTPServer(selectorLoops, listeners, maxSessions, executor);
+
+		if (metricsAddress != null)
+		{
+			exporter = new MetricsExporter(s.getMetrics());
+
+			try {
+				exporter.start(metricsAddress);
+				System.out.println("Server: Serving metrics on http://" + metricsAddress.getAddress().getHostAddress() + ":" + metricsAddress.getPort() + "/metrics");
+			} catch (IOException e) {
+				System.out.println("Server: Couldn't serve metrics on " + metricsAddress + ": " + e.getMessage());
+				exporter = null;
+			}
+		}
+
 		s.receiveClients();
+
+		if (exporter != null)
+		{
+			exporter.stop();
+		}
+
+		TFTPLogger.flush();
 	}
 }
 
@@ -206,6 +549,13 @@ class TFTPServerCommandLine extends Thread {
 			System.out.println("o: Overwrite existing files (current: " + overwrite + ")");
 			System.out.println("t: Set retransmission timeout (current: " + timeout + ")");
 			System.out.println("v: Set verbosity (current: " + TFTPCommon.verbosityToString(verbosity) + ")");
+
+			if (FileOperation.getBlockCache() != null)
+			{
+				System.out.println("c: Show block cache statistics");
+			}
+
+			System.out.println("s: Show transfers in progress and server statistics");
 			System.out.println("q: Quit (quits once transfer in progress end)");
 
 			scIn = sc.nextLine();
@@ -271,6 +621,17 @@ class TFTPServerCommandLine extends Thread {
 				}
 			}
 
+			else if ( scIn.equalsIgnoreCase("c") && FileOperation.getBlockCache() != null )
+			{
+				System.out.println("Block cache: " + FileOperation.getBlockCache());
+			}
+
+			else if ( scIn.equalsIgnoreCase("s") )
+			{
+				System.out.println(parentServer.getMetrics().activeTable());
+				System.out.println(parentServer.getMetrics().report());
+			}
+
 			else if ( scIn.equalsIgnoreCase("q") ) 
 			{
 				sc.close();
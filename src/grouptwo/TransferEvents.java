@@ -0,0 +1,330 @@
+package grouptwo;
+
+import java.net.SocketAddress;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+/**
+ * TransferEvents holds the Java Flight Recorder events for transfers, so a JFR recording of a client
+ * or server shows transfers, retransmits, duplicates, timeouts and slow disk writes on the same
+ * timeline as GC pauses, socket reads and file I/O. Events are only filled in when JFR is recording
+ * them, which costs far less than logging every packet with Verbosity.ALL. Recorded with i.e.
+ * "java -XX:StartFlightRecording=filename=tftp.jfr ..." and shown by "jfr print --categories TFTP tftp.jfr".
+ *
+ * @author        Cyrus Sadeghi
+ */
+public class TransferEvents
+{
+	@Name("grouptwo.TransferStarted")
+	@Label("TFTP Transfer Started")
+	@Category("TFTP")
+	@Description("A request was received (server) or sent (client)")
+	@StackTrace(false)
+	static class TransferStarted extends Event
+	{
+		@Label("Side")
+		String side;
+
+		@Label("Request")
+		String request;
+
+		@Label("File")
+		String fileName;
+
+		@Label("Peer")
+		String peer;
+	}
+
+	/**
+	 * Duration event from the request to the end of the transfer, committed whether or not the transfer completed
+	 */
+	@Name("grouptwo.TransferCompleted")
+	@Label("TFTP Transfer Completed")
+	@Category("TFTP")
+	@Description("A transfer ended, successfully or not")
+	@StackTrace(false)
+	static class TransferCompleted extends Event
+	{
+		@Label("Side")
+		String side;
+
+		@Label("Request")
+		String request;
+
+		@Label("File")
+		String fileName;
+
+		@Label("Peer")
+		String peer;
+
+		@Label("Completed")
+		boolean completed;
+
+		@Label("Size")
+		@DataAmount
+		long bytes;
+
+		@Label("Blocks")
+		long blocks;
+
+		@Label("Block Size")
+		@DataAmount
+		int blockSize;
+
+		@Label("Window Size")
+		int windowSize;
+
+		@Label("Retransmits")
+		int retransmits;
+
+		@Label("Duplicates")
+		int duplicates;
+	}
+
+	@Name("grouptwo.BlockRetransmitted")
+	@Label("TFTP Block Retransmitted")
+	@Category("TFTP")
+	@Description("A DATA, ACK or OACK packet was sent again")
+	@StackTrace(false)
+	static class BlockRetransmitted extends Event
+	{
+		@Label("Packet")
+		String packet;
+
+		@Label("Block")
+		int block;
+
+		@Label("Retransmission Timeout")
+		@Timespan(Timespan.MILLISECONDS)
+		long timeout;
+	}
+
+	@Name("grouptwo.DuplicateReceived")
+	@Label("TFTP Duplicate Received")
+	@Category("TFTP")
+	@Description("A duplicate or out of order DATA packet was received")
+	@StackTrace(false)
+	static class DuplicateReceived extends Event
+	{
+		@Label("Block")
+		int block;
+
+		@Label("Expected Block")
+		int expected;
+	}
+
+	@Name("grouptwo.TimeoutExpired")
+	@Label("TFTP Timeout Expired")
+	@Category("TFTP")
+	@Description("Nothing was received from the peer before the retransmission timeout")
+	@StackTrace(false)
+	static class TimeoutExpired extends Event
+	{
+		@Label("Waiting For")
+		String waitingFor;
+
+		@Label("Block")
+		int block;
+
+		@Label("Timeout")
+		@Timespan(Timespan.MILLISECONDS)
+		long timeout;
+
+		@Label("Attempt")
+		int attempt;
+	}
+
+	/**
+	 * Duration of a block written to a file, only recorded if it took at least 1 ms unless the recording sets another threshold
+	 */
+	@Name("grouptwo.DiskWrite")
+	@Label("TFTP Disk Write")
+	@Category("TFTP")
+	@Description("A received DATA block was written to its file (or to a write-behind buffer)")
+	@Threshold("1 ms")
+	@StackTrace(false)
+	static class DiskWrite extends Event
+	{
+		@Label("File")
+		String fileName;
+
+		@Label("Size")
+		@DataAmount
+		int bytes;
+
+		@Label("Write-Behind")
+		boolean writeBehind;
+
+		@Label("Synced")
+		boolean synced;
+	}
+
+	/**
+	 *   Record the start of a transfer and begin timing it
+	 *
+	 *   @param  String "server" or "client"
+	 *   @param  TFTPCommon.Request request type
+	 *   @param  String file name
+	 *   @param  SocketAddress other side of the transfer
+	 *   @return TransferCompleted event to pass to transferEnded
+	 */
+	public static TransferCompleted transferStarted(String side, TFTPCommon.Request request, String fileName, SocketAddress peer)
+	{
+		TransferStarted started = new TransferStarted();
+		TransferCompleted completed = new TransferCompleted();
+
+		if (started.shouldCommit())
+		{
+			started.side = side;
+			started.request = requestName(request);
+			started.fileName = fileName;
+			started.peer = String.valueOf(peer);
+			started.commit();
+		}
+
+		completed.begin();
+		completed.side = side;
+		completed.request = requestName(request);
+		completed.fileName = fileName;
+		completed.peer = String.valueOf(peer);
+		return completed;
+	}
+
+	/**
+	 *   Record the end of a transfer
+	 *
+	 *   @param  TransferCompleted event returned by transferStarted
+	 *   @param  TransferStats counters of the transfer
+	 *   @return none
+	 */
+	public static void transferEnded(TransferCompleted event, TransferStats stats)
+	{
+		event.end();
+
+		if (event.shouldCommit())
+		{
+			event.completed = stats.isComplete();
+			event.bytes = stats.getBytes();
+			event.blocks = stats.getBlocks();
+			event.blockSize = stats.getBlockSize();
+			event.windowSize = stats.getWindowSize();
+			event.retransmits = stats.getRetransmits();
+			event.duplicates = stats.getDuplicates();
+			event.commit();
+		}
+	}
+
+	/**
+	 *   Record a packet sent again
+	 *
+	 *   @param  String packet type ("DATA", "ACK" or "OACK")
+	 *   @param  int block number of the packet (including rollovers, 0 for OACK)
+	 *   @param  int retransmission timeout when the packet was resent (ms)
+	 *   @return none
+	 */
+	public static void blockRetransmitted(String packet, int block, int timeout)
+	{
+		BlockRetransmitted event = new BlockRetransmitted();
+
+		if (event.shouldCommit())
+		{
+			event.packet = packet;
+			event.block = block;
+			event.timeout = timeout;
+			event.commit();
+		}
+	}
+
+	/**
+	 *   Record a duplicate or out of order DATA packet
+	 *
+	 *   @param  int block number received (including rollovers)
+	 *   @param  int block number expected
+	 *   @return none
+	 */
+	public static void duplicateReceived(int block, int expected)
+	{
+		DuplicateReceived event = new DuplicateReceived();
+
+		if (event.shouldCommit())
+		{
+			event.block = block;
+			event.expected = expected;
+			event.commit();
+		}
+	}
+
+	/**
+	 *   Record a receive timeout
+	 *
+	 *   @param  String packet that was being waited for ("ACK" or "DATA")
+	 *   @param  int block number waited for (including rollovers)
+	 *   @param  int time waited (ms)
+	 *   @param  int consecutive timeouts, including this one (0 if not counted)
+	 *   @return none
+	 */
+	public static void timeoutExpired(String waitingFor, int block, int timeout, int attempt)
+	{
+		TimeoutExpired event = new TimeoutExpired();
+
+		if (event.shouldCommit())
+		{
+			event.waitingFor = waitingFor;
+			event.block = block;
+			event.timeout = timeout;
+			event.attempt = attempt;
+			event.commit();
+		}
+	}
+
+	/**
+	 *   Begin timing a block written to a file
+	 *
+	 *   @param  none
+	 *   @return DiskWrite event to pass to diskWriteEnded
+	 */
+	public static DiskWrite diskWriteStarted()
+	{
+		DiskWrite event = new DiskWrite();
+
+		event.begin();
+		return event;
+	}
+
+	/**
+	 *   Record a block written to a file, if it took longer than the event's threshold
+	 *
+	 *   @param  DiskWrite event returned by diskWriteStarted
+	 *   @param  String file name
+	 *   @param  int bytes written
+	 *   @param  Boolean true if the block went to a write-behind buffer
+	 *   @param  Boolean true if the file was synced to disk
+	 *   @return none
+	 */
+	public static void diskWriteEnded(DiskWrite event, String fileName, int bytes, Boolean writeBehind, Boolean synced)
+	{
+		event.end();
+
+		if (event.shouldCommit())
+		{
+			event.fileName = fileName;
+			event.bytes = bytes;
+			event.writeBehind = writeBehind;
+			event.synced = synced;
+			event.commit();
+		}
+	}
+
+	private static String requestName(TFTPCommon.Request request)
+	{
+		return request == TFTPCommon.Request.READ ? "RRQ" : request == TFTPCommon.Request.WRITE ? "WRQ" : "invalid";
+	}
+}
@@ -0,0 +1,143 @@
+package grouptwo;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * TransferExecutor runs the per-transfer Runnables of TFTPServer (ClientConnectionThread) and
+ * TFTPIntHost (ErrorSimulator). The transfers keep their blocking receive calls, the executor only
+ * decides what they run on:
+ *   platform    - a new platform thread per transfer (the original behaviour)
+ *   pool[:n]    - a fixed pool of n platform threads, extra transfers wait for a free thread
+ *   virtual     - a virtual thread per transfer (needs a JVM with virtual threads, Java 21+)
+ *
+ * @author        Cyrus Sadeghi
+ */
+public class TransferExecutor
+{
+	public static enum Kind { PLATFORM, POOL, VIRTUAL };
+
+	private Kind kind;
+	private Executor executor;
+
+	/**
+	 *   Constructor for TransferExecutor
+	 *
+	 *   @param  Kind type of threads to run transfers on
+	 *   @param  int pool size (only used for POOL)
+	 *   @return TransferExecutor
+	 */
+	public TransferExecutor(Kind kind, int poolSize)
+	{
+		this.kind = kind;
+
+		if (kind == Kind.POOL)
+		{
+			executor = Executors.newFixedThreadPool(poolSize);
+		}
+		else if (kind == Kind.VIRTUAL)
+		{
+			executor = newVirtualThreadExecutor();
+
+			if (executor == null)
+			{
+				System.out.println("Virtual threads are not supported by this JVM (Java " + Runtime.version().feature() + "), using platform threads");
+				this.kind = Kind.PLATFORM;
+			}
+		}
+
+		if (this.kind == Kind.PLATFORM)
+		{
+			executor = task -> new Thread(task).start();
+		}
+	}
+
+	/**
+	 *   Parse the startup option value: "platform", "pool", "pool:<threads>" or "virtual".
+	 *   An invalid value falls back to platform threads
+	 *
+	 *   @param  String option value
+	 *   @return TransferExecutor
+	 */
+	public static TransferExecutor fromString(String option)
+	{
+		String[] parts = option.split(":", 2);
+		int poolSize = Runtime.getRuntime().availableProcessors() * 4;
+
+		if (parts[0].equalsIgnoreCase("virtual"))
+		{
+			return new TransferExecutor(Kind.VIRTUAL, 0);
+		}
+		else if (parts[0].equalsIgnoreCase("pool"))
+		{
+			if (parts.length > 1)
+			{
+				try {
+					poolSize = Math.max(1, Integer.parseInt(parts[1]));
+				} catch (NumberFormatException e) {
+					System.out.println("Invalid pool size \"" + parts[1] + "\", using " + poolSize);
+				}
+			}
+
+			return new TransferExecutor(Kind.POOL, poolSize);
+		}
+		else if (!parts[0].equalsIgnoreCase("platform"))
+		{
+			System.out.println("Invalid executor \"" + option + "\", using platform threads");
+		}
+
+		return new TransferExecutor(Kind.PLATFORM, 0);
+	}
+
+	/**
+	 *   Run a transfer
+	 *
+	 *   @param  Runnable transfer to run
+	 *   @return none
+	 */
+	public void execute(Runnable transfer)
+	{
+		executor.execute(transfer);
+	}
+
+	/**
+	 *   Stop accepting transfers, transfers already started run to completion
+	 *
+	 *   @param  none
+	 *   @return none
+	 */
+	public void shutdown()
+	{
+		if (executor instanceof ExecutorService)
+		{
+			((ExecutorService) executor).shutdown();
+		}
+	}
+
+	public Kind getKind()
+	{
+		return kind;
+	}
+
+	/**
+	 *   Look up Executors.newVirtualThreadPerTaskExecutor reflectively, so the project still
+	 *   builds and runs on JVMs without virtual threads
+	 *
+	 *   @param  none
+	 *   @return Executor virtual thread per task executor, null if not supported
+	 */
+	private static Executor newVirtualThreadExecutor()
+	{
+		try {
+			return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException | UnsupportedOperationException e) {
+			return null;
+		}
+	}
+
+	public String toString()
+	{
+		return kind.toString().toLowerCase();
+	}
+}
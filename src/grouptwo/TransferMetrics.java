@@ -0,0 +1,348 @@
+package grouptwo;
+
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * TransferMetrics is the server's metrics registry. Every transfer (thread or selector) registers
+ * when its request arrives and is removed once it ends, the server-wide counters and histograms
+ * (transfer durations, round trip times measured by each transfer's RetransmitTimer) are updated
+ * as transfers end. The operator reads a table of the transfers in progress and the totals from
+ * the server CLI. Counts of transfers in progress are read while the transfer runs, so they may
+ * be a few packets behind.
+ *
+ * @author        Cyrus Sadeghi
+ */
+public class TransferMetrics
+{
+	/**
+	 * A transfer in progress, as shown in the table of active transfers
+	 */
+	public static class Transfer
+	{
+		private final int id;
+		private final TFTPCommon.Request request;
+		private final String fileName;
+		private final SocketAddress client;
+		private final TransferStats stats;
+		private final long startTime;
+		private final TransferEvents.TransferCompleted event;
+
+		private Transfer(int id, TFTPCommon.Request request, String fileName, SocketAddress client, TransferStats stats)
+		{
+			this.id = id;
+			this.request = request;
+			this.fileName = fileName;
+			this.client = client;
+			this.stats = stats;
+			startTime = System.nanoTime();
+			event = TransferEvents.transferStarted("server", request, fileName, client);
+		}
+
+		/**
+		 *   Time since the request arrived
+		 *
+		 *   @param  long current System.nanoTime
+		 *   @return double elapsed time in seconds
+		 */
+		private double elapsed(long now)
+		{
+			return Math.max(1e-9, (now - startTime) / 1e9);
+		}
+	}
+
+	private final Map<Integer, Transfer> active;
+	private final AtomicInteger nextId;
+	private final LongAdder started, completed, failed, bytesSent, bytesReceived, blocks, retransmits, duplicates, unknownTIDs;
+	//ERROR packets sent, by TFTPCommon.ErrorCode ordinal
+	private final AtomicLongArray errorsSent;
+	private final LatencyHistogram durations, roundTrips;
+	private final long startTime;
+	//Totals at the last report, for rates since then
+	private long lastReportTime, lastReportBytes, lastReportStarted;
+
+	/**
+	 *   Constructor for TransferMetrics
+	 *
+	 *   @param  none
+	 *   @return TransferMetrics
+	 */
+	public TransferMetrics()
+	{
+		active = new ConcurrentHashMap<Integer, Transfer>();
+		nextId = new AtomicInteger();
+		started = new LongAdder();
+		completed = new LongAdder();
+		failed = new LongAdder();
+		bytesSent = new LongAdder();
+		bytesReceived = new LongAdder();
+		blocks = new LongAdder();
+		retransmits = new LongAdder();
+		duplicates = new LongAdder();
+		unknownTIDs = new LongAdder();
+		errorsSent = new AtomicLongArray(TFTPCommon.ErrorCode.values().length);
+		durations = new LatencyHistogram();
+		roundTrips = new LatencyHistogram();
+		startTime = System.nanoTime();
+		lastReportTime = startTime;
+		lastReportBytes = 0;
+		lastReportStarted = 0;
+	}
+
+	/**
+	 *   Register a transfer whose request has just arrived
+	 *
+	 *   @param  TFTPCommon.Request request type (ERROR for invalid requests)
+	 *   @param  String file name requested
+	 *   @param  SocketAddress client address and port
+	 *   @param  TransferStats counters of the transfer
+	 *   @param  RetransmitTimer timer of the transfer, its round trip time samples are recorded
+	 *   @return Transfer registered transfer, passed to transferEnded
+	 */
+	public Transfer transferStarted(TFTPCommon.Request request, String fileName, SocketAddress client, TransferStats stats, RetransmitTimer timer)
+	{
+		Transfer transfer = new Transfer(nextId.incrementAndGet(), request, fileName, client, stats);
+
+		timer.setSampleHistogram(roundTrips);
+		started.increment();
+		active.put(transfer.id, transfer);
+		return transfer;
+	}
+
+	/**
+	 *   A transfer has ended, add its counters to the totals
+	 *
+	 *   @param  Transfer transfer returned by transferStarted
+	 *   @return none
+	 */
+	public void transferEnded(Transfer transfer)
+	{
+		TransferStats stats = transfer.stats;
+
+		if (active.remove(transfer.id) == null)
+		{
+			return;
+		}
+
+		TransferEvents.transferEnded(transfer.event, stats);
+
+		if (stats.isComplete())
+		{
+			completed.increment();
+			durations.record((System.nanoTime() - transfer.startTime) / 1000);
+		}
+		else
+		{
+			failed.increment();
+		}
+
+		if (transfer.request == TFTPCommon.Request.READ)
+		{
+			bytesSent.add(stats.getBytes());
+		}
+		else
+		{
+			bytesReceived.add(stats.getBytes());
+		}
+
+		blocks.add(stats.getBlocks());
+		retransmits.add(stats.getRetransmits());
+		duplicates.add(stats.getDuplicates());
+		unknownTIDs.add(stats.getUnknownTIDs());
+	}
+
+	/**
+	 *   Count a packet from an address that isn't a transfer's client (selector loops, where no transfer receives it)
+	 *
+	 *   @param  none
+	 *   @return none
+	 */
+	public void countUnknownTID()
+	{
+		unknownTIDs.increment();
+	}
+
+	/**
+	 *   Count an ERROR packet sent by the server
+	 *
+	 *   @param  TFTPCommon.ErrorCode error code of the packet
+	 *   @return none
+	 */
+	public void countErrorSent(TFTPCommon.ErrorCode code)
+	{
+		errorsSent.incrementAndGet(code.ordinal());
+	}
+
+	public int getActiveCount()
+	{
+		return active.size();
+	}
+
+	public long getStarted()
+	{
+		return started.sum();
+	}
+
+	public long getCompleted()
+	{
+		return completed.sum();
+	}
+
+	public long getFailed()
+	{
+		return failed.sum();
+	}
+
+	public long getBytesSent()
+	{
+		return bytesSent.sum();
+	}
+
+	public long getBytesReceived()
+	{
+		return bytesReceived.sum();
+	}
+
+	public long getBlocks()
+	{
+		return blocks.sum();
+	}
+
+	public long getRetransmits()
+	{
+		return retransmits.sum();
+	}
+
+	public long getDuplicates()
+	{
+		return duplicates.sum();
+	}
+
+	public long getUnknownTIDs()
+	{
+		return unknownTIDs.sum();
+	}
+
+	public long getErrorsSent(TFTPCommon.ErrorCode code)
+	{
+		return errorsSent.get(code.ordinal());
+	}
+
+	/**
+	 *   Table of the transfers in progress, one line per transfer
+	 *
+	 *   @param  none
+	 *   @return String table
+	 */
+	public String activeTable()
+	{
+		List<Transfer> transfers = new ArrayList<Transfer>(active.values());
+		StringBuilder table = new StringBuilder();
+		long now = System.nanoTime();
+		double seconds;
+		RetransmitTimer timer;
+
+		transfers.sort((a, b) -> Integer.compare(a.id, b.id));
+		table.append(String.format("%-6s %-5s %-24s %-24s %8s %12s %9s %8s %6s %6s %4s %7s", "ID", "Type", "Client", "File", "Time (s)", "Bytes", "MB/s", "Blocks", "Resent", "Dups", "TID", "RTO ms"));
+
+		for (Transfer transfer : transfers)
+		{
+			seconds = transfer.elapsed(now);
+			timer = transfer.stats.getRetransmitTimer();
+			table.append(System.lineSeparator());
+			table.append(String.format("%-6d %-5s %-24s %-24s %8.1f %12d %9.2f %8d %6d %6d %4d %7s", transfer.id,
+				transfer.request == TFTPCommon.Request.READ ? "RRQ" : transfer.request == TFTPCommon.Request.WRITE ? "WRQ" : "-",
+				clip(String.valueOf(transfer.client), 24), clip(transfer.fileName, 24), seconds, transfer.stats.getBytes(),
+				transfer.stats.getBytes() / 1048576.0 / seconds, transfer.stats.getBlocks(), transfer.stats.getRetransmits(),
+				transfer.stats.getDuplicates(), transfer.stats.getUnknownTIDs(), timer == null ? "-" : Integer.toString(timer.getTimeout())));
+		}
+
+		if (transfers.isEmpty())
+		{
+			table.append(System.lineSeparator()).append("(no transfers in progress)");
+		}
+
+		return table.toString();
+	}
+
+	/**
+	 *   Server-wide totals and rates: since the server started, and since the last report
+	 *
+	 *   @param  none
+	 *   @return String report
+	 */
+	public synchronized String report()
+	{
+		long now = System.nanoTime();
+		long activeBytes = 0, activeBlocks = 0, activeRetransmits = 0, activeDuplicates = 0, totalBytes, ended;
+		double uptime = Math.max(1e-9, (now - startTime) / 1e9);
+		double interval = Math.max(1e-9, (now - lastReportTime) / 1e9);
+		StringBuilder report = new StringBuilder();
+
+		for (Transfer transfer : active.values())
+		{
+			activeBytes += transfer.stats.getBytes();
+			activeBlocks += transfer.stats.getBlocks();
+			activeRetransmits += transfer.stats.getRetransmits();
+			activeDuplicates += transfer.stats.getDuplicates();
+		}
+
+		totalBytes = bytesSent.sum() + bytesReceived.sum() + activeBytes;
+		ended = completed.sum() + failed.sum();
+
+		report.append(String.format("Transfers: %d active, %d started, %d completed, %d failed (%.1f%% failed)", active.size(), started.sum(),
+			completed.sum(), failed.sum(), ended == 0 ? 0.0 : 100.0 * failed.sum() / ended));
+		report.append(System.lineSeparator());
+		report.append(String.format("Data:      %d bytes sent, %d bytes received by finished transfers, %d bytes by active transfers, %d blocks",
+			bytesSent.sum(), bytesReceived.sum(), activeBytes, blocks.sum() + activeBlocks));
+		report.append(System.lineSeparator());
+		report.append(String.format("Rate:      %.2f MB/s, %.1f transfers/s since last report (%.1f s), %.2f MB/s, %.1f transfers/s since start (%.1f s)",
+			(totalBytes - lastReportBytes) / 1048576.0 / interval, (started.sum() - lastReportStarted) / interval, interval,
+			totalBytes / 1048576.0 / uptime, started.sum() / uptime, uptime));
+		report.append(System.lineSeparator());
+		report.append(String.format("Errors:    %d packets resent, %d duplicate or out of order DATA, %d packets from unknown TIDs",
+			retransmits.sum() + activeRetransmits, duplicates.sum() + activeDuplicates, unknownTIDs.sum()));
+		report.append(System.lineSeparator());
+		report.append("Duration:  " + durations + " (completed transfers)");
+		report.append(System.lineSeparator());
+		report.append("RTT:       " + roundTrips);
+
+		lastReportTime = now;
+		lastReportBytes = totalBytes;
+		lastReportStarted = started.sum();
+		return report.toString();
+	}
+
+	/**
+	 *   Shorten a string to fit a table column
+	 *
+	 *   @param  String value
+	 *   @param  int column width
+	 *   @return String value, with its start cut off if it doesn't fit
+	 */
+	private static String clip(String value, int width)
+	{
+		if (value.length() <= width)
+		{
+			return value;
+		}
+
+		return "~" + value.substring(value.length() - width + 1);
+	}
+
+	public LatencyHistogram getDurations()
+	{
+		return durations;
+	}
+
+	public LatencyHistogram getRoundTrips()
+	{
+		return roundTrips;
+	}
+}
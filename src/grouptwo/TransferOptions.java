@@ -0,0 +1,317 @@
+package grouptwo;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * TransferOptions holds the RFC 2347 options for a single transfer. The client uses it to build
+ * the options appended to its RRQ/WRQ and to validate the server's OACK, the server uses it to
+ * decide which of the requested options it accepts (and therefore what goes in its OACK).
+ * A TransferOptions with no options set describes a plain RFC 1350 transfer. For compatibility with
+ * servers that don't support options, the client never sends a default value, and it only adds the
+ * transfer size to a request that already negotiates another option, so a request that only uses the
+ * defaults remains a plain RFC 1350 request.
+ *
+ * @author        Cyrus Sadeghi
+ */
+public class TransferOptions
+{
+	//Option names, always compared in lower case
+	public static final String BLKSIZE = "blksize";
+	public static final String WINDOWSIZE = "windowsize";
+	public static final String TSIZE = "tsize";
+
+	private int blockSize, windowSize;
+	private long transferSize;
+	private Map<String, String> options;
+
+	/**
+	 *   Constructor for TransferOptions, starts out with RFC 1350 defaults and no options
+	 *
+	 *   @param  none
+	 *   @return TransferOptions
+	 */
+	public TransferOptions()
+	{
+		blockSize = TFTPCommon.defaultBlockSize;
+		windowSize = TFTPCommon.defaultWindowSize;
+		transferSize = -1;
+		options = new LinkedHashMap<String, String>();
+	}
+
+	/**
+	 *   Client side: set the block size to request (RFC 2348). The default block size is never
+	 *   sent as an option, which keeps requests compatible with servers that don't support options
+	 *
+	 *   @param  int block size to request
+	 *   @return none
+	 */
+	public void requestBlockSize(int size)
+	{
+		blockSize = size;
+
+		if (size == TFTPCommon.defaultBlockSize)
+		{
+			options.remove(BLKSIZE);
+		}
+		else
+		{
+			options.put(BLKSIZE, Integer.toString(size));
+		}
+	}
+
+	/**
+	 *   Client side: set the window size to request (RFC 7440). The default window size (lock-step,
+	 *   one DATA per ACK) is never sent as an option
+	 *
+	 *   @param  int window size to request
+	 *   @return none
+	 */
+	public void requestWindowSize(int size)
+	{
+		windowSize = size;
+
+		if (size == TFTPCommon.defaultWindowSize)
+		{
+			options.remove(WINDOWSIZE);
+		}
+		else
+		{
+			options.put(WINDOWSIZE, Integer.toString(size));
+		}
+	}
+
+	/**
+	 *   Client side: request the transfer size option (RFC 2349). A WRQ sends the size of the file
+	 *   so the server can reserve space for it, an RRQ sends 0 and the server answers with the file's size.
+	 *   Only requested if another option is already set (call after setting them), the OACK round trip
+	 *   isn't worth the reservation for a request that would otherwise have no options
+	 *
+	 *   @param  long size of the file to write, 0 for a read
+	 *   @return none
+	 */
+	public void requestTransferSize(long size)
+	{
+		if (!options.isEmpty())
+		{
+			transferSize = size;
+			options.put(TSIZE, Long.toString(size));
+		}
+	}
+
+	/**
+	 *   Server side: answer an RRQ's transfer size option with the size of the file being read.
+	 *   Does nothing if the client didn't ask for the transfer size
+	 *
+	 *   @param  long size of the file in bytes
+	 *   @return none
+	 */
+	public void answerTransferSize(long size)
+	{
+		if (options.containsKey(TSIZE))
+		{
+			transferSize = size;
+			options.put(TSIZE, Long.toString(size));
+		}
+	}
+
+	/**
+	 *   Server side: build the options that will be accepted for a request. Unknown options and
+	 *   options with invalid values are ignored (RFC 2347), a block size or window size larger than
+	 *   we support is lowered to the largest we support (RFC 2348, RFC 7440)
+	 *
+	 *   @param  Map<String, String> options parsed from the request packet
+	 *   @return TransferOptions accepted options
+	 */
+	public static TransferOptions negotiate(Map<String, String> requested)
+	{
+		TransferOptions accepted = new TransferOptions();
+		int size = parseOption(requested.get(BLKSIZE));
+		long tsize;
+
+		if (size >= TFTPCommon.minBlockSize)
+		{
+			accepted.blockSize = Math.min(size, TFTPCommon.maxBlockSize);
+			accepted.options.put(BLKSIZE, Integer.toString(accepted.blockSize));
+		}
+
+		size = parseOption(requested.get(WINDOWSIZE));
+
+		if (size >= 1)
+		{
+			accepted.windowSize = Math.min(size, TFTPCommon.maxWindowSize);
+			accepted.options.put(WINDOWSIZE, Integer.toString(accepted.windowSize));
+		}
+
+		tsize = parseSize(requested.get(TSIZE));
+
+		if (tsize >= 0)
+		{
+			accepted.transferSize = tsize;
+			accepted.options.put(TSIZE, Long.toString(tsize));
+		}
+
+		return accepted;
+	}
+
+	/**
+	 *   Client side: apply the options acknowledged in the server's OACK. The OACK may only
+	 *   contain options that we requested, block and window sizes no larger than the ones requested
+	 *   and a valid transfer size
+	 *
+	 *   @param  Map<String, String> options parsed from the OACK
+	 *   @return Boolean true if OACK is acceptable
+	 */
+	public Boolean acceptOACK(Map<String, String> acknowledged)
+	{
+		int size = TFTPCommon.defaultBlockSize;
+		int window = TFTPCommon.defaultWindowSize;
+		long tsize = -1;
+
+		for (String name : acknowledged.keySet())
+		{
+			if (!options.containsKey(name))
+			{
+				return false;
+			}
+		}
+
+		if (acknowledged.containsKey(BLKSIZE))
+		{
+			size = parseOption(acknowledged.get(BLKSIZE));
+
+			if (size < TFTPCommon.minBlockSize || size > blockSize)
+			{
+				return false;
+			}
+		}
+
+		if (acknowledged.containsKey(WINDOWSIZE))
+		{
+			window = parseOption(acknowledged.get(WINDOWSIZE));
+
+			if (window < 1 || window > windowSize)
+			{
+				return false;
+			}
+		}
+
+		if (acknowledged.containsKey(TSIZE))
+		{
+			tsize = parseSize(acknowledged.get(TSIZE));
+
+			if (tsize < 0)
+			{
+				return false;
+			}
+		}
+
+		options = new LinkedHashMap<String, String>(acknowledged);
+		blockSize = size;
+		windowSize = window;
+		transferSize = tsize;
+		return true;
+	}
+
+	/**
+	 *   Client side: the server responded without an OACK, so it ignored our options.
+	 *   Fall back to RFC 1350 defaults
+	 *
+	 *   @param  none
+	 *   @return none
+	 */
+	public void rejectAll()
+	{
+		options.clear();
+		blockSize = TFTPCommon.defaultBlockSize;
+		windowSize = TFTPCommon.defaultWindowSize;
+		transferSize = -1;
+	}
+
+	/**
+	 *   Returns true if there are options to send (in a request or OACK)
+	 *
+	 *   @param  none
+	 *   @return Boolean true if any option is set
+	 */
+	public Boolean hasOptions()
+	{
+		return !options.isEmpty();
+	}
+
+	public Map<String, String> getOptions()
+	{
+		return options;
+	}
+
+	public int getBlockSize()
+	{
+		return blockSize;
+	}
+
+	public int getWindowSize()
+	{
+		return windowSize;
+	}
+
+	/**
+	 *   Size of the file being transferred, from the transfer size option
+	 *
+	 *   @param  none
+	 *   @return long size in bytes, -1 if the transfer size wasn't negotiated
+	 */
+	public long getTransferSize()
+	{
+		return transferSize;
+	}
+
+	/**
+	 *   Parse an option value as a non-negative integer
+	 *
+	 *   @param  String option value (may be null)
+	 *   @return int parsed value, -1 if missing or not a number
+	 */
+	private static int parseOption(String value)
+	{
+		if (value == null)
+		{
+			return -1;
+		}
+
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 *   Parse an option value as a non-negative file size
+	 *
+	 *   @param  String option value (may be null)
+	 *   @return long parsed value, -1 if missing, negative or not a number
+	 */
+	private static long parseSize(String value)
+	{
+		if (value == null)
+		{
+			return -1;
+		}
+
+		try {
+			return Math.max(-1, Long.parseLong(value));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	public String toString()
+	{
+		if (options.isEmpty())
+		{
+			return "none";
+		}
+
+		return options.toString();
+	}
+}
@@ -0,0 +1,175 @@
+package grouptwo;
+
+/**
+ * TransferStats counts what happened during a single transfer: DATA blocks and bytes moved,
+ * retransmitted packets, duplicate or out of order DATA received, packets from unknown TIDs and
+ * the transfer's retransmission timeout (see RetransmitTimer) when it ended. TFTPCommon.sendDataWTimeout
+ * and TFTPCommon.receiveDataWTimeout fill it in as the transfer runs, so callers (i.e. the load
+ * generator) can read the results instead of parsing log output. A TransferStats is only updated by
+ * the thread running its transfer. Other threads (the server's TransferMetrics) may read the
+ * counters while it runs, they see recent but not necessarily final values.
+ *
+ * @author        Cyrus Sadeghi
+ */
+public class TransferStats
+{
+	private volatile long blocks, bytes;
+	private volatile int retransmits, duplicates, unknownTIDs;
+	private int blockSize, windowSize;
+	private Boolean complete;
+	private RetransmitTimer timer;
+
+	/**
+	 *   Constructor for TransferStats
+	 *
+	 *   @param  none
+	 *   @return TransferStats
+	 */
+	public TransferStats()
+	{
+		blocks = 0;
+		bytes = 0;
+		retransmits = 0;
+		duplicates = 0;
+		unknownTIDs = 0;
+		blockSize = TFTPCommon.defaultBlockSize;
+		windowSize = TFTPCommon.defaultWindowSize;
+		complete = false;
+	}
+
+	/**
+	 *   Count a DATA block sent or received for the first time
+	 *
+	 *   @param  int number of file bytes in the block
+	 *   @return none
+	 */
+	public void countBlock(int blockBytes)
+	{
+		blocks++;
+		bytes += blockBytes;
+	}
+
+	/**
+	 *   Count a packet that was sent again (DATA, or a request that wasn't answered)
+	 *
+	 *   @param  none
+	 *   @return none
+	 */
+	public void countRetransmit()
+	{
+		retransmits++;
+	}
+
+	/**
+	 *   Count a duplicate or out of order DATA packet received
+	 *
+	 *   @param  none
+	 *   @return none
+	 */
+	public void countDuplicate()
+	{
+		duplicates++;
+	}
+
+	/**
+	 *   Count a packet received from an unknown TID (answered with an error, the transfer continues)
+	 *
+	 *   @param  none
+	 *   @return none
+	 */
+	public void countUnknownTID()
+	{
+		unknownTIDs++;
+	}
+
+	/**
+	 *   Mark the transfer as completed successfully
+	 *
+	 *   @param  none
+	 *   @return none
+	 */
+	public void setComplete()
+	{
+		complete = true;
+	}
+
+	/**
+	 *   Record the transfer's retransmission timer, so its final RTO and round trip time estimate can be read
+	 *
+	 *   @param  RetransmitTimer timer of the transfer
+	 *   @return none
+	 */
+	public void setRetransmitTimer(RetransmitTimer timer)
+	{
+		this.timer = timer;
+	}
+
+	/**
+	 *   Record the block and window size the transfer runs with once options have been negotiated
+	 *
+	 *   @param  int block size
+	 *   @param  int window size
+	 *   @return none
+	 */
+	public void setTransferOptions(int blockSize, int windowSize)
+	{
+		this.blockSize = blockSize;
+		this.windowSize = windowSize;
+	}
+
+	/**
+	 *   Retransmission timer of the transfer
+	 *
+	 *   @param  none
+	 *   @return RetransmitTimer timer, null if the transfer ended before any DATA was sent or received
+	 */
+	public RetransmitTimer getRetransmitTimer()
+	{
+		return timer;
+	}
+
+	public long getBlocks()
+	{
+		return blocks;
+	}
+
+	public long getBytes()
+	{
+		return bytes;
+	}
+
+	public int getRetransmits()
+	{
+		return retransmits;
+	}
+
+	public int getDuplicates()
+	{
+		return duplicates;
+	}
+
+	public int getUnknownTIDs()
+	{
+		return unknownTIDs;
+	}
+
+	public int getBlockSize()
+	{
+		return blockSize;
+	}
+
+	public int getWindowSize()
+	{
+		return windowSize;
+	}
+
+	public Boolean isComplete()
+	{
+		return complete;
+	}
+
+	public String toString()
+	{
+		return blocks + " DATA blocks (" + bytes + " bytes), " + retransmits + " retransmitted, " + duplicates + " duplicate or out of order" + (unknownTIDs > 0 ? ", " + unknownTIDs + " from unknown TIDs" : "") + (timer == null ? "" : ", " + timer);
+	}
+}
@@ -0,0 +1,314 @@
+package grouptwo;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * WriteBehind is the server's write-behind stage for files received by WRQ. Instead of each DATA
+ * block being written to disk before its ACK is sent, FileOperation copies blocks into large
+ * buffers and full buffers are written by a small pool of background threads, so disk latency is
+ * taken off the ACK path. Buffers are a multiple of 4 KB and each one is written at a file offset
+ * that is a multiple of its size. Each file may only have a few buffers filled or being written
+ * at once, a transfer that gets ahead of the disk waits for one of its buffers to be written
+ * (backpressure). The last buffer is written and the file synced to disk before the final ACK is sent.
+ *
+ * @author        Cyrus Sadeghi
+ */
+public class WriteBehind
+{
+	private final int bufferSize, maxBuffers;
+	private final ExecutorService writers;
+	//Written buffers, reused by later files instead of allocating new ones. Only as many are kept as the
+	//writer threads can have in use at once, buffers left over after a burst of files are garbage collected
+	private final Queue<ByteBuffer> spareBuffers;
+
+	/**
+	 * Write-behind state of a single file, only used by the thread running its transfer
+	 * (buffers are handed to the writer threads once full)
+	 */
+	public class Writer
+	{
+		private final FileChannel channel;
+		private final Semaphore freeBuffers;
+		private ByteBuffer current;
+		private long position;
+		private volatile IOException failure;
+
+		/**
+		 *   Constructor for Writer
+		 *
+		 *   @param  FileChannel channel of the file, written from offset 0
+		 *   @return Writer
+		 */
+		private Writer(FileChannel channel)
+		{
+			this.channel = channel;
+			freeBuffers = new Semaphore(maxBuffers);
+			current = null;
+			position = 0;
+		}
+
+		/**
+		 *   Append data to the file, waits if the file already has the maximum number of buffers
+		 *   waiting to be written
+		 *
+		 *   @param  byte[] data to append
+		 *   @param  int offset of data in array
+		 *   @param  int length of data
+		 *   @return none
+		 *   @throws IOException if an earlier background write failed
+		 */
+		public void write(byte[] data, int offset, int len) throws IOException
+		{
+			int copy;
+
+			checkFailure();
+
+			while (len > 0)
+			{
+				if (current == null)
+				{
+					current = takeBuffer();
+				}
+
+				copy = Math.min(len, current.remaining());
+				current.put(data, offset, copy);
+				offset += copy;
+				len -= copy;
+
+				if (!current.hasRemaining())
+				{
+					submit();
+				}
+			}
+		}
+
+		/**
+		 *   Write out everything appended so far and wait for it to reach the file
+		 *
+		 *   @param  Boolean true to also sync the file to disk (FileChannel.force)
+		 *   @return none
+		 *   @throws IOException if a background write or the sync failed
+		 */
+		public void flush(Boolean sync) throws IOException
+		{
+			if (current != null && current.position() > 0)
+			{
+				submit();
+			}
+
+			awaitWrites();
+			checkFailure();
+
+			if (sync)
+			{
+				channel.force(false);
+			}
+		}
+
+		/**
+		 *   Drop data that hasn't been written yet and wait for writes in progress to end,
+		 *   called before an incomplete file is closed and deleted
+		 *
+		 *   @param  none
+		 *   @return none
+		 */
+		public void discard()
+		{
+			if (current != null)
+			{
+				releaseBuffer(current);
+				current = null;
+			}
+
+			try {
+				awaitWrites();
+			} catch (IOException e) {
+				//Interrupted, the file is being deleted anyway
+			}
+		}
+
+		/**
+		 *   Get an empty buffer for this file, waiting for one of its buffers to be written if needed
+		 *
+		 *   @param  none
+		 *   @return ByteBuffer empty buffer
+		 */
+		private ByteBuffer takeBuffer() throws IOException
+		{
+			ByteBuffer buffer;
+
+			try {
+				freeBuffers.acquire();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("Interrupted waiting for write-behind buffer");
+			}
+
+			buffer = spareBuffers.poll();
+
+			if (buffer == null)
+			{
+				buffer = ByteBuffer.allocate(bufferSize);
+			}
+
+			return buffer;
+		}
+
+		/**
+		 *   Return a buffer to the spare buffers (if there is room), freeing its place in this file's limit
+		 *
+		 *   @param  ByteBuffer buffer no longer in use
+		 *   @return none
+		 */
+		private void releaseBuffer(ByteBuffer buffer)
+		{
+			buffer.clear();
+			spareBuffers.offer(buffer);
+			freeBuffers.release();
+		}
+
+		/**
+		 *   Hand the current buffer to a writer thread, to be written at the next file offset
+		 *
+		 *   @param  none
+		 *   @return none
+		 */
+		private void submit()
+		{
+			final ByteBuffer buffer = current;
+			final long start = position;
+
+			buffer.flip();
+			position += buffer.remaining();
+			current = null;
+
+			writers.execute(() -> {
+				try {
+					//Positional writes, so buffers of the same file can be written in any order
+					while (buffer.hasRemaining() && failure == null)
+					{
+						channel.write(buffer, start + buffer.position());
+					}
+				} catch (IOException e) {
+					failure = e;
+				} finally {
+					releaseBuffer(buffer);
+				}
+			});
+		}
+
+		/**
+		 *   Wait until all of this file's buffers have been written
+		 *
+		 *   @param  none
+		 *   @return none
+		 */
+		private void awaitWrites() throws IOException
+		{
+			try {
+				freeBuffers.acquire(maxBuffers);
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("Interrupted waiting for write-behind buffers to be written");
+			}
+
+			freeBuffers.release(maxBuffers);
+		}
+
+		private void checkFailure() throws IOException
+		{
+			if (failure != null)
+			{
+				throw failure;
+			}
+		}
+	}
+
+	/**
+	 *   Constructor for WriteBehind, starts its writer threads
+	 *
+	 *   @param  int size of each buffer in bytes (rounded up to a multiple of 4 KB)
+	 *   @param  int number of buffers each file may have filled or being written at once
+	 *   @param  int number of writer threads
+	 *   @return WriteBehind
+	 */
+	public WriteBehind(int bufferSize, int maxBuffers, int threads)
+	{
+		this.bufferSize = Math.max(4096, (bufferSize + 4095) / 4096 * 4096);
+		this.maxBuffers = Math.max(1, maxBuffers);
+		spareBuffers = new ArrayBlockingQueue<ByteBuffer>((int) Math.min(65536, (long) Math.max(1, threads) * this.maxBuffers));
+
+		writers = Executors.newFixedThreadPool(Math.max(1, threads), task -> {
+			Thread writer = new Thread(task, "writeBehind");
+			writer.setDaemon(true);
+			return writer;
+		});
+	}
+
+	/**
+	 *   Parse the startup option value: "<KB>[:buffers[:threads]]" (default 4 buffers per file, 2 writer threads)
+	 *
+	 *   @param  String option value
+	 *   @return WriteBehind new write-behind stage, null if the option is invalid
+	 */
+	public static WriteBehind fromString(String option)
+	{
+		String[] parts = option.split(":", 3);
+		int kilobytes, buffers = 4, threads = 2;
+
+		try {
+			kilobytes = Integer.parseInt(parts[0]);
+
+			if (parts.length > 1)
+			{
+				buffers = Integer.parseInt(parts[1]);
+			}
+
+			if (parts.length > 2)
+			{
+				threads = Integer.parseInt(parts[2]);
+			}
+		} catch (NumberFormatException e) {
+			return null;
+		}
+
+		if (kilobytes <= 0 || kilobytes > 1024 * 1024 || buffers <= 0 || threads <= 0)
+		{
+			return null;
+		}
+
+		return new WriteBehind(kilobytes * 1024, buffers, threads);
+	}
+
+	/**
+	 *   Start writing a new file through the write-behind stage
+	 *
+	 *   @param  FileChannel channel of the (empty) file
+	 *   @return Writer writer for the file
+	 */
+	public Writer open(FileChannel channel)
+	{
+		return new Writer(channel);
+	}
+
+	public int getBufferSize()
+	{
+		return bufferSize;
+	}
+
+	public int getMaxBuffers()
+	{
+		return maxBuffers;
+	}
+
+	public String toString()
+	{
+		return (bufferSize / 1024) + " KB buffers, " + maxBuffers + " per file";
+	}
+}